@@ -63,6 +63,23 @@ public class DashboardConfig {
      * Auto remove unhealthy machine after specific period in millisecond.
      */
     public static final String CONFIG_AUTO_REMOVE_MACHINE_MILLIS = "sentinel.dashboard.autoRemoveMachineMillis";
+    /**
+     * Reuse connections to the machines when fetching metrics, machines that misbehave fall back to
+     * {@code Connection: close}.
+     */
+    public static final String CONFIG_METRIC_FETCH_KEEP_ALIVE = "sentinel.dashboard.metric.fetch.keepAlive";
+    /**
+     * Max concurrent connections to one machine when fetching metrics.
+     */
+    public static final String CONFIG_METRIC_FETCH_MAX_CONN_PER_ROUTE = "sentinel.dashboard.metric.fetch.maxConnPerRoute";
+    /**
+     * Close pooled metric fetch connections idle for longer than this period in millisecond.
+     */
+    public static final String CONFIG_METRIC_FETCH_CONN_IDLE_MILLIS = "sentinel.dashboard.metric.fetch.connIdleMillis";
+    /**
+     * Ask the machines for a gzip or deflate compressed metric response when fetching metrics.
+     */
+    public static final String CONFIG_METRIC_FETCH_COMPRESSION = "sentinel.dashboard.metric.fetch.compression";
 
     private static final ConcurrentMap<String, Object> cacheMap = new ConcurrentHashMap<>();
     
@@ -110,6 +127,16 @@ public class DashboardConfig {
         return val;
     }
 
+    protected static boolean getConfigBool(String name, boolean defaultVal) {
+        if (cacheMap.containsKey(name)) {
+            return (boolean) cacheMap.get(name);
+        }
+        String str = getConfig(name);
+        boolean val = StringUtils.isBlank(str) ? defaultVal : Boolean.parseBoolean(str.trim());
+        cacheMap.put(name, val);
+        return val;
+    }
+
     public static String getAuthUsername() {
         return getConfigStr(CONFIG_AUTH_USERNAME);
     }
@@ -134,6 +161,22 @@ public class DashboardConfig {
         return getConfigInt(CONFIG_UNHEALTHY_MACHINE_MILLIS, DEFAULT_MACHINE_HEALTHY_TIMEOUT_MS, 30000);
     }
     
+    public static boolean isMetricFetchKeepAlive() {
+        return getConfigBool(CONFIG_METRIC_FETCH_KEEP_ALIVE, true);
+    }
+
+    public static boolean isMetricFetchCompression() {
+        return getConfigBool(CONFIG_METRIC_FETCH_COMPRESSION, true);
+    }
+
+    public static int getMetricFetchMaxConnPerRoute() {
+        return getConfigInt(CONFIG_METRIC_FETCH_MAX_CONN_PER_ROUTE, 2, 1);
+    }
+
+    public static int getMetricFetchConnIdleMillis() {
+        return getConfigInt(CONFIG_METRIC_FETCH_CONN_IDLE_MILLIS, 30000, 1000);
+    }
+
     public static void clearCache() {
         cacheMap.clear();
     }
@@ -17,26 +17,37 @@ package com.alibaba.csp.sentinel.dashboard.controller;
 
 import com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntity;
 import com.alibaba.csp.sentinel.dashboard.domain.Result;
-import com.alibaba.csp.sentinel.dashboard.domain.vo.MetricVo;
+import com.alibaba.csp.sentinel.dashboard.domain.vo.MetricSeries;
+import com.alibaba.csp.sentinel.dashboard.domain.vo.MetricTotalsVo;
+import com.alibaba.csp.sentinel.dashboard.metric.FleetMetricAggregator;
+import com.alibaba.csp.sentinel.dashboard.metric.MetricFetchStats;
+import com.alibaba.csp.sentinel.dashboard.metric.MetricLiveBroadcaster;
+import com.alibaba.csp.sentinel.dashboard.metric.TopResourceTracker;
 import com.alibaba.csp.sentinel.dashboard.repository.metric.MetricsRepository;
+import com.alibaba.csp.sentinel.dashboard.repository.metric.RollupTier;
 import com.alibaba.csp.sentinel.util.StringUtil;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
 
 /**
  * @author leyou
@@ -47,18 +58,42 @@ public class MetricController {
 
     private static Logger logger = LoggerFactory.getLogger(MetricController.class);
 
-    private static final long maxQueryIntervalMs = 1000 * 60 * 60;
-
     @Autowired
     private MetricsRepository<MetricEntity> metricStore;
 
+    @Autowired
+    private MetricFetchStats metricFetchStats;
+
+    @Autowired
+    private TopResourceTracker topResourceTracker;
+
+    @Autowired
+    private MetricLiveBroadcaster liveBroadcaster;
+
+    @Autowired
+    private FleetMetricAggregator fleetAggregator;
+
+    /**
+     * The {@link Result} holds {@code totalCount}, {@code totalPage}, {@code pageIndex}, {@code pageSize},
+     * {@code ranked} and the {@code metric} series of the page by resource. The series are read whole
+     * before the response is written, so no database connection waits on the client.
+     *
+     * @param orderBy   rank of the resources, a {@link TopResourceTracker.Rank}, {@code PASS} by default.
+     *                  Resources with no traffic in the ranking window come last. If no node ranks the
+     *                  app, {@code ranked} is {@code false} and the resources are in the order listed.
+     * @param step      see {@link #stepOf(Integer, Integer, long, long)}, {@code resolution} is its former name
+     * @param maxPoints max count of metrics per resource
+     */
     @ResponseBody
     @RequestMapping("/queryTopResourceMetric.json")
     public Result<?> queryTopResourceMetric(final String app,
                                             Integer pageIndex,
                                             Integer pageSize,
                                             Boolean desc,
-                                            Long startTime, Long endTime, String searchKey) {
+                                            Long startTime, Long endTime,
+                                            String searchKey,
+                                            Integer resolution, String orderBy,
+                                            Integer step, Integer maxPoints) {
         if (StringUtil.isEmpty(app)) {
             return Result.ofFail(-1, "app can't be null or empty");
         }
@@ -80,8 +115,13 @@ public class MetricController {
         if (startTime == null) {
             startTime = endTime - 1000 * 60 * 5;
         }
-        if (endTime - startTime > maxQueryIntervalMs) {
-            return Result.ofFail(-1, "time intervalMs is too big, must <= 1h");
+        Integer metricStep = stepOf(step != null ? step : resolution, maxPoints, startTime, endTime);
+        if (metricStep == null) {
+            return Result.ofFail(-1, "time intervalMs is too big for the resolution");
+        }
+        TopResourceTracker.Rank rank = rankOf(orderBy, TopResourceTracker.Rank.PASS);
+        if (rank == null) {
+            return Result.ofFail(-1, "invalid orderBy: " + orderBy);
         }
         List<String> resources = metricStore.listResourcesOfApp(app);
         logger.debug("queryTopResourceMetric(), resources.size()={}", resources.size());
@@ -89,9 +129,6 @@ public class MetricController {
         if (resources == null || resources.isEmpty()) {
             return Result.ofSuccess(null);
         }
-        if (!desc) {
-            Collections.reverse(resources);
-        }
         if (StringUtil.isNotEmpty(searchKey)) {
             List<String> searched = new ArrayList<>();
             for (String resource : resources) {
@@ -101,42 +138,72 @@ public class MetricController {
             }
             resources = searched;
         }
-        int totalPage = (resources.size() + pageSize - 1) / pageSize;
+        final int totalCount = resources.size();
+        final int totalPage = (totalCount + pageSize - 1) / pageSize;
         List<String> topResource = new ArrayList<>();
+        boolean isRanked = true;
         if (pageIndex <= totalPage) {
-            topResource = resources.subList((pageIndex - 1) * pageSize,
-                    Math.min(pageIndex * pageSize, resources.size()));
+            int limit = Math.min(pageIndex * pageSize, resources.size());
+            // resources with no traffic in the window rank lowest, ascending needs all the ranked ones to skip them
+            List<String> ranked = topResourceTracker.top(app, rank, desc,
+                    StringUtil.isEmpty(searchKey) ? null : r -> r.contains(searchKey),
+                    desc ? limit : resources.size());
+            if (ranked == null) {
+                isRanked = false;
+                ranked = Collections.emptyList();
+            }
+            // the tracker may rank resources no longer listed, the page only holds those counted
+            Set<String> listed = new HashSet<>(resources);
+            Set<String> rankedSet = new HashSet<>();
+            List<String> rankedListed = new ArrayList<>(ranked.size());
+            for (String resource : ranked) {
+                if (listed.contains(resource) && rankedSet.add(resource)) {
+                    rankedListed.add(resource);
+                }
+            }
+            ranked = rankedListed;
+            List<String> idle = new ArrayList<>();
+            for (String resource : resources) {
+                if (!rankedSet.contains(resource)) {
+                    idle.add(resource);
+                }
+            }
+            List<String> ordered = new ArrayList<>(ranked.size() + idle.size());
+            ordered.addAll(desc ? ranked : idle);
+            ordered.addAll(desc ? idle : ranked);
+            topResource = new ArrayList<>(ordered.subList(Math.min((pageIndex - 1) * pageSize, limit),
+                    Math.min(limit, ordered.size())));
         }
-        final Map<String, Iterable<MetricVo>> map = new ConcurrentHashMap<>();
         logger.debug("topResource={}", topResource);
         long time = System.currentTimeMillis();
-        for (final String resource : topResource) {
-            List<MetricEntity> entities = metricStore.queryByAppAndResourceBetween(
-                    app, resource, startTime, endTime);
-            logger.debug("resource={}, entities.size()={}", resource, entities == null ? "null" : entities.size());
-            List<MetricVo> vos = MetricVo.fromMetricEntities(entities, resource);
-            Iterable<MetricVo> vosSorted = sortMetricVoAndDistinct(vos);
-            map.put(resource, vosSorted);
-        }
+        // the whole page in one query, the repository looks the resources up by their dictionary ids
+        Map<String, MetricSeries> seriesByResource = metricStore.querySeriesByAppAndResourcesBetween(
+                app, topResource, startTime, endTime, metricStep);
         logger.debug("queryTopResourceMetric() total query time={} ms", System.currentTimeMillis() - time);
         Map<String, Object> resultMap = new HashMap<>(16);
-        resultMap.put("totalCount", resources.size());
+        resultMap.put("totalCount", totalCount);
         resultMap.put("totalPage", totalPage);
         resultMap.put("pageIndex", pageIndex);
         resultMap.put("pageSize", pageSize);
+        resultMap.put("ranked", isRanked);
 
-        Map<String, Iterable<MetricVo>> map2 = new LinkedHashMap<>();
+        Map<String, MetricSeries> map = new LinkedHashMap<>();
         // order matters.
         for (String identity : topResource) {
-            map2.put(identity, map.get(identity));
+            map.put(identity, seriesByResource.getOrDefault(identity, MetricSeries.empty()));
         }
-        resultMap.put("metric", map2);
+        resultMap.put("metric", map);
         return Result.ofSuccess(resultMap);
     }
 
+    /**
+     * @param step      see {@link #stepOf(Integer, Integer, long, long)}, {@code resolution} is its former name
+     * @param maxPoints max count of metrics returned
+     */
     @ResponseBody
     @RequestMapping("/queryByAppAndResource.json")
-    public Result<?> queryByAppAndResource(String app, String identity, Long startTime, Long endTime) {
+    public Result<?> queryByAppAndResource(String app, String identity, Long startTime, Long endTime,
+                                           Integer resolution, Integer step, Integer maxPoints) {
         if (StringUtil.isEmpty(app)) {
             return Result.ofFail(-1, "app can't be null or empty");
         }
@@ -149,26 +216,169 @@ public class MetricController {
         if (startTime == null) {
             startTime = endTime - 1000 * 60;
         }
-        if (endTime - startTime > maxQueryIntervalMs) {
-            return Result.ofFail(-1, "time intervalMs is too big, must <= 1h");
+        Integer metricStep = stepOf(step != null ? step : resolution, maxPoints, startTime, endTime);
+        if (metricStep == null) {
+            return Result.ofFail(-1, "time intervalMs is too big for the resolution");
         }
-        List<MetricEntity> entities = metricStore.queryByAppAndResourceBetween(
-                app, identity, startTime, endTime);
-        List<MetricVo> vos = MetricVo.fromMetricEntities(entities, identity);
-        return Result.ofSuccess(sortMetricVoAndDistinct(vos));
+        MetricSeries series = metricStore.querySeriesByAppAndResourcesBetween(
+                app, Collections.singletonList(identity), startTime, endTime, metricStep).get(identity);
+        return Result.ofSuccess(series == null ? MetricSeries.empty() : series);
     }
 
-    private Iterable<MetricVo> sortMetricVoAndDistinct(List<MetricVo> vos) {
-        if (vos == null) {
-            return null;
+    /**
+     * Subscribe to the metrics of the app as they are saved, see {@link MetricLiveBroadcaster}.
+     * The resources to receive are given by repeated {@code resource} parameters, as resource names
+     * may hold commas, all the resources of the app if none.
+     */
+    @RequestMapping(value = "/live", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<SseEmitter> live(HttpServletRequest request, String app) {
+        if (StringUtil.isEmpty(app) || !liveBroadcaster.isEnabled()) {
+            return ResponseEntity.badRequest().build();
         }
-        Map<Long, MetricVo> map = new TreeMap<>();
-        for (MetricVo vo : vos) {
-            MetricVo oldVo = map.get(vo.getTimestamp().getTime());
-            if (oldVo == null || vo.getGmtCreate().getTime() > oldVo.getGmtCreate().getTime()) {
-                map.put(vo.getTimestamp().getTime(), vo);
+        Set<String> watched = new HashSet<>();
+        String[] resources = request.getParameterValues("resource");
+        if (resources != null) {
+            for (String resource : resources) {
+                if (StringUtil.isNotEmpty(resource)) {
+                    watched.add(resource);
+                }
             }
         }
-        return map.values();
+        SseEmitter emitter = liveBroadcaster.subscribe(app, watched);
+        if (emitter == null) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+        }
+        return ResponseEntity.ok(emitter);
+    }
+
+    /**
+     * Totals of the busiest apps over the window, summed up as metrics are saved.
+     *
+     * @param windowSeconds 300 by default, up to the fleet history
+     * @param orderBy       a {@link TopResourceTracker.Rank}, {@code PASS} by default
+     */
+    @ResponseBody
+    @RequestMapping("/fleet/apps.json")
+    public Result<?> queryFleetApps(Integer windowSeconds, String orderBy, Integer limit) {
+        TopResourceTracker.Rank rank = rankOf(orderBy, TopResourceTracker.Rank.PASS);
+        if (rank == null) {
+            return Result.ofFail(-1, "invalid orderBy: " + orderBy);
+        }
+        return Result.ofSuccess(fleetAggregator.appTotals(windowSeconds == null ? 300 : windowSeconds, rank,
+                limitOf(limit, 20)));
+    }
+
+    /**
+     * The busiest resources across all apps over the ranking window of {@link TopResourceTracker}, of
+     * the apps with traffic in the window.
+     *
+     * @param orderBy a {@link TopResourceTracker.Rank}, {@code BLOCK} by default
+     */
+    @ResponseBody
+    @RequestMapping("/fleet/topResources.json")
+    public Result<?> queryFleetTopResources(String orderBy, Integer limit) {
+        TopResourceTracker.Rank rank = rankOf(orderBy, TopResourceTracker.Rank.BLOCK);
+        if (rank == null) {
+            return Result.ofFail(-1, "invalid orderBy: " + orderBy);
+        }
+        List<String> apps = new ArrayList<>();
+        for (MetricTotalsVo totals : fleetAggregator.appTotals(topResourceTracker.getWindowSeconds(),
+                TopResourceTracker.Rank.PASS, Integer.MAX_VALUE)) {
+            apps.add(totals.getApp());
+        }
+        return Result.ofSuccess(topResourceTracker.topAcrossApps(apps, rank, limitOf(limit, 20)));
+    }
+
+    /**
+     * Series of the totals of apps over all their resources, in buckets of 10 seconds. The apps are
+     * given by repeated {@code app} parameters, the busiest ones by pass qps over the time range if none.
+     *
+     * @return app -> series, in the order of the apps
+     */
+    @ResponseBody
+    @RequestMapping("/fleet/appSeries.json")
+    public Result<?> queryFleetAppSeries(HttpServletRequest request, Long startTime, Long endTime, Integer limit) {
+        if (endTime == null) {
+            endTime = System.currentTimeMillis();
+        }
+        if (startTime == null) {
+            startTime = endTime - 1000 * 60 * 30;
+        }
+        List<String> apps = new ArrayList<>();
+        String[] appParams = request.getParameterValues("app");
+        if (appParams != null && appParams.length > 0) {
+            Collections.addAll(apps, appParams);
+        } else {
+            int windowSeconds = (int) Math.min(Integer.MAX_VALUE, (endTime - startTime) / 1000);
+            for (MetricTotalsVo totals : fleetAggregator.appTotals(windowSeconds, TopResourceTracker.Rank.PASS,
+                    limitOf(limit, 10))) {
+                apps.add(totals.getApp());
+            }
+        }
+        Map<String, MetricSeries> series = fleetAggregator.series(apps, startTime, endTime);
+        Map<String, MetricSeries> results = new LinkedHashMap<>();
+        for (String app : apps) {
+            results.put(app, series.getOrDefault(app, MetricSeries.empty()));
+        }
+        return Result.ofSuccess(results);
+    }
+
+    /**
+     * @return {@code null} if invalid
+     */
+    private static TopResourceTracker.Rank rankOf(String orderBy, TopResourceTracker.Rank defaultRank) {
+        if (StringUtil.isBlank(orderBy)) {
+            return defaultRank;
+        }
+        try {
+            return TopResourceTracker.Rank.valueOf(orderBy.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static int limitOf(Integer limit, int defaultLimit) {
+        if (limit == null || limit <= 0) {
+            return defaultLimit;
+        }
+        return Math.min(limit, 100);
+    }
+
+    @ResponseBody
+    @RequestMapping("/fetchStats.json")
+    public Result<?> fetchStats() {
+        return Result.ofSuccess(metricFetchStats.snapshot());
+    }
+
+    /**
+     * Per-second metrics serve up to 1h, longer time ranges are read from the rollups. Metrics are
+     * summed up by the repository into buckets of the step: qps as the per-second average of the
+     * bucket, rt as the average weighted by the success qps, and the peak pass qps of a second.
+     *
+     * @param step      wanted step in seconds, {@code null} for the finest one the time range allows
+     * @param maxPoints the step grows so the time range holds at most this count of buckets,
+     *                  {@code null} for no limit
+     * @return step of the metrics, rounded up by {@link RollupTier#alignStep(int)}, {@code null} if
+     * the time range is too long for the step
+     */
+    private Integer stepOf(Integer step, Integer maxPoints, long startTime, long endTime) {
+        long interval = endTime - startTime;
+        RollupTier finest = RollupTier.finestFor(interval);
+        if (finest == null) {
+            return null;
+        }
+        long wanted = step == null ? finest.getStep() : step;
+        if (maxPoints != null && maxPoints > 0) {
+            long intervalSeconds = (interval + 999) / 1000;
+            wanted = Math.max(wanted, (intervalSeconds + maxPoints - 1) / maxPoints);
+        }
+        if (wanted > Integer.MAX_VALUE / 2) {
+            return null;
+        }
+        int aligned = RollupTier.alignStep((int) wanted);
+        if (interval > RollupTier.coarsestFor(aligned).getMaxQueryIntervalMs()) {
+            return null;
+        }
+        return aligned;
     }
 }
@@ -0,0 +1,118 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.controller;
+
+import com.alibaba.csp.sentinel.config.SentinelConfig;
+import com.alibaba.csp.sentinel.dashboard.domain.Result;
+import com.alibaba.csp.sentinel.dashboard.metric.MetricPushAggregator;
+import com.alibaba.csp.sentinel.util.StringUtil;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+import javax.servlet.http.HttpServletRequest;
+
+import sun.net.util.IPAddressUtil;
+
+/**
+ * Receives the metrics pushed by the machines of the apps in push mode. The body is made of the
+ * thin metric lines served by {@code sentinel/metric}, compressed as told by {@code Content-Encoding},
+ * sent with a {@code text/plain} content type. {@code endTime} tells every second up to it is in
+ * the batch, so an idle machine still moves the watermark of its app.
+ */
+@Controller
+@RequestMapping(value = "/registry", produces = MediaType.APPLICATION_JSON_VALUE)
+public class MetricPushController {
+
+    private static final int MAX_BODY_BYTES = 1024 * 1024 * 8;
+
+    private final Logger logger = LoggerFactory.getLogger(MetricPushController.class);
+
+    @Autowired
+    private MetricPushAggregator pushAggregator;
+
+    @ResponseBody
+    @PostMapping("/metric")
+    public Result<Integer> receiveMetric(HttpServletRequest request, String app, String ip, Integer port,
+                                         Long endTime) {
+        if (StringUtil.isBlank(app) || app.length() > 256) {
+            return Result.ofFail(-1, "invalid appName");
+        }
+        if (StringUtil.isBlank(ip) || ip.length() > 128) {
+            return Result.ofFail(-1, "invalid ip: " + ip);
+        }
+        if (!IPAddressUtil.isIPv4LiteralAddress(ip) && !IPAddressUtil.isIPv6LiteralAddress(ip)) {
+            return Result.ofFail(-1, "invalid ip: " + ip);
+        }
+        if (port == null || port <= 0) {
+            return Result.ofFail(-1, "invalid port");
+        }
+        if (!pushAggregator.isPush(app)) {
+            return Result.ofFail(-1, "metrics of " + app + " are pulled, push not accepted");
+        }
+        if (request.getContentLength() > MAX_BODY_BYTES) {
+            return Result.ofFail(-1, "body too large");
+        }
+        try {
+            byte[] body = readBody(request);
+            if (body == null) {
+                return Result.ofFail(-1, "body too large");
+            }
+            String encoding = request.getCharacterEncoding();
+            Charset charset = StringUtil.isBlank(encoding) ? Charset.forName(SentinelConfig.charset())
+                : Charset.forName(encoding);
+            return Result.ofSuccess(pushAggregator.receive(app, ip + ":" + port, body,
+                request.getHeader(HttpHeaders.CONTENT_ENCODING), charset, endTime));
+        } catch (IOException e) {
+            logger.warn("Receive metrics of {} from {}:{} error", app, ip, port, e);
+            return Result.ofFail(-1, "invalid body: " + e.getMessage());
+        } catch (Exception e) {
+            logger.error("Receive metrics error", e);
+            return Result.ofFail(-1, e.getMessage());
+        }
+    }
+
+    /**
+     * @return the body, {@code null} if larger than {@link #MAX_BODY_BYTES}
+     */
+    private byte[] readBody(HttpServletRequest request) throws IOException {
+        int length = request.getContentLength();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length > 0 ? length : 8192);
+        byte[] buf = new byte[8192];
+        try (InputStream in = request.getInputStream()) {
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                if (out.size() + n > MAX_BODY_BYTES) {
+                    return null;
+                }
+                out.write(buf, 0, n);
+            }
+        }
+        return out.toByteArray();
+    }
+}
@@ -16,6 +16,7 @@
 package com.alibaba.csp.sentinel.dashboard.datasource.entity;
 
 import com.baomidou.mybatisplus.annotation.IdType;
+import com.baomidou.mybatisplus.annotation.TableField;
 import com.baomidou.mybatisplus.annotation.TableId;
 import com.baomidou.mybatisplus.annotation.TableName;
 
@@ -35,6 +36,10 @@ public class MetricEntity {
      * 监控信息的时间戳
      */
     private Date timestamp;
+    /**
+     * 不落库, 通过 {@link #resourceCode} 从资源字典还原
+     */
+    @TableField(exist = false)
     private String resource;
     private Long passQps;
     private Long successQps;
@@ -51,8 +56,17 @@ public class MetricEntity {
      */
     private int count;
 
+    /**
+     * 资源字典 {@code metric_resource} 中的资源 id
+     */
     private int resourceCode;
 
+    /**
+     * 降采样后桶内单秒最高的 pass qps, 不落库; 单秒的监控信息为 {@code null}
+     */
+    @TableField(exist = false)
+    private Long maxPassQps;
+
     public static MetricEntity copyOf(MetricEntity oldEntity) {
         MetricEntity entity = new MetricEntity();
         entity.setId(oldEntity.getId());
@@ -61,12 +75,14 @@ public class MetricEntity {
         entity.setApp(oldEntity.getApp());
         entity.setTimestamp(oldEntity.getTimestamp());
         entity.setResource(oldEntity.getResource());
+        entity.setResourceCode(oldEntity.getResourceCode());
         entity.setPassQps(oldEntity.getPassQps());
         entity.setBlockQps(oldEntity.getBlockQps());
         entity.setSuccessQps(oldEntity.getSuccessQps());
         entity.setExceptionQps(oldEntity.getExceptionQps());
         entity.setRt(oldEntity.getRt());
         entity.setCount(oldEntity.getCount());
+        entity.setMaxPassQps(oldEntity.getMaxPassQps());
         return entity;
     }
 
@@ -147,7 +163,6 @@ public class MetricEntity {
 
     public void setResource(String resource) {
         this.resource = resource;
-        this.resourceCode = resource.hashCode();
     }
 
     public Long getPassQps() {
@@ -190,10 +205,22 @@ public class MetricEntity {
         this.count = count;
     }
 
+    public Long getMaxPassQps() {
+        return maxPassQps;
+    }
+
+    public void setMaxPassQps(Long maxPassQps) {
+        this.maxPassQps = maxPassQps;
+    }
+
     public int getResourceCode() {
         return resourceCode;
     }
 
+    public void setResourceCode(int resourceCode) {
+        this.resourceCode = resourceCode;
+    }
+
     public Long getSuccessQps() {
         return successQps;
     }
@@ -0,0 +1,133 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.datasource.entity;
+
+import com.baomidou.mybatisplus.annotation.IdType;
+import com.baomidou.mybatisplus.annotation.TableId;
+import com.baomidou.mybatisplus.annotation.TableName;
+
+import java.util.Date;
+
+/**
+ * Entry of the resource dictionary, {@code metric_entity.resource_code} refers to its id.
+ *
+ * @author agent
+ */
+@TableName("metric_resource")
+public class MetricResourceEntity {
+    @TableId(type = IdType.AUTO)
+    private Integer id;
+    private Date gmtCreate;
+    private String app;
+    private String resource;
+    /**
+     * 最后一次写入指标的时间
+     */
+    private Date gmtLastSeen;
+    /**
+     * totals of the last hour as of {@link #gmtLastSeen}, maintained by
+     * {@link com.alibaba.csp.sentinel.dashboard.repository.metric.ResourceIndex}.
+     */
+    private Long passQps;
+    private Long successQps;
+    private Long blockQps;
+    private Long exceptionQps;
+
+    public Integer getId() {
+        return id;
+    }
+
+    public void setId(Integer id) {
+        this.id = id;
+    }
+
+    public Date getGmtCreate() {
+        return gmtCreate;
+    }
+
+    public void setGmtCreate(Date gmtCreate) {
+        this.gmtCreate = gmtCreate;
+    }
+
+    public String getApp() {
+        return app;
+    }
+
+    public void setApp(String app) {
+        this.app = app;
+    }
+
+    public String getResource() {
+        return resource;
+    }
+
+    public void setResource(String resource) {
+        this.resource = resource;
+    }
+
+    public Date getGmtLastSeen() {
+        return gmtLastSeen;
+    }
+
+    public void setGmtLastSeen(Date gmtLastSeen) {
+        this.gmtLastSeen = gmtLastSeen;
+    }
+
+    public Long getPassQps() {
+        return passQps;
+    }
+
+    public void setPassQps(Long passQps) {
+        this.passQps = passQps;
+    }
+
+    public Long getSuccessQps() {
+        return successQps;
+    }
+
+    public void setSuccessQps(Long successQps) {
+        this.successQps = successQps;
+    }
+
+    public Long getBlockQps() {
+        return blockQps;
+    }
+
+    public void setBlockQps(Long blockQps) {
+        this.blockQps = blockQps;
+    }
+
+    public Long getExceptionQps() {
+        return exceptionQps;
+    }
+
+    public void setExceptionQps(Long exceptionQps) {
+        this.exceptionQps = exceptionQps;
+    }
+
+    @Override
+    public String toString() {
+        return "MetricResourceEntity{" +
+                "id=" + id +
+                ", gmtCreate=" + gmtCreate +
+                ", app='" + app + '\'' +
+                ", resource='" + resource + '\'' +
+                ", gmtLastSeen=" + gmtLastSeen +
+                ", passQps=" + passQps +
+                ", blockQps=" + blockQps +
+                '}';
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.datasource.entity;
+
+import com.baomidou.mybatisplus.annotation.IdType;
+import com.baomidou.mybatisplus.annotation.TableId;
+import com.baomidou.mybatisplus.annotation.TableName;
+
+import java.util.Date;
+
+/**
+ * Metrics of a resource summed over a bucket of {@link #step} seconds, see
+ * {@link com.alibaba.csp.sentinel.dashboard.repository.metric.RollupTier}.
+ *
+ * @author agent
+ */
+@TableName("metric_rollup")
+public class MetricRollupEntity {
+    @TableId(type = IdType.AUTO)
+    private Long id;
+    private Date gmtCreate;
+    private Date gmtModified;
+    private String app;
+    /**
+     * 聚合粒度, 单位秒
+     */
+    private int step;
+    /**
+     * 聚合桶的起始时间
+     */
+    private Date timestamp;
+    private int resourceCode;
+    private Long passQps;
+    private Long successQps;
+    private Long blockQps;
+    private Long exceptionQps;
+    /**
+     * summary rt of all success qps of the bucket, {@code rt / successQps} is the weighted average rt.
+     */
+    private double rt;
+    private int count;
+    /**
+     * highest pass qps of a second of the bucket, {@code null} for the buckets rolled up before it was kept
+     */
+    private Long maxPassQps;
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public Date getGmtCreate() {
+        return gmtCreate;
+    }
+
+    public void setGmtCreate(Date gmtCreate) {
+        this.gmtCreate = gmtCreate;
+    }
+
+    public Date getGmtModified() {
+        return gmtModified;
+    }
+
+    public void setGmtModified(Date gmtModified) {
+        this.gmtModified = gmtModified;
+    }
+
+    public String getApp() {
+        return app;
+    }
+
+    public void setApp(String app) {
+        this.app = app;
+    }
+
+    public int getStep() {
+        return step;
+    }
+
+    public void setStep(int step) {
+        this.step = step;
+    }
+
+    public Date getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(Date timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    public int getResourceCode() {
+        return resourceCode;
+    }
+
+    public void setResourceCode(int resourceCode) {
+        this.resourceCode = resourceCode;
+    }
+
+    public Long getPassQps() {
+        return passQps;
+    }
+
+    public void setPassQps(Long passQps) {
+        this.passQps = passQps;
+    }
+
+    public Long getSuccessQps() {
+        return successQps;
+    }
+
+    public void setSuccessQps(Long successQps) {
+        this.successQps = successQps;
+    }
+
+    public Long getBlockQps() {
+        return blockQps;
+    }
+
+    public void setBlockQps(Long blockQps) {
+        this.blockQps = blockQps;
+    }
+
+    public Long getExceptionQps() {
+        return exceptionQps;
+    }
+
+    public void setExceptionQps(Long exceptionQps) {
+        this.exceptionQps = exceptionQps;
+    }
+
+    public double getRt() {
+        return rt;
+    }
+
+    public void setRt(double rt) {
+        this.rt = rt;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public void setCount(int count) {
+        this.count = count;
+    }
+
+    public Long getMaxPassQps() {
+        return maxPassQps;
+    }
+
+    public void setMaxPassQps(Long maxPassQps) {
+        this.maxPassQps = maxPassQps;
+    }
+
+    @Override
+    public String toString() {
+        return "MetricRollupEntity{" +
+                "id=" + id +
+                ", app='" + app + '\'' +
+                ", step=" + step +
+                ", timestamp=" + timestamp +
+                ", resourceCode=" + resourceCode +
+                ", passQps=" + passQps +
+                ", successQps=" + successQps +
+                ", blockQps=" + blockQps +
+                ", exceptionQps=" + exceptionQps +
+                ", rt=" + rt +
+                ", count=" + count +
+                ", maxPassQps=" + maxPassQps +
+                '}';
+    }
+
+    /**
+     * @return the per-second averages of the bucket, with the average rt of the whole bucket
+     */
+    public MetricEntity toMetricEntity(String resource) {
+        double step = this.step;
+        MetricEntity entity = new MetricEntity();
+        entity.setGmtCreate(gmtModified);
+        entity.setGmtModified(gmtModified);
+        entity.setApp(app);
+        entity.setResource(resource);
+        entity.setResourceCode(resourceCode);
+        entity.setTimestamp(timestamp);
+        entity.setPassQps(Math.round(passQps / step));
+        entity.setBlockQps(Math.round(blockQps / step));
+        entity.setExceptionQps(Math.round(exceptionQps / step));
+        long successQps = Math.round(this.successQps / step);
+        entity.setSuccessQps(successQps);
+        entity.setRt(this.successQps == 0 ? 0 : rt / this.successQps * successQps);
+        entity.setCount(count);
+        entity.setMaxPassQps(maxPassQps);
+        return entity;
+    }
+}
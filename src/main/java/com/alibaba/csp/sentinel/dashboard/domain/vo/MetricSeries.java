@@ -0,0 +1,269 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.domain.vo;
+
+import com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntity;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Metrics of a resource in time order, one per timestamp, held in parallel primitive columns.
+ * <p>
+ * Written to JSON as the array of {@link MetricVo}s the dashboard reads, without an object per metric:
+ * {@code [{"timestamp":..., "passQps":..., "blockQps":..., "successQps":..., "exceptionQps":...,
+ * "rt":..., "count":..., "maxPassQps":...}, ...]}, where {@code rt} is the average rt.
+ *
+ * @author agent
+ */
+@JsonSerialize(using = MetricSeries.Serializer.class)
+public final class MetricSeries {
+
+    private static final MetricSeries EMPTY = new Builder(0).build();
+
+    private final int size;
+    private final long[] timestamps;
+    private final long[] passQps;
+    private final long[] successQps;
+    private final long[] blockQps;
+    private final long[] exceptionQps;
+    /**
+     * average rt
+     */
+    private final double[] rt;
+    private final int[] count;
+    private final long[] maxPassQps;
+
+    private MetricSeries(Builder builder) {
+        this.size = builder.size;
+        this.timestamps = builder.timestamps;
+        this.passQps = builder.passQps;
+        this.successQps = builder.successQps;
+        this.blockQps = builder.blockQps;
+        this.exceptionQps = builder.exceptionQps;
+        this.rt = builder.rt;
+        this.count = builder.count;
+        this.maxPassQps = builder.maxPassQps;
+    }
+
+    public static MetricSeries empty() {
+        return EMPTY;
+    }
+
+    /**
+     * @param entities metrics in any order, of a timestamp held more than once the last one is kept
+     */
+    public static MetricSeries of(Collection<MetricEntity> entities) {
+        Builder builder = new Builder(entities.size());
+        for (MetricEntity entity : entities) {
+            builder.add(entity);
+        }
+        return builder.build();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getTimestamp(int i) {
+        return timestamps[i];
+    }
+
+    public long getPassQps(int i) {
+        return passQps[i];
+    }
+
+    public long getSuccessQps(int i) {
+        return successQps[i];
+    }
+
+    public long getBlockQps(int i) {
+        return blockQps[i];
+    }
+
+    public long getExceptionQps(int i) {
+        return exceptionQps[i];
+    }
+
+    public double getRt(int i) {
+        return rt[i];
+    }
+
+    public int getCount(int i) {
+        return count[i];
+    }
+
+    public long getMaxPassQps(int i) {
+        return maxPassQps[i];
+    }
+
+    /**
+     * Appends metrics, at best in time order, which saves sorting them on {@link #build()}.
+     */
+    public static final class Builder {
+        private int size;
+        private long[] timestamps;
+        private long[] passQps;
+        private long[] successQps;
+        private long[] blockQps;
+        private long[] exceptionQps;
+        private double[] rt;
+        private int[] count;
+        private long[] maxPassQps;
+        private boolean ordered = true;
+
+        public Builder(int capacity) {
+            capacity = Math.max(capacity, 1);
+            timestamps = new long[capacity];
+            passQps = new long[capacity];
+            successQps = new long[capacity];
+            blockQps = new long[capacity];
+            exceptionQps = new long[capacity];
+            rt = new double[capacity];
+            count = new int[capacity];
+            maxPassQps = new long[capacity];
+        }
+
+        /**
+         * @param rt average rt
+         */
+        public Builder add(long timestamp, long passQps, long successQps, long blockQps, long exceptionQps,
+                           double rt, int count, long maxPassQps) {
+            if (size > 0 && timestamp <= timestamps[size - 1]) {
+                if (timestamp == timestamps[size - 1] && ordered) {
+                    // the same second again, the later metric wins
+                    size--;
+                } else {
+                    ordered = false;
+                }
+            }
+            if (size == timestamps.length) {
+                grow();
+            }
+            this.timestamps[size] = timestamp;
+            this.passQps[size] = passQps;
+            this.successQps[size] = successQps;
+            this.blockQps[size] = blockQps;
+            this.exceptionQps[size] = exceptionQps;
+            this.rt[size] = rt;
+            this.count[size] = count;
+            this.maxPassQps[size] = maxPassQps;
+            size++;
+            return this;
+        }
+
+        /**
+         * @param entity a metric whose rt sums the rt of every success, as stored
+         */
+        public Builder add(MetricEntity entity) {
+            long pass = valueOf(entity.getPassQps());
+            long success = valueOf(entity.getSuccessQps());
+            return add(entity.getTimestamp().getTime(), pass, success, valueOf(entity.getBlockQps()),
+                    valueOf(entity.getExceptionQps()), success == 0 ? 0 : entity.getRt() / success,
+                    entity.getCount(), entity.getMaxPassQps() != null ? entity.getMaxPassQps() : pass);
+        }
+
+        public MetricSeries build() {
+            if (!ordered) {
+                sort();
+            }
+            return new MetricSeries(this);
+        }
+
+        private void grow() {
+            int capacity = timestamps.length * 2;
+            timestamps = Arrays.copyOf(timestamps, capacity);
+            passQps = Arrays.copyOf(passQps, capacity);
+            successQps = Arrays.copyOf(successQps, capacity);
+            blockQps = Arrays.copyOf(blockQps, capacity);
+            exceptionQps = Arrays.copyOf(exceptionQps, capacity);
+            rt = Arrays.copyOf(rt, capacity);
+            count = Arrays.copyOf(count, capacity);
+            maxPassQps = Arrays.copyOf(maxPassQps, capacity);
+        }
+
+        /**
+         * Stable sort by timestamp, then keep the last metric of every timestamp.
+         */
+        private void sort() {
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> Long.compare(timestamps[a], timestamps[b]));
+            Builder sorted = new Builder(size);
+            for (int i : order) {
+                sorted.add(timestamps[i], passQps[i], successQps[i], blockQps[i], exceptionQps[i], rt[i], count[i],
+                        maxPassQps[i]);
+            }
+            size = sorted.size;
+            timestamps = sorted.timestamps;
+            passQps = sorted.passQps;
+            successQps = sorted.successQps;
+            blockQps = sorted.blockQps;
+            exceptionQps = sorted.exceptionQps;
+            rt = sorted.rt;
+            count = sorted.count;
+            maxPassQps = sorted.maxPassQps;
+            ordered = true;
+        }
+
+        private static long valueOf(Long value) {
+            return value == null ? 0 : value;
+        }
+    }
+
+    public static final class Serializer extends StdSerializer<MetricSeries> {
+
+        public Serializer() {
+            super(MetricSeries.class);
+        }
+
+        @Override
+        public void serialize(MetricSeries series, JsonGenerator gen, SerializerProvider provider) throws IOException {
+            gen.writeStartArray();
+            for (int i = 0; i < series.size; i++) {
+                writeRow(gen, series.timestamps[i], series.passQps[i], series.successQps[i], series.blockQps[i],
+                        series.exceptionQps[i], series.rt[i], series.count[i], series.maxPassQps[i]);
+            }
+            gen.writeEndArray();
+        }
+    }
+
+    /**
+     * Write a metric as an element of the JSON array of a series.
+     *
+     * @param rt average rt
+     */
+    public static void writeRow(JsonGenerator gen, long timestamp, long passQps, long successQps, long blockQps,
+                                long exceptionQps, double rt, int count, long maxPassQps) throws IOException {
+        gen.writeStartObject();
+        gen.writeNumberField("timestamp", timestamp);
+        gen.writeNumberField("passQps", passQps);
+        gen.writeNumberField("blockQps", blockQps);
+        gen.writeNumberField("successQps", successQps);
+        gen.writeNumberField("exceptionQps", exceptionQps);
+        gen.writeNumberField("rt", rt);
+        gen.writeNumberField("count", count);
+        gen.writeNumberField("maxPassQps", maxPassQps);
+        gen.writeEndObject();
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.domain.vo;
+
+/**
+ * Totals of an app, or of one of its resources, over a time window.
+ *
+ * @author agent
+ */
+public class MetricTotalsVo {
+    private String app;
+    /**
+     * {@code null} for the totals of the whole app
+     */
+    private String resource;
+    private Long pass;
+    private Long success;
+    private Long block;
+    private Long exception;
+    /**
+     * average rt
+     */
+    private Double rt;
+
+    public MetricTotalsVo() {
+    }
+
+    public MetricTotalsVo(String app, String resource, long pass, long success, long block, long exception,
+                          double rt) {
+        this.app = app;
+        this.resource = resource;
+        this.pass = pass;
+        this.success = success;
+        this.block = block;
+        this.exception = exception;
+        this.rt = rt;
+    }
+
+    public String getApp() {
+        return app;
+    }
+
+    public void setApp(String app) {
+        this.app = app;
+    }
+
+    public String getResource() {
+        return resource;
+    }
+
+    public void setResource(String resource) {
+        this.resource = resource;
+    }
+
+    public Long getPass() {
+        return pass;
+    }
+
+    public void setPass(Long pass) {
+        this.pass = pass;
+    }
+
+    public Long getSuccess() {
+        return success;
+    }
+
+    public void setSuccess(Long success) {
+        this.success = success;
+    }
+
+    public Long getBlock() {
+        return block;
+    }
+
+    public void setBlock(Long block) {
+        this.block = block;
+    }
+
+    public Long getException() {
+        return exception;
+    }
+
+    public void setException(Long exception) {
+        this.exception = exception;
+    }
+
+    public Double getRt() {
+        return rt;
+    }
+
+    public void setRt(Double rt) {
+        this.rt = rt;
+    }
+}
@@ -40,6 +40,10 @@ public class MetricVo implements Comparable<MetricVo> {
      */
     private Double rt;
     private Integer count;
+    /**
+     * peak pass qps of a second, the pass qps itself for a metric of one second
+     */
+    private Long maxPassQps;
 
     public MetricVo() {
     }
@@ -54,24 +58,6 @@ public class MetricVo implements Comparable<MetricVo> {
         return list;
     }
 
-    /**
-     * 保留资源名为identity的结果。
-     *
-     * @param entities 通过hashCode查找到的MetricEntities
-     * @param identity 真正需要查找的资源名
-     */
-    public static List<MetricVo> fromMetricEntities(Collection<MetricEntity> entities, String identity) {
-        List<MetricVo> list = new ArrayList<>();
-        if (entities != null) {
-            for (MetricEntity entity : entities) {
-                if (entity.getResource().equals(identity)) {
-                    list.add(fromMetricEntity(entity));
-                }
-            }
-        }
-        return list;
-    }
-
     public static MetricVo fromMetricEntity(MetricEntity entity) {
         MetricVo vo = new MetricVo();
         vo.id = entity.getId();
@@ -89,6 +75,7 @@ public class MetricVo implements Comparable<MetricVo> {
             vo.rt = 0D;
         }
         vo.count = entity.getCount();
+        vo.maxPassQps = entity.getMaxPassQps() != null ? entity.getMaxPassQps() : entity.getPassQps();
         return vo;
     }
 
@@ -180,6 +167,14 @@ public class MetricVo implements Comparable<MetricVo> {
         this.count = count;
     }
 
+    public Long getMaxPassQps() {
+        return maxPassQps;
+    }
+
+    public void setMaxPassQps(Long maxPassQps) {
+        this.maxPassQps = maxPassQps;
+    }
+
     @Override
     public int compareTo(MetricVo o) {
         return this.timestamp.compareTo(o.timestamp);
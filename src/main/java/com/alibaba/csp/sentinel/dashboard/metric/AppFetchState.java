@@ -0,0 +1,207 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.metric;
+
+import com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntity;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fetch progress of one app.
+ * <p>
+ * Every machine has its own cursor, the timestamp of the last second whose metrics have been
+ * ingested from it. A second is only written to the repository once every live machine has
+ * passed it (the flushed watermark), seconds above the watermark are kept as pending
+ * aggregates, so a machine that lags behind is backfilled instead of producing a second row
+ * for the same {@code app/resource/timestamp}.
+ *
+ * @author agent
+ */
+public class AppFetchState {
+
+    static final String FLUSHED_FIELD = "_flushed";
+
+    private final String app;
+    private final Map<String, Long> cursors = new ConcurrentHashMap<>();
+    private final AtomicLong runningSince = new AtomicLong();
+    private volatile long flushed;
+    private volatile List<MetricEntity> pending = Collections.emptyList();
+    private volatile boolean dirty;
+
+    public AppFetchState(String app, long flushed) {
+        this.app = app;
+        this.flushed = flushed;
+    }
+
+    /**
+     * Restore a state persisted by {@link #toHash()}. Pending aggregates are not persisted, so
+     * every machine restarts from the flushed watermark.
+     */
+    static AppFetchState fromHash(String app, Map<String, String> hash, long defaultFlushed) {
+        String flushedStr = hash.get(FLUSHED_FIELD);
+        AppFetchState state = new AppFetchState(app, flushedStr == null ? defaultFlushed : Long.parseLong(flushedStr));
+        for (Map.Entry<String, String> e : hash.entrySet()) {
+            if (!FLUSHED_FIELD.equals(e.getKey())) {
+                state.cursors.put(e.getKey(), Math.min(Long.parseLong(e.getValue()), state.flushed));
+            }
+        }
+        return state;
+    }
+
+    Map<String, String> toHash() {
+        Map<String, String> hash = new HashMap<>(cursors.size() + 1);
+        for (Map.Entry<String, Long> e : cursors.entrySet()) {
+            hash.put(e.getKey(), String.valueOf(e.getValue()));
+        }
+        hash.put(FLUSHED_FIELD, String.valueOf(flushed));
+        return hash;
+    }
+
+    /**
+     * Mark a fetch of this app as running.
+     *
+     * @param now          current time in ms
+     * @param stuckTimeout a running fetch older than this is considered lost
+     * @return false if another fetch of this app is still running
+     */
+    public boolean tryStart(long now, long stuckTimeout) {
+        long since = runningSince.get();
+        if (since != 0 && now - since < stuckTimeout) {
+            return false;
+        }
+        return runningSince.compareAndSet(since, now);
+    }
+
+    public void finish() {
+        runningSince.set(0);
+    }
+
+    /**
+     * @return cursor of the machine, machines seen for the first time start from the flushed watermark
+     */
+    public long cursorOf(String machine) {
+        Long cursor = cursors.get(machine);
+        if (cursor == null || cursor < flushed) {
+            cursors.put(machine, flushed);
+            return flushed;
+        }
+        return cursor;
+    }
+
+    /**
+     * Advance the cursor of the machine after its response has been ingested.
+     */
+    public void advance(String machine, long cursor) {
+        cursors.merge(machine, cursor, Math::max);
+        dirty = true;
+    }
+
+    /**
+     * Forget the machines that are no longer alive, so they don't hold the watermark back.
+     */
+    public void retainMachines(Set<String> machines) {
+        if (cursors.keySet().retainAll(machines)) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * @return the last second every live machine has been ingested up to, {@code Long.MAX_VALUE} if none
+     */
+    public long watermark() {
+        long min = Long.MAX_VALUE;
+        for (Long cursor : cursors.values()) {
+            min = Math.min(min, cursor);
+        }
+        return min;
+    }
+
+    /**
+     * @return the highest machine cursor, the flushed watermark if no machine is tracked
+     */
+    public long maxCursor() {
+        long max = flushed;
+        for (Long cursor : cursors.values()) {
+            max = Math.max(max, cursor);
+        }
+        return max;
+    }
+
+    /**
+     * Move the flushed watermark to {@code flushTo}: entities up to it are returned for writing,
+     * the rest are kept pending. Cursors behind the new watermark are moved up to it, the
+     * seconds they skip will not be fetched again.
+     */
+    public List<MetricEntity> flush(List<MetricEntity> entities, long flushTo) {
+        List<MetricEntity> ready = new ArrayList<>(entities.size());
+        List<MetricEntity> rest = new ArrayList<>();
+        for (MetricEntity entity : entities) {
+            if (entity.getTimestamp().getTime() <= flushTo) {
+                ready.add(entity);
+            } else {
+                rest.add(entity);
+            }
+        }
+        pending = rest;
+        if (flushTo > flushed) {
+            flushed = flushTo;
+            for (Iterator<Map.Entry<String, Long>> it = cursors.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<String, Long> e = it.next();
+                if (e.getValue() < flushTo) {
+                    e.setValue(flushTo);
+                }
+            }
+            dirty = true;
+        }
+        return ready;
+    }
+
+    /**
+     * @return aggregates of seconds above the flushed watermark
+     */
+    public List<MetricEntity> getPending() {
+        return pending;
+    }
+
+    void markDirty() {
+        dirty = true;
+    }
+
+    /**
+     * @return true if the state changed since the last call
+     */
+    boolean clearDirty() {
+        boolean d = dirty;
+        dirty = false;
+        return d;
+    }
+
+    public String getApp() {
+        return app;
+    }
+
+    public long getFlushed() {
+        return flushed;
+    }
+}
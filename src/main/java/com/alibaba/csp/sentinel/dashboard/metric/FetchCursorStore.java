@@ -0,0 +1,99 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.metric;
+
+import com.alibaba.csp.sentinel.dashboard.redis.service.RedisService;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persists {@link AppFetchState} of every app as a Redis hash
+ * {@code sentinel:fetch:cursor:<app>}: one field per machine ({@code ip:port}) holding its cursor,
+ * plus the flushed watermark. All reads and all writes of a tick go through a single pipeline.
+ *
+ * @author agent
+ */
+@Component
+public class FetchCursorStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(FetchCursorStore.class);
+
+    private static final String FETCH_CURSOR_KEY = "sentinel:fetch:cursor:%s";
+    private static final long CURSOR_TTL_HOURS = 24;
+
+    @Autowired
+    private RedisService redisService;
+
+    /**
+     * Load the states of the given apps in one pipeline.
+     *
+     * @param defaultFlushed flushed watermark of apps without any persisted state
+     */
+    public Map<String, AppFetchState> load(List<String> apps, long defaultFlushed) {
+        List<String> keys = new ArrayList<>(apps.size());
+        for (String app : apps) {
+            keys.add(String.format(FETCH_CURSOR_KEY, app));
+        }
+        List<Map<String, String>> hashes = redisService.getMultiCacheMapPipelined(keys);
+        Map<String, AppFetchState> states = new HashMap<>(apps.size());
+        for (int i = 0; i < apps.size(); i++) {
+            String app = apps.get(i);
+            try {
+                states.put(app, AppFetchState.fromHash(app, hashes.get(i), defaultFlushed));
+            } catch (NumberFormatException e) {
+                logger.warn("Invalid fetch cursor of {}: {}", app, hashes.get(i));
+                states.put(app, new AppFetchState(app, defaultFlushed));
+            }
+        }
+        return states;
+    }
+
+    /**
+     * Write the states changed since the last save in one pipeline.
+     */
+    public void save(Collection<AppFetchState> states) {
+        Map<String, Map<String, String>> hashes = new HashMap<>();
+        List<AppFetchState> changed = new ArrayList<>();
+        for (AppFetchState state : states) {
+            if (state.clearDirty()) {
+                changed.add(state);
+                hashes.put(String.format(FETCH_CURSOR_KEY, state.getApp()), state.toHash());
+            }
+        }
+        if (hashes.isEmpty()) {
+            return;
+        }
+        try {
+            redisService.setMultiCacheMapPipelined(hashes, CURSOR_TTL_HOURS, TimeUnit.HOURS);
+        } catch (RuntimeException e) {
+            // retried with the next tick
+            for (AppFetchState state : changed) {
+                state.markDirty();
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.metric;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Completion of a fetch round: the round is closed exactly once, by its last response or by its
+ * deadline, whichever comes first, then its flush is handed to the flush executor.
+ * <p>
+ * A response is handled between {@link #enter()} and {@link #exit()}, so the round is never closed
+ * while a response is being aggregated, and a response arriving after that sees it closed.
+ *
+ * @author agent
+ */
+class FetchRoundCompletion {
+
+    private final AtomicInteger remaining;
+    private final Executor flushExecutor;
+    private final Runnable onTimeout;
+    private final Runnable flush;
+    private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+    private boolean closed;
+    private volatile ScheduledFuture<?> deadline;
+
+    /**
+     * @param responses responses the round waits for
+     * @param onTimeout run before the flush if the deadline completed the round
+     */
+    FetchRoundCompletion(int responses, Executor flushExecutor, Runnable onTimeout, Runnable flush) {
+        this.remaining = new AtomicInteger(responses);
+        this.flushExecutor = flushExecutor;
+        this.onTimeout = onTimeout;
+        this.flush = flush;
+    }
+
+    /**
+     * A flush rejected by a full executor is run by the caller, or the responses the round
+     * ingested are lost. Nothing is run once the executor is shut down.
+     */
+    static RejectedExecutionHandler callerRuns(LongAdder callerRunsFlushes) {
+        return (r, executor) -> {
+            callerRunsFlushes.increment();
+            if (!executor.isShutdown()) {
+                r.run();
+            }
+        };
+    }
+
+    void setDeadline(ScheduledFuture<?> deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * Must be followed by {@link #exit()}.
+     *
+     * @return false if the round has been completed, the response is late
+     */
+    boolean enter() {
+        closeLock.readLock().lock();
+        return !closed;
+    }
+
+    void exit() {
+        closeLock.readLock().unlock();
+    }
+
+    /**
+     * A response has been handled, or has failed.
+     */
+    void countDown() {
+        if (remaining.decrementAndGet() == 0) {
+            complete(false);
+        }
+    }
+
+    /**
+     * The deadline of the round has passed.
+     */
+    void expire() {
+        complete(true);
+    }
+
+    boolean isClosed() {
+        closeLock.readLock().lock();
+        try {
+            return closed;
+        } finally {
+            closeLock.readLock().unlock();
+        }
+    }
+
+    private void complete(boolean timedOut) {
+        closeLock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        } finally {
+            closeLock.writeLock().unlock();
+        }
+        if (timedOut) {
+            onTimeout.run();
+        } else if (deadline != null) {
+            deadline.cancel(false);
+        }
+        flushExecutor.execute(flush);
+    }
+}
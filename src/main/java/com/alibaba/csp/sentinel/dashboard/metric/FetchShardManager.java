@@ -0,0 +1,174 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.metric;
+
+import com.alibaba.csp.sentinel.dashboard.redis.service.RedisService;
+import com.alibaba.csp.sentinel.util.StringUtil;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.net.InetAddress;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.PostConstruct;
+
+/**
+ * Splits metric fetching of the apps across all live dashboard nodes.
+ * <p>
+ * In {@code shard} mode every node heartbeats into the Redis sorted set {@code sentinel:fetch:members}
+ * on each fetch tick, and apps are mapped onto the live members with a {@link ConsistentHashRing}.
+ * A node that stops heartbeating is dropped after the member TTL and its apps move to the others.
+ * An app taken over from another node is only fetched after a hand-off delay, so the previous owner
+ * has released it and persisted its cursors. In {@code lock} mode (default) a single node holding the
+ * global fetch lock fetches all apps.
+ *
+ * @author agent
+ */
+@Component
+public class FetchShardManager {
+
+    private static final Logger logger = LoggerFactory.getLogger(FetchShardManager.class);
+
+    public static final String MODE_LOCK = "lock";
+    public static final String MODE_SHARD = "shard";
+
+    private static final String MEMBERS_KEY = "sentinel:fetch:members";
+    private static final long HANDOFF_DELAY_MS = 1000 * 10;
+
+    @Value("${sentinel.dashboard.metric.fetch.mode:lock}")
+    private String mode;
+
+    @Value("${sentinel.dashboard.metric.fetch.shard.virtual-nodes:160}")
+    private int virtualNodes;
+
+    @Value("${sentinel.dashboard.metric.fetch.shard.member-ttl-ms:10000}")
+    private long memberTtlMs;
+
+    @Value("${sentinel.dashboard.metric.fetch.shard.node-id:}")
+    private String nodeId;
+
+    @Value("${server.port:8080}")
+    private int serverPort;
+
+    @Autowired
+    private RedisService redisService;
+
+    private volatile ConsistentHashRing ring = new ConsistentHashRing(Collections.<String>emptyList(), 1);
+    private volatile long lastHeartbeat;
+    /**
+     * app -> time this node became its owner
+     */
+    private final Map<String, Long> ownedSince = new HashMap<>();
+
+    @PostConstruct
+    public void init() {
+        if (!MODE_LOCK.equals(mode) && !MODE_SHARD.equals(mode)) {
+            throw new IllegalArgumentException("Unknown metric fetch mode: " + mode);
+        }
+        if (StringUtil.isBlank(nodeId)) {
+            String host;
+            try {
+                host = InetAddress.getLocalHost().getHostAddress();
+            } catch (Exception e) {
+                host = "unknown";
+            }
+            nodeId = host + ":" + serverPort;
+        }
+        if (isSharded()) {
+            logger.info("Metric fetch sharded across dashboard nodes, node id: {}", nodeId);
+        }
+    }
+
+    public boolean isSharded() {
+        return MODE_SHARD.equals(mode);
+    }
+
+    /**
+     * Heartbeat and select the apps this node fetches. Called by the single fetch scheduler thread.
+     *
+     * @return apps owned by this node for at least the hand-off delay
+     */
+    public Set<String> assign(List<String> apps) {
+        long now = System.currentTimeMillis();
+        try {
+            List<String> members = redisService.heartbeat(MEMBERS_KEY, nodeId, now, now - memberTtlMs,
+                    memberTtlMs * 3);
+            lastHeartbeat = now;
+            if (!ring.getNodes().equals(new HashSet<>(members))) {
+                ring = new ConsistentHashRing(members, virtualNodes);
+                logger.info("Metric fetch members changed: {}", ring.getNodes());
+            }
+        } catch (Exception e) {
+            logger.warn("Metric fetch heartbeat error", e);
+        }
+        if (now - lastHeartbeat >= memberTtlMs) {
+            // the other nodes consider this one gone and have taken over its apps
+            if (!ownedSince.isEmpty()) {
+                logger.warn("Metric fetch heartbeat expired, release all {} apps", ownedSince.size());
+                ownedSince.clear();
+            }
+            return Collections.emptySet();
+        }
+        Set<String> ready = new HashSet<>();
+        Set<String> owned = new HashSet<>();
+        for (String app : apps) {
+            if (!nodeId.equals(ring.nodeOf(app))) {
+                continue;
+            }
+            owned.add(app);
+            Long since = ownedSince.get(app);
+            if (since == null) {
+                ownedSince.put(app, now);
+            } else if (now - since >= HANDOFF_DELAY_MS) {
+                ready.add(app);
+            }
+        }
+        ownedSince.keySet().retainAll(owned);
+        return ready;
+    }
+
+    /**
+     * Leave the members at shutdown, so the other nodes take over without waiting for the TTL.
+     */
+    public void leave() {
+        if (!isSharded()) {
+            return;
+        }
+        try {
+            redisService.zRem(MEMBERS_KEY, nodeId);
+        } catch (Exception e) {
+            logger.warn("Leave metric fetch members error", e);
+        }
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public Collection<String> getMembers() {
+        return ring.getNodes();
+    }
+}
@@ -0,0 +1,383 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.metric;
+
+import com.alibaba.csp.sentinel.concurrent.NamedThreadFactory;
+import com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntity;
+import com.alibaba.csp.sentinel.dashboard.domain.vo.MetricSeries;
+import com.alibaba.csp.sentinel.dashboard.domain.vo.MetricTotalsVo;
+import com.alibaba.csp.sentinel.dashboard.redis.service.RedisService;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+/**
+ * Sums the metrics of every app over all its resources, as metrics are saved, for the fleet-wide
+ * views that would otherwise read every resource of every app.
+ * <p>
+ * An app keeps its totals in buckets of {@link #BUCKET_SECONDS} over the history, in a ring. A
+ * bucket also keeps the peak pass qps of a second of the app.
+ * <p>
+ * Apps are summed up by the node saving their metrics, which writes the buckets changed to the
+ * Redis hash of every bucket, {@code sentinel:fleet:<bucket>}, one field per app, every few
+ * seconds. The views read the hashes of their buckets back, so every node sees all apps, the
+ * buckets of the apps saved by the node itself taken from its own ring.
+ *
+ * @author agent
+ */
+@Component
+public class FleetMetricAggregator {
+
+    private static final Logger logger = LoggerFactory.getLogger(FleetMetricAggregator.class);
+
+    static final int BUCKET_SECONDS = 10;
+    private static final String BUCKET_KEY = "sentinel:fleet:%d";
+    private static final long SHARE_INTERVAL_SECONDS = 5;
+    /**
+     * pass, success, block, exception, rt, count and peak pass
+     */
+    private static final int VALUES = 7;
+    /**
+     * An app with no metrics for this long is dropped.
+     */
+    private static final long IDLE_APP_TTL_MS = 1000 * 60 * 60 * 24;
+
+    @Value("${sentinel.dashboard.metric.fleet.history-minutes:60}")
+    private int historyMinutes;
+
+    @Autowired
+    private MetricFetchStats fetchStats;
+
+    @Autowired
+    private RedisService redisService;
+
+    private final ConcurrentMap<String, AppWindow> apps = new ConcurrentHashMap<>();
+    private int buckets;
+    private ScheduledExecutorService shareService;
+
+    @PostConstruct
+    public void start() {
+        if (historyMinutes <= 0) {
+            throw new IllegalArgumentException("fleet history-minutes must > 0");
+        }
+        buckets = historyMinutes * 60 / BUCKET_SECONDS;
+        fetchStats.register("fleet.apps", apps::size);
+        shareService = Executors.newSingleThreadScheduledExecutor(
+                new NamedThreadFactory("sentinel-dashboard-fleet", true));
+        shareService.scheduleWithFixedDelay(() -> {
+            try {
+                share(System.currentTimeMillis());
+            } catch (Exception e) {
+                logger.warn("Share fleet buckets error", e);
+            }
+        }, SHARE_INTERVAL_SECONDS, SHARE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (shareService != null) {
+            shareService.shutdownNow();
+        }
+    }
+
+    /**
+     * Add the metrics just saved.
+     */
+    public void record(Collection<MetricEntity> metrics) {
+        for (MetricEntity entity : metrics) {
+            AppWindow window = apps.get(entity.getApp());
+            if (window == null) {
+                window = apps.computeIfAbsent(entity.getApp(), k -> new AppWindow(buckets));
+            }
+            window.add(entity);
+        }
+    }
+
+    /**
+     * Write the buckets changed since the last share, forget the apps idle for long.
+     */
+    void share(long now) {
+        Map<String, Map<String, String>> hashes = new HashMap<>();
+        Map<AppWindow, Set<Long>> shared = new HashMap<>();
+        for (Map.Entry<String, AppWindow> e : apps.entrySet()) {
+            AppWindow window = e.getValue();
+            if (now - window.lastUpdate > IDLE_APP_TTL_MS) {
+                apps.remove(e.getKey(), window);
+                continue;
+            }
+            Map<Long, long[]> changed = window.drainDirty();
+            for (Map.Entry<Long, long[]> bucket : changed.entrySet()) {
+                hashes.computeIfAbsent(String.format(BUCKET_KEY, bucket.getKey()), k -> new HashMap<>())
+                        .put(e.getKey(), encode(bucket.getValue()));
+            }
+            if (!changed.isEmpty()) {
+                shared.put(window, changed.keySet());
+            }
+        }
+        if (hashes.isEmpty()) {
+            return;
+        }
+        try {
+            redisService.putMultiCacheMapPipelined(hashes, historyMinutes, TimeUnit.MINUTES);
+        } catch (RuntimeException e) {
+            // retried with the next share
+            for (Map.Entry<AppWindow, Set<Long>> changed : shared.entrySet()) {
+                changed.getKey().markDirty(changed.getValue());
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @param windowSeconds the window ends now, at the bucket of the current time
+     * @return totals of the busiest apps by the rank with metrics in the window
+     */
+    public List<MetricTotalsVo> appTotals(int windowSeconds, TopResourceTracker.Rank rank, int limit) {
+        long current = System.currentTimeMillis() / 1000 / BUCKET_SECONDS;
+        long first = current - Math.max(1, windowSeconds / BUCKET_SECONDS) + 1;
+        List<MetricTotalsVo> results = new ArrayList<>();
+        for (Map.Entry<String, Map<Long, long[]>> e : read(first, current).entrySet()) {
+            long[] totals = new long[VALUES];
+            for (long[] values : e.getValue().values()) {
+                for (int i = 0; i < VALUES; i++) {
+                    totals[i] += values[i];
+                }
+            }
+            // MetricEntity#rt sums the rt of every success
+            results.add(new MetricTotalsVo(e.getKey(), null, totals[0], totals[1], totals[2], totals[3],
+                    totals[1] == 0 ? 0 : (double) totals[4] / totals[1]));
+        }
+        results.sort(Comparator.comparingDouble(rank::valueIn).reversed());
+        return results.size() > limit ? new ArrayList<>(results.subList(0, limit)) : results;
+    }
+
+    /**
+     * @return app -> buckets of the app in {@code [startTime, endTime]} in time order, qps as the
+     * per-second average of the bucket, in the order of the apps, the apps with no metrics left out
+     */
+    public Map<String, MetricSeries> series(Collection<String> appNames, long startTime, long endTime) {
+        Map<String, Map<Long, long[]>> read = read(startTime / 1000 / BUCKET_SECONDS,
+                endTime / 1000 / BUCKET_SECONDS);
+        Map<String, MetricSeries> results = new LinkedHashMap<>();
+        for (String app : appNames) {
+            Map<Long, long[]> appBuckets = read.get(app);
+            if (appBuckets == null) {
+                continue;
+            }
+            MetricSeries.Builder builder = new MetricSeries.Builder(appBuckets.size());
+            for (Map.Entry<Long, long[]> bucket : new TreeMap<>(appBuckets).entrySet()) {
+                long[] values = bucket.getValue();
+                builder.add(bucket.getKey() * BUCKET_SECONDS * 1000, values[0] / BUCKET_SECONDS,
+                        values[1] / BUCKET_SECONDS, values[2] / BUCKET_SECONDS, values[3] / BUCKET_SECONDS,
+                        values[1] == 0 ? 0 : (double) values[4] / values[1], (int) values[5], values[6]);
+            }
+            results.put(app, builder.build());
+        }
+        return results;
+    }
+
+    /**
+     * @return app -> bucket -> values of the buckets in {@code [first, last]} within the history
+     */
+    private Map<String, Map<Long, long[]>> read(long firstBucket, long lastBucket) {
+        long current = System.currentTimeMillis() / 1000 / BUCKET_SECONDS;
+        long first = Math.max(firstBucket, current - buckets + 1);
+        long last = Math.min(lastBucket, current);
+        Map<String, Map<Long, long[]>> results = new HashMap<>();
+        if (first > last) {
+            return results;
+        }
+        List<String> keys = new ArrayList<>((int) (last - first + 1));
+        for (long bucket = first; bucket <= last; bucket++) {
+            keys.add(String.format(BUCKET_KEY, bucket));
+        }
+        try {
+            List<Map<String, String>> hashes = redisService.getMultiCacheMapPipelined(keys);
+            for (int i = 0; i < hashes.size(); i++) {
+                for (Map.Entry<String, String> e : hashes.get(i).entrySet()) {
+                    long[] values = decode(e.getValue());
+                    if (values != null) {
+                        results.computeIfAbsent(e.getKey(), k -> new HashMap<>()).put(first + i, values);
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            // the apps saved by this node are still there
+            logger.warn("Read fleet buckets error", e);
+        }
+        for (Map.Entry<String, AppWindow> e : apps.entrySet()) {
+            // newer than the buckets shared
+            e.getValue().collect(first, last, results.computeIfAbsent(e.getKey(), k -> new HashMap<>()));
+        }
+        results.values().removeIf(Map::isEmpty);
+        return results;
+    }
+
+    private static String encode(long[] values) {
+        StringBuilder sb = new StringBuilder();
+        for (long value : values) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(value);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return {@code null} if invalid
+     */
+    private static long[] decode(String s) {
+        String[] parts = s.split(",");
+        if (parts.length != VALUES) {
+            return null;
+        }
+        long[] values = new long[VALUES];
+        try {
+            for (int i = 0; i < VALUES; i++) {
+                values[i] = Long.parseLong(parts[i]);
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return values;
+    }
+
+    /**
+     * Totals of an app in a ring of buckets.
+     */
+    static final class AppWindow {
+        private final int buckets;
+        private final long[][] slots;
+        private final long[] slotBuckets;
+        /**
+         * pass of the latest seconds, the peak of a bucket is taken from them
+         */
+        private final long[] seconds = new long[BUCKET_SECONDS * 2];
+        private final long[] secondIds = new long[BUCKET_SECONDS * 2];
+        /**
+         * buckets changed since they were last shared
+         */
+        private final Set<Long> dirtyBuckets = new HashSet<>();
+        private long currentBucket = Long.MIN_VALUE;
+        volatile long lastUpdate = System.currentTimeMillis();
+
+        AppWindow(int buckets) {
+            this.buckets = buckets;
+            this.slots = new long[buckets][VALUES];
+            this.slotBuckets = new long[buckets];
+            Arrays.fill(slotBuckets, Long.MIN_VALUE);
+            Arrays.fill(secondIds, Long.MIN_VALUE);
+        }
+
+        synchronized void add(MetricEntity entity) {
+            lastUpdate = System.currentTimeMillis();
+            long second = entity.getTimestamp().getTime() / 1000;
+            long bucket = second / BUCKET_SECONDS;
+            if (bucket > currentBucket) {
+                currentBucket = bucket;
+            } else if (bucket <= currentBucket - buckets) {
+                return;
+            }
+            int slot = (int) (bucket % buckets);
+            if (slotBuckets[slot] != bucket) {
+                // left over by a bucket of the ring's previous pass
+                slotBuckets[slot] = bucket;
+                slots[slot] = new long[VALUES];
+            }
+            dirtyBuckets.add(bucket);
+            long pass = valueOf(entity.getPassQps());
+            long[] values = slots[slot];
+            values[0] += pass;
+            values[1] += valueOf(entity.getSuccessQps());
+            values[2] += valueOf(entity.getBlockQps());
+            values[3] += valueOf(entity.getExceptionQps());
+            values[4] += (long) entity.getRt();
+            values[5] += entity.getCount();
+            int secondSlot = (int) (second % seconds.length);
+            if (secondIds[secondSlot] != second) {
+                if (secondIds[secondSlot] > second) {
+                    // older than the seconds kept, its own pass is the best guess of the peak
+                    values[6] = Math.max(values[6], pass);
+                    return;
+                }
+                secondIds[secondSlot] = second;
+                seconds[secondSlot] = 0;
+            }
+            seconds[secondSlot] += pass;
+            values[6] = Math.max(values[6], seconds[secondSlot]);
+        }
+
+        /**
+         * @return bucket -> values of the buckets changed, still in the ring
+         */
+        synchronized Map<Long, long[]> drainDirty() {
+            Map<Long, long[]> changed = new HashMap<>(dirtyBuckets.size() * 2);
+            for (long bucket : dirtyBuckets) {
+                int slot = (int) (bucket % buckets);
+                if (slotBuckets[slot] == bucket) {
+                    changed.put(bucket, slots[slot].clone());
+                }
+            }
+            dirtyBuckets.clear();
+            return changed;
+        }
+
+        synchronized void markDirty(Collection<Long> changed) {
+            dirtyBuckets.addAll(changed);
+        }
+
+        /**
+         * Put the buckets of {@code [first, last]} in the ring to the results.
+         */
+        synchronized void collect(long first, long last, Map<Long, long[]> results) {
+            for (long bucket = Math.max(first, currentBucket - buckets + 1); bucket <= Math.min(last, currentBucket);
+                 bucket++) {
+                int slot = (int) (bucket % buckets);
+                if (slotBuckets[slot] == bucket) {
+                    results.put(bucket, slots[slot].clone());
+                }
+            }
+        }
+
+        private static long valueOf(Long value) {
+            return value == null ? 0 : value;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.metric;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Fetch history of one machine: latency EWMA, consecutive failures and a circuit breaker.
+ * <p>
+ * Every failure backs the machine off exponentially (with jitter, so machines failing together
+ * don't retry together). After {@link #OPEN_THRESHOLD} failures in a row the circuit opens: the
+ * machine no longer holds the flushed watermark of its app, and once the backoff has passed a
+ * single probe is let through (half-open). The probe closes the circuit on success and reopens
+ * it with a longer backoff on failure.
+ *
+ * @author agent
+ */
+public class MachineFetchHealth {
+
+    public enum Circuit {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    static final int OPEN_THRESHOLD = 3;
+    static final long MIN_BACKOFF_MS = 1000;
+    static final long MAX_BACKOFF_MS = 1000 * 60;
+    /**
+     * A probe not reported back within this period is considered lost.
+     */
+    static final long PROBE_TIMEOUT_MS = 1000 * 30;
+    private static final double EWMA_ALPHA = 0.3;
+
+    private final String machine;
+    private Circuit circuit = Circuit.CLOSED;
+    private int failures;
+    private long retryAt;
+    private long probeSince;
+    private double latencyEwma = -1;
+    private volatile long lastSeen;
+    private int keepAliveFailures;
+    private long connCloseUntil;
+
+    public MachineFetchHealth(String machine) {
+        this.machine = machine;
+    }
+
+    /**
+     * Ask for a fetch of the machine.
+     *
+     * @return false if the machine is backed off, or its circuit is open
+     */
+    public synchronized boolean tryAcquire(long now) {
+        switch (circuit) {
+            case CLOSED:
+                return now >= retryAt;
+            case OPEN:
+                if (now < retryAt) {
+                    return false;
+                }
+                circuit = Circuit.HALF_OPEN;
+                probeSince = now;
+                return true;
+            default:
+                if (now - probeSince < PROBE_TIMEOUT_MS) {
+                    return false;
+                }
+                probeSince = now;
+                return true;
+        }
+    }
+
+    /**
+     * @return circuit state before the success
+     */
+    public synchronized Circuit onSuccess(long latencyMs) {
+        latencyEwma = latencyEwma < 0 ? latencyMs : latencyEwma + EWMA_ALPHA * (latencyMs - latencyEwma);
+        Circuit previous = circuit;
+        circuit = Circuit.CLOSED;
+        failures = 0;
+        retryAt = 0;
+        return previous;
+    }
+
+    /**
+     * @return circuit state before the failure
+     */
+    public synchronized Circuit onFailure(long now) {
+        Circuit previous = circuit;
+        failures++;
+        if (circuit == Circuit.HALF_OPEN || failures >= OPEN_THRESHOLD) {
+            circuit = Circuit.OPEN;
+        }
+        long backoff = Math.min(MIN_BACKOFF_MS << Math.min(failures - 1, 16), MAX_BACKOFF_MS);
+        retryAt = now + backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        return previous;
+    }
+
+    /**
+     * @return true if the request may reuse a pooled connection
+     */
+    public synchronized boolean useKeepAlive(long now) {
+        return now >= connCloseUntil;
+    }
+
+    public synchronized void onKeepAliveSuccess() {
+        keepAliveFailures = 0;
+    }
+
+    /**
+     * Count a keep-alive request failing on a broken connection.
+     *
+     * @return true if the machine has just fallen back to {@code Connection: close}
+     */
+    public synchronized boolean onKeepAliveFailure(long now, int maxFailures, long fallbackMs) {
+        if (++keepAliveFailures < maxFailures) {
+            return false;
+        }
+        keepAliveFailures = 0;
+        connCloseUntil = now + fallbackMs;
+        return true;
+    }
+
+    public void touch(long now) {
+        lastSeen = now;
+    }
+
+    public String getMachine() {
+        return machine;
+    }
+
+    public synchronized Circuit getCircuit() {
+        return circuit;
+    }
+
+    public synchronized int getFailures() {
+        return failures;
+    }
+
+    public synchronized long getRetryAt() {
+        return retryAt;
+    }
+
+    /**
+     * @return latency EWMA in ms, -1 if the machine never answered
+     */
+    public synchronized double getLatencyEwma() {
+        return latencyEwma;
+    }
+
+    public synchronized boolean isConnClose(long now) {
+        return now < connCloseUntil;
+    }
+
+    public long getLastSeen() {
+        return lastSeen;
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.metric;
+
+import com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntity;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free aggregation of the metric lines of one app over a fixed window of seconds.
+ * <p>
+ * Counters are kept per interned resource name in a flat {@link AtomicLongArray} indexed by
+ * second offset, so adding a line neither builds a key nor takes a monitor. {@link MetricEntity}
+ * objects are only created by {@link #toEntities()} when the window is flushed.
+ *
+ * @author agent
+ */
+public class MetricAggregationBuffer {
+
+    /**
+     * Upper bound of the window, keeps a misconfigured window from allocating huge arrays.
+     */
+    public static final int MAX_WINDOW_SECONDS = 3600;
+
+    private static final int PASS = 0;
+    private static final int BLOCK = 1;
+    private static final int SUCCESS = 2;
+    private static final int EXCEPTION = 3;
+    /**
+     * summary rt of all success qps, see {@link MetricEntity#getRt()}
+     */
+    private static final int RT = 4;
+    private static final int COUNT = 5;
+    private static final int FIELDS = 6;
+
+    private final String app;
+    private final long startSecond;
+    private final int seconds;
+    private final ConcurrentMap<String, AtomicLongArray> resources = new ConcurrentHashMap<>(64);
+    private final LongAdder outOfWindow = new LongAdder();
+
+    /**
+     * @param app       application name
+     * @param startTime window start in ms, inclusive
+     * @param endTime   window end in ms, inclusive
+     */
+    public MetricAggregationBuffer(String app, long startTime, long endTime) {
+        long start = startTime / 1000;
+        long span = endTime / 1000 - start + 1;
+        if (span <= 0 || span > MAX_WINDOW_SECONDS) {
+            throw new IllegalArgumentException("invalid window [" + startTime + ", " + endTime + "]");
+        }
+        this.app = app;
+        this.startSecond = start;
+        this.seconds = (int) span;
+    }
+
+    public boolean add(MetricLine line) {
+        return add(line.getResource(), line.getTimestamp(), line.getPassQps(), line.getBlockQps(),
+                line.getSuccessQps(), line.getExceptionQps(), line.getRt() * line.getSuccessQps(), 1);
+    }
+
+    /**
+     * Add one sample to the second of {@code timestamp}.
+     *
+     * @param resource interned resource name
+     * @param rtSum    {@code avgRt * successQps}
+     * @param count    count of lines the sample stands for
+     * @return false if the timestamp falls outside of the window
+     */
+    public boolean add(String resource, long timestamp, long passQps, long blockQps, long successQps,
+                       long exceptionQps, long rtSum, int count) {
+        long offset = timestamp / 1000 - startSecond;
+        if (offset < 0 || offset >= seconds) {
+            outOfWindow.increment();
+            return false;
+        }
+        AtomicLongArray slots = resources.get(resource);
+        if (slots == null) {
+            slots = resources.computeIfAbsent(resource, r -> new AtomicLongArray(seconds * FIELDS));
+        }
+        int base = (int) offset * FIELDS;
+        slots.getAndAdd(base + PASS, passQps);
+        slots.getAndAdd(base + BLOCK, blockQps);
+        slots.getAndAdd(base + SUCCESS, successQps);
+        slots.getAndAdd(base + EXCEPTION, exceptionQps);
+        slots.getAndAdd(base + RT, rtSum);
+        slots.getAndAdd(base + COUNT, count);
+        return true;
+    }
+
+    /**
+     * Build one {@link MetricEntity} per resource and second that received at least one line.
+     * Must be called after all producers are done.
+     */
+    public List<MetricEntity> toEntities() {
+        List<MetricEntity> entities = new ArrayList<>(resources.size() * seconds);
+        for (ConcurrentMap.Entry<String, AtomicLongArray> e : resources.entrySet()) {
+            AtomicLongArray slots = e.getValue();
+            for (int i = 0; i < seconds; i++) {
+                int base = i * FIELDS;
+                long count = slots.get(base + COUNT);
+                if (count == 0) {
+                    continue;
+                }
+                MetricEntity entity = new MetricEntity();
+                entity.setApp(app);
+                entity.setResource(e.getKey());
+                entity.setTimestamp(new Date((startSecond + i) * 1000));
+                entity.setPassQps(slots.get(base + PASS));
+                entity.setBlockQps(slots.get(base + BLOCK));
+                entity.setSuccessQps(slots.get(base + SUCCESS));
+                entity.setExceptionQps(slots.get(base + EXCEPTION));
+                entity.setRt(slots.get(base + RT));
+                entity.setCount((int) count);
+                entities.add(entity);
+            }
+        }
+        return entities;
+    }
+
+    public String getApp() {
+        return app;
+    }
+
+    public int getResourceCount() {
+        return resources.size();
+    }
+
+    /**
+     * @return count of samples dropped because they fell outside of the window
+     */
+    public long getOutOfWindowCount() {
+        return outOfWindow.sum();
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.metric;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Streaming decoders of the {@code Content-Encoding} of a metric response, the decoded bytes are
+ * read by the {@link MetricLineParser} as they are inflated, the whole body is never held decoded.
+ *
+ * @author agent
+ */
+public final class MetricContentDecoder {
+
+    public static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Wrap the stream with the decoder of the content encoding.
+     *
+     * @param contentEncoding value of {@code Content-Encoding}, {@code null} if not compressed
+     * @throws IOException if the encoding is not supported
+     */
+    public static InputStream decode(InputStream in, String contentEncoding) throws IOException {
+        if (contentEncoding == null) {
+            return in;
+        }
+        String encoding = contentEncoding.trim().toLowerCase(Locale.ROOT);
+        switch (encoding) {
+            case "":
+            case "identity":
+                return in;
+            case "gzip":
+            case "x-gzip":
+                return new GZIPInputStream(in, BUFFER_SIZE);
+            case "deflate":
+                return inflate(in);
+            default:
+                throw new IOException("Unsupported Content-Encoding: " + contentEncoding);
+        }
+    }
+
+    /**
+     * @return true if the content encoding is not {@code identity}
+     */
+    public static boolean isCompressed(String contentEncoding) {
+        if (contentEncoding == null) {
+            return false;
+        }
+        String encoding = contentEncoding.trim();
+        return !encoding.isEmpty() && !"identity".equalsIgnoreCase(encoding);
+    }
+
+    /**
+     * {@code deflate} is meant to be zlib wrapped, but some servers send raw deflate data: tell them
+     * apart by the zlib header.
+     */
+    private static InputStream inflate(InputStream in) throws IOException {
+        PushbackInputStream pushback = new PushbackInputStream(in, 2);
+        int cmf = pushback.read();
+        if (cmf == -1) {
+            return pushback;
+        }
+        int flg = pushback.read();
+        if (flg != -1) {
+            pushback.unread(flg);
+        }
+        pushback.unread(cmf);
+        boolean zlib = flg != -1 && (cmf & 0x0F) == 8 && ((cmf << 8) | flg) % 31 == 0;
+        return new InflaterInputStream(pushback, new Inflater(!zlib), BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    // the inflater is not the default one, so it is not ended by the stream
+                    inf.end();
+                }
+            }
+        };
+    }
+
+    private MetricContentDecoder() {}
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.metric;
+
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Supplier;
+
+/**
+ * Registry of the gauges of the metric pipeline (fetching, ingestion, storage), exposed by
+ * {@code /metric/fetchStats.json}.
+ *
+ * @author agent
+ */
+@Component
+public class MetricFetchStats {
+
+    private final Map<String, Supplier<? extends Number>> gauges = new ConcurrentSkipListMap<>();
+
+    /**
+     * Register a gauge, a gauge registered under the same name is replaced.
+     */
+    public void register(String name, Supplier<? extends Number> gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * @return current value of every gauge, ordered by name
+     */
+    public Map<String, Number> snapshot() {
+        Map<String, Number> values = new LinkedHashMap<>();
+        for (Map.Entry<String, Supplier<? extends Number>> e : gauges.entrySet()) {
+            values.put(e.getKey(), e.getValue().get());
+        }
+        return values;
+    }
+}
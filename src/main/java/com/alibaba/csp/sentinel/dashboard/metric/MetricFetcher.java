@@ -18,34 +18,46 @@ package com.alibaba.csp.sentinel.dashboard.metric;
 import com.alibaba.csp.sentinel.Constants;
 import com.alibaba.csp.sentinel.concurrent.NamedThreadFactory;
 import com.alibaba.csp.sentinel.config.SentinelConfig;
+import com.alibaba.csp.sentinel.dashboard.config.DashboardConfig;
 import com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntity;
 import com.alibaba.csp.sentinel.dashboard.discovery.AppInfo;
 import com.alibaba.csp.sentinel.dashboard.discovery.MachineDiscovery;
 import com.alibaba.csp.sentinel.dashboard.discovery.MachineInfo;
-import com.alibaba.csp.sentinel.dashboard.redis.service.RedisService;
 import com.alibaba.csp.sentinel.dashboard.redisson.DistributedLocker;
-import com.alibaba.csp.sentinel.dashboard.repository.metric.MetricsRepository;
-import com.alibaba.csp.sentinel.node.metric.MetricNode;
 import com.alibaba.csp.sentinel.util.StringUtil;
 
+import org.apache.http.ConnectionClosedException;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
 import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.concurrent.FutureCallback;
 import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.DefaultRedirectStrategy;
 import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
 import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.ManagedNHttpClientConnectionFactory;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
 import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.reactor.IOReactorException;
 import org.apache.http.protocol.HTTP;
-import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import java.io.InputStream;
 import java.net.ConnectException;
+import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
@@ -53,17 +65,21 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.ThreadPoolExecutor.DiscardPolicy;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 /**
  * Fetch metric of machines.
@@ -77,51 +93,139 @@ public class MetricFetcher {
     private static final int HTTP_OK = 200;
     private static final long MAX_LAST_FETCH_INTERVAL_MS = 1000 * 15;
     private static final long FETCH_INTERVAL_SECOND = 6;
+    /**
+     * Max seconds fetched from one machine at once while it is catching up.
+     */
+    private static final long MAX_CATCH_UP_SECONDS = 30;
+    /**
+     * Seconds older than this are no longer backfilled.
+     */
+    private static final long MAX_BACKFILL_MS = 1000 * 60;
+    private static final long MAX_FETCH_RUNNING_MS = 1000 * 30;
+    private static final long CONN_EVICT_INTERVAL_SECOND = 5;
+    /**
+     * Keep-alive failures in a row after which a machine falls back to {@code Connection: close}.
+     */
+    private static final int MAX_KEEP_ALIVE_FAILURES = 2;
+    private static final long CONN_CLOSE_FALLBACK_MS = 1000 * 60 * 10;
+    /**
+     * Requests of a tick are spread over this period instead of being fired at once.
+     */
+    private static final long DISPATCH_SPREAD_MS = 800;
+    private static final long DISPATCH_JITTER_MS = 50;
+    private static final long MACHINE_HEALTH_TTL_MS = 1000 * 60 * 10;
     private static final Charset DEFAULT_CHARSET = Charset.forName(SentinelConfig.charset());
     private final static String METRIC_URL_PATH = "sentinel/metric";
+    private static final int MAX_INTERNED_RESOURCES = 1 << 16;
     private static Logger logger = LoggerFactory.getLogger(MetricFetcher.class);
     private final long intervalSecond = 1;
 
     @Autowired
-    private MetricsRepository<MetricEntity> metricStore;
+    private MetricIngestionQueue ingestionQueue;
 
     @Autowired
     private MachineDiscovery machineDiscovery;
 
     @Autowired
-    private RedisService redisService;
+    private FetchCursorStore cursorStore;
 
     @Autowired
-    private DistributedLocker distributedLocker;
+    private FetchShardManager shardManager;
 
-    private static final String FETCH_TIME_CACHE = "sentinel:fetch:time:cache:%s";
+    @Autowired
+    private MetricPushAggregator pushAggregator;
+
+    @Autowired
+    private DistributedLocker distributedLocker;
 
     private static final String FETCH_LOCK = "sentinel:fetch:lock";
 
     private CloseableHttpAsyncClient httpclient;
+    private PoolingNHttpClientConnectionManager connectionManager;
+
+    @Autowired
+    private MetricFetchStats fetchStats;
+
+    private final boolean keepAlive = DashboardConfig.isMetricFetchKeepAlive();
+    private final boolean compression = DashboardConfig.isMetricFetchCompression();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder connectionsCreated = new LongAdder();
+    /**
+     * machine (ip:port) -> fetch history
+     */
+    private final Map<String, MachineFetchHealth> machineHealth = new ConcurrentHashMap<>();
+    private final LongAdder backedOffFetches = new LongAdder();
+    private final LongAdder compressedResponses = new LongAdder();
+    /**
+     * body bytes as received, the content length of compressed responses
+     */
+    private final LongAdder receivedBytes = new LongAdder();
+    private final LongAdder decodedBytes = new LongAdder();
+
+    private final ResourceNameInterner resourceNameInterner = new ResourceNameInterner(MAX_INTERNED_RESOURCES);
+
+    private final Map<String, AppFetchState> appStates = new ConcurrentHashMap<>();
+    private volatile boolean leader;
+
+    private final LongAdder droppedFetches = new LongAdder();
+    private final LongAdder callerRunsFlushes = new LongAdder();
+    private final LongAdder timedOutRounds = new LongAdder();
+    private final LongAdder abortedRequests = new LongAdder();
+    private final LongAdder lateResponses = new LongAdder();
+    private final AtomicInteger inflightRounds = new AtomicInteger();
 
     @SuppressWarnings("PMD.ThreadPoolCreationRule")
     private ScheduledExecutorService fetchScheduleService = Executors.newScheduledThreadPool(1,
             new NamedThreadFactory("sentinel-dashboard-metrics-fetch-task", true));
-    private ExecutorService fetchService;
-    private ExecutorService fetchWorker;
+    /**
+     * Dispatches the requests spread over the tick, and completes the fetch rounds whose machines
+     * have not all answered in time.
+     */
+    private ScheduledThreadPoolExecutor fetchTimer;
+    /**
+     * Prepares the fetch of each app and sends its requests.
+     */
+    private ThreadPoolExecutor fetchService;
+    /**
+     * Flushes the completed fetch rounds, so neither the IO threads nor the deadline thread write to the repository.
+     */
+    private ThreadPoolExecutor fetchWorker;
 
     public MetricFetcher() {
         int cores = Runtime.getRuntime().availableProcessors() * 2;
         long keepAliveTime = 0;
         int queueSize = 2048;
-        RejectedExecutionHandler handler = new DiscardPolicy();
+        // an app dropped here is fetched by the next tick from its cursors
+        RejectedExecutionHandler dropHandler = (r, executor) -> droppedFetches.increment();
+        // a completed round must be flushed, or the responses it ingested are lost
+        RejectedExecutionHandler callerRunsHandler = FetchRoundCompletion.callerRuns(callerRunsFlushes);
         fetchService = new ThreadPoolExecutor(cores, cores,
                 keepAliveTime, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize),
-                new NamedThreadFactory("sentinel-dashboard-metrics-fetchService", true), handler);
+                new NamedThreadFactory("sentinel-dashboard-metrics-fetchService", true), dropHandler);
         fetchWorker = new ThreadPoolExecutor(cores, cores,
                 keepAliveTime, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize),
-                new NamedThreadFactory("sentinel-dashboard-metrics-fetchWorker", true), handler);
+                new NamedThreadFactory("sentinel-dashboard-metrics-fetchWorker", true), callerRunsHandler);
+        fetchTimer = new ScheduledThreadPoolExecutor(1,
+                new NamedThreadFactory("sentinel-dashboard-metrics-fetch-timer", true));
+        fetchTimer.setRemoveOnCancelPolicy(true);
         IOReactorConfig ioConfig = IOReactorConfig.custom()
                 .setConnectTimeout(3000)
                 .setSoTimeout(3000)
                 .setIoThreadCount(Runtime.getRuntime().availableProcessors() * 2)
                 .build();
+        try {
+            // count the connections actually opened, the rest of the requests reused a pooled one
+            connectionManager = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(ioConfig),
+                    (session, config) -> {
+                        connectionsCreated.increment();
+                        return ManagedNHttpClientConnectionFactory.INSTANCE.create(session, config);
+                    });
+        } catch (IOReactorException e) {
+            throw new IllegalStateException("Failed to create metric fetch io reactor", e);
+        }
+        connectionManager.setMaxTotal(4000);
+        connectionManager.setDefaultMaxPerRoute(DashboardConfig.getMetricFetchMaxConnPerRoute());
+        final long connIdleMillis = DashboardConfig.getMetricFetchConnIdleMillis();
 
         httpclient = HttpAsyncClients.custom()
                 .setRedirectStrategy(new DefaultRedirectStrategy() {
@@ -129,9 +233,16 @@ public class MetricFetcher {
                     protected boolean isRedirectable(final String method) {
                         return false;
                     }
-                }).setMaxConnTotal(4000)
-                .setMaxConnPerRoute(1000)
-                .setDefaultIOReactorConfig(ioConfig)
+                }).setConnectionManager(connectionManager)
+                .setKeepAliveStrategy((response, context) -> {
+                    long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                    return duration > 0 ? Math.min(duration, connIdleMillis) : connIdleMillis;
+                })
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectionRequestTimeout(3000)
+                        .setConnectTimeout(3000)
+                        .setSocketTimeout(3000)
+                        .build())
                 .build();
         httpclient.start();
     }
@@ -145,54 +256,248 @@ public class MetricFetcher {
                 logger.info("fetchAllApp error:", e);
             }
         }, 10, intervalSecond, TimeUnit.SECONDS);
+        fetchScheduleService.scheduleAtFixedRate(() -> {
+            try {
+                connectionManager.closeExpiredConnections();
+                connectionManager.closeIdleConnections(DashboardConfig.getMetricFetchConnIdleMillis(),
+                        TimeUnit.MILLISECONDS);
+                long now = System.currentTimeMillis();
+                machineHealth.values().removeIf(health -> now - health.getLastSeen() > MACHINE_HEALTH_TTL_MS);
+            } catch (Exception e) {
+                logger.info("evict metric fetch connections error:", e);
+            }
+        }, CONN_EVICT_INTERVAL_SECOND, CONN_EVICT_INTERVAL_SECOND, TimeUnit.SECONDS);
+        registerStats();
+    }
+
+    private void registerStats() {
+        fetchStats.register("fetch.requests", requests::sum);
+        fetchStats.register("fetch.connections.created", connectionsCreated::sum);
+        fetchStats.register("fetch.connections.reuseRatio", () -> {
+            long total = requests.sum();
+            return total == 0 ? 0D : Math.max(0D, 1D - (double) connectionsCreated.sum() / total);
+        });
+        fetchStats.register("fetch.connections.leased", () -> connectionManager.getTotalStats().getLeased());
+        fetchStats.register("fetch.connections.available", () -> connectionManager.getTotalStats().getAvailable());
+        fetchStats.register("fetch.connections.pending", () -> connectionManager.getTotalStats().getPending());
+        fetchStats.register("fetch.connections.closeFallbackMachines", () -> {
+            long now = System.currentTimeMillis();
+            int count = 0;
+            for (MachineFetchHealth health : machineHealth.values()) {
+                if (health.isConnClose(now)) {
+                    count++;
+                }
+            }
+            return count;
+        });
+        fetchStats.register("fetch.machines.tracked", machineHealth::size);
+        fetchStats.register("fetch.machines.circuitOpen", () -> {
+            int count = 0;
+            for (MachineFetchHealth health : machineHealth.values()) {
+                if (health.getCircuit() != MachineFetchHealth.Circuit.CLOSED) {
+                    count++;
+                }
+            }
+            return count;
+        });
+        fetchStats.register("fetch.machines.maxLatencyEwmaMs", () -> {
+            double max = 0;
+            for (MachineFetchHealth health : machineHealth.values()) {
+                max = Math.max(max, health.getLatencyEwma());
+            }
+            return max;
+        });
+        fetchStats.register("fetch.requests.backedOff", backedOffFetches::sum);
+        fetchStats.register("fetch.responses.compressed", compressedResponses::sum);
+        fetchStats.register("fetch.bytes.received", receivedBytes::sum);
+        fetchStats.register("fetch.bytes.decoded", decodedBytes::sum);
+        fetchStats.register("fetch.apps.dropped", droppedFetches::sum);
+        fetchStats.register("fetch.rounds.inflight", inflightRounds::get);
+        fetchStats.register("fetch.rounds.timedOut", timedOutRounds::sum);
+        fetchStats.register("fetch.requests.aborted", abortedRequests::sum);
+        fetchStats.register("fetch.responses.late", lateResponses::sum);
+        fetchStats.register("fetch.flush.queued", () -> fetchWorker.getQueue().size());
+        fetchStats.register("fetch.flush.callerRuns", callerRunsFlushes::sum);
+    }
+
+    @PreDestroy
+    public void stop() {
+        fetchScheduleService.shutdown();
+        fetchTimer.shutdown();
+        try {
+            cursorStore.save(appStates.values());
+        } finally {
+            shardManager.leave();
+        }
     }
 
-    private void writeMetric(Map<String, MetricEntity> map) {
-        if (map.isEmpty()) {
+    private void writeMetric(List<MetricEntity> entities) {
+        if (entities.isEmpty()) {
             return;
         }
         Date date = new Date();
-        for (MetricEntity entity : map.values()) {
+        for (MetricEntity entity : entities) {
             entity.setGmtCreate(date);
             entity.setGmtModified(date);
         }
-        metricStore.saveAll(map.values());
+        ingestionQueue.submit(entities);
     }
 
     /**
      * Traverse each APP, and then pull the metric of all machines for that APP.
      */
     private void fetchAllApp() {
+        Collection<String> apps;
+        if (shardManager.isSharded()) {
+            apps = shardManager.assign(pulledApps(machineDiscovery.getAppNames()));
+        } else {
+            if (!holdFetchLock()) {
+                return;
+            }
+            apps = pulledApps(machineDiscovery.getAppNames());
+        }
+        prepareFetchStates(apps);
+        long dropped = droppedFetches.sum();
+        for (final String app : apps) {
+            final AppFetchState state = appStates.get(app);
+            if (state == null) {
+                continue;
+            }
+            fetchService.submit(() -> {
+                try {
+                    doFetchAppMetric(state);
+                } catch (Exception e) {
+                    logger.error("fetchAppMetric error", e);
+                }
+            });
+        }
+        dropped = droppedFetches.sum() - dropped;
+        if (dropped > 0) {
+            logger.warn("{} app metric fetches dropped, fetchService queue is full", dropped);
+        }
+    }
+
+    /**
+     * @return the apps whose metrics are pulled, the ones in push mode are fed by {@link MetricPushAggregator}
+     */
+    private List<String> pulledApps(List<String> apps) {
+        if (apps == null) {
+            return Collections.emptyList();
+        }
+        List<String> pulled = new ArrayList<>(apps.size());
+        for (String app : apps) {
+            if (!pushAggregator.isPush(app)) {
+                pulled.add(app);
+            }
+        }
+        return pulled;
+    }
+
+    /**
+     * @return true if this node holds the global fetch lock
+     */
+    private boolean holdFetchLock() {
         boolean lock = distributedLocker.tryLock(FETCH_LOCK, TimeUnit.SECONDS, 0, 10);
         if (!lock) {
-            return;
+            if (leader) {
+                logger.info("Lost metric fetch lock, stop fetching");
+                leader = false;
+                appStates.clear();
+            }
+            return false;
         }
-        try {
-            List<String> apps = machineDiscovery.getAppNames();
-            if (apps == null) {
-                return;
+        if (leader) {
+            // The re-entrant tryLock renewed the lease, keep holding the lock only once, so the
+            // fetch state of every app stays on this node until it stops renewing.
+            distributedLocker.unlock(FETCH_LOCK);
+        } else {
+            leader = true;
+            appStates.clear();
+        }
+        return true;
+    }
+
+    /**
+     * Release the apps no longer fetched by this node, persist the cursors changed by the last tick
+     * and load the ones of new apps, each in one pipeline.
+     */
+    private void prepareFetchStates(Collection<String> apps) {
+        long now = System.currentTimeMillis();
+        Set<String> fetched = new HashSet<>(apps);
+        List<AppFetchState> states = new ArrayList<>(appStates.values());
+        for (AppFetchState state : states) {
+            // a state still being fetched is released on a later tick, once its cursors are final
+            if (!fetched.contains(state.getApp()) && state.tryStart(now, MAX_FETCH_RUNNING_MS)) {
+                appStates.remove(state.getApp());
+                state.markDirty();
             }
-            for (final String app : apps) {
-                fetchService.submit(() -> {
-                    try {
-                        doFetchAppMetric(app);
-                    } catch (Exception e) {
-                        logger.error("fetchAppMetric error", e);
-                    }
-                });
+        }
+        try {
+            cursorStore.save(states);
+        } catch (Exception e) {
+            logger.warn("Save metric fetch cursors error", e);
+        }
+        List<String> missing = new ArrayList<>();
+        for (String app : apps) {
+            if (!appStates.containsKey(app)) {
+                missing.add(app);
             }
-        } finally {
-            distributedLocker.unlock(FETCH_LOCK);
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+        // trim milliseconds
+        long defaultFlushed = (System.currentTimeMillis() - MAX_LAST_FETCH_INTERVAL_MS) / 1000 * 1000 - 1000;
+        try {
+            appStates.putAll(cursorStore.load(missing, defaultFlushed));
+        } catch (Exception e) {
+            logger.warn("Load metric fetch cursors error", e);
         }
     }
 
     /**
-     * fetch metric between [startTime, endTime], both side inclusive
+     * Fetch the due windows of all machines of the app without waiting for the responses. The round
+     * completes once every machine has answered or the deadline has passed, whichever comes first,
+     * then the seconds every machine has passed are flushed on {@link #fetchWorker}.
      */
-    private void fetchOnce(String app, long startTime, long endTime, int maxWaitSeconds) {
+    private void fetchOnce(AppFetchState state, List<FetchWindow> windows, long floor, int maxWaitSeconds) {
         if (maxWaitSeconds <= 0) {
             throw new IllegalArgumentException("maxWaitSeconds must > 0, but " + maxWaitSeconds);
         }
+        final FetchRound round = new FetchRound(state, windows, floor);
+        logger.debug("enter fetchOnce(" + state.getApp() + "), machines.size()=" + windows.size()
+                + ", time intervalMs [" + round.startTime + ", " + round.endTime + "]");
+        round.completion.setDeadline(fetchTimer.schedule(round.completion::expire, maxWaitSeconds * 1000 + DISPATCH_SPREAD_MS,
+                TimeUnit.MILLISECONDS));
+        inflightRounds.incrementAndGet();
+        for (final FetchWindow window : windows) {
+            // every machine keeps its own phase within the tick, so the requests don't burst at once
+            long delay = (window.key.hashCode() & Integer.MAX_VALUE) % DISPATCH_SPREAD_MS
+                    + ThreadLocalRandom.current().nextLong(DISPATCH_JITTER_MS);
+            try {
+                fetchTimer.schedule(() -> round.fetch(window), Math.min(delay, DISPATCH_SPREAD_MS),
+                        TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                round.fetch(window);
+            }
+        }
+    }
+
+    /**
+     * Write the seconds every live machine has been ingested up to. Seconds older than {@code floor}
+     * are written anyway, the machines lagging behind them give up those seconds.
+     */
+    private void flushApp(AppFetchState state, List<MetricEntity> entities, long floor) {
+        long watermark = state.watermark();
+        if (watermark == Long.MAX_VALUE) {
+            // no live machine left
+            watermark = state.maxCursor();
+        }
+        writeMetric(state.flush(entities, Math.max(watermark, floor - 1000)));
+    }
+
+    private void doFetchAppMetric(final AppFetchState state) {
+        final String app = state.getApp();
         AppInfo appInfo = machineDiscovery.getDetailApp(app);
         if (appInfo == null) {
             return;
@@ -201,123 +506,121 @@ public class MetricFetcher {
             logger.info("Dead app removed: {}", app);
             return;
         }
-        Set<MachineInfo> machines = appInfo.getMachines();
-        logger.debug("enter fetchOnce(" + app + "), machines.size()=" + machines.size()
-                + ", time intervalMs [" + startTime + ", " + endTime + "]");
-        if (machines.isEmpty()) {
+        long now = System.currentTimeMillis();
+        if (!state.tryStart(now, MAX_FETCH_RUNNING_MS)) {
             return;
         }
-        final String msg = "fetch";
-        AtomicLong unhealthy = new AtomicLong();
-        final AtomicLong success = new AtomicLong();
-        final AtomicLong fail = new AtomicLong();
-
-        long start = System.currentTimeMillis();
-        /** app_resource_timeSecond -> metric */
-        final Map<String, MetricEntity> metricMap = new ConcurrentHashMap<>(16);
-        final CountDownLatch latch = new CountDownLatch(machines.size());
-        for (final MachineInfo machine : machines) {
-            if (machine.isDead()) {
-                latch.countDown();
-                logger.info("Dead machine  {}:{} of {}", machine.getIp(), machine.getPort(), app);
-                continue;
-            }
-            if (!machine.isHealthy()) {
-                latch.countDown();
-                unhealthy.incrementAndGet();
-                continue;
+        boolean submitted = false;
+        try {
+            // trim milliseconds
+            final long floor = (now - MAX_BACKFILL_MS) / 1000 * 1000;
+            long latest = (now - 1000 * 2) / 1000 * 1000;
+            if (state.getFlushed() < floor - 1000) {
+                // the state is too old to be backfilled, e.g. after a long outage
+                writeMetric(state.flush(state.getPending(), floor - 1000));
             }
-
-            final String url = "http://" + machine.getIp() + ":" + machine.getPort() + "/" + METRIC_URL_PATH
-                    + "?startTime=" + startTime + "&endTime=" + endTime + "&refetch=" + false;
-            final HttpGet httpGet = new HttpGet(url);
-            httpGet.setHeader(HTTP.CONN_DIRECTIVE, HTTP.CONN_CLOSE);
-            httpclient.execute(httpGet, new FutureCallback<HttpResponse>() {
-                @Override
-                public void completed(final HttpResponse response) {
-                    try {
-                        handleResponse(response, machine, metricMap);
-                        success.incrementAndGet();
-                    } catch (Exception e) {
-                        logger.error(msg + " metric " + url + " error:", e);
-                    } finally {
-                        latch.countDown();
-                    }
+            final List<FetchWindow> windows = new ArrayList<>();
+            Set<String> live = new HashSet<>();
+            for (MachineInfo machine : appInfo.getMachines()) {
+                if (machine.isDead()) {
+                    logger.info("Dead machine  {}:{} of {}", machine.getIp(), machine.getPort(), app);
+                    continue;
                 }
-
-                @Override
-                public void failed(final Exception ex) {
-                    latch.countDown();
-                    fail.incrementAndGet();
-                    httpGet.abort();
-                    if (ex instanceof SocketTimeoutException) {
-                        logger.error("Failed to fetch metric from <{}>: socket timeout", url);
-                    } else if (ex instanceof ConnectException) {
-                        logger.error("Failed to fetch metric from <{}> (ConnectionException: {})", url, ex.getMessage());
+                if (!machine.isHealthy()) {
+                    continue;
+                }
+                String key = machine.toHostPort();
+                MachineFetchHealth health = healthOf(key);
+                health.touch(now);
+                long windowStart = state.cursorOf(key) + 1000;
+                long windowEnd = Math.min(latest, windowStart + (MAX_CATCH_UP_SECONDS - 1) * 1000);
+                if (windowEnd - windowStart >= (FETCH_INTERVAL_SECOND - 1) * 1000) {
+                    if (health.tryAcquire(now)) {
+                        windows.add(new FetchWindow(machine, key, windowStart, windowEnd));
                     } else {
-                        logger.error(msg + " metric " + url + " error", ex);
+                        backedOffFetches.increment();
                     }
                 }
-
-                @Override
-                public void cancelled() {
-                    latch.countDown();
-                    fail.incrementAndGet();
-                    httpGet.abort();
+                // a machine whose circuit is open no longer holds the watermark back, it restarts
+                // from the flushed watermark once it recovers
+                if (health.getCircuit() != MachineFetchHealth.Circuit.OPEN) {
+                    live.add(key);
                 }
-            });
-        }
-        try {
-            latch.await(maxWaitSeconds, TimeUnit.SECONDS);
+            }
+            state.retainMachines(live);
+            if (windows.isEmpty()) {
+                // machines that left may have released the watermark
+                flushApp(state, state.getPending(), floor);
+                return;
+            }
+            // do real fetch async, the round finishes the state once flushed
+            fetchOnce(state, windows, floor, 5);
+            submitted = true;
         } catch (Exception e) {
-            logger.info(msg + " metric, wait http client error:", e);
+            logger.info("submit fetchOnce(" + app + ") fail", e);
+        } finally {
+            if (!submitted) {
+                state.finish();
+            }
         }
-        long cost = System.currentTimeMillis() - start;
-        logger.info("finished " + msg + " metric for " + app + ", time intervalMs [" + startTime + ", " + endTime
-                + "], total machines=" + machines.size() + ", fetch success="
-                + success + ", fetch fail=" + fail + ", time cost=" + cost + " ms");
-        writeMetric(metricMap);
     }
 
-    private void doFetchAppMetric(final String app) {
-        String key = String.format(FETCH_TIME_CACHE, app);
-        long now = System.currentTimeMillis();
-        long lastFetchMs = now - MAX_LAST_FETCH_INTERVAL_MS;
+    private MachineFetchHealth healthOf(String machine) {
+        MachineFetchHealth health = machineHealth.get(machine);
+        if (health == null) {
+            health = machineHealth.computeIfAbsent(machine, MachineFetchHealth::new);
+        }
+        return health;
+    }
 
-        Object appLastFetchTime = redisService.getCacheObject(key);
-        if (appLastFetchTime != null) {
-            lastFetchMs = Math.max(lastFetchMs, Long.parseLong(appLastFetchTime.toString()) + 1000);
+    /**
+     * Agents that drop or stall persistent connections are fetched with {@code Connection: close}
+     * for a while. Refused connections mean the machine is down rather than misbehaving.
+     */
+    private void onKeepAliveFailure(MachineFetchHealth health, Exception ex) {
+        boolean connectionBroken = ex instanceof ConnectionClosedException || ex instanceof SocketTimeoutException
+                || (ex instanceof SocketException && !(ex instanceof ConnectException));
+        if (connectionBroken && health.onKeepAliveFailure(System.currentTimeMillis(), MAX_KEEP_ALIVE_FAILURES,
+                CONN_CLOSE_FALLBACK_MS)) {
+            logger.warn("Keep-alive connection to <{}> failed {} times in a row, fall back to Connection: close for {} ms",
+                    health.getMachine(), MAX_KEEP_ALIVE_FAILURES, CONN_CLOSE_FALLBACK_MS);
         }
-        // trim milliseconds
-        lastFetchMs = lastFetchMs / 1000 * 1000;
-        long endTime = lastFetchMs + FETCH_INTERVAL_SECOND * 1000;
-        if (endTime > now - 1000 * 2) {
-            // too near
-            return;
+    }
+
+    private void onFetchSuccess(MachineFetchHealth health, long latencyMs) {
+        if (health.onSuccess(latencyMs) != MachineFetchHealth.Circuit.CLOSED) {
+            logger.info("Metric fetch of <{}> recovered, circuit closed", health.getMachine());
         }
-        // update last_fetch in advance.
-        redisService.setCacheObject(key, endTime + "");
-        final long finalLastFetchMs = lastFetchMs;
-        final long finalEndTime = endTime;
-        try {
-            // do real fetch async
-            fetchWorker.submit(() -> {
-                try {
-                    fetchOnce(app, finalLastFetchMs, finalEndTime, 5);
-                } catch (Exception e) {
-                    logger.info("fetchOnce(" + app + ") error", e);
-                }
-            });
-        } catch (Exception e) {
-            logger.info("submit fetchOnce(" + app + ") fail, intervalMs [" + lastFetchMs + ", " + endTime + "]", e);
+    }
+
+    /**
+     * @return true if the failure should be logged: only the first one of a row, and the one opening
+     * the circuit, the rest would flood the log while the machine stays down
+     */
+    private boolean onFetchFailure(MachineFetchHealth health) {
+        long now = System.currentTimeMillis();
+        MachineFetchHealth.Circuit previous = health.onFailure(now);
+        if (previous != MachineFetchHealth.Circuit.OPEN && health.getCircuit() == MachineFetchHealth.Circuit.OPEN) {
+            logger.warn("Metric fetch of <{}> failed {} times in a row, circuit open, retry in {} ms",
+                    health.getMachine(), health.getFailures(), health.getRetryAt() - now);
+            return false;
         }
+        return previous == MachineFetchHealth.Circuit.CLOSED && health.getFailures() == 1;
     }
 
-    private void handleResponse(final HttpResponse response, MachineInfo machine,
-                                Map<String, MetricEntity> metricMap) throws Exception {
+    /**
+     * @return true if the response has been ingested
+     */
+    private boolean handleResponse(final HttpResponse response, MachineInfo machine,
+                                   MetricAggregationBuffer buffer) throws Exception {
         int code = response.getStatusLine().getStatusCode();
         if (code != HTTP_OK) {
-            return;
+            return false;
+        }
+        HttpEntity entity = response.getEntity();
+        if (entity == null) {
+            logger.info(machine.getApp() + ":" + machine.getIp() + ":" + machine.getPort() + ", bodyStr is empty");
+            return true;
         }
         Charset charset = null;
         try {
@@ -328,62 +631,43 @@ public class MetricFetcher {
             }
         } catch (Exception ignore) {
         }
-        String body = EntityUtils.toString(response.getEntity(), charset != null ? charset : DEFAULT_CHARSET);
-        if (StringUtil.isEmpty(body) || body.startsWith(NO_METRICS)) {
+        MetricLineParser parser = new MetricLineParser(resourceNameInterner,
+                charset != null ? charset : DEFAULT_CHARSET);
+        Header contentEncoding = entity.getContentEncoding();
+        String encoding = contentEncoding == null ? null : contentEncoding.getValue();
+        // decoded while parsed, the body is only held compressed
+        try (InputStream in = MetricContentDecoder.decode(entity.getContent(), encoding)) {
+            parser.parse(in, line -> handleLine(line, buffer));
+        }
+        decodedBytes.add(parser.getBytesRead());
+        if (MetricContentDecoder.isCompressed(encoding) && entity.getContentLength() >= 0) {
+            compressedResponses.increment();
+            receivedBytes.add(entity.getContentLength());
+        } else {
+            receivedBytes.add(parser.getBytesRead());
+        }
+        if (parser.getLines() == 0) {
             logger.info(machine.getApp() + ":" + machine.getIp() + ":" + machine.getPort() + ", bodyStr is empty");
-            return;
+            return true;
+        }
+        if (parser.getMalformedLines() > 0) {
+            logger.warn("handleBody line exception, machine: {}, malformed lines: {}, first: {}",
+                    machine.toLogString(), parser.getMalformedLines(), parser.getFirstMalformedLine());
         }
-        String[] lines = body.split("\n");
         logger.info(machine.getApp() + ":" + machine.getIp() + ":" + machine.getPort() +
-                ", bodyStr.length()=" + body.length() + ", lines=" + lines.length);
-        handleBody(lines, machine, metricMap);
+                ", bytes=" + parser.getBytesRead() + ", lines=" + parser.getLines());
+        return true;
     }
 
-    private void handleBody(String[] lines, MachineInfo machine, Map<String, MetricEntity> map) {
-        logger.info("handleBody() lines=" + lines.length + ", machine=" + machine);
-        if (lines.length < 1) {
+    private void handleLine(MetricLine line, MetricAggregationBuffer buffer) {
+        if (shouldFilterOut(line.getResource())) {
             return;
         }
-
-        for (String line : lines) {
-            try {
-                MetricNode node = MetricNode.fromThinString(line);
-                if (shouldFilterOut(node.getResource())) {
-                    continue;
-                }
-                /*
-                 * aggregation metrics by app_resource_timeSecond, ignore ip and port.
-                 */
-                String key = buildMetricKey(machine.getApp(), node.getResource(), node.getTimestamp());
-
-                MetricEntity metricEntity = map.computeIfAbsent(key, s -> {
-                    MetricEntity initMetricEntity = new MetricEntity();
-                    initMetricEntity.setApp(machine.getApp());
-                    initMetricEntity.setTimestamp(new Date(node.getTimestamp()));
-                    initMetricEntity.setPassQps(0L);
-                    initMetricEntity.setBlockQps(0L);
-                    initMetricEntity.setRtAndSuccessQps(0, 0L);
-                    initMetricEntity.setExceptionQps(0L);
-                    initMetricEntity.setCount(0);
-                    initMetricEntity.setResource(node.getResource());
-                    return initMetricEntity;
-                });
-                metricEntity.addPassQps(node.getPassQps());
-                metricEntity.addBlockQps(node.getBlockQps());
-                metricEntity.addRtAndSuccessQps(node.getRt(), node.getSuccessQps());
-                metricEntity.addExceptionQps(node.getExceptionQps());
-                metricEntity.addCount(1);
-            } catch (Exception e) {
-                logger.warn("handleBody line exception, machine: {}, line: {}", machine.toLogString(), line);
-            }
-        }
-    }
-
-    private String buildMetricKey(String app, String resource, long timestamp) {
-        return app + "__" + resource + "__" + (timestamp / 1000);
+        // aggregation metrics by app_resource_timeSecond, ignore ip and port.
+        buffer.add(line);
     }
 
-    private boolean shouldFilterOut(String resource) {
+    static boolean shouldFilterOut(String resource) {
         return RES_EXCLUSION_SET.contains(resource);
     }
 
@@ -393,7 +677,170 @@ public class MetricFetcher {
         add(Constants.CPU_USAGE_RESOURCE_NAME);
     }};
 
-}
+    /**
+     * One fetch of all due windows of an app. Responses are aggregated into the buffer by the IO
+     * threads as they arrive, the round is completed exactly once by its {@link FetchRoundCompletion}.
+     * Responses arriving after that neither touch the buffer nor move cursors.
+     */
+    private final class FetchRound {
+        final AppFetchState state;
+        final List<FetchWindow> windows;
+        final long floor;
+        final long startTime;
+        final long endTime;
+        final long start = System.currentTimeMillis();
+        final MetricAggregationBuffer buffer;
+        final FetchRoundCompletion completion;
+        final AtomicLong success = new AtomicLong();
+        final AtomicLong fail = new AtomicLong();
+        final List<HttpGet> httpGets = new CopyOnWriteArrayList<>();
+
+        FetchRound(AppFetchState state, List<FetchWindow> windows, long floor) {
+            this.state = state;
+            this.windows = windows;
+            this.floor = floor;
+            long startTime = Long.MAX_VALUE;
+            long endTime = state.maxCursor();
+            for (FetchWindow window : windows) {
+                startTime = Math.min(startTime, window.start);
+                endTime = Math.max(endTime, window.end);
+            }
+            this.startTime = startTime;
+            this.endTime = endTime;
+            this.completion = new FetchRoundCompletion(windows.size(), fetchWorker, this::abort, this::flush);
+            this.buffer = new MetricAggregationBuffer(state.getApp(), state.getFlushed() + 1000, endTime);
+            for (MetricEntity entity : state.getPending()) {
+                buffer.add(entity.getResource(), entity.getTimestamp().getTime(), entity.getPassQps(),
+                        entity.getBlockQps(), entity.getSuccessQps(), entity.getExceptionQps(),
+                        (long) entity.getRt(), entity.getCount());
+            }
+        }
+
+        void fetch(final FetchWindow window) {
+            final MachineInfo machine = window.machine;
+            final String url = "http://" + machine.getIp() + ":" + machine.getPort() + "/" + METRIC_URL_PATH
+                    + "?startTime=" + window.start + "&endTime=" + window.end + "&refetch=" + false;
+            final HttpGet httpGet = new HttpGet(url);
+            final MachineFetchHealth health = healthOf(window.key);
+            final long sent = System.currentTimeMillis();
+            final boolean reuseConnection = keepAlive && health.useKeepAlive(sent);
+            if (!reuseConnection) {
+                httpGet.setHeader(HTTP.CONN_DIRECTIVE, HTTP.CONN_CLOSE);
+            }
+            if (compression) {
+                httpGet.setHeader(HttpHeaders.ACCEPT_ENCODING, MetricContentDecoder.ACCEPT_ENCODING);
+            }
+            requests.increment();
+            httpGets.add(httpGet);
+            try {
+                httpclient.execute(httpGet, new FutureCallback<HttpResponse>() {
+                    @Override
+                    public void completed(final HttpResponse response) {
+                        boolean open = completion.enter();
+                        try {
+                            if (reuseConnection) {
+                                health.onKeepAliveSuccess();
+                            }
+                            if (!open) {
+                                lateResponses.increment();
+                                onFetchSuccess(health, System.currentTimeMillis() - sent);
+                            } else if (handleResponse(response, machine, buffer)) {
+                                state.advance(window.key, window.end);
+                                success.incrementAndGet();
+                                onFetchSuccess(health, System.currentTimeMillis() - sent);
+                            } else {
+                                fail.incrementAndGet();
+                                onFetchFailure(health);
+                            }
+                        } catch (Exception e) {
+                            fail.incrementAndGet();
+                            logger.error("fetch metric " + url + " error:", e);
+                        } finally {
+                            completion.exit();
+                            completion.countDown();
+                        }
+                    }
+
+                    @Override
+                    public void failed(final Exception ex) {
+                        fail.incrementAndGet();
+                        httpGet.abort();
+                        if (reuseConnection) {
+                            onKeepAliveFailure(health, ex);
+                        }
+                        if (!onFetchFailure(health)) {
+                            logger.debug("fetch metric " + url + " error", ex);
+                        } else if (ex instanceof SocketTimeoutException) {
+                            logger.error("Failed to fetch metric from <{}>: socket timeout", url);
+                        } else if (ex instanceof ConnectException) {
+                            logger.error("Failed to fetch metric from <{}> (ConnectionException: {})", url, ex.getMessage());
+                        } else {
+                            logger.error("fetch metric " + url + " error", ex);
+                        }
+                        completion.countDown();
+                    }
+
+                    @Override
+                    public void cancelled() {
+                        fail.incrementAndGet();
+                        httpGet.abort();
+                        onFetchFailure(health);
+                        completion.countDown();
+                    }
+                });
+            } catch (Exception e) {
+                fail.incrementAndGet();
+                logger.error("fetch metric " + url + " error:", e);
+                completion.countDown();
+            }
+        }
 
+        /**
+         * The deadline completed the round, give the pooled connections of the machines still not
+         * answering back.
+         */
+        private void abort() {
+            timedOutRounds.increment();
+            for (HttpGet httpGet : httpGets) {
+                if (!httpGet.isAborted()) {
+                    httpGet.abort();
+                    abortedRequests.increment();
+                }
+            }
+        }
 
+        private void flush() {
+            String app = state.getApp();
+            try {
+                long cost = System.currentTimeMillis() - start;
+                logger.info("finished fetch metric for " + app + ", time intervalMs [" + startTime + ", " + endTime
+                        + "], total machines=" + windows.size() + ", fetch success="
+                        + success + ", fetch fail=" + fail + ", time cost=" + cost + " ms");
+                if (buffer.getOutOfWindowCount() > 0) {
+                    logger.warn("{} metric lines of {} out of time intervalMs [{}, {}] are ignored",
+                            buffer.getOutOfWindowCount(), app, startTime, endTime);
+                }
+                flushApp(state, buffer.toEntities(), floor);
+            } catch (Exception e) {
+                logger.info("fetchOnce(" + app + ") error", e);
+            } finally {
+                inflightRounds.decrementAndGet();
+                state.finish();
+            }
+        }
+    }
 
+    private static final class FetchWindow {
+        final MachineInfo machine;
+        final String key;
+        final long start;
+        final long end;
+
+        FetchWindow(MachineInfo machine, String key, long start, long end) {
+            this.machine = machine;
+            this.key = key;
+            this.start = start;
+            this.end = end;
+        }
+    }
+}
@@ -0,0 +1,493 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.metric;
+
+import com.alibaba.csp.sentinel.concurrent.NamedThreadFactory;
+import com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntity;
+import com.alibaba.csp.sentinel.dashboard.repository.metric.MetricsRepository;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+/**
+ * Bounded queue between metric fetching and the {@link MetricsRepository}, drained by dedicated
+ * writer threads, so a slow database no longer stalls the fetch threads.
+ * <p>
+ * When the queue is full the configured policy applies:
+ * <ul>
+ * <li>{@code BLOCK}: the producer waits for room, up to the block timeout, then the batch is dropped</li>
+ * <li>{@code DROP_OLDEST}: the oldest queued batch is dropped to make room, or left to the replay of
+ * the write-ahead log if it is logged</li>
+ * <li>{@code SPILL}: the batch is appended to local disk and replayed by the writers once the queue
+ * has drained through {@link MetricsRepository#saveAllIfAbsent(java.util.Collection)}, batches the
+ * repository fails to save are spilled as well</li>
+ * </ul>
+ * With the write-ahead log enabled, every batch is appended to a {@link MetricWriteAheadLog} before
+ * being queued. A batch that finds the queue full or fails to be saved stays in the log and is
+ * replayed by the writers later, and so are the batches not checkpointed before a restart. Replay
+ * goes through {@link MetricsRepository#saveAllIfAbsent(java.util.Collection)}, so a batch saved
+ * twice is stored once. The policy above only applies when the log itself is full.
+ * <p>
+ * Every batch saved is added to the {@link TopResourceTracker} and the {@link FleetMetricAggregator},
+ * and handed to the {@link MetricLiveBroadcaster} unless replayed.
+ *
+ * @author agent
+ */
+@Component
+public class MetricIngestionQueue {
+
+    private static final Logger logger = LoggerFactory.getLogger(MetricIngestionQueue.class);
+
+    public enum Policy {
+        BLOCK, DROP_OLDEST, SPILL
+    }
+
+    @Value("${sentinel.dashboard.metric.ingest.capacity:1024}")
+    private int capacity;
+
+    @Value("${sentinel.dashboard.metric.ingest.writers:2}")
+    private int writers;
+
+    @Value("${sentinel.dashboard.metric.ingest.policy:BLOCK}")
+    private Policy policy;
+
+    @Value("${sentinel.dashboard.metric.ingest.block-timeout-ms:10000}")
+    private long blockTimeoutMs;
+
+    /**
+     * Queued batches, of any apps, are merged into a single save up to this many metrics.
+     */
+    @Value("${sentinel.dashboard.metric.ingest.merge-max-rows:5000}")
+    private int mergeMaxRows;
+
+    @Value("${sentinel.dashboard.metric.ingest.spill-dir:${user.home}/logs/csp/metric-spill}")
+    private String spillDir;
+
+    @Value("${sentinel.dashboard.metric.ingest.spill-max-mb:512}")
+    private long spillMaxMb;
+
+    @Value("${sentinel.dashboard.metric.ingest.wal.enabled:false}")
+    private boolean walEnabled;
+
+    @Value("${sentinel.dashboard.metric.ingest.wal.dir:${user.home}/logs/csp/metric-wal}")
+    private String walDir;
+
+    @Value("${sentinel.dashboard.metric.ingest.wal.segment-mb:32}")
+    private int walSegmentMb;
+
+    @Value("${sentinel.dashboard.metric.ingest.wal.max-mb:1024}")
+    private long walMaxMb;
+
+    @Autowired
+    private MetricsRepository<MetricEntity> metricStore;
+
+    @Autowired
+    private MetricFetchStats fetchStats;
+
+    @Autowired
+    private TopResourceTracker topResourceTracker;
+
+    @Autowired
+    private MetricLiveBroadcaster liveBroadcaster;
+
+    @Autowired
+    private FleetMetricAggregator fleetAggregator;
+
+    private BlockingQueue<Batch> queue;
+    private ExecutorService writerService;
+    private MetricSpillStore spillStore;
+    private MetricWriteAheadLog wal;
+    private ScheduledExecutorService walCheckpointer;
+    private volatile boolean running;
+    private final AtomicBoolean replaying = new AtomicBoolean();
+    private final AtomicBoolean walReplaying = new AtomicBoolean();
+    /**
+     * LSNs of the batches appended to the log and not saved yet, the lowest one bounds the checkpoint.
+     */
+    private final ConcurrentSkipListSet<Long> walPending = new ConcurrentSkipListSet<>();
+    /**
+     * LSNs of the batches left in the log only, waiting for a replay.
+     */
+    private final ConcurrentLinkedQueue<Long> walDeferred = new ConcurrentLinkedQueue<>();
+    private final Object walLock = new Object();
+
+    private final LongAdder queuedEntities = new LongAdder();
+    private final LongAdder writtenEntities = new LongAdder();
+    private final LongAdder droppedEntities = new LongAdder();
+    private final LongAdder failedEntities = new LongAdder();
+    private final LongAdder spilledEntities = new LongAdder();
+    private final LongAdder replayedEntities = new LongAdder();
+    private final LongAdder deferredEntities = new LongAdder();
+    private final AtomicLong lastWriteLagMs = new AtomicLong();
+
+    @PostConstruct
+    public void start() throws Exception {
+        if (capacity <= 0 || writers <= 0) {
+            throw new IllegalArgumentException("ingest capacity and writers must > 0");
+        }
+        queue = new ArrayBlockingQueue<>(capacity);
+        if (policy == Policy.SPILL) {
+            spillStore = new MetricSpillStore(new File(spillDir), spillMaxMb * 1024 * 1024);
+        }
+        if (walEnabled) {
+            openWal();
+        }
+        running = true;
+        writerService = Executors.newFixedThreadPool(writers,
+                new NamedThreadFactory("sentinel-dashboard-metrics-writer", true));
+        for (int i = 0; i < writers; i++) {
+            writerService.execute(this::drain);
+        }
+        fetchStats.register("ingest.queue.depth", queue::size);
+        fetchStats.register("ingest.queue.capacity", () -> capacity);
+        fetchStats.register("ingest.queue.lagMs", () -> {
+            Batch oldest = queue.peek();
+            return oldest == null ? 0 : System.currentTimeMillis() - oldest.enqueuedAt;
+        });
+        fetchStats.register("ingest.write.lastLagMs", lastWriteLagMs::get);
+        fetchStats.register("ingest.entities.queued", queuedEntities::sum);
+        fetchStats.register("ingest.entities.written", writtenEntities::sum);
+        fetchStats.register("ingest.entities.dropped", droppedEntities::sum);
+        fetchStats.register("ingest.entities.failed", failedEntities::sum);
+        fetchStats.register("ingest.entities.spilled", spilledEntities::sum);
+        fetchStats.register("ingest.entities.replayed", replayedEntities::sum);
+        fetchStats.register("ingest.spill.bytes", () -> spillStore == null ? 0 : spillStore.getBytes());
+        fetchStats.register("ingest.entities.deferred", deferredEntities::sum);
+        fetchStats.register("ingest.wal.pendingBytes", () -> wal == null ? 0 : wal.getPendingBytes());
+        fetchStats.register("ingest.wal.pendingBatches", walPending::size);
+        fetchStats.register("ingest.wal.deferredBatches", walDeferred::size);
+        logger.info("Metric ingestion queue started, capacity={}, writers={}, policy={}, wal={}",
+                capacity, writers, policy, walEnabled);
+    }
+
+    private void openWal() throws IOException {
+        wal = new MetricWriteAheadLog(new File(walDir), walSegmentMb * 1024 * 1024, walMaxMb * 1024 * 1024);
+        List<Long> recovered = wal.recover();
+        walPending.addAll(recovered);
+        walDeferred.addAll(recovered);
+        if (!recovered.isEmpty()) {
+            logger.info("Recovered {} metric batches from the wal, replay them", recovered.size());
+        }
+        walCheckpointer = Executors.newSingleThreadScheduledExecutor(
+                new NamedThreadFactory("sentinel-dashboard-metrics-wal", true));
+        walCheckpointer.scheduleWithFixedDelay(this::checkpoint, 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Flush the log and move the checkpoint up to the oldest batch not saved yet.
+     */
+    private void checkpoint() {
+        try {
+            wal.force();
+            long lsn;
+            synchronized (walLock) {
+                lsn = walPending.isEmpty() ? wal.getEnd() : walPending.first();
+            }
+            wal.checkpoint(lsn);
+        } catch (Throwable e) {
+            logger.warn("Checkpoint metric wal error", e);
+        }
+    }
+
+    /**
+     * Stop accepting batches and give the writers a moment to drain the queue.
+     */
+    @PreDestroy
+    public void stop() throws Exception {
+        running = false;
+        writerService.shutdown();
+        if (!writerService.awaitTermination(10, TimeUnit.SECONDS)) {
+            logger.warn("Metric writers not terminated in time, {} batches left in queue", queue.size());
+        }
+        if (spillStore != null) {
+            Batch batch;
+            while ((batch = queue.poll()) != null) {
+                // batches in the wal are recovered on the next start
+                if (batch.lsn < 0) {
+                    spill(batch.entities);
+                }
+            }
+            spillStore.close();
+        }
+        if (wal != null) {
+            walCheckpointer.shutdown();
+            checkpoint();
+            wal.close();
+        }
+    }
+
+    /**
+     * Queue a batch for writing, applying the overflow policy if the queue is full.
+     *
+     * @return false if the batch has been dropped
+     */
+    public boolean submit(List<MetricEntity> entities) {
+        if (entities.isEmpty()) {
+            return true;
+        }
+        Batch batch = new Batch(entities, appendToWal(entities));
+        if (queue.offer(batch)) {
+            queuedEntities.add(entities.size());
+            return true;
+        }
+        if (batch.lsn >= 0) {
+            defer(batch);
+            return true;
+        }
+        switch (policy) {
+            case DROP_OLDEST:
+                while (!queue.offer(batch)) {
+                    Batch oldest = queue.poll();
+                    if (oldest == null) {
+                        continue;
+                    }
+                    if (oldest.lsn >= 0) {
+                        // still pending in the wal, dropped it would hold the checkpoint back for good
+                        defer(oldest);
+                    } else {
+                        drop(oldest.entities, "queue full, oldest dropped");
+                    }
+                }
+                queuedEntities.add(entities.size());
+                return true;
+            case SPILL:
+                return spill(entities);
+            default:
+                try {
+                    if (queue.offer(batch, blockTimeoutMs, TimeUnit.MILLISECONDS)) {
+                        queuedEntities.add(entities.size());
+                        return true;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                drop(entities, "queue still full after " + blockTimeoutMs + " ms");
+                return false;
+        }
+    }
+
+    /**
+     * @return LSN of the batch, -1 if the wal is disabled or cannot take it
+     */
+    private long appendToWal(List<MetricEntity> entities) {
+        if (wal == null) {
+            return -1;
+        }
+        try {
+            // the checkpoint must not pass a batch appended but not marked pending yet
+            synchronized (walLock) {
+                long lsn = wal.append(entities);
+                if (lsn >= 0) {
+                    walPending.add(lsn);
+                } else {
+                    logger.warn("Metric wal full, {} bytes pending", wal.getPendingBytes());
+                }
+                return lsn;
+            }
+        } catch (Exception e) {
+            logger.error("Append {} metrics to wal error", entities.size(), e);
+            return -1;
+        }
+    }
+
+    private void defer(Batch batch) {
+        deferredEntities.add(batch.entities.size());
+        walDeferred.add(batch.lsn);
+    }
+
+    private void drain() {
+        while (running || !queue.isEmpty()) {
+            Batch batch;
+            try {
+                batch = queue.poll(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (batch != null) {
+                List<Batch> batches = new ArrayList<>();
+                batches.add(batch);
+                int rows = batch.entities.size();
+                while (rows < mergeMaxRows && (batch = queue.poll()) != null) {
+                    batches.add(batch);
+                    rows += batch.entities.size();
+                }
+                write(batches);
+            }
+            if (running && spillStore != null && queue.isEmpty()) {
+                replay();
+            }
+            if (running && wal != null && queue.isEmpty()) {
+                replayWal();
+            }
+        }
+    }
+
+    private void write(List<Batch> batches) {
+        List<MetricEntity> merged;
+        if (batches.size() == 1) {
+            merged = batches.get(0).entities;
+        } else {
+            merged = new ArrayList<>();
+            for (Batch batch : batches) {
+                merged.addAll(batch.entities);
+            }
+        }
+        try {
+            metricStore.saveAll(merged);
+        } catch (Exception e) {
+            for (Batch batch : batches) {
+                failed(batch, e);
+            }
+            return;
+        }
+        topResourceTracker.record(merged);
+        fleetAggregator.record(merged);
+        // replayed batches are late, only the live ones are broadcast
+        liveBroadcaster.publish(merged);
+        writtenEntities.add(merged.size());
+        lastWriteLagMs.set(System.currentTimeMillis() - batches.get(0).enqueuedAt);
+        for (Batch batch : batches) {
+            if (batch.lsn >= 0) {
+                walPending.remove(batch.lsn);
+            }
+        }
+    }
+
+    private void failed(Batch batch, Exception e) {
+        failedEntities.add(batch.entities.size());
+        if (batch.lsn >= 0) {
+            logger.warn("Save {} metrics error, replay them from the wal later", batch.entities.size(), e);
+            defer(batch);
+        } else if (spillStore != null) {
+            logger.warn("Save {} metrics error, spill them to disk", batch.entities.size(), e);
+            spill(batch.entities);
+        } else {
+            logger.error("Save {} metrics error", batch.entities.size(), e);
+        }
+    }
+
+    /**
+     * Replay one spill file once the queue has drained, a single writer replays at a time.
+     */
+    private void replay() {
+        if (spillStore.getBytes() == 0 || !replaying.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            // a file partly replayed before a crash is replayed again from its first line
+            int replayed = spillStore.replayOldest(entities -> {
+                metricStore.saveAllIfAbsent(entities);
+                topResourceTracker.record(entities);
+                fleetAggregator.record(entities);
+            });
+            if (replayed > 0) {
+                replayedEntities.add(replayed);
+                logger.info("Replayed {} spilled metrics", replayed);
+            }
+        } catch (Exception e) {
+            logger.warn("Replay spilled metrics error, retry later", e);
+        } finally {
+            replaying.set(false);
+        }
+    }
+
+    /**
+     * Replay the deferred batches of the wal in order, stop at the first failure and retry on the
+     * next idle round. A single writer replays at a time.
+     */
+    private void replayWal() {
+        if (walDeferred.isEmpty() || !walReplaying.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            Long lsn;
+            int replayed = 0;
+            while (running && queue.isEmpty() && (lsn = walDeferred.peek()) != null) {
+                List<MetricEntity> entities = wal.read(lsn);
+                metricStore.saveAllIfAbsent(entities);
+                topResourceTracker.record(entities);
+                fleetAggregator.record(entities);
+                walDeferred.poll();
+                walPending.remove(lsn);
+                replayed += entities.size();
+            }
+            if (replayed > 0) {
+                replayedEntities.add(replayed);
+                logger.info("Replayed {} metrics from the wal", replayed);
+            }
+        } catch (Exception e) {
+            logger.warn("Replay metrics from the wal error, retry later", e);
+        } finally {
+            walReplaying.set(false);
+        }
+    }
+
+    private boolean spill(List<MetricEntity> entities) {
+        try {
+            if (spillStore.append(entities)) {
+                spilledEntities.add(entities.size());
+                return true;
+            }
+            drop(entities, "spill store full");
+        } catch (Exception e) {
+            logger.error("Spill metrics error", e);
+            droppedEntities.add(entities.size());
+        }
+        return false;
+    }
+
+    private void drop(List<MetricEntity> entities, String reason) {
+        droppedEntities.add(entities.size());
+        logger.warn("Dropped {} metrics of {}: {}", entities.size(), entities.get(0).getApp(), reason);
+    }
+
+    private static final class Batch {
+        final List<MetricEntity> entities;
+        /**
+         * LSN in the wal, -1 if not logged
+         */
+        final long lsn;
+        final long enqueuedAt = System.currentTimeMillis();
+
+        Batch(List<MetricEntity> entities, long lsn) {
+            this.entities = entities;
+            this.lsn = lsn;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.metric;
+
+/**
+ * Mutable view of one decoded metric line. The same instance is reused by
+ * {@link MetricLineParser} for every line, so handlers must copy what they need
+ * before returning.
+ *
+ * @author agent
+ */
+public final class MetricLine {
+
+    long timestamp;
+    String resource;
+    long passQps;
+    long blockQps;
+    long successQps;
+    long exceptionQps;
+    long rt;
+    long occupiedPassQps;
+    int concurrency;
+    int classification;
+
+    void reset() {
+        timestamp = 0;
+        resource = null;
+        passQps = 0;
+        blockQps = 0;
+        successQps = 0;
+        exceptionQps = 0;
+        rt = 0;
+        occupiedPassQps = 0;
+        concurrency = 0;
+        classification = 0;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return interned resource name, identical instances are returned for identical names
+     */
+    public String getResource() {
+        return resource;
+    }
+
+    public long getPassQps() {
+        return passQps;
+    }
+
+    public long getBlockQps() {
+        return blockQps;
+    }
+
+    public long getSuccessQps() {
+        return successQps;
+    }
+
+    public long getExceptionQps() {
+        return exceptionQps;
+    }
+
+    /**
+     * @return average rt of {@code successQps}
+     */
+    public long getRt() {
+        return rt;
+    }
+
+    public long getOccupiedPassQps() {
+        return occupiedPassQps;
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    public int getClassification() {
+        return classification;
+    }
+
+    @Override
+    public String toString() {
+        return timestamp + "|" + resource + "|" + passQps + "|" + blockQps + "|" + successQps + "|"
+                + exceptionQps + "|" + rt + "|" + occupiedPassQps + "|" + concurrency + "|" + classification;
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.metric;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Streaming decoder of the thin metric format produced by {@code MetricNode.toThinString()}:
+ * <pre>
+ * timestamp|resource|passQps|blockQps|successQps|exceptionQps|rt[|occupiedPassQps[|concurrency[|classification]]]
+ * </pre>
+ * Bytes are read straight from the response stream and numbers are decoded in place, so no
+ * line or field {@link String} is created. Resource names are resolved by a shared
+ * {@link ResourceNameInterner}.
+ * <p>
+ * An instance is not thread safe and is meant to be used for a single stream.
+ *
+ * @author agent
+ */
+public class MetricLineParser {
+
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int INITIAL_LINE_SIZE = 256;
+    private static final int MIN_FIELDS = 7;
+    private static final int MAX_FIELDS = 10;
+
+    private final ResourceNameInterner interner;
+    private final Charset charset;
+    private final MetricLine line = new MetricLine();
+    private final int[] fieldStart = new int[MAX_FIELDS];
+    private final int[] fieldEnd = new int[MAX_FIELDS];
+
+    private byte[] lineBuf = new byte[INITIAL_LINE_SIZE];
+    private long bytesRead;
+    private int lines;
+    private int malformedLines;
+    private String firstMalformedLine;
+
+    public MetricLineParser(ResourceNameInterner interner, Charset charset) {
+        this.interner = interner;
+        this.charset = charset;
+    }
+
+    /**
+     * Decode all lines of the stream, the stream is not closed.
+     *
+     * @return count of lines passed to the handler
+     */
+    public int parse(InputStream in, MetricLineHandler handler) throws IOException {
+        byte[] chunk = new byte[READ_BUFFER_SIZE];
+        int len = 0;
+        int n;
+        while ((n = in.read(chunk)) != -1) {
+            bytesRead += n;
+            for (int i = 0; i < n; i++) {
+                byte b = chunk[i];
+                if (b == '\n') {
+                    parseLine(len, handler);
+                    len = 0;
+                } else {
+                    if (len == lineBuf.length) {
+                        byte[] grown = new byte[len << 1];
+                        System.arraycopy(lineBuf, 0, grown, 0, len);
+                        lineBuf = grown;
+                    }
+                    lineBuf[len++] = b;
+                }
+            }
+        }
+        if (len > 0) {
+            parseLine(len, handler);
+        }
+        return lines;
+    }
+
+    private void parseLine(int len, MetricLineHandler handler) {
+        if (len > 0 && lineBuf[len - 1] == '\r') {
+            len--;
+        }
+        if (len == 0) {
+            return;
+        }
+        if (!decode(len)) {
+            if (malformedLines++ == 0) {
+                firstMalformedLine = new String(lineBuf, 0, len, charset);
+            }
+            return;
+        }
+        lines++;
+        handler.handle(line);
+    }
+
+    private boolean decode(int len) {
+        int fields = 0;
+        int start = 0;
+        for (int i = 0; i <= len; i++) {
+            if (i == len || lineBuf[i] == '|') {
+                if (fields == MAX_FIELDS) {
+                    return false;
+                }
+                fieldStart[fields] = start;
+                fieldEnd[fields] = i;
+                fields++;
+                start = i + 1;
+            }
+        }
+        if (fields < MIN_FIELDS) {
+            return false;
+        }
+        line.reset();
+        try {
+            line.timestamp = parseLong(0);
+            line.passQps = parseLong(2);
+            line.blockQps = parseLong(3);
+            line.successQps = parseLong(4);
+            line.exceptionQps = parseLong(5);
+            line.rt = parseLong(6);
+            if (fields > 7) {
+                line.occupiedPassQps = parseLong(7);
+            }
+            if (fields > 8) {
+                line.concurrency = (int) parseLong(8);
+            }
+            if (fields > 9) {
+                line.classification = (int) parseLong(9);
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        int resourceLen = fieldEnd[1] - fieldStart[1];
+        if (resourceLen == 0) {
+            return false;
+        }
+        line.resource = interner.intern(lineBuf, fieldStart[1], resourceLen, charset);
+        return true;
+    }
+
+    private long parseLong(int field) {
+        int i = fieldStart[field];
+        int end = fieldEnd[field];
+        if (i == end) {
+            throw new NumberFormatException();
+        }
+        boolean negative = lineBuf[i] == '-';
+        if (negative && ++i == end) {
+            throw new NumberFormatException();
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = lineBuf[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException();
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    public int getLines() {
+        return lines;
+    }
+
+    public int getMalformedLines() {
+        return malformedLines;
+    }
+
+    /**
+     * @return the first line that could not be decoded, {@code null} if all lines were valid
+     */
+    public String getFirstMalformedLine() {
+        return firstMalformedLine;
+    }
+}
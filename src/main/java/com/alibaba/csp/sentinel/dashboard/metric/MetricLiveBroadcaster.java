@@ -0,0 +1,461 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.metric;
+
+import com.alibaba.csp.sentinel.concurrent.NamedThreadFactory;
+import com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntity;
+import com.alibaba.csp.sentinel.dashboard.domain.vo.MetricSeries;
+import com.alibaba.fastjson.JSON;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.redisson.api.RScoredSortedSet;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+/**
+ * Pushes the metrics just saved to the dashboards watching their app, as Server-Sent Events, so an
+ * open monitoring page no longer re-reads its whole window from the repository every few seconds.
+ * <p>
+ * A subscriber watches an app, optionally some of its resources, and receives a {@code metric} event
+ * per saved batch holding the new rows of the watched resources, in the shape of the {@code metric}
+ * field of {@code queryTopResourceMetric}: {@code {"resource": [{"timestamp":..., ...}], ...}}.
+ * A single thread serializes the rows of an app once and fans them out to all its subscribers.
+ * <p>
+ * The metrics of an app are saved by the node fetching it, with the relay enabled every node also
+ * publishes them to the Redis topic of the app, which the nodes with subscribers of the app listen to.
+ * The nodes with subscribers of an app keep their id in the Redis sorted set
+ * {@code sentinel:metric:live:nodes:<app>}, scored by the time of their last heartbeat, and an app
+ * is only published while another node is found there, so the batches of the apps nobody watches
+ * are never serialized nor sent.
+ *
+ * @author agent
+ */
+@Component
+public class MetricLiveBroadcaster {
+
+    private static final Logger logger = LoggerFactory.getLogger(MetricLiveBroadcaster.class);
+
+    private static final String TOPIC_PREFIX = "sentinel:metric:live:";
+    private static final String EVENT_NAME = "metric";
+    private static final long HEARTBEAT_INTERVAL_SECONDS = 15;
+    private static final String NODES_PREFIX = "sentinel:metric:live:nodes:";
+    /**
+     * A node not refreshing its entry of an app for this long has no subscriber of it left.
+     */
+    private static final long SUBSCRIPTION_TTL_MS = HEARTBEAT_INTERVAL_SECONDS * 3 * 1000;
+    /**
+     * The nodes subscribed to an app are read again after this long, a new one misses the
+     * metrics of the other nodes for at most as long.
+     */
+    private static final long SUBSCRIPTION_CHECK_MS = 1000 * 5;
+    /**
+     * Batches waiting for the broadcast thread, more are dropped rather than holding the writers back.
+     */
+    private static final int MAX_PENDING_BATCHES = 256;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Value("${sentinel.dashboard.metric.live.enabled:true}")
+    private boolean enabled;
+
+    @Value("${sentinel.dashboard.metric.live.relay.enabled:true}")
+    private boolean relayEnabled;
+
+    @Value("${sentinel.dashboard.metric.live.timeout-ms:1800000}")
+    private long timeoutMs;
+
+    @Value("${sentinel.dashboard.metric.live.max-subscribers:1000}")
+    private int maxSubscribers;
+
+    @Autowired(required = false)
+    private RedissonClient redissonClient;
+
+    @Autowired
+    private MetricFetchStats fetchStats;
+
+    /**
+     * Tells the messages of this node apart on the relay.
+     */
+    private final String nodeId = UUID.randomUUID().toString();
+    private final Map<String, Set<Subscriber>> subscribers = new ConcurrentHashMap<>();
+    /**
+     * app -> id of the relay listener of the app, while it has subscribers on this node
+     */
+    private final Map<String, Integer> relayListeners = new HashMap<>();
+    /**
+     * app -> whether another node has subscribers of it, read by the broadcast thread only
+     */
+    private final Map<String, RemoteSubscription> remoteSubscriptions = new HashMap<>();
+    private final AtomicInteger subscriberCount = new AtomicInteger();
+    private final AtomicInteger pendingBatches = new AtomicInteger();
+    private ScheduledExecutorService broadcastService;
+
+    private final LongAdder sentEvents = new LongAdder();
+    private final LongAdder droppedBatches = new LongAdder();
+    private final LongAdder relayedBatches = new LongAdder();
+
+    @PostConstruct
+    public void start() {
+        if (redissonClient == null) {
+            relayEnabled = false;
+        }
+        broadcastService = Executors.newSingleThreadScheduledExecutor(
+                new NamedThreadFactory("sentinel-dashboard-metrics-live", true));
+        broadcastService.scheduleWithFixedDelay(this::heartbeat, HEARTBEAT_INTERVAL_SECONDS,
+                HEARTBEAT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        fetchStats.register("live.subscribers", subscriberCount::get);
+        fetchStats.register("live.events.sent", sentEvents::sum);
+        fetchStats.register("live.batches.dropped", droppedBatches::sum);
+        fetchStats.register("live.batches.relayed", relayedBatches::sum);
+        logger.info("Live metrics enabled={}, relay={}", enabled, relayEnabled);
+    }
+
+    @PreDestroy
+    public void stop() {
+        broadcastService.shutdownNow();
+        for (Set<Subscriber> set : subscribers.values()) {
+            for (Subscriber subscriber : set) {
+                subscriber.emitter.complete();
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param resources resources to receive, {@code null} or empty for all the resources of the app
+     * @return emitter of the events, {@code null} if this node serves too many subscribers already
+     */
+    public SseEmitter subscribe(String app, Set<String> resources) {
+        if (subscriberCount.incrementAndGet() > maxSubscribers) {
+            subscriberCount.decrementAndGet();
+            return null;
+        }
+        SseEmitter emitter = new SseEmitter(timeoutMs);
+        Subscriber subscriber = new Subscriber(app, resources == null || resources.isEmpty() ? null : resources,
+                emitter);
+        emitter.onCompletion(() -> unsubscribe(subscriber));
+        emitter.onTimeout(() -> unsubscribe(subscriber));
+        emitter.onError(e -> unsubscribe(subscriber));
+        synchronized (relayListeners) {
+            subscribers.computeIfAbsent(app, k -> ConcurrentHashMap.newKeySet()).add(subscriber);
+            if (relayEnabled && !relayListeners.containsKey(app)) {
+                listenRelay(app);
+                announce(app, System.currentTimeMillis());
+            }
+        }
+        return emitter;
+    }
+
+    private void unsubscribe(Subscriber subscriber) {
+        synchronized (relayListeners) {
+            Set<Subscriber> set = subscribers.get(subscriber.app);
+            if (set == null || !set.remove(subscriber)) {
+                return;
+            }
+            subscriberCount.decrementAndGet();
+            if (set.isEmpty()) {
+                subscribers.remove(subscriber.app);
+                Integer listenerId = relayListeners.remove(subscriber.app);
+                if (listenerId != null) {
+                    try {
+                        redissonClient.getTopic(TOPIC_PREFIX + subscriber.app).removeListener(listenerId);
+                        nodesOf(subscriber.app).remove(nodeId);
+                    } catch (Exception e) {
+                        logger.warn("Stop listening to live metrics of {} error", subscriber.app, e);
+                    }
+                }
+            }
+        }
+    }
+
+    private void listenRelay(String app) {
+        try {
+            int listenerId = redissonClient.getTopic(TOPIC_PREFIX + app).addListener(String.class,
+                    (channel, message) -> receiveRelay(app, message));
+            relayListeners.put(app, listenerId);
+        } catch (Exception e) {
+            // the subscribers still receive the metrics saved by this node
+            logger.warn("Listen to live metrics of {} error", app, e);
+        }
+    }
+
+    private RScoredSortedSet<String> nodesOf(String app) {
+        return redissonClient.getScoredSortedSet(NODES_PREFIX + app, StringCodec.INSTANCE);
+    }
+
+    /**
+     * Tell the nodes saving the metrics of the app this node has subscribers of it.
+     */
+    private void announce(String app, long now) {
+        try {
+            RScoredSortedSet<String> nodes = nodesOf(app);
+            nodes.add(now, nodeId);
+            nodes.expire(SUBSCRIPTION_TTL_MS, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            logger.warn("Announce live subscribers of {} error", app, e);
+        }
+    }
+
+    /**
+     * @return whether another node had subscribers of the app lately
+     */
+    private boolean subscribedElsewhere(String app, long now) {
+        RemoteSubscription subscription = remoteSubscriptions.get(app);
+        if (subscription == null || now - subscription.checkedAt >= SUBSCRIPTION_CHECK_MS) {
+            boolean subscribed;
+            try {
+                subscribed = nodesOf(app).valueRange(now - SUBSCRIPTION_TTL_MS, true, Double.POSITIVE_INFINITY, true)
+                        .stream().anyMatch(node -> !nodeId.equals(node));
+            } catch (Exception e) {
+                // relayed rather than lost
+                logger.warn("Read live subscribers of {} error", app, e);
+                subscribed = true;
+            }
+            subscription = new RemoteSubscription(subscribed, now);
+            remoteSubscriptions.put(app, subscription);
+        }
+        return subscription.subscribed;
+    }
+
+    /**
+     * Broadcast the metrics just saved, never blocks.
+     */
+    public void publish(Collection<MetricEntity> metrics) {
+        if (!enabled || metrics.isEmpty() || (!relayEnabled && subscribers.isEmpty())) {
+            return;
+        }
+        if (pendingBatches.incrementAndGet() > MAX_PENDING_BATCHES) {
+            pendingBatches.decrementAndGet();
+            droppedBatches.increment();
+            return;
+        }
+        List<MetricEntity> batch = new ArrayList<>(metrics);
+        broadcastService.execute(() -> {
+            pendingBatches.decrementAndGet();
+            try {
+                broadcast(batch, System.currentTimeMillis());
+            } catch (Exception e) {
+                logger.warn("Broadcast live metrics error", e);
+            }
+        });
+    }
+
+    void broadcast(List<MetricEntity> metrics, long now) {
+        Map<String, List<MetricEntity>> byApp = metrics.stream().collect(Collectors.groupingBy(MetricEntity::getApp));
+        for (Map.Entry<String, List<MetricEntity>> e : byApp.entrySet()) {
+            String app = e.getKey();
+            boolean local = subscribers.containsKey(app);
+            boolean remote = relayEnabled && subscribedElsewhere(app, now);
+            if (!local && !remote) {
+                continue;
+            }
+            Map<String, String> series = seriesOf(e.getValue());
+            if (local) {
+                deliver(app, series);
+            }
+            if (remote) {
+                relay(app, series);
+            }
+        }
+    }
+
+    /**
+     * @return resource -> JSON array of its metrics
+     */
+    static Map<String, String> seriesOf(List<MetricEntity> metrics) {
+        Map<String, List<MetricEntity>> byResource = metrics.stream().collect(
+                Collectors.groupingBy(MetricEntity::getResource, LinkedHashMap::new, Collectors.toList()));
+        Map<String, String> series = new LinkedHashMap<>();
+        for (Map.Entry<String, List<MetricEntity>> e : byResource.entrySet()) {
+            try {
+                series.put(e.getKey(), MAPPER.writeValueAsString(MetricSeries.of(e.getValue())));
+            } catch (Exception ex) {
+                logger.warn("Serialize live metrics of {} error", e.getKey(), ex);
+            }
+        }
+        return series;
+    }
+
+    private void relay(String app, Map<String, String> series) {
+        RelayMessage message = new RelayMessage();
+        message.setNode(nodeId);
+        message.setSeries(series);
+        try {
+            redissonClient.getTopic(TOPIC_PREFIX + app).publish(JSON.toJSONString(message));
+            relayedBatches.increment();
+        } catch (Exception e) {
+            logger.warn("Relay live metrics of {} error", app, e);
+        }
+    }
+
+    private void receiveRelay(String app, String json) {
+        RelayMessage message = JSON.parseObject(json, RelayMessage.class);
+        if (message == null || nodeId.equals(message.getNode()) || message.getSeries() == null) {
+            return;
+        }
+        broadcastService.execute(() -> deliver(app, message.getSeries()));
+    }
+
+    private void deliver(String app, Map<String, String> series) {
+        Set<Subscriber> set = subscribers.get(app);
+        if (set == null || series.isEmpty()) {
+            return;
+        }
+        String all = null;
+        for (Subscriber subscriber : set) {
+            String event;
+            if (subscriber.resources == null) {
+                if (all == null) {
+                    all = eventOf(series, null);
+                }
+                event = all;
+            } else {
+                event = eventOf(series, subscriber.resources);
+            }
+            if (event != null) {
+                send(subscriber, SseEmitter.event().name(EVENT_NAME).data(event, MediaType.APPLICATION_JSON));
+            }
+        }
+    }
+
+    /**
+     * @return JSON object of the series of the resources, {@code null} if none of them is there
+     */
+    static String eventOf(Map<String, String> series, Set<String> resources) {
+        StringBuilder sb = new StringBuilder("{");
+        for (Map.Entry<String, String> e : series.entrySet()) {
+            if (resources != null && !resources.contains(e.getKey())) {
+                continue;
+            }
+            if (sb.length() > 1) {
+                sb.append(',');
+            }
+            sb.append(JSON.toJSONString(e.getKey())).append(':').append(e.getValue());
+        }
+        return sb.length() == 1 ? null : sb.append('}').toString();
+    }
+
+    /**
+     * Comment lines keep the connections through proxies and find the clients gone, the entries
+     * of the apps subscribed here are refreshed.
+     */
+    private void heartbeat() {
+        for (Set<Subscriber> set : subscribers.values()) {
+            for (Subscriber subscriber : set) {
+                send(subscriber, SseEmitter.event().comment("heartbeat"));
+            }
+        }
+        if (relayEnabled) {
+            long now = System.currentTimeMillis();
+            for (String app : subscribers.keySet()) {
+                announce(app, now);
+            }
+            remoteSubscriptions.values().removeIf(s -> now - s.checkedAt >= SUBSCRIPTION_CHECK_MS);
+        }
+    }
+
+    private void send(Subscriber subscriber, SseEmitter.SseEventBuilder event) {
+        try {
+            subscriber.emitter.send(event);
+            sentEvents.increment();
+        } catch (Exception e) {
+            // the client has gone
+            unsubscribe(subscriber);
+            subscriber.emitter.completeWithError(e);
+        }
+    }
+
+    private static final class RemoteSubscription {
+        final boolean subscribed;
+        final long checkedAt;
+
+        RemoteSubscription(boolean subscribed, long checkedAt) {
+            this.subscribed = subscribed;
+            this.checkedAt = checkedAt;
+        }
+    }
+
+    private static final class Subscriber {
+        final String app;
+        /**
+         * {@code null} for all resources
+         */
+        final Set<String> resources;
+        final SseEmitter emitter;
+
+        Subscriber(String app, Set<String> resources, SseEmitter emitter) {
+            this.app = app;
+            this.resources = resources;
+            this.emitter = emitter;
+        }
+    }
+
+    /**
+     * Metrics of an app published to the other nodes.
+     */
+    public static class RelayMessage {
+        private String node;
+        /**
+         * resource -> JSON array of its metrics
+         */
+        private Map<String, String> series;
+
+        public String getNode() {
+            return node;
+        }
+
+        public void setNode(String node) {
+            this.node = node;
+        }
+
+        public Map<String, String> getSeries() {
+            return series;
+        }
+
+        public void setSeries(Map<String, String> series) {
+            this.series = series;
+        }
+    }
+}
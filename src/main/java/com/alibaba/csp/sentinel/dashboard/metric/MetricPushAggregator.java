@@ -0,0 +1,302 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.metric;
+
+import com.alibaba.csp.sentinel.concurrent.NamedThreadFactory;
+import com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntity;
+import com.alibaba.csp.sentinel.dashboard.discovery.AppInfo;
+import com.alibaba.csp.sentinel.dashboard.discovery.MachineDiscovery;
+import com.alibaba.csp.sentinel.dashboard.discovery.MachineInfo;
+import com.alibaba.csp.sentinel.util.StringUtil;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+/**
+ * Aggregates the metric batches pushed by the machines of the apps in push mode, which are no
+ * longer pulled by {@link MetricFetcher}.
+ * <p>
+ * A batch is made of the thin metric lines served by {@code sentinel/metric}, optionally gzip or
+ * deflate compressed. Lines are added to the {@link MetricAggregationBuffer} of the app as they are
+ * decoded, and every machine moves its cursor of the app's {@link AppFetchState} up to the end of
+ * its batch. A timer writes the seconds every pushing machine has passed, or older than the max
+ * delay, so the batches of one second from all machines of an app end up in a single row per resource.
+ * <p>
+ * Batches are aggregated by the dashboard node receiving them, the pushes of an app should thus be
+ * routed to a single node, e.g. by hashing the {@code app} parameter at the load balancer.
+ *
+ * @author agent
+ */
+@Component
+public class MetricPushAggregator {
+
+    private static final Logger logger = LoggerFactory.getLogger(MetricPushAggregator.class);
+
+    public enum Mode {
+        PULL, PUSH
+    }
+
+    /**
+     * Seconds an app accepts ahead of its flushed watermark.
+     */
+    private static final long WINDOW_SECONDS = 120;
+    private static final long FLUSH_INTERVAL_MS = 1000;
+    /**
+     * The state of an app that stopped pushing is dropped after this.
+     */
+    private static final long IDLE_STATE_TTL_MS = 1000 * 60 * 10;
+    private static final int MAX_INTERNED_RESOURCES = 1 << 16;
+
+    @Value("${sentinel.dashboard.metric.ingest.mode:PULL}")
+    private Mode defaultMode;
+
+    @Value("#{'${sentinel.dashboard.metric.ingest.push-apps:}'.split(',')}")
+    private List<String> pushApps;
+
+    @Value("#{'${sentinel.dashboard.metric.ingest.pull-apps:}'.split(',')}")
+    private List<String> pullApps;
+
+    @Value("${sentinel.dashboard.metric.ingest.push.max-delay-ms:10000}")
+    private long maxDelayMs;
+
+    @Autowired
+    private MetricIngestionQueue ingestionQueue;
+
+    @Autowired
+    private MachineDiscovery machineDiscovery;
+
+    @Autowired
+    private MetricFetchStats fetchStats;
+
+    private final Set<String> pushAppSet = new HashSet<>();
+    private final Set<String> pullAppSet = new HashSet<>();
+    private final Map<String, PushState> states = new ConcurrentHashMap<>();
+    private final ResourceNameInterner resourceNameInterner = new ResourceNameInterner(MAX_INTERNED_RESOURCES);
+    private ScheduledExecutorService flushService;
+
+    private final LongAdder pushes = new LongAdder();
+    private final LongAdder pushedLines = new LongAdder();
+    private final LongAdder malformedLines = new LongAdder();
+    private final LongAdder lateLines = new LongAdder();
+
+    @PostConstruct
+    public void start() {
+        addApps(pushApps, pushAppSet);
+        addApps(pullApps, pullAppSet);
+        flushService = Executors.newSingleThreadScheduledExecutor(
+                new NamedThreadFactory("sentinel-dashboard-metrics-push-flush", true));
+        flushService.scheduleWithFixedDelay(() -> {
+            try {
+                flushAll(System.currentTimeMillis());
+            } catch (Exception e) {
+                logger.warn("Flush pushed metrics error", e);
+            }
+        }, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        fetchStats.register("push.requests", pushes::sum);
+        fetchStats.register("push.lines", pushedLines::sum);
+        fetchStats.register("push.lines.malformed", malformedLines::sum);
+        fetchStats.register("push.lines.late", lateLines::sum);
+        fetchStats.register("push.apps", states::size);
+        logger.info("Metric ingest mode: default={}, push apps={}, pull apps={}", defaultMode, pushAppSet, pullAppSet);
+    }
+
+    private static void addApps(List<String> apps, Set<String> set) {
+        if (apps == null) {
+            return;
+        }
+        for (String app : apps) {
+            if (StringUtil.isNotBlank(app)) {
+                set.add(app.trim());
+            }
+        }
+    }
+
+    /**
+     * Write what has been pushed so far, machines still lagging behind give up their late seconds.
+     */
+    @PreDestroy
+    public void stop() {
+        flushService.shutdown();
+        for (PushState state : states.values()) {
+            flush(state, state.fetchState.maxCursor(), System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * @return true if the metrics of the app are pushed by its machines instead of being pulled
+     */
+    public boolean isPush(String app) {
+        if (pushAppSet.contains(app)) {
+            return true;
+        }
+        if (pullAppSet.contains(app)) {
+            return false;
+        }
+        return defaultMode == Mode.PUSH;
+    }
+
+    /**
+     * Aggregate a batch pushed by a machine of the app.
+     *
+     * @param machine         ip:port of the machine
+     * @param body            thin metric lines, read in memory so the aggregation never waits on the network
+     * @param contentEncoding {@code Content-Encoding} of the body, {@code null} if not compressed
+     * @param endTime         every second up to this is in the batch, {@code null} for the last line of the batch
+     * @return count of lines aggregated
+     */
+    public int receive(String app, String machine, byte[] body, String contentEncoding, Charset charset,
+                       Long endTime) throws IOException {
+        long now = System.currentTimeMillis();
+        PushState state = states.get(app);
+        if (state == null) {
+            state = states.computeIfAbsent(app, a -> new PushState(a, (now - maxDelayMs) / 1000 * 1000 - 1000));
+        }
+        state.lastPush = now;
+        MetricLineParser parser = new MetricLineParser(resourceNameInterner, charset);
+        AtomicLong latest = new AtomicLong();
+        state.lock.readLock().lock();
+        try (InputStream in = MetricContentDecoder.decode(new ByteArrayInputStream(body), contentEncoding)) {
+            MetricAggregationBuffer buffer = state.buffer;
+            parser.parse(in, line -> {
+                if (latest.get() < line.getTimestamp()) {
+                    latest.set(line.getTimestamp());
+                }
+                if (!MetricFetcher.shouldFilterOut(line.getResource())) {
+                    buffer.add(line);
+                }
+            });
+            long cursor = endTime != null ? endTime : latest.get();
+            if (cursor > 0) {
+                state.fetchState.advance(machine, Math.min(cursor, now) / 1000 * 1000);
+            }
+        } finally {
+            state.lock.readLock().unlock();
+        }
+        pushes.increment();
+        pushedLines.add(parser.getLines());
+        if (parser.getMalformedLines() > 0) {
+            malformedLines.add(parser.getMalformedLines());
+            logger.warn("Pushed metric line exception, app: {}, machine: {}, malformed lines: {}, first: {}",
+                    app, machine, parser.getMalformedLines(), parser.getFirstMalformedLine());
+        }
+        return parser.getLines();
+    }
+
+    void flushAll(long now) {
+        for (PushState state : states.values()) {
+            if (now - state.lastPush > IDLE_STATE_TTL_MS && state.fetchState.getPending().isEmpty()) {
+                states.remove(state.fetchState.getApp());
+                continue;
+            }
+            AppInfo appInfo = machineDiscovery.getDetailApp(state.fetchState.getApp());
+            if (appInfo != null) {
+                // machines gone no longer hold the watermark back
+                Set<String> live = new HashSet<>();
+                for (MachineInfo machine : appInfo.getMachines()) {
+                    if (!machine.isDead()) {
+                        live.add(machine.toHostPort());
+                    }
+                }
+                state.fetchState.retainMachines(live);
+            }
+            long watermark = state.fetchState.watermark();
+            if (watermark == Long.MAX_VALUE) {
+                watermark = state.fetchState.maxCursor();
+            }
+            flush(state, Math.max(watermark, (now - maxDelayMs) / 1000 * 1000 - 1000), now);
+        }
+    }
+
+    private void flush(PushState state, long flushTo, long now) {
+        if (flushTo <= state.fetchState.getFlushed()) {
+            return;
+        }
+        List<MetricEntity> ready;
+        state.lock.writeLock().lock();
+        try {
+            MetricAggregationBuffer old = state.buffer;
+            ready = state.fetchState.flush(old.toEntities(), flushTo);
+            state.buffer = state.newBuffer();
+            lateLines.add(old.getOutOfWindowCount());
+        } finally {
+            state.lock.writeLock().unlock();
+        }
+        if (ready.isEmpty()) {
+            return;
+        }
+        Date date = new Date(now);
+        for (MetricEntity entity : ready) {
+            entity.setGmtCreate(date);
+            entity.setGmtModified(date);
+        }
+        ingestionQueue.submit(ready);
+    }
+
+    /**
+     * Aggregation of an app in push mode. Pushes add to the buffer under the read lock, the flush
+     * swaps it under the write lock.
+     */
+    private static final class PushState {
+        final AppFetchState fetchState;
+        final ReadWriteLock lock = new ReentrantReadWriteLock();
+        volatile MetricAggregationBuffer buffer;
+        volatile long lastPush;
+
+        PushState(String app, long flushed) {
+            this.fetchState = new AppFetchState(app, flushed);
+            this.buffer = newBuffer();
+        }
+
+        /**
+         * @return a buffer from the flushed watermark, holding the pending aggregates
+         */
+        MetricAggregationBuffer newBuffer() {
+            long flushed = fetchState.getFlushed();
+            MetricAggregationBuffer buffer = new MetricAggregationBuffer(fetchState.getApp(), flushed + 1000,
+                    flushed + WINDOW_SECONDS * 1000);
+            for (MetricEntity entity : fetchState.getPending()) {
+                buffer.add(entity.getResource(), entity.getTimestamp().getTime(), entity.getPassQps(),
+                        entity.getBlockQps(), entity.getSuccessQps(), entity.getExceptionQps(),
+                        (long) entity.getRt(), entity.getCount());
+            }
+            return buffer;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.metric;
+
+import com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntity;
+import com.alibaba.fastjson.JSON;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Local disk overflow of the ingestion queue. Every batch is appended as one JSON line to the
+ * current {@code spill-<millis>.log} file. Replay rolls the current file and hands the batches
+ * of the oldest file to a writer, a file is deleted once all its batches have been written.
+ *
+ * @author agent
+ */
+public class MetricSpillStore {
+
+    private static final String PREFIX = "spill-";
+    private static final String SUFFIX = ".log";
+    private static final byte[] NEW_LINE = "\n".getBytes(StandardCharsets.UTF_8);
+
+    private final File dir;
+    private final long maxBytes;
+    private OutputStream out;
+    private long lastFileTime;
+    private long bytes;
+
+    public MetricSpillStore(File dir, long maxBytes) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create spill dir " + dir);
+        }
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        for (File file : listFiles()) {
+            bytes += file.length();
+        }
+    }
+
+    /**
+     * @return false if the store is full
+     */
+    public synchronized boolean append(List<MetricEntity> entities) throws IOException {
+        byte[] line = JSON.toJSONString(entities).getBytes(StandardCharsets.UTF_8);
+        if (bytes + line.length + 1 > maxBytes) {
+            return false;
+        }
+        if (out == null) {
+            // never reopen a file rolled for replay within the same millisecond
+            lastFileTime = Math.max(System.currentTimeMillis(), lastFileTime + 1);
+            out = new FileOutputStream(new File(dir, PREFIX + lastFileTime + SUFFIX), true);
+        }
+        out.write(line);
+        out.write(NEW_LINE);
+        out.flush();
+        bytes += line.length + 1;
+        return true;
+    }
+
+    /**
+     * Hand the batches of the oldest spill file to the writer. If the writer throws, the batches
+     * not yet written are kept for the next replay.
+     *
+     * @return count of entities written, -1 if nothing to replay
+     */
+    public int replayOldest(Consumer<List<MetricEntity>> writer) throws IOException {
+        File file;
+        synchronized (this) {
+            roll();
+            File[] files = listFiles();
+            if (files.length == 0) {
+                return -1;
+            }
+            file = files[0];
+        }
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        int written = 0;
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i);
+            if (line.isEmpty()) {
+                continue;
+            }
+            List<MetricEntity> entities = JSON.parseArray(line, MetricEntity.class);
+            try {
+                writer.accept(entities);
+            } catch (RuntimeException e) {
+                long length = file.length();
+                Files.write(file.toPath(), lines.subList(i, lines.size()), StandardCharsets.UTF_8);
+                synchronized (this) {
+                    bytes -= length - file.length();
+                }
+                throw e;
+            }
+            written += entities.size();
+        }
+        synchronized (this) {
+            bytes -= file.length();
+        }
+        Files.delete(file.toPath());
+        return written;
+    }
+
+    private void roll() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    private File[] listFiles() {
+        File[] files = dir.listFiles((d, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files, (a, b) -> a.getName().compareTo(b.getName()));
+        return files;
+    }
+
+    /**
+     * @return bytes spilled and not replayed yet
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized void close() throws IOException {
+        roll();
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.metric;
+
+import com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntity;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of metric batches on local disk, made of fixed size memory-mapped segments.
+ * <p>
+ * A batch is addressed by its log sequence number (LSN), the offset of its record in the whole
+ * log. A record is {@code [int length][int crc32][payload]} and never spans two segments, a zero
+ * length marks the end of the data of a segment. The checkpoint is the LSN below which every batch
+ * is stored in the repository: it is persisted in the {@code checkpoint} file, segments entirely
+ * below it are deleted, and the records above it are returned by {@link #recover()} after a restart.
+ * A torn record at the end of the log (crash during an append) is detected by its checksum and
+ * overwritten by the next append.
+ *
+ * @author agent
+ */
+public class MetricWriteAheadLog implements Closeable {
+
+    private static final String SEGMENT_SUFFIX = ".wal";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final int HEADER_BYTES = 8;
+
+    private final File dir;
+    private final int segmentBytes;
+    private final long maxBytes;
+    /**
+     * base LSN -> segment
+     */
+    private final ConcurrentNavigableMap<Long, MappedByteBuffer> segments = new ConcurrentSkipListMap<>();
+    private final List<Long> recovered = new ArrayList<>();
+    private MappedByteBuffer active;
+    private long activeBase;
+    private volatile long end;
+    private volatile long checkpoint;
+
+    public MetricWriteAheadLog(File dir, int segmentBytes, long maxBytes) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create wal dir " + dir);
+        }
+        if (segmentBytes <= HEADER_BYTES) {
+            throw new IllegalArgumentException("segmentBytes too small: " + segmentBytes);
+        }
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.maxBytes = Math.max(maxBytes, segmentBytes);
+        open();
+    }
+
+    private void open() throws IOException {
+        File checkpointFile = new File(dir, CHECKPOINT_FILE);
+        if (checkpointFile.isFile()) {
+            checkpoint = Long.parseLong(new String(Files.readAllBytes(checkpointFile.toPath()),
+                    StandardCharsets.UTF_8).trim());
+        }
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                long base = Long.parseLong(file.getName().substring(0, file.getName().length() - SEGMENT_SUFFIX.length()));
+                if (base + segmentBytes <= checkpoint) {
+                    Files.delete(file.toPath());
+                } else {
+                    segments.put(base, map(file));
+                }
+            }
+        }
+        if (segments.isEmpty()) {
+            activeBase = checkpoint / segmentBytes * segmentBytes;
+            active = createSegment(activeBase);
+            active.position((int) (checkpoint - activeBase));
+            end = checkpoint;
+            return;
+        }
+        // scan the records above the checkpoint, the end of the last valid record is the end of the log
+        long position = Math.max(checkpoint, segments.firstKey());
+        for (Map.Entry<Long, MappedByteBuffer> e : segments.entrySet()) {
+            long base = e.getKey();
+            ByteBuffer buffer = e.getValue().duplicate();
+            int offset = (int) Math.max(0, position - base);
+            while (offset + HEADER_BYTES <= segmentBytes) {
+                int length = recordLength(buffer, offset);
+                if (length < 0) {
+                    break;
+                }
+                recovered.add(base + offset);
+                offset += HEADER_BYTES + length;
+            }
+            activeBase = base;
+            position = base + offset;
+        }
+        active = segments.get(activeBase);
+        active.position((int) (position - activeBase));
+        end = position;
+    }
+
+    /**
+     * @return length of the payload of the valid record at the offset, -1 if none
+     */
+    private int recordLength(ByteBuffer buffer, int offset) {
+        int length = buffer.getInt(offset);
+        if (length <= 0 || offset + HEADER_BYTES + length > segmentBytes) {
+            return -1;
+        }
+        int crc = buffer.getInt(offset + 4);
+        byte[] payload = new byte[length];
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(offset + HEADER_BYTES);
+        slice.get(payload);
+        return crc == crc(payload) ? length : -1;
+    }
+
+    /**
+     * @return LSN of the batch, -1 if the log is full
+     */
+    public synchronized long append(List<MetricEntity> entities) throws IOException {
+        byte[] payload = encode(entities);
+        int recordBytes = HEADER_BYTES + payload.length;
+        if (recordBytes > segmentBytes) {
+            throw new IOException("batch of " + entities.size() + " metrics exceeds the wal segment size");
+        }
+        if (active.position() + recordBytes > segmentBytes) {
+            if (activeBase + 2L * segmentBytes - segments.firstKey() > maxBytes) {
+                return -1;
+            }
+            if (active.position() + HEADER_BYTES <= segmentBytes) {
+                active.putInt(active.position(), 0);
+            }
+            active.force();
+            activeBase += segmentBytes;
+            active = createSegment(activeBase);
+        }
+        long lsn = activeBase + active.position();
+        // the length goes last, so a record is never seen before it is complete
+        int position = active.position();
+        active.putInt(position + 4, crc(payload));
+        ByteBuffer slice = active.duplicate();
+        slice.position(position + HEADER_BYTES);
+        slice.put(payload);
+        active.putInt(position, payload.length);
+        active.position(position + recordBytes);
+        end = lsn + recordBytes;
+        return lsn;
+    }
+
+    /**
+     * Read the batch of the record at the LSN.
+     */
+    public List<MetricEntity> read(long lsn) throws IOException {
+        Map.Entry<Long, MappedByteBuffer> e = segments.floorEntry(lsn);
+        if (e == null) {
+            throw new IOException("wal record " + lsn + " not found");
+        }
+        ByteBuffer buffer = e.getValue().duplicate();
+        int offset = (int) (lsn - e.getKey());
+        int length = recordLength(buffer, offset);
+        if (length < 0) {
+            throw new IOException("wal record " + lsn + " is corrupted");
+        }
+        byte[] payload = new byte[length];
+        buffer.position(offset + HEADER_BYTES);
+        buffer.get(payload);
+        return decode(payload);
+    }
+
+    /**
+     * @return LSNs of the records found above the checkpoint when the log was opened
+     */
+    public List<Long> recover() {
+        return Collections.unmodifiableList(recovered);
+    }
+
+    /**
+     * Persist the checkpoint and delete the segments entirely below it.
+     */
+    public void checkpoint(long lsn) throws IOException {
+        if (lsn <= checkpoint) {
+            return;
+        }
+        File tmp = new File(dir, CHECKPOINT_FILE + ".tmp");
+        Files.write(tmp.toPath(), String.valueOf(lsn).getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp.toPath(), new File(dir, CHECKPOINT_FILE).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        checkpoint = lsn;
+        synchronized (this) {
+            for (Long base : new ArrayList<>(segments.headMap(activeBase).keySet())) {
+                if (base + segmentBytes <= lsn) {
+                    segments.remove(base);
+                    Files.deleteIfExists(segmentFile(base).toPath());
+                }
+            }
+        }
+    }
+
+    /**
+     * Flush the active segment to the disk, the page cache already survives a crash of the process.
+     */
+    public synchronized void force() {
+        active.force();
+    }
+
+    public long getEnd() {
+        return end;
+    }
+
+    public long getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * @return bytes of the log not yet checkpointed
+     */
+    public long getPendingBytes() {
+        return end - checkpoint;
+    }
+
+    @Override
+    public synchronized void close() {
+        active.force();
+    }
+
+    private MappedByteBuffer createSegment(long base) throws IOException {
+        MappedByteBuffer buffer = map(segmentFile(base));
+        segments.put(base, buffer);
+        return buffer;
+    }
+
+    private MappedByteBuffer map(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            // the mapping stays valid once the channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        }
+    }
+
+    private File segmentFile(long base) {
+        return new File(dir, String.format("%020d", base) + SEGMENT_SUFFIX);
+    }
+
+    private static int crc(byte[] payload) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(payload, 0, payload.length);
+        return (int) crc32.getValue();
+    }
+
+    static byte[] encode(List<MetricEntity> entities) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(entities.size() * 96);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(entities.size());
+        for (MetricEntity entity : entities) {
+            out.writeUTF(entity.getApp());
+            out.writeUTF(entity.getResource());
+            out.writeLong(entity.getTimestamp().getTime());
+            out.writeLong(entity.getGmtCreate() == null ? 0 : entity.getGmtCreate().getTime());
+            out.writeLong(valueOf(entity.getPassQps()));
+            out.writeLong(valueOf(entity.getSuccessQps()));
+            out.writeLong(valueOf(entity.getBlockQps()));
+            out.writeLong(valueOf(entity.getExceptionQps()));
+            out.writeDouble(entity.getRt());
+            out.writeInt(entity.getCount());
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    static List<MetricEntity> decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        int size = in.readInt();
+        List<MetricEntity> entities = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            MetricEntity entity = new MetricEntity();
+            entity.setApp(in.readUTF());
+            entity.setResource(in.readUTF());
+            entity.setTimestamp(new Date(in.readLong()));
+            long gmtCreate = in.readLong();
+            if (gmtCreate > 0) {
+                entity.setGmtCreate(new Date(gmtCreate));
+                entity.setGmtModified(new Date(gmtCreate));
+            }
+            entity.setPassQps(in.readLong());
+            entity.setSuccessQps(in.readLong());
+            entity.setBlockQps(in.readLong());
+            entity.setExceptionQps(in.readLong());
+            entity.setRt(in.readDouble());
+            entity.setCount(in.readInt());
+            entities.add(entity);
+        }
+        return entities;
+    }
+
+    private static long valueOf(Long value) {
+        return value == null ? 0 : value;
+    }
+}
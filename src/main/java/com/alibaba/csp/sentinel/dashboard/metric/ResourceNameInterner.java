@@ -0,0 +1,132 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.metric;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Maps encoded resource names to canonical {@link String} instances without decoding
+ * the bytes again once a name has been seen. Lookups are lock-free, inserts are serialized.
+ * When {@code maxSize} names are held, new names are decoded but no longer retained.
+ *
+ * @author agent
+ */
+public class ResourceNameInterner {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final int maxSize;
+    private volatile AtomicReferenceArray<Entry> table = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+    private int size;
+
+    public ResourceNameInterner(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must > 0, but " + maxSize);
+        }
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Get the canonical name of {@code bytes[offset, offset + length)}.
+     */
+    public String intern(byte[] bytes, int offset, int length, Charset charset) {
+        int hash = hash(bytes, offset, length);
+        String name = find(table, bytes, offset, length, hash);
+        if (name != null) {
+            return name;
+        }
+        synchronized (this) {
+            AtomicReferenceArray<Entry> tab = table;
+            name = find(tab, bytes, offset, length, hash);
+            if (name != null) {
+                return name;
+            }
+            name = new String(bytes, offset, length, charset);
+            if (size >= maxSize) {
+                return name;
+            }
+            if (size >= tab.length() * 3 / 4) {
+                tab = resize(tab);
+            }
+            byte[] copy = new byte[length];
+            System.arraycopy(bytes, offset, copy, 0, length);
+            int idx = hash & (tab.length() - 1);
+            tab.set(idx, new Entry(copy, hash, name, tab.get(idx)));
+            size++;
+            return name;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private AtomicReferenceArray<Entry> resize(AtomicReferenceArray<Entry> old) {
+        AtomicReferenceArray<Entry> tab = new AtomicReferenceArray<>(old.length() << 1);
+        for (int i = 0; i < old.length(); i++) {
+            for (Entry e = old.get(i); e != null; e = e.next) {
+                int idx = e.hash & (tab.length() - 1);
+                tab.set(idx, new Entry(e.bytes, e.hash, e.name, tab.get(idx)));
+            }
+        }
+        table = tab;
+        return tab;
+    }
+
+    private static String find(AtomicReferenceArray<Entry> tab, byte[] bytes, int offset, int length, int hash) {
+        for (Entry e = tab.get(hash & (tab.length() - 1)); e != null; e = e.next) {
+            if (e.hash == hash && equals(e.bytes, bytes, offset, length)) {
+                return e.name;
+            }
+        }
+        return null;
+    }
+
+    private static boolean equals(byte[] a, byte[] b, int offset, int length) {
+        if (a.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (a[i] != b[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(byte[] bytes, int offset, int length) {
+        int h = 1;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            h = 31 * h + bytes[i];
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static final class Entry {
+        final byte[] bytes;
+        final int hash;
+        final String name;
+        final Entry next;
+
+        Entry(byte[] bytes, int hash, String name, Entry next) {
+            this.bytes = bytes;
+            this.hash = hash;
+            this.name = name;
+            this.next = next;
+        }
+    }
+}
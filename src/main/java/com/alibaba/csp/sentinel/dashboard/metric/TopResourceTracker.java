@@ -0,0 +1,471 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.metric;
+
+import com.alibaba.csp.sentinel.concurrent.NamedThreadFactory;
+import com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntity;
+import com.alibaba.csp.sentinel.dashboard.domain.vo.MetricTotalsVo;
+import com.alibaba.csp.sentinel.dashboard.redis.service.RedisService;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+/**
+ * Ranks the resources of every app by their traffic over a sliding window, as metrics are saved.
+ * <p>
+ * Every resource keeps its totals over the window in buckets of {@link #BUCKET_SECONDS}, the
+ * buckets leaving the window as the metrics of the app move on. The resources of an app are kept
+ * sorted by every {@link Rank}, re-sorted as their totals change, so the top K of a rank are read
+ * in O(K) whatever the count of resources.
+ * <p>
+ * Resources are ranked by the node saving the metrics of the app, which shares the totals of the
+ * window as a Redis hash {@code sentinel:top:<app>} every few seconds, one field per resource. The
+ * other nodes rank the app by the totals read back from it.
+ *
+ * @author agent
+ */
+@Component
+public class TopResourceTracker {
+
+    public enum Rank {
+        PASS, SUCCESS, BLOCK, EXCEPTION,
+        /**
+         * average rt
+         */
+        RT;
+
+        public double valueIn(MetricTotalsVo totals) {
+            switch (this) {
+                case PASS:
+                    return totals.getPass();
+                case SUCCESS:
+                    return totals.getSuccess();
+                case BLOCK:
+                    return totals.getBlock();
+                case EXCEPTION:
+                    return totals.getException();
+                default:
+                    return totals.getRt();
+            }
+        }
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(TopResourceTracker.class);
+
+    private static final int BUCKET_SECONDS = 10;
+    private static final String SHARED_KEY = "sentinel:top:%s";
+    private static final long SHARE_INTERVAL_MS = 1000 * 10;
+    /**
+     * An app not recorded for this long is saved by another node or idle, it is ranked by the totals
+     * shared and its hash expires.
+     */
+    private static final long STALE_MS = 1000 * 30;
+
+    @Value("${sentinel.dashboard.metric.top.window-seconds:300}")
+    private int windowSeconds;
+
+    @Autowired
+    private MetricFetchStats fetchStats;
+
+    @Autowired
+    private RedisService redisService;
+
+    private final ConcurrentMap<String, AppRanking> apps = new ConcurrentHashMap<>();
+    /**
+     * rankings read back from the hashes, {@code null} rankings of the apps no node shares
+     */
+    private final ConcurrentMap<String, SharedRanking> shared = new ConcurrentHashMap<>();
+    private int buckets;
+    private ScheduledExecutorService shareService;
+
+    @PostConstruct
+    public void start() {
+        if (windowSeconds < BUCKET_SECONDS) {
+            throw new IllegalArgumentException("top window-seconds must >= " + BUCKET_SECONDS);
+        }
+        buckets = windowSeconds / BUCKET_SECONDS;
+        fetchStats.register("top.apps", apps::size);
+        fetchStats.register("top.resources", () -> apps.values().stream().mapToInt(AppRanking::size).sum());
+        shareService = Executors.newSingleThreadScheduledExecutor(
+                new NamedThreadFactory("sentinel-dashboard-top-resources", true));
+        shareService.scheduleWithFixedDelay(() -> {
+            try {
+                share(System.currentTimeMillis());
+            } catch (Exception e) {
+                logger.warn("Share top resources error", e);
+            }
+        }, SHARE_INTERVAL_MS, SHARE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (shareService != null) {
+            shareService.shutdownNow();
+        }
+    }
+
+    /**
+     * Add the metrics just saved.
+     */
+    public void record(Collection<MetricEntity> metrics) {
+        Map<String, List<MetricEntity>> byApp = metrics.stream().collect(Collectors.groupingBy(MetricEntity::getApp));
+        for (Map.Entry<String, List<MetricEntity>> e : byApp.entrySet()) {
+            List<MetricEntity> entities = e.getValue();
+            entities.sort(Comparator.comparing(MetricEntity::getTimestamp));
+            apps.computeIfAbsent(e.getKey(), k -> new AppRanking(buckets)).record(entities, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * @param desc   busiest first if true
+     * @param filter resources to rank, {@code null} for all
+     * @param limit  max count of resources returned
+     * @return the resources of the app with traffic in the window, in the order of the rank,
+     * {@code null} if no node ranks the app
+     */
+    public List<String> top(String app, Rank rank, boolean desc, Predicate<String> filter, int limit) {
+        AppRanking ranking = rankingsOf(Collections.singletonList(app), System.currentTimeMillis()).get(app);
+        return ranking == null ? null : ranking.top(rank, desc, filter, limit);
+    }
+
+    public int getWindowSeconds() {
+        return windowSeconds;
+    }
+
+    /**
+     * Write the totals of the apps saved by this node, forget the apps not saved for the window.
+     */
+    void share(long now) {
+        Map<String, Map<String, String>> hashes = new HashMap<>();
+        for (Map.Entry<String, AppRanking> e : apps.entrySet()) {
+            AppRanking ranking = e.getValue();
+            if (now - ranking.lastRecord > windowSeconds * 1000L) {
+                apps.remove(e.getKey(), ranking);
+            } else if (now - ranking.lastRecord <= STALE_MS) {
+                hashes.put(String.format(SHARED_KEY, e.getKey()), ranking.toHash());
+            }
+        }
+        shared.values().removeIf(r -> now - r.loadedAt >= SHARE_INTERVAL_MS);
+        if (!hashes.isEmpty()) {
+            redisService.setMultiCacheMapPipelined(hashes, STALE_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return app -> ranking of the apps ranked by some node: by this node if it saves the app, else
+     * the ranking shared by the node saving it, read back once per share interval in one pipeline
+     */
+    private Map<String, AppRanking> rankingsOf(Collection<String> appNames, long now) {
+        Map<String, AppRanking> rankings = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        for (String app : appNames) {
+            AppRanking ranking = apps.get(app);
+            SharedRanking cached = shared.get(app);
+            if (ranking != null && now - ranking.lastRecord <= STALE_MS) {
+                rankings.put(app, ranking);
+            } else if (cached == null || now - cached.loadedAt >= SHARE_INTERVAL_MS) {
+                missing.add(app);
+            } else if (cached.ranking != null) {
+                rankings.put(app, cached.ranking);
+            }
+        }
+        if (missing.isEmpty()) {
+            return rankings;
+        }
+        List<String> keys = new ArrayList<>(missing.size());
+        for (String app : missing) {
+            keys.add(String.format(SHARED_KEY, app));
+        }
+        List<Map<String, String>> hashes;
+        try {
+            hashes = redisService.getMultiCacheMapPipelined(keys);
+        } catch (RuntimeException e) {
+            logger.warn("Read top resources of {} error", missing, e);
+            return rankings;
+        }
+        for (int i = 0; i < missing.size(); i++) {
+            AppRanking ranking = hashes.get(i).isEmpty() ? null : AppRanking.fromHash(hashes.get(i));
+            shared.put(missing.get(i), new SharedRanking(ranking, now));
+            if (ranking != null) {
+                rankings.put(missing.get(i), ranking);
+            }
+        }
+        return rankings;
+    }
+
+    /**
+     * Merges the top K of every app, so it takes O(apps * K) whatever the count of resources.
+     *
+     * @param appNames apps to rank the resources of, the apps with traffic in the window
+     * @return the busiest resources across the apps by the rank, with their totals over the window
+     */
+    public List<MetricTotalsVo> topAcrossApps(Collection<String> appNames, Rank rank, int limit) {
+        List<MetricTotalsVo> results = new ArrayList<>();
+        for (Map.Entry<String, AppRanking> e : rankingsOf(appNames, System.currentTimeMillis()).entrySet()) {
+            results.addAll(e.getValue().topTotals(e.getKey(), rank, limit));
+        }
+        results.sort(Comparator.comparingDouble(rank::valueIn).reversed());
+        return results.size() > limit ? new ArrayList<>(results.subList(0, limit)) : results;
+    }
+
+    /**
+     * Totals of a resource over the window.
+     */
+    static final class ResourceWindow {
+        final String resource;
+        /**
+         * pass, success, block, exception and rt of every bucket, indexed by bucket
+         */
+        final long[][] slots;
+        final long[] slotBuckets;
+        final long[] totals = new long[5];
+
+        ResourceWindow(String resource, int buckets) {
+            this.resource = resource;
+            this.slots = new long[buckets][5];
+            this.slotBuckets = new long[buckets];
+        }
+
+        double valueOf(Rank rank) {
+            switch (rank) {
+                case PASS:
+                    return totals[0];
+                case SUCCESS:
+                    return totals[1];
+                case BLOCK:
+                    return totals[2];
+                case EXCEPTION:
+                    return totals[3];
+                default:
+                    // MetricEntity#rt sums the rt of every success
+                    return totals[1] == 0 ? 0 : (double) totals[4] / totals[1];
+            }
+        }
+
+        boolean isIdle() {
+            for (long total : totals) {
+                if (total != 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final class SharedRanking {
+        final AppRanking ranking;
+        final long loadedAt;
+
+        SharedRanking(AppRanking ranking, long loadedAt) {
+            this.ranking = ranking;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    /**
+     * Windows of the resources of an app, sorted by every rank.
+     */
+    static final class AppRanking {
+        private final int buckets;
+        private final Map<String, ResourceWindow> windows = new HashMap<>();
+        private final Map<Rank, NavigableSet<ResourceWindow>> ranks = new EnumMap<>(Rank.class);
+        /**
+         * latest bucket of the app's metrics
+         */
+        private long currentBucket = Long.MIN_VALUE;
+        /**
+         * time the metrics of the app were last recorded
+         */
+        volatile long lastRecord;
+
+        AppRanking(int buckets) {
+            this.buckets = buckets;
+            for (Rank rank : Rank.values()) {
+                ranks.put(rank, new TreeSet<>(Comparator.comparingDouble((ResourceWindow w) -> w.valueOf(rank))
+                        .reversed().thenComparing(w -> w.resource)));
+            }
+        }
+
+        synchronized int size() {
+            return windows.size();
+        }
+
+        /**
+         * @param hash resource -> pass, success, block, exception and rt over the window, comma separated
+         * @return a ranking of the totals, not recorded to
+         */
+        static AppRanking fromHash(Map<String, String> hash) {
+            AppRanking ranking = new AppRanking(0);
+            for (Map.Entry<String, String> e : hash.entrySet()) {
+                String[] values = e.getValue().split(",");
+                if (values.length != 5) {
+                    continue;
+                }
+                ResourceWindow window = new ResourceWindow(e.getKey(), 0);
+                try {
+                    for (int i = 0; i < values.length; i++) {
+                        window.totals[i] = Long.parseLong(values[i]);
+                    }
+                } catch (NumberFormatException ex) {
+                    continue;
+                }
+                ranking.windows.put(window.resource, window);
+                ranking.rank(window);
+            }
+            return ranking;
+        }
+
+        synchronized Map<String, String> toHash() {
+            Map<String, String> hash = new HashMap<>(windows.size() * 2);
+            for (ResourceWindow window : windows.values()) {
+                long[] totals = window.totals;
+                hash.put(window.resource, totals[0] + "," + totals[1] + "," + totals[2] + "," + totals[3] + ","
+                        + totals[4]);
+            }
+            return hash;
+        }
+
+        synchronized void record(List<MetricEntity> entities, long now) {
+            lastRecord = now;
+            for (MetricEntity entity : entities) {
+                long bucket = entity.getTimestamp().getTime() / 1000 / BUCKET_SECONDS;
+                if (bucket > currentBucket) {
+                    advance(bucket);
+                }
+                if (bucket <= currentBucket - buckets) {
+                    continue;
+                }
+                ResourceWindow window = windows.computeIfAbsent(entity.getResource(),
+                        k -> new ResourceWindow(k, buckets));
+                int slot = (int) (bucket % buckets);
+                unrank(window);
+                if (window.slotBuckets[slot] != bucket) {
+                    // left over by a bucket of the window's previous pass, already expired
+                    window.slotBuckets[slot] = bucket;
+                    window.slots[slot] = new long[5];
+                }
+                long[] values = {valueOf(entity.getPassQps()), valueOf(entity.getSuccessQps()),
+                        valueOf(entity.getBlockQps()), valueOf(entity.getExceptionQps()), (long) entity.getRt()};
+                for (int i = 0; i < values.length; i++) {
+                    window.slots[slot][i] += values[i];
+                    window.totals[i] += values[i];
+                }
+                rank(window);
+            }
+        }
+
+        /**
+         * Move the window to the bucket, taking the buckets left behind out of the totals.
+         */
+        private void advance(long bucket) {
+            long oldest = bucket - buckets;
+            Iterator<ResourceWindow> it = windows.values().iterator();
+            while (it.hasNext()) {
+                ResourceWindow window = it.next();
+                boolean changed = false;
+                for (int slot = 0; slot < buckets; slot++) {
+                    if (window.slotBuckets[slot] <= oldest && window.slotBuckets[slot] != 0) {
+                        if (!changed) {
+                            unrank(window);
+                            changed = true;
+                        }
+                        for (int i = 0; i < 5; i++) {
+                            window.totals[i] -= window.slots[slot][i];
+                        }
+                        window.slots[slot] = new long[5];
+                        window.slotBuckets[slot] = 0;
+                    }
+                }
+                if (!changed) {
+                    continue;
+                }
+                if (window.isIdle()) {
+                    it.remove();
+                } else {
+                    rank(window);
+                }
+            }
+            currentBucket = bucket;
+        }
+
+        private void unrank(ResourceWindow window) {
+            for (NavigableSet<ResourceWindow> set : ranks.values()) {
+                set.remove(window);
+            }
+        }
+
+        private void rank(ResourceWindow window) {
+            for (NavigableSet<ResourceWindow> set : ranks.values()) {
+                set.add(window);
+            }
+        }
+
+        synchronized List<String> top(Rank rank, boolean desc, Predicate<String> filter, int limit) {
+            NavigableSet<ResourceWindow> set = ranks.get(rank);
+            Iterator<ResourceWindow> it = desc ? set.iterator() : set.descendingIterator();
+            List<String> results = new ArrayList<>(Math.min(limit, set.size()));
+            while (it.hasNext() && results.size() < limit) {
+                ResourceWindow window = it.next();
+                if (filter == null || filter.test(window.resource)) {
+                    results.add(window.resource);
+                }
+            }
+            return results;
+        }
+
+        synchronized List<MetricTotalsVo> topTotals(String app, Rank rank, int limit) {
+            List<MetricTotalsVo> results = new ArrayList<>();
+            for (ResourceWindow window : ranks.get(rank)) {
+                if (results.size() >= limit || window.valueOf(rank) <= 0) {
+                    break;
+                }
+                long[] totals = window.totals;
+                results.add(new MetricTotalsVo(app, window.resource, totals[0], totals[1], totals[2], totals[3],
+                        window.valueOf(Rank.RT)));
+            }
+            return results;
+        }
+
+        private static long valueOf(Long value) {
+            return value == null ? 0 : value;
+        }
+    }
+}
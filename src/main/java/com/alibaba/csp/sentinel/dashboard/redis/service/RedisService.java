@@ -18,6 +18,8 @@ import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.data.redis.core.script.RedisScript;
 import org.springframework.stereotype.Component;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
@@ -75,6 +77,15 @@ public class RedisService {
                     "  end\n" +
                     "end", String.class);
 
+    /**
+     * 刷新有序集合中成员的心跳时间, 清理心跳过期的成员并返回存活的成员
+     */
+    private RedisScript<List> heartbeat = new DefaultRedisScript<>(
+            "redis.call(\"zadd\", KEYS[1], ARGV[1], ARGV[2]);\n" +
+                    "redis.call(\"zremrangebyscore\", KEYS[1], \"-inf\", \"(\" .. ARGV[3]);\n" +
+                    "redis.call(\"pexpire\", KEYS[1], ARGV[4]);\n" +
+                    "return redis.call(\"zrange\", KEYS[1], 0, -1);", List.class);
+
     @Autowired
     public RedisTemplate redisTemplate;
 
@@ -249,6 +260,87 @@ public class RedisService {
         return redisTemplate.opsForHash().multiGet(key, hKeys);
     }
 
+    /**
+     * 通过一次 pipeline 获取多个Hash
+     *
+     * @param keys Redis键集合
+     * @return 与键顺序一致的Hash集合, 不存在的键对应空Map
+     */
+    public List<Map<String, String>> getMultiCacheMapPipelined(final List<String> keys) {
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                connection.hGetAll(key.getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+        List<Map<String, String>> maps = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            Object result = i < results.size() ? results.get(i) : null;
+            maps.add(result == null ? Collections.<String, String>emptyMap() : (Map<String, String>) result);
+        }
+        return maps;
+    }
+
+    /**
+     * 通过一次 pipeline 覆盖写入多个Hash并设置有效时间
+     *
+     * @param hashes  Redis键 -> Hash
+     * @param timeout 超时时间
+     * @param unit    时间单位
+     */
+    public void setMultiCacheMapPipelined(final Map<String, Map<String, String>> hashes,
+                                          final long timeout, final TimeUnit unit) {
+        if (hashes.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Map.Entry<String, Map<String, String>> e : hashes.entrySet()) {
+                byte[] key = e.getKey().getBytes(StandardCharsets.UTF_8);
+                Map<byte[], byte[]> fields = new HashMap<>(e.getValue().size());
+                for (Map.Entry<String, String> field : e.getValue().entrySet()) {
+                    fields.put(field.getKey().getBytes(StandardCharsets.UTF_8),
+                            field.getValue().getBytes(StandardCharsets.UTF_8));
+                }
+                connection.del(key);
+                if (!fields.isEmpty()) {
+                    connection.hMSet(key, fields);
+                    connection.pExpire(key, unit.toMillis(timeout));
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 通过一次 pipeline 写入多个Hash的字段并设置有效时间, 其余字段保留
+     *
+     * @param hashes  Redis键 -> 写入的字段
+     * @param timeout 超时时间
+     * @param unit    时间单位
+     */
+    public void putMultiCacheMapPipelined(final Map<String, Map<String, String>> hashes,
+                                          final long timeout, final TimeUnit unit) {
+        if (hashes.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Map.Entry<String, Map<String, String>> e : hashes.entrySet()) {
+                if (e.getValue().isEmpty()) {
+                    continue;
+                }
+                byte[] key = e.getKey().getBytes(StandardCharsets.UTF_8);
+                Map<byte[], byte[]> fields = new HashMap<>(e.getValue().size());
+                for (Map.Entry<String, String> field : e.getValue().entrySet()) {
+                    fields.put(field.getKey().getBytes(StandardCharsets.UTF_8),
+                            field.getValue().getBytes(StandardCharsets.UTF_8));
+                }
+                connection.hMSet(key, fields);
+                connection.pExpire(key, unit.toMillis(timeout));
+            }
+            return null;
+        });
+    }
+
     /**
      * 获得缓存的基本对象列表
      *
@@ -471,4 +563,27 @@ public class RedisService {
 
         return stringRedisTemplate.execute(rPopIfNotEmpty, Arrays.asList(key1, key2), ext1, operate);
     }
+
+    /**
+     * 上报心跳并获取存活成员
+     *
+     * @param key          有序集合键, 分值为成员最近一次心跳时间
+     * @param member       上报心跳的成员
+     * @param now          当前时间 (毫秒)
+     * @param expireBefore 心跳早于该时间 (毫秒) 的成员被清理
+     * @param ttl          有序集合的有效时间 (毫秒)
+     * @return 存活成员
+     */
+    public List<String> heartbeat(String key, String member, long now, long expireBefore, long ttl) {
+        List<String> members = stringRedisTemplate.execute(heartbeat, Collections.singletonList(key),
+                String.valueOf(now), member, String.valueOf(expireBefore), String.valueOf(ttl));
+        return members == null ? Collections.<String>emptyList() : members;
+    }
+
+    /**
+     * 从有序集合中移除成员
+     */
+    public Long zRem(String key, String member) {
+        return stringRedisTemplate.opsForZSet().remove(key, member);
+    }
 }
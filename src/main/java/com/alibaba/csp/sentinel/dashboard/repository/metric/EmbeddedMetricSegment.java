@@ -0,0 +1,215 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.repository.metric;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.CRC32;
+
+/**
+ * Memory-mapped segment file of the embedded store, holding the blocks of one app written for one
+ * time bucket. The file starts with {@code [int magic][int version][long bucket start]}, followed
+ * by the blocks, each {@code [int length][int crc32][long min ts][long max ts][long created][int rows]}
+ * and a {@link MetricBlockCodec} payload. A zero length marks the end of the data, a torn block at
+ * the end (crash during an append) is detected by its checksum and overwritten by the next append.
+ * <p>
+ * The header of every block is kept in memory as the sparse time index of the segment, so a query
+ * only decodes the blocks overlapping its time range and holding its resource.
+ *
+ * @author agent
+ */
+final class EmbeddedMetricSegment {
+
+    private static final int MAGIC = 0x4D534547;
+    private static final int VERSION = 1;
+    static final int FILE_HEADER_BYTES = 16;
+    static final int BLOCK_HEADER_BYTES = 36;
+
+    private final File file;
+    private final long bucketStart;
+    private final MappedByteBuffer buffer;
+    private final List<BlockRef> blocks = new CopyOnWriteArrayList<>();
+    private int position;
+
+    private EmbeddedMetricSegment(File file, long bucketStart, MappedByteBuffer buffer) {
+        this.file = file;
+        this.bucketStart = bucketStart;
+        this.buffer = buffer;
+    }
+
+    static EmbeddedMetricSegment create(File file, long bucketStart, int capacity) throws IOException {
+        MappedByteBuffer buffer = map(file, capacity);
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putLong(8, bucketStart);
+        EmbeddedMetricSegment segment = new EmbeddedMetricSegment(file, bucketStart, buffer);
+        segment.position = FILE_HEADER_BYTES;
+        return segment;
+    }
+
+    /**
+     * Open an existing segment and rebuild its index.
+     */
+    static EmbeddedMetricSegment open(File file) throws IOException {
+        MappedByteBuffer buffer = map(file, (int) file.length());
+        if (buffer.capacity() < FILE_HEADER_BYTES || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not a metric segment: " + file);
+        }
+        EmbeddedMetricSegment segment = new EmbeddedMetricSegment(file, buffer.getLong(8), buffer);
+        int pos = FILE_HEADER_BYTES;
+        while (pos + BLOCK_HEADER_BYTES <= buffer.capacity()) {
+            int length = buffer.getInt(pos);
+            if (length <= 0 || pos + BLOCK_HEADER_BYTES + length > buffer.capacity()) {
+                break;
+            }
+            ByteBuffer payload = slice(buffer, pos + BLOCK_HEADER_BYTES, length);
+            if (crcOf(payload.duplicate()) != buffer.getInt(pos + 4)) {
+                break;
+            }
+            segment.blocks.add(new BlockRef(pos + BLOCK_HEADER_BYTES, length, buffer.getLong(pos + 8),
+                    buffer.getLong(pos + 16), buffer.getLong(pos + 24), buffer.getInt(pos + 32),
+                    MetricBlockCodec.resourcesOf(payload)));
+            pos += BLOCK_HEADER_BYTES + length;
+        }
+        segment.position = pos;
+        return segment;
+    }
+
+    /**
+     * @return false if the segment has no room left for the block
+     */
+    synchronized boolean append(byte[] payload, long minTs, long maxTs, int rows, int[] resources) {
+        int end = position + BLOCK_HEADER_BYTES + payload.length;
+        if (end > buffer.capacity()) {
+            return false;
+        }
+        ByteBuffer out = buffer.duplicate();
+        out.position(position + BLOCK_HEADER_BYTES);
+        out.put(payload);
+        if (end + 4 <= buffer.capacity()) {
+            // the end marker, the bytes past it may be left over from a torn block
+            buffer.putInt(end, 0);
+        }
+        long created = System.currentTimeMillis();
+        buffer.putInt(position + 4, crcOf(ByteBuffer.wrap(payload)));
+        buffer.putLong(position + 8, minTs);
+        buffer.putLong(position + 16, maxTs);
+        buffer.putLong(position + 24, created);
+        buffer.putInt(position + 32, rows);
+        buffer.putInt(position, payload.length);
+        blocks.add(new BlockRef(position + BLOCK_HEADER_BYTES, payload.length, minTs, maxTs, created, rows,
+                resources));
+        position = end;
+        return true;
+    }
+
+    /**
+     * @return the payload of the block, to be read by a single thread
+     */
+    ByteBuffer payloadOf(BlockRef block) {
+        return slice(buffer, block.offset, block.length);
+    }
+
+    List<BlockRef> getBlocks() {
+        return blocks;
+    }
+
+    long getBucketStart() {
+        return bucketStart;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    synchronized int getPosition() {
+        return position;
+    }
+
+    void force() {
+        buffer.force();
+    }
+
+    private static MappedByteBuffer map(File file, int capacity) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(offset);
+        slice.limit(offset + length);
+        return slice.slice();
+    }
+
+    private static int crcOf(ByteBuffer payload) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(payload);
+        return (int) crc32.getValue();
+    }
+
+    /**
+     * Index entry of a block.
+     */
+    static final class BlockRef {
+        final int offset;
+        final int length;
+        final long minTs;
+        final long maxTs;
+        final long created;
+        final int rows;
+        /**
+         * distinct resource ids of the block, ascending
+         */
+        final int[] resources;
+
+        BlockRef(int offset, int length, long minTs, long maxTs, long created, int rows, int[] resources) {
+            this.offset = offset;
+            this.length = length;
+            this.minTs = minTs;
+            this.maxTs = maxTs;
+            this.created = created;
+            this.rows = rows;
+            this.resources = resources;
+        }
+
+        boolean overlaps(long start, long end) {
+            return minTs <= end && maxTs >= start;
+        }
+
+        boolean holds(int resourceCode) {
+            return Arrays.binarySearch(resources, resourceCode) >= 0;
+        }
+
+        boolean holdsAny(Set<Integer> resourceCodes) {
+            for (int resource : resources) {
+                if (resourceCodes.contains(resource)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
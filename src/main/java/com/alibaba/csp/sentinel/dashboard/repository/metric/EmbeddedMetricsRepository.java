@@ -0,0 +1,601 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.repository.metric;
+
+import com.alibaba.csp.sentinel.concurrent.NamedThreadFactory;
+import com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntity;
+import com.alibaba.csp.sentinel.dashboard.domain.vo.MetricSeries;
+import com.alibaba.csp.sentinel.dashboard.metric.MetricFetchStats;
+import com.alibaba.csp.sentinel.util.StringUtil;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+/**
+ * Embedded metrics store running inside the dashboard, selected by
+ * {@code sentinel.dashboard.metric.store=embedded}, so no external database is needed.
+ * <p>
+ * Every app has a directory of {@link EmbeddedMetricSegment}s, memory-mapped files each holding the
+ * blocks written for one time bucket of the app, plus the dictionary of its resource names. A saved
+ * batch becomes one {@link MetricBlockCodec} block per bucket, and a range query reads the blocks of
+ * the buckets it overlaps in sequence, skipping by their in-memory headers the blocks outside its
+ * time range or without its resource. Coarser resolutions are summed up from the per-second
+ * metrics when queried, by a {@link MetricDownsampler}. Segments past the retention are deleted as a whole.
+ * <p>
+ * Data is flushed to disk every few seconds, the metrics of the last seconds before a crash of the
+ * host may be lost. Every dashboard node has its own store, which thus suits a single node.
+ *
+ * @author agent
+ */
+@Component
+@ConditionalOnProperty(name = "sentinel.dashboard.metric.store", havingValue = "embedded")
+public class EmbeddedMetricsRepository implements MetricsRepository<MetricEntity> {
+
+    private static final Logger logger = LoggerFactory.getLogger(EmbeddedMetricsRepository.class);
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String DICTIONARY_FILE = "resources.dict";
+    private static final long MAINTAIN_INTERVAL_SECONDS = 5;
+    private static final long RECENT_RESOURCES_MS = 1000 * 60 * 60;
+
+    @Value("${sentinel.dashboard.metric.embedded.dir:${user.home}/logs/csp/metric-store}")
+    private String dir;
+
+    @Value("${sentinel.dashboard.metric.embedded.segment-minutes:60}")
+    private int segmentMinutes;
+
+    @Value("${sentinel.dashboard.metric.embedded.segment-mb:8}")
+    private int segmentMb;
+
+    @Value("${sentinel.dashboard.metric.embedded.retention-hours:72}")
+    private int retentionHours;
+
+    @Autowired
+    private MetricFetchStats fetchStats;
+
+    private final ConcurrentMap<String, AppStore> apps = new ConcurrentHashMap<>();
+    private long bucketMs;
+    private int segmentBytes;
+    private ScheduledExecutorService maintainService;
+
+    @PostConstruct
+    public void start() throws IOException {
+        if (segmentMinutes <= 0 || segmentMb <= 0 || retentionHours <= 0) {
+            throw new IllegalArgumentException("embedded segment-minutes, segment-mb and retention-hours must > 0");
+        }
+        bucketMs = segmentMinutes * 60L * 1000;
+        segmentBytes = segmentMb * 1024 * 1024;
+        File root = new File(dir);
+        if (!root.isDirectory() && !root.mkdirs()) {
+            throw new IOException("Cannot create metric store dir " + root);
+        }
+        File[] appDirs = root.listFiles(File::isDirectory);
+        if (appDirs != null) {
+            for (File appDir : appDirs) {
+                AppStore store = new AppStore(decodeApp(appDir.getName()), appDir);
+                store.load();
+                apps.put(store.app, store);
+            }
+        }
+        logger.info("Embedded metric store opened at {}, {} apps", root, apps.size());
+        maintainService = Executors.newSingleThreadScheduledExecutor(
+                new NamedThreadFactory("sentinel-dashboard-metrics-store", true));
+        maintainService.scheduleWithFixedDelay(() -> {
+            try {
+                maintain(System.currentTimeMillis());
+            } catch (Exception e) {
+                logger.warn("Maintain embedded metric store error", e);
+            }
+        }, MAINTAIN_INTERVAL_SECONDS, MAINTAIN_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        fetchStats.register("store.embedded.apps", apps::size);
+        fetchStats.register("store.embedded.segments",
+                () -> apps.values().stream().mapToLong(AppStore::segmentCount).sum());
+        fetchStats.register("store.embedded.bytes",
+                () -> apps.values().stream().mapToLong(AppStore::bytes).sum());
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (maintainService != null) {
+            maintainService.shutdown();
+        }
+        for (AppStore store : apps.values()) {
+            store.close();
+        }
+    }
+
+    private void maintain(long now) {
+        long cutoff = now - retentionHours * 60L * 60 * 1000;
+        for (AppStore store : apps.values()) {
+            store.force();
+            store.purge(cutoff);
+        }
+    }
+
+    @Override
+    public void saveAll(Collection<MetricEntity> metrics) {
+        if (metrics == null || metrics.isEmpty()) {
+            return;
+        }
+        Map<String, List<MetricEntity>> byApp = metrics.stream().collect(Collectors.groupingBy(MetricEntity::getApp));
+        for (Map.Entry<String, List<MetricEntity>> e : byApp.entrySet()) {
+            try {
+                storeOf(e.getKey()).append(e.getValue());
+            } catch (IOException ex) {
+                throw new IllegalStateException("Save metrics of " + e.getKey() + " error", ex);
+            }
+        }
+    }
+
+    @Override
+    public void saveAllIfAbsent(Collection<MetricEntity> metrics) {
+        if (metrics == null || metrics.isEmpty()) {
+            return;
+        }
+        Map<String, List<MetricEntity>> byApp = metrics.stream().collect(Collectors.groupingBy(MetricEntity::getApp));
+        List<MetricEntity> absent = new ArrayList<>(metrics.size());
+        for (Map.Entry<String, List<MetricEntity>> e : byApp.entrySet()) {
+            AppStore store = apps.get(e.getKey());
+            if (store == null) {
+                absent.addAll(e.getValue());
+                continue;
+            }
+            long start = Long.MAX_VALUE;
+            long end = Long.MIN_VALUE;
+            for (MetricEntity entity : e.getValue()) {
+                start = Math.min(start, entity.getTimestamp().getTime());
+                end = Math.max(end, entity.getTimestamp().getTime());
+            }
+            Set<String> stored = new HashSet<>();
+            store.scan(start, end, null, (block, i) -> stored.add(block.resourceCodes[i] + "|" + block.timestamps[i]));
+            for (MetricEntity entity : e.getValue()) {
+                Integer code = store.ids.get(entity.getResource());
+                if (code == null || !stored.contains(code + "|" + entity.getTimestamp().getTime())) {
+                    absent.add(entity);
+                }
+            }
+        }
+        saveAll(absent);
+    }
+
+    @Override
+    public List<MetricEntity> queryByAppAndResourceBetween(String app, String resource, long startTime, long endTime) {
+        return queryByAppAndResourceBetween(app, resource, startTime, endTime, 1);
+    }
+
+    @Override
+    public List<MetricEntity> queryByAppAndResourceBetween(String app, String resource, long startTime,
+                                                           long endTime, int resolution) {
+        List<MetricEntity> results = queryByAppAndResourcesBetween(app, Collections.singletonList(resource),
+                startTime, endTime, resolution).get(resource);
+        return results == null ? new ArrayList<>() : results;
+    }
+
+    /**
+     * The resources are read by a single scan of the blocks holding any of them.
+     */
+    @Override
+    public Map<String, List<MetricEntity>> queryByAppAndResourcesBetween(String app, Collection<String> resources,
+                                                                        long startTime, long endTime,
+                                                                        int resolution) {
+        Map<String, List<MetricEntity>> results = new HashMap<>();
+        if (StringUtil.isBlank(app) || resources == null) {
+            return results;
+        }
+        AppStore store = apps.get(app);
+        if (store == null) {
+            return results;
+        }
+        Set<Integer> codes = codesOf(store, resources);
+        if (codes.isEmpty()) {
+            return results;
+        }
+        int step = RollupTier.alignStep(resolution);
+        if (step == 1) {
+            store.scan(startTime, endTime, codes, (block, i) -> {
+                String name = store.names.get(block.resourceCodes[i]);
+                results.computeIfAbsent(name, k -> new ArrayList<>()).add(store.toEntity(block, i, name));
+            });
+            for (List<MetricEntity> metrics : results.values()) {
+                metrics.sort(Comparator.comparing(MetricEntity::getTimestamp));
+            }
+            return results;
+        }
+        Map<Integer, MetricDownsampler> samplers = new HashMap<>();
+        store.scan(MetricDownsampler.bucketOf(startTime, step), endTime, codes, (block, i) -> {
+            int code = block.resourceCodes[i];
+            samplers.computeIfAbsent(code, k -> new MetricDownsampler(app, k, step)).add(block.timestamps[i],
+                    block.passQps[i], block.successQps[i], block.blockQps[i], block.exceptionQps[i], block.rt[i],
+                    block.count[i]);
+        });
+        for (Map.Entry<Integer, MetricDownsampler> e : samplers.entrySet()) {
+            String name = store.names.get(e.getKey());
+            results.put(name, e.getValue().toMetricEntities(name));
+        }
+        return results;
+    }
+
+    /**
+     * The per-second metrics go from the blocks straight to the columns of the series.
+     */
+    @Override
+    public Map<String, MetricSeries> querySeriesByAppAndResourcesBetween(String app, Collection<String> resources,
+                                                                        long startTime, long endTime,
+                                                                        int resolution) {
+        Map<String, MetricSeries> results = new HashMap<>();
+        int step = RollupTier.alignStep(resolution);
+        if (step > 1) {
+            // a bucket per step, far fewer than the seconds read
+            queryByAppAndResourcesBetween(app, resources, startTime, endTime, step)
+                    .forEach((resource, metrics) -> results.put(resource, MetricSeries.of(metrics)));
+            return results;
+        }
+        AppStore store = StringUtil.isBlank(app) || resources == null ? null : apps.get(app);
+        if (store == null) {
+            return results;
+        }
+        Set<Integer> codes = codesOf(store, resources);
+        if (codes.isEmpty()) {
+            return results;
+        }
+        Map<Integer, MetricSeries.Builder> builders = new HashMap<>();
+        store.scan(startTime, endTime, codes, (block, i) -> {
+            long success = block.successQps[i];
+            builders.computeIfAbsent(block.resourceCodes[i], k -> new MetricSeries.Builder(64)).add(
+                    block.timestamps[i], block.passQps[i], success, block.blockQps[i], block.exceptionQps[i],
+                    success == 0 ? 0 : block.rt[i] / success, block.count[i], block.passQps[i]);
+        });
+        for (Map.Entry<Integer, MetricSeries.Builder> e : builders.entrySet()) {
+            results.put(store.names.get(e.getKey()), e.getValue().build());
+        }
+        return results;
+    }
+
+    /**
+     * Resources are read one by one, so a single series is in memory at a time.
+     */
+    @Override
+    public void streamByAppAndResourcesBetween(String app, List<String> resources, long startTime, long endTime,
+                                               int resolution, MetricRowHandler handler) {
+        for (String resource : resources) {
+            MetricsRepository.super.streamByAppAndResourcesBetween(app, Collections.singletonList(resource),
+                    startTime, endTime, resolution, handler);
+        }
+    }
+
+    private static Set<Integer> codesOf(AppStore store, Collection<String> resources) {
+        Set<Integer> codes = new HashSet<>();
+        for (String resource : resources) {
+            Integer code = store.ids.get(resource);
+            if (code != null) {
+                codes.add(code);
+            }
+        }
+        return codes;
+    }
+
+    @Override
+    public List<String> listResourcesOfApp(String app) {
+        List<String> results = new ArrayList<>();
+        if (StringUtil.isBlank(app)) {
+            return results;
+        }
+        AppStore store = apps.get(app);
+        if (store == null) {
+            return results;
+        }
+        for (Integer code : store.resourcesSince(System.currentTimeMillis() - RECENT_RESOURCES_MS)) {
+            String name = store.names.get(code);
+            if (name != null) {
+                results.add(name);
+            }
+        }
+        return results;
+    }
+
+    private AppStore storeOf(String app) throws IOException {
+        AppStore store = apps.get(app);
+        if (store != null) {
+            return store;
+        }
+        synchronized (apps) {
+            store = apps.get(app);
+            if (store == null) {
+                store = new AppStore(app, new File(dir, encodeApp(app)));
+                store.load();
+                apps.put(app, store);
+            }
+            return store;
+        }
+    }
+
+    /**
+     * App names come from the machines, dots are encoded as well so no name maps to {@code ..}.
+     */
+    static String encodeApp(String app) {
+        try {
+            return URLEncoder.encode(app, "UTF-8").replace(".", "%2E").replace("*", "%2A");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String decodeApp(String dirName) {
+        try {
+            return URLDecoder.decode(dirName, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private interface RowConsumer {
+        void accept(MetricBlockCodec.Block block, int row);
+    }
+
+    /**
+     * Segments and resource dictionary of an app. Appends are serialized, queries read the blocks
+     * indexed so far.
+     */
+    private final class AppStore {
+        final String app;
+        final File dir;
+        final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<>();
+        final ConcurrentMap<Integer, String> names = new ConcurrentHashMap<>();
+        /**
+         * bucket start -> segments of the bucket, the last one being appended to
+         */
+        final ConcurrentNavigableMap<Long, List<EmbeddedMetricSegment>> segments = new ConcurrentSkipListMap<>();
+        private RandomAccessFile dictionary;
+        private int nextId = 1;
+        private long nextSequence = 1;
+
+        AppStore(String app, File dir) {
+            this.app = app;
+            this.dir = dir;
+        }
+
+        void load() throws IOException {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Cannot create metric store dir " + dir);
+            }
+            dictionary = new RandomAccessFile(new File(dir, DICTIONARY_FILE), "rw");
+            long good = 0;
+            try {
+                while (dictionary.getFilePointer() < dictionary.length()) {
+                    int id = dictionary.readInt();
+                    String name = dictionary.readUTF();
+                    ids.put(name, id);
+                    names.put(id, name);
+                    nextId = Math.max(nextId, id + 1);
+                    good = dictionary.getFilePointer();
+                }
+            } catch (EOFException e) {
+                logger.warn("Truncated resource dictionary of {}, dropping its torn tail", app);
+                dictionary.setLength(good);
+            }
+            dictionary.seek(good);
+
+            File[] files = dir.listFiles((d, name) -> name.endsWith(SEGMENT_SUFFIX));
+            if (files == null) {
+                return;
+            }
+            Arrays.sort(files, Comparator.comparing(File::getName, Comparator.comparingLong(this::sequenceOf)));
+            for (File file : files) {
+                nextSequence = Math.max(nextSequence, sequenceOf(file.getName()) + 1);
+                try {
+                    EmbeddedMetricSegment segment = EmbeddedMetricSegment.open(file);
+                    segments.computeIfAbsent(segment.getBucketStart(), k -> new CopyOnWriteArrayList<>()).add(segment);
+                } catch (IOException e) {
+                    logger.warn("Skip unreadable metric segment {}", file, e);
+                }
+            }
+        }
+
+        private long sequenceOf(String fileName) {
+            String name = fileName.substring(fileName.indexOf('-') + 1, fileName.length() - SEGMENT_SUFFIX.length());
+            try {
+                return Long.parseLong(name);
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+
+        synchronized void append(List<MetricEntity> metrics) throws IOException {
+            Map<Long, List<MetricEntity>> byBucket = new TreeMap<>();
+            for (MetricEntity entity : metrics) {
+                entity.setResourceCode(idOf(entity.getResource()));
+                long bucketStart = entity.getTimestamp().getTime() / bucketMs * bucketMs;
+                byBucket.computeIfAbsent(bucketStart, k -> new ArrayList<>()).add(entity);
+            }
+            for (Map.Entry<Long, List<MetricEntity>> e : byBucket.entrySet()) {
+                List<MetricEntity> rows = e.getValue();
+                long minTs = Long.MAX_VALUE;
+                long maxTs = Long.MIN_VALUE;
+                Set<Integer> codes = new TreeSet<>();
+                for (MetricEntity row : rows) {
+                    minTs = Math.min(minTs, row.getTimestamp().getTime());
+                    maxTs = Math.max(maxTs, row.getTimestamp().getTime());
+                    codes.add(row.getResourceCode());
+                }
+                byte[] payload = MetricBlockCodec.encode(rows, minTs);
+                int[] resources = codes.stream().mapToInt(Integer::intValue).toArray();
+                List<EmbeddedMetricSegment> bucket = segments.computeIfAbsent(e.getKey(),
+                        k -> new CopyOnWriteArrayList<>());
+                EmbeddedMetricSegment active = bucket.isEmpty() ? null : bucket.get(bucket.size() - 1);
+                if (active == null || !active.append(payload, minTs, maxTs, rows.size(), resources)) {
+                    int capacity = Math.max(segmentBytes, EmbeddedMetricSegment.FILE_HEADER_BYTES
+                            + EmbeddedMetricSegment.BLOCK_HEADER_BYTES + payload.length + 4);
+                    File file = new File(dir, e.getKey() + "-" + nextSequence++ + SEGMENT_SUFFIX);
+                    active = EmbeddedMetricSegment.create(file, e.getKey(), capacity);
+                    active.append(payload, minTs, maxTs, rows.size(), resources);
+                    bucket.add(active);
+                }
+            }
+        }
+
+        private int idOf(String resource) throws IOException {
+            Integer id = ids.get(resource);
+            if (id != null) {
+                return id;
+            }
+            id = nextId++;
+            dictionary.writeInt(id);
+            dictionary.writeUTF(resource);
+            names.put(id, resource);
+            ids.put(resource, id);
+            return id;
+        }
+
+        /**
+         * Visit the rows of {@code [start, end]}, of the resources if given.
+         */
+        void scan(long start, long end, Set<Integer> codes, RowConsumer consumer) {
+            for (List<EmbeddedMetricSegment> bucket : segments.subMap(start - bucketMs, true, end, true).values()) {
+                for (EmbeddedMetricSegment segment : bucket) {
+                    for (EmbeddedMetricSegment.BlockRef ref : segment.getBlocks()) {
+                        if (!ref.overlaps(start, end) || (codes != null && !ref.holdsAny(codes))) {
+                            continue;
+                        }
+                        ByteBuffer payload = segment.payloadOf(ref);
+                        MetricBlockCodec.Block block = MetricBlockCodec.decode(payload, ref.minTs, ref.rows);
+                        for (int i = 0; i < block.size(); i++) {
+                            if ((codes == null || codes.contains(block.resourceCodes[i]))
+                                    && block.timestamps[i] >= start && block.timestamps[i] <= end) {
+                                consumer.accept(block, i);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        Set<Integer> resourcesSince(long since) {
+            Set<Integer> codes = new HashSet<>();
+            for (List<EmbeddedMetricSegment> bucket : segments.tailMap(since - bucketMs, true).values()) {
+                for (EmbeddedMetricSegment segment : bucket) {
+                    for (EmbeddedMetricSegment.BlockRef ref : segment.getBlocks()) {
+                        if (ref.maxTs > since) {
+                            for (int code : ref.resources) {
+                                codes.add(code);
+                            }
+                        }
+                    }
+                }
+            }
+            return codes;
+        }
+
+        MetricEntity toEntity(MetricBlockCodec.Block block, int i, String name) {
+            MetricEntity entity = new MetricEntity();
+            Date date = new Date();
+            entity.setGmtCreate(date);
+            entity.setGmtModified(date);
+            entity.setApp(app);
+            entity.setResource(name);
+            entity.setResourceCode(block.resourceCodes[i]);
+            entity.setTimestamp(new Date(block.timestamps[i]));
+            entity.setPassQps(block.passQps[i]);
+            entity.setSuccessQps(block.successQps[i]);
+            entity.setBlockQps(block.blockQps[i]);
+            entity.setExceptionQps(block.exceptionQps[i]);
+            entity.setRt(block.rt[i]);
+            entity.setCount(block.count[i]);
+            return entity;
+        }
+
+        /**
+         * Delete the segments whose bucket ended before the cutoff.
+         */
+        synchronized void purge(long cutoff) {
+            for (Map.Entry<Long, List<EmbeddedMetricSegment>> e : segments.headMap(cutoff - bucketMs, true).entrySet()) {
+                segments.remove(e.getKey());
+                for (EmbeddedMetricSegment segment : e.getValue()) {
+                    if (!segment.getFile().delete()) {
+                        logger.warn("Cannot delete expired metric segment {}", segment.getFile());
+                    }
+                }
+            }
+        }
+
+        void force() {
+            for (List<EmbeddedMetricSegment> bucket : segments.tailMap(
+                    System.currentTimeMillis() - 2 * bucketMs, true).values()) {
+                for (EmbeddedMetricSegment segment : bucket) {
+                    segment.force();
+                }
+            }
+        }
+
+        long segmentCount() {
+            return segments.values().stream().mapToLong(List::size).sum();
+        }
+
+        long bytes() {
+            return segments.values().stream().flatMap(List::stream).mapToLong(EmbeddedMetricSegment::getPosition).sum();
+        }
+
+        synchronized void close() {
+            for (List<EmbeddedMetricSegment> bucket : segments.values()) {
+                for (EmbeddedMetricSegment segment : bucket) {
+                    segment.force();
+                }
+            }
+            try {
+                dictionary.close();
+            } catch (IOException e) {
+                logger.warn("Close resource dictionary of {} error", app, e);
+            }
+        }
+    }
+}
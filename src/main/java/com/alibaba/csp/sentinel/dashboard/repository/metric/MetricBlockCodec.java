@@ -0,0 +1,228 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.repository.metric;
+
+import com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntity;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Columnar encoding of a block of metrics of one app, rows sorted by resource then timestamp.
+ * <p>
+ * The payload is made of the resource column, as runs of {@code [resource id delta][run length]},
+ * followed by one column per field: timestamps as the delta to the previous row of the run (the
+ * first one to the block's min timestamp), counters as the delta to the previous row, rt as the XOR
+ * of its bits with the previous row's. Every value is a varint, zigzag encoded when signed, so the
+ * steady counters and equal rts of a resource take a byte or two.
+ *
+ * @author agent
+ */
+final class MetricBlockCodec {
+
+    private MetricBlockCodec() {}
+
+    /**
+     * @param rows metrics whose resource code is set, sorted in place
+     */
+    static byte[] encode(List<MetricEntity> rows, long minTs) {
+        rows.sort(Comparator.comparingInt(MetricEntity::getResourceCode)
+                .thenComparing(e -> e.getTimestamp().getTime()));
+        ByteArrayOutputStream out = new ByteArrayOutputStream(rows.size() * 12 + 16);
+
+        List<int[]> runs = new ArrayList<>();
+        for (MetricEntity row : rows) {
+            int[] last = runs.isEmpty() ? null : runs.get(runs.size() - 1);
+            if (last != null && last[0] == row.getResourceCode()) {
+                last[1]++;
+            } else {
+                runs.add(new int[] {row.getResourceCode(), 1});
+            }
+        }
+        writeVarint(out, runs.size());
+        int prevCode = 0;
+        for (int[] run : runs) {
+            writeSigned(out, run[0] - prevCode);
+            writeVarint(out, run[1]);
+            prevCode = run[0];
+        }
+
+        int i = 0;
+        for (int[] run : runs) {
+            long prev = minTs;
+            for (int j = 0; j < run[1]; j++, i++) {
+                long ts = rows.get(i).getTimestamp().getTime();
+                writeSigned(out, ts - prev);
+                prev = ts;
+            }
+        }
+        long prev = 0;
+        for (MetricEntity row : rows) {
+            writeSigned(out, valueOf(row.getPassQps()) - prev);
+            prev = valueOf(row.getPassQps());
+        }
+        prev = 0;
+        for (MetricEntity row : rows) {
+            writeSigned(out, valueOf(row.getSuccessQps()) - prev);
+            prev = valueOf(row.getSuccessQps());
+        }
+        prev = 0;
+        for (MetricEntity row : rows) {
+            writeSigned(out, valueOf(row.getBlockQps()) - prev);
+            prev = valueOf(row.getBlockQps());
+        }
+        prev = 0;
+        for (MetricEntity row : rows) {
+            writeSigned(out, valueOf(row.getExceptionQps()) - prev);
+            prev = valueOf(row.getExceptionQps());
+        }
+        prev = 0;
+        for (MetricEntity row : rows) {
+            long bits = Double.doubleToLongBits(row.getRt());
+            writeVarint(out, bits ^ prev);
+            prev = bits;
+        }
+        prev = 0;
+        for (MetricEntity row : rows) {
+            writeSigned(out, row.getCount() - prev);
+            prev = row.getCount();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @return the distinct resource ids of the block, ascending
+     */
+    static int[] resourcesOf(ByteBuffer payload) {
+        int[] resources = new int[(int) readVarint(payload)];
+        int code = 0;
+        for (int i = 0; i < resources.length; i++) {
+            code += (int) readSigned(payload);
+            resources[i] = code;
+            readVarint(payload);
+        }
+        return resources;
+    }
+
+    static Block decode(ByteBuffer payload, long minTs, int rows) {
+        Block block = new Block(rows);
+        int runs = (int) readVarint(payload);
+        int[] runLengths = new int[runs];
+        int code = 0;
+        for (int r = 0, i = 0; r < runs; r++) {
+            code += (int) readSigned(payload);
+            runLengths[r] = (int) readVarint(payload);
+            for (int j = 0; j < runLengths[r]; j++) {
+                block.resourceCodes[i++] = code;
+            }
+        }
+        for (int r = 0, i = 0; r < runs; r++) {
+            long ts = minTs;
+            for (int j = 0; j < runLengths[r]; j++) {
+                ts += readSigned(payload);
+                block.timestamps[i++] = ts;
+            }
+        }
+        readCounters(payload, block.passQps);
+        readCounters(payload, block.successQps);
+        readCounters(payload, block.blockQps);
+        readCounters(payload, block.exceptionQps);
+        long bits = 0;
+        for (int i = 0; i < rows; i++) {
+            bits ^= readVarint(payload);
+            block.rt[i] = Double.longBitsToDouble(bits);
+        }
+        long count = 0;
+        for (int i = 0; i < rows; i++) {
+            count += readSigned(payload);
+            block.count[i] = (int) count;
+        }
+        return block;
+    }
+
+    private static void readCounters(ByteBuffer payload, long[] column) {
+        long value = 0;
+        for (int i = 0; i < column.length; i++) {
+            value += readSigned(payload);
+            column[i] = value;
+        }
+    }
+
+    private static long valueOf(Long value) {
+        return value == null ? 0 : value;
+    }
+
+    static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    static void writeSigned(ByteArrayOutputStream out, long value) {
+        writeVarint(out, (value << 1) ^ (value >> 63));
+    }
+
+    static long readVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalStateException("Malformed varint");
+    }
+
+    static long readSigned(ByteBuffer in) {
+        long value = readVarint(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Decoded columns of a block.
+     */
+    static final class Block {
+        final int[] resourceCodes;
+        final long[] timestamps;
+        final long[] passQps;
+        final long[] successQps;
+        final long[] blockQps;
+        final long[] exceptionQps;
+        final double[] rt;
+        final int[] count;
+
+        Block(int rows) {
+            resourceCodes = new int[rows];
+            timestamps = new long[rows];
+            passQps = new long[rows];
+            successQps = new long[rows];
+            blockQps = new long[rows];
+            exceptionQps = new long[rows];
+            rt = new double[rows];
+            count = new int[rows];
+        }
+
+        int size() {
+            return timestamps.length;
+        }
+    }
+}
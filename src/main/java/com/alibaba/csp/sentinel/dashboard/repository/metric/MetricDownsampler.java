@@ -0,0 +1,103 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.repository.metric;
+
+import com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntity;
+import com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricRollupEntity;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Sums the per-second metrics of a resource into buckets of a step, as the rollups do: counters
+ * and rt are summed, the peak keeps the highest pass qps of a second. The buckets are then read as
+ * per-second averages by {@link MetricRollupEntity#toMetricEntity(String)}.
+ *
+ * @author agent
+ */
+final class MetricDownsampler {
+
+    private final String app;
+    private final int resourceCode;
+    private final int step;
+    private final long stepMs;
+    private final TreeMap<Long, MetricRollupEntity> buckets = new TreeMap<>();
+
+    MetricDownsampler(String app, int resourceCode, int step) {
+        this.app = app;
+        this.resourceCode = resourceCode;
+        this.step = step;
+        this.stepMs = step * 1000L;
+    }
+
+    /**
+     * @return start of the bucket of the step holding the timestamp
+     */
+    static long bucketOf(long timestamp, int step) {
+        long stepMs = step * 1000L;
+        return timestamp / stepMs * stepMs;
+    }
+
+    void add(long timestamp, long passQps, long successQps, long blockQps, long exceptionQps, double rt, int count) {
+        MetricRollupEntity bucket = buckets.computeIfAbsent(timestamp / stepMs * stepMs, this::newBucket);
+        bucket.setPassQps(bucket.getPassQps() + passQps);
+        bucket.setSuccessQps(bucket.getSuccessQps() + successQps);
+        bucket.setBlockQps(bucket.getBlockQps() + blockQps);
+        bucket.setExceptionQps(bucket.getExceptionQps() + exceptionQps);
+        bucket.setRt(bucket.getRt() + rt);
+        bucket.setCount(bucket.getCount() + count);
+        bucket.setMaxPassQps(Math.max(bucket.getMaxPassQps(), passQps));
+    }
+
+    void add(MetricEntity entity) {
+        add(entity.getTimestamp().getTime(), valueOf(entity.getPassQps()), valueOf(entity.getSuccessQps()),
+                valueOf(entity.getBlockQps()), valueOf(entity.getExceptionQps()), entity.getRt(), entity.getCount());
+    }
+
+    /**
+     * @return the buckets in time order
+     */
+    List<MetricEntity> toMetricEntities(String resource) {
+        List<MetricEntity> results = new ArrayList<>(buckets.size());
+        for (MetricRollupEntity bucket : buckets.values()) {
+            results.add(bucket.toMetricEntity(resource));
+        }
+        return results;
+    }
+
+    private MetricRollupEntity newBucket(long bucketStart) {
+        MetricRollupEntity bucket = new MetricRollupEntity();
+        Date date = new Date();
+        bucket.setGmtCreate(date);
+        bucket.setGmtModified(date);
+        bucket.setApp(app);
+        bucket.setStep(step);
+        bucket.setResourceCode(resourceCode);
+        bucket.setTimestamp(new Date(bucketStart));
+        bucket.setPassQps(0L);
+        bucket.setSuccessQps(0L);
+        bucket.setBlockQps(0L);
+        bucket.setExceptionQps(0L);
+        bucket.setMaxPassQps(0L);
+        return bucket;
+    }
+
+    private static long valueOf(Long value) {
+        return value == null ? 0 : value;
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.repository.metric;
+
+import com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntity;
+import com.alibaba.csp.sentinel.dashboard.metric.MetricFetchStats;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import javax.annotation.PostConstruct;
+
+/**
+ * Write-through cache of the recent per-second metrics saved by this node, in front of
+ * {@link MysqlMetricsRepository}. Every {@code (app, resource)} has a ring of one slot per second
+ * of the window, filled once a batch has been stored.
+ * <p>
+ * Metrics of an app may be written by another dashboard node, so the cache only answers for the
+ * time an app has been written by this node without interruption: from the first second after its
+ * first batch, as long as the app keeps being written. Older ranges are left to the database.
+ * <p>
+ * Apps not written for a while and resources with no second left in the window are evicted as the
+ * batches are added.
+ *
+ * @author agent
+ */
+@Component
+@ConditionalOnProperty(name = "sentinel.dashboard.metric.store", havingValue = "mysql", matchIfMissing = true)
+public class MetricHotWindowCache {
+
+    /**
+     * An app not written for this long may be written by another node meanwhile.
+     */
+    private static final long STALE_MS = 1000 * 30;
+
+    private static final long EVICT_INTERVAL_MS = 1000 * 10;
+
+    @Value("${sentinel.dashboard.metric.cache.enabled:true}")
+    private boolean enabled;
+
+    @Value("${sentinel.dashboard.metric.cache.window-seconds:360}")
+    private int windowSeconds;
+
+    @Autowired
+    private MetricFetchStats fetchStats;
+
+    private final ConcurrentMap<String, AppWindow> windows = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder partialHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private volatile long lastEviction;
+
+    @PostConstruct
+    public void start() {
+        if (windowSeconds <= 0) {
+            throw new IllegalArgumentException("cache window-seconds must > 0");
+        }
+        fetchStats.register("cache.hits", hits::sum);
+        fetchStats.register("cache.hits.partial", partialHits::sum);
+        fetchStats.register("cache.misses", misses::sum);
+        fetchStats.register("cache.resources",
+                () -> windows.values().stream().mapToInt(w -> w.rings.size()).sum());
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Add the metrics just stored, their resource code set.
+     */
+    public void putAll(Collection<MetricEntity> metrics) {
+        if (!enabled) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (now - lastEviction >= EVICT_INTERVAL_MS) {
+            lastEviction = now;
+            evict(now);
+        }
+        Map<String, List<MetricEntity>> byApp = metrics.stream().collect(Collectors.groupingBy(MetricEntity::getApp));
+        for (Map.Entry<String, List<MetricEntity>> e : byApp.entrySet()) {
+            AppWindow window = windows.computeIfAbsent(e.getKey(), k -> new AppWindow());
+            long latest = 0;
+            for (MetricEntity entity : e.getValue()) {
+                window.put(MetricEntity.copyOf(entity));
+                latest = Math.max(latest, entity.getTimestamp().getTime());
+            }
+            synchronized (window) {
+                if (now - window.lastWrite > STALE_MS) {
+                    // seconds before may have been written by another node
+                    window.coveredSince = latest / 1000 * 1000 + 1000;
+                }
+                window.lastWrite = now;
+            }
+        }
+    }
+
+    /**
+     * @return the first timestamp the cache holds every metric of the app from, {@code Long.MAX_VALUE}
+     * if it holds none
+     */
+    public long coveredSince(String app, long now) {
+        AppWindow window = enabled ? windows.get(app) : null;
+        if (window == null || now - window.lastWrite > STALE_MS) {
+            return Long.MAX_VALUE;
+        }
+        // the slots of older seconds may have been taken by the last ones
+        return Math.max(window.coveredSince, (now / 1000 - windowSeconds + 2) * 1000);
+    }
+
+    /**
+     * @return the cached metrics of {@code [startTime, endTime]}, to be read from
+     * {@link #coveredSince(String, long)} on
+     */
+    public List<MetricEntity> query(String app, String resource, long startTime, long endTime) {
+        List<MetricEntity> results = new ArrayList<>();
+        AppWindow window = windows.get(app);
+        Ring ring = window == null ? null : window.rings.get(resource);
+        if (ring != null) {
+            ring.collect(startTime, endTime, results);
+        }
+        return results;
+    }
+
+    /**
+     * Drop the apps gone stale, which are not answered for anyway, and the rings whose latest second
+     * has left the window.
+     */
+    void evict(long now) {
+        long oldest = now - windowSeconds * 1000L;
+        for (Map.Entry<String, AppWindow> e : windows.entrySet()) {
+            AppWindow window = e.getValue();
+            if (now - window.lastWrite > STALE_MS) {
+                windows.remove(e.getKey(), window);
+                continue;
+            }
+            for (String resource : window.rings.keySet()) {
+                // atomic with the puts of the resource, a second just put is never dropped
+                window.rings.computeIfPresent(resource, (k, ring) -> ring.latest < oldest ? null : ring);
+            }
+        }
+    }
+
+    void recordHit(boolean partial) {
+        if (partial) {
+            partialHits.increment();
+        } else {
+            hits.increment();
+        }
+    }
+
+    void recordMiss() {
+        misses.increment();
+    }
+
+    private final class AppWindow {
+        final ConcurrentMap<String, Ring> rings = new ConcurrentHashMap<>();
+        volatile long coveredSince = Long.MAX_VALUE;
+        volatile long lastWrite;
+
+        void put(MetricEntity entity) {
+            rings.compute(entity.getResource(), (k, ring) -> {
+                if (ring == null) {
+                    ring = new Ring(windowSeconds);
+                }
+                ring.put(entity);
+                return ring;
+            });
+        }
+    }
+
+    /**
+     * One slot per second, the slot of a second holds the metric last saved for it.
+     */
+    private static final class Ring {
+        final AtomicReferenceArray<MetricEntity> slots;
+        volatile long latest;
+
+        Ring(int size) {
+            this.slots = new AtomicReferenceArray<>(size);
+        }
+
+        void put(MetricEntity entity) {
+            long second = entity.getTimestamp().getTime() / 1000;
+            int slot = (int) (second % slots.length());
+            MetricEntity old = slots.get(slot);
+            if (old == null || old.getTimestamp().getTime() / 1000 <= second) {
+                slots.set(slot, entity);
+            }
+            if (entity.getTimestamp().getTime() > latest) {
+                latest = entity.getTimestamp().getTime();
+            }
+        }
+
+        void collect(long startTime, long endTime, List<MetricEntity> results) {
+            for (long second = (startTime + 999) / 1000; second * 1000 <= endTime; second++) {
+                MetricEntity entity = slots.get((int) (second % slots.length()));
+                if (entity != null && entity.getTimestamp().getTime() / 1000 == second) {
+                    results.add(MetricEntity.copyOf(entity));
+                }
+            }
+        }
+    }
+}
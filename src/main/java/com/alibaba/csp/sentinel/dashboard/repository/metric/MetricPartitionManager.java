@@ -0,0 +1,276 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.repository.metric;
+
+import com.alibaba.csp.sentinel.concurrent.NamedThreadFactory;
+import com.alibaba.csp.sentinel.dashboard.metric.MetricFetchStats;
+import com.alibaba.csp.sentinel.dashboard.redisson.DistributedLocker;
+import com.alibaba.csp.sentinel.dashboard.repository.metric.mapper.MetricPartitionMapper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+/**
+ * Manages the daily range partitions of {@code metric_entity} and {@code metric_rollup}, see
+ * {@code sql/metric.sql} for the partitioned tables.
+ * <p>
+ * Every {@link RollupTier} has its own run of day partitions, {@code p20261018} in
+ * {@code metric_entity} and {@code p10_20261018} in {@code metric_rollup} (partitioned by
+ * {@code (step, timestamp)}), followed by a catch-all partition ({@code pmax}, {@code p10_max}).
+ * The partitions of the next days are split off the empty catch-all ahead of time, and the
+ * partitions past the retention of their tier are dropped as a whole, which unlike a {@code DELETE}
+ * costs the same whatever the row count and does not contend with the inserts. Writes and queries
+ * need no routing, MySQL prunes the partitions by the {@code timestamp} (and {@code step}) they give.
+ * <p>
+ * Tables that are not partitioned are left alone. A single dashboard node manages the partitions at a time.
+ *
+ * @author agent
+ */
+@Component
+@ConditionalOnProperty(name = "sentinel.dashboard.metric.store", havingValue = "mysql", matchIfMissing = true)
+public class MetricPartitionManager {
+
+    private static final Logger logger = LoggerFactory.getLogger(MetricPartitionManager.class);
+
+    private static final String PARTITION_LOCK = "sentinel:partition:lock";
+    private static final long RUN_INTERVAL_MINUTES = 60;
+    private static final DateTimeFormatter DAY_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd");
+    private static final String MAX_SUFFIX = "max";
+
+    @Value("${sentinel.dashboard.metric.partition.enabled:true}")
+    private boolean enabled;
+
+    @Value("${sentinel.dashboard.metric.partition.precreate-days:3}")
+    private int precreateDays;
+
+    @Value("${sentinel.dashboard.metric.partition.retention-days.second:2}")
+    private int secondRetentionDays;
+
+    @Value("${sentinel.dashboard.metric.partition.retention-days.ten-seconds:7}")
+    private int tenSecondsRetentionDays;
+
+    @Value("${sentinel.dashboard.metric.partition.retention-days.minute:30}")
+    private int minuteRetentionDays;
+
+    @Value("${sentinel.dashboard.metric.partition.retention-days.hour:365}")
+    private int hourRetentionDays;
+
+    @Autowired
+    private MetricPartitionMapper partitionMapper;
+
+    @Autowired
+    private DistributedLocker distributedLocker;
+
+    @Autowired
+    private MetricFetchStats fetchStats;
+
+    private final List<PartitionSet> partitionSets = new ArrayList<>();
+    private final Set<String> unpartitionedTables = ConcurrentHashMap.newKeySet();
+    private final LongAdder createdPartitions = new LongAdder();
+    private final LongAdder droppedPartitions = new LongAdder();
+    private ScheduledExecutorService partitionService;
+
+    @PostConstruct
+    public void start() {
+        partitionSets.add(new PartitionSet("metric_entity", null, secondRetentionDays));
+        partitionSets.add(new PartitionSet("metric_rollup", RollupTier.TEN_SECONDS, tenSecondsRetentionDays));
+        partitionSets.add(new PartitionSet("metric_rollup", RollupTier.MINUTE, minuteRetentionDays));
+        partitionSets.add(new PartitionSet("metric_rollup", RollupTier.HOUR, hourRetentionDays));
+        fetchStats.register("partition.created", createdPartitions::sum);
+        fetchStats.register("partition.dropped", droppedPartitions::sum);
+        if (!enabled) {
+            return;
+        }
+        partitionService = Executors.newSingleThreadScheduledExecutor(
+                new NamedThreadFactory("sentinel-dashboard-metrics-partition", true));
+        partitionService.scheduleWithFixedDelay(() -> {
+            try {
+                runOnce(LocalDate.now());
+            } catch (Exception e) {
+                logger.warn("Manage metric partitions error", e);
+            }
+        }, 0, RUN_INTERVAL_MINUTES, TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (partitionService != null) {
+            partitionService.shutdown();
+        }
+    }
+
+    private void runOnce(LocalDate today) {
+        if (!distributedLocker.tryLock(PARTITION_LOCK, TimeUnit.SECONDS, 0, 600)) {
+            return;
+        }
+        try {
+            for (PartitionSet set : partitionSets) {
+                manage(set, today);
+            }
+        } finally {
+            distributedLocker.unlock(PARTITION_LOCK);
+        }
+    }
+
+    private void manage(PartitionSet set, LocalDate today) {
+        if (unpartitionedTables.contains(set.table)) {
+            return;
+        }
+        List<String> partitions = partitionMapper.selectPartitions(set.table);
+        if (partitions.isEmpty()) {
+            unpartitionedTables.add(set.table);
+            logger.warn("Table {} is not partitioned, its metrics are never purged, see sql/metric.sql", set.table);
+            return;
+        }
+        if (!partitions.contains(set.maxPartition())) {
+            logger.warn("Partition {} of table {} not found, partitions left alone", set.maxPartition(), set.table);
+            return;
+        }
+        List<LocalDate> days = new ArrayList<>();
+        for (String partition : partitions) {
+            LocalDate day = set.dayOf(partition);
+            if (day != null) {
+                days.add(day);
+            }
+        }
+
+        List<LocalDate> toAdd = daysToAdd(days, today, precreateDays);
+        if (!toAdd.isEmpty()) {
+            List<String> definitions = new ArrayList<>();
+            for (LocalDate day : toAdd) {
+                definitions.add(set.definitionOf(day));
+            }
+            definitions.add(set.maxDefinition());
+            partitionMapper.reorganizePartition(set.table, set.maxPartition(), definitions);
+            createdPartitions.add(toAdd.size());
+            logger.info("Created partitions of table {} for {}", set.table, toAdd);
+        }
+
+        List<LocalDate> toDrop = daysToDrop(days, today, set.retentionDays);
+        if (!toDrop.isEmpty()) {
+            List<String> names = new ArrayList<>();
+            for (LocalDate day : toDrop) {
+                names.add(set.nameOf(day));
+            }
+            partitionMapper.dropPartitions(set.table, names);
+            droppedPartitions.add(toDrop.size());
+            logger.info("Dropped expired partitions of table {}: {}", set.table, names);
+        }
+    }
+
+    /**
+     * @return the days after the latest existing partition up to the last one to create ahead,
+     * partitions can only be added after the existing ones
+     */
+    static List<LocalDate> daysToAdd(Collection<LocalDate> existing, LocalDate today, int precreateDays) {
+        LocalDate latest = today.minusDays(1);
+        for (LocalDate day : existing) {
+            if (day.isAfter(latest)) {
+                latest = day;
+            }
+        }
+        List<LocalDate> days = new ArrayList<>();
+        for (LocalDate day = latest.plusDays(1); !day.isAfter(today.plusDays(precreateDays)); day = day.plusDays(1)) {
+            days.add(day);
+        }
+        return days;
+    }
+
+    /**
+     * @return the days whose whole partition is older than the retention
+     */
+    static List<LocalDate> daysToDrop(Collection<LocalDate> existing, LocalDate today, int retentionDays) {
+        LocalDate oldestKept = today.minusDays(Math.max(1, retentionDays));
+        List<LocalDate> days = new ArrayList<>();
+        for (LocalDate day : existing) {
+            if (day.isBefore(oldestKept)) {
+                days.add(day);
+            }
+        }
+        days.sort(null);
+        return days;
+    }
+
+    /**
+     * The day partitions of a tier in a table, {@code tier} is {@code null} for the per-second metrics.
+     */
+    static final class PartitionSet {
+        final String table;
+        final RollupTier tier;
+        final int retentionDays;
+        final String prefix;
+
+        PartitionSet(String table, RollupTier tier, int retentionDays) {
+            this.table = table;
+            this.tier = tier;
+            this.retentionDays = retentionDays;
+            this.prefix = tier == null ? "p" : "p" + tier.getStep() + "_";
+        }
+
+        String nameOf(LocalDate day) {
+            return prefix + DAY_FORMAT.format(day);
+        }
+
+        /**
+         * @return the day of the partition, {@code null} if not a day partition of this set
+         */
+        LocalDate dayOf(String partition) {
+            if (!partition.startsWith(prefix) || partition.length() != prefix.length() + 8) {
+                return null;
+            }
+            try {
+                return LocalDate.parse(partition.substring(prefix.length()), DAY_FORMAT);
+            } catch (DateTimeParseException e) {
+                return null;
+            }
+        }
+
+        String maxPartition() {
+            return prefix + MAX_SUFFIX;
+        }
+
+        String definitionOf(LocalDate day) {
+            String bound = "'" + day.plusDays(1) + " 00:00:00'";
+            return "partition " + nameOf(day) + " values less than ("
+                    + (tier == null ? bound : tier.getStep() + ", " + bound) + ")";
+        }
+
+        String maxDefinition() {
+            return "partition " + maxPartition() + " values less than ("
+                    + (tier == null ? "maxvalue" : tier.getStep() + ", maxvalue") + ")";
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.repository.metric;
+
+import com.alibaba.csp.sentinel.concurrent.NamedThreadFactory;
+import com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricRollupEntity;
+import com.alibaba.csp.sentinel.dashboard.metric.MetricFetchStats;
+import com.alibaba.csp.sentinel.dashboard.redisson.DistributedLocker;
+import com.alibaba.csp.sentinel.dashboard.repository.metric.mapper.MetricRollupMapper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+/**
+ * Rolls the per-second metrics up into the coarser {@link RollupTier}s of {@code metric_rollup},
+ * each tier from the one below it.
+ * <p>
+ * Every run recomputes the buckets from a lookback before the tier's cursor up to now and upserts
+ * them, so rows written late (backfilled seconds, replayed batches) are folded in by the next run,
+ * and a bucket still filling up is completed later. Counters are summed, and so is the summary rt,
+ * so {@code rt / successQps} stays the average rt weighted by the success qps. A single dashboard
+ * node rolls up at a time.
+ *
+ * @author agent
+ */
+@Component
+@ConditionalOnProperty(name = "sentinel.dashboard.metric.store", havingValue = "mysql", matchIfMissing = true)
+public class MetricRollupService {
+
+    private static final Logger logger = LoggerFactory.getLogger(MetricRollupService.class);
+
+    private static final String ROLLUP_LOCK = "sentinel:rollup:lock";
+    private static final long RUN_INTERVAL_SECONDS = 10;
+    /**
+     * A tier with no bucket yet starts this far back.
+     */
+    private static final long INITIAL_BACKFILL_MS = 1000L * 60 * 60 * 24;
+    private static final int UPSERT_BATCH_SIZE = 1000;
+
+    @Value("${sentinel.dashboard.metric.rollup.enabled:true}")
+    private boolean enabled;
+
+    @Autowired
+    private MetricRollupMapper rollupMapper;
+
+    @Autowired
+    private DistributedLocker distributedLocker;
+
+    @Autowired
+    private MetricFetchStats fetchStats;
+
+    private final List<TierJob> jobs = new ArrayList<>();
+    private final LongAdder rolledUpBuckets = new LongAdder();
+    private ScheduledExecutorService rollupService;
+
+    @PostConstruct
+    public void start() {
+        // lookback: how late the rows of the source tier may still change
+        jobs.add(new TierJob(RollupTier.TEN_SECONDS, 1000L * 60 * 3, 1000L * 10, 1000L * 60 * 60));
+        jobs.add(new TierJob(RollupTier.MINUTE, 1000L * 60 * 5, 1000L * 60, 1000L * 60 * 60 * 6));
+        jobs.add(new TierJob(RollupTier.HOUR, 1000L * 60 * 60 * 2, 1000L * 60 * 5, 1000L * 60 * 60 * 24 * 2));
+        fetchStats.register("rollup.buckets", rolledUpBuckets::sum);
+        for (TierJob job : jobs) {
+            fetchStats.register("rollup.lagMs." + job.tier.getStep() + "s",
+                    () -> job.cursor == 0 ? 0 : System.currentTimeMillis() - job.cursor);
+        }
+        if (!enabled) {
+            return;
+        }
+        rollupService = Executors.newSingleThreadScheduledExecutor(
+                new NamedThreadFactory("sentinel-dashboard-metrics-rollup", true));
+        rollupService.scheduleWithFixedDelay(() -> {
+            try {
+                runOnce(System.currentTimeMillis());
+            } catch (Exception e) {
+                logger.warn("Roll up metrics error", e);
+            }
+        }, RUN_INTERVAL_SECONDS, RUN_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (rollupService != null) {
+            rollupService.shutdown();
+        }
+    }
+
+    private void runOnce(long now) {
+        if (!distributedLocker.tryLock(ROLLUP_LOCK, TimeUnit.SECONDS, 0, 60)) {
+            // another node rolls up, its cursors are reloaded if this node takes over
+            for (TierJob job : jobs) {
+                job.cursor = 0;
+                job.lastRun = 0;
+            }
+            return;
+        }
+        try {
+            // finer tiers first, they are the source of the coarser ones
+            long sourceCursor = now;
+            for (TierJob job : jobs) {
+                if (sourceCursor > 0 && now - job.lastRun >= job.intervalMs) {
+                    rollup(job, Math.min(now, sourceCursor));
+                    job.lastRun = now;
+                }
+                sourceCursor = job.cursor;
+            }
+        } finally {
+            distributedLocker.unlock(ROLLUP_LOCK);
+        }
+    }
+
+    /**
+     * @param until end of the range the source tier is rolled up to
+     */
+    private void rollup(TierJob job, long until) {
+        int step = job.tier.getStep();
+        long stepMs = step * 1000L;
+        if (job.cursor == 0) {
+            Date latest = rollupMapper.selectLatest(step);
+            job.cursor = latest == null ? until - INITIAL_BACKFILL_MS : latest.getTime();
+        }
+        long start = (job.cursor - job.lookbackMs) / stepMs * stepMs;
+        long end = Math.min(until, start + job.maxSpanMs);
+        if (end <= start) {
+            return;
+        }
+        RollupTier source = job.tier.getSource();
+        List<MetricRollupEntity> buckets = source == RollupTier.SECOND
+                ? rollupMapper.rollupSeconds(step, new Date(start), new Date(end))
+                : rollupMapper.rollupTier(source.getStep(), step, new Date(start), new Date(end));
+        Date date = new Date();
+        for (MetricRollupEntity bucket : buckets) {
+            bucket.setGmtCreate(date);
+            bucket.setGmtModified(date);
+        }
+        for (int i = 0; i < buckets.size(); i += UPSERT_BATCH_SIZE) {
+            rollupMapper.upsertBatch(buckets.subList(i, Math.min(buckets.size(), i + UPSERT_BATCH_SIZE)));
+        }
+        rolledUpBuckets.add(buckets.size());
+        // the buckets before the lookback are final, so the cursor moves on even across gaps of no data
+        job.cursor = Math.max(job.cursor, end);
+        logger.debug("Rolled up {} buckets of {}s in [{}, {})", buckets.size(), step, start, end);
+    }
+
+    private static final class TierJob {
+        final RollupTier tier;
+        final long lookbackMs;
+        final long intervalMs;
+        /**
+         * Longest range rolled up at once, so the backfill of a new tier is spread over several runs.
+         */
+        final long maxSpanMs;
+        volatile long cursor;
+        long lastRun;
+
+        TierJob(RollupTier tier, long lookbackMs, long intervalMs, long maxSpanMs) {
+            this.tier = tier;
+            this.lookbackMs = lookbackMs;
+            this.intervalMs = intervalMs;
+            this.maxSpanMs = maxSpanMs;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.repository.metric;
+
+/**
+ * Receives the metrics of a query as they are read, resource by resource, see
+ * {@link MetricsRepository#streamByAppAndResourcesBetween}.
+ *
+ * @author agent
+ */
+public interface MetricRowHandler {
+
+    void startResource(String resource);
+
+    /**
+     * A metric of the current resource, after the metrics of earlier timestamps.
+     *
+     * @param rt average rt
+     */
+    void row(long timestamp, long passQps, long successQps, long blockQps, long exceptionQps, double rt, int count,
+             long maxPassQps);
+
+    void endResource(String resource);
+}
@@ -15,8 +15,12 @@
  */
 package com.alibaba.csp.sentinel.dashboard.repository.metric;
 
+import com.alibaba.csp.sentinel.dashboard.domain.vo.MetricSeries;
+
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Repository interface for aggregated metrics data.
@@ -33,6 +37,14 @@ public interface MetricsRepository<T> {
      */
     void saveAll(Collection<T> metrics);
 
+    /**
+     * Save the metrics whose {@code app/resource/timestamp} is not in the storage repository yet,
+     * so saving the same metrics again has no effect.
+     *
+     * @param metrics metrics to save
+     */
+    void saveAllIfAbsent(Collection<T> metrics);
+
     /**
      * Get all metrics by {@code appName} and {@code resourceName} between a period of time.
      *
@@ -44,6 +56,92 @@ public interface MetricsRepository<T> {
      */
     List<T> queryByAppAndResourceBetween(String app, String resource, long startTime, long endTime);
 
+    /**
+     * Get metrics by {@code appName} and {@code resourceName} between a period of time, in buckets of
+     * the resolution summed up from the coarsest {@link RollupTier} at least as fine. A metric of a
+     * bucket holds the per-second average of the bucket, the average rt weighted by the success qps
+     * and the peak pass qps of a second.
+     *
+     * @param app        application name for Sentinel
+     * @param resource   resource name
+     * @param startTime  start timestamp
+     * @param endTime    end timestamp
+     * @param resolution wanted resolution in seconds, rounded up by {@link RollupTier#alignStep(int)}
+     * @return all metrics in query conditions
+     */
+    default List<T> queryByAppAndResourceBetween(String app, String resource, long startTime, long endTime,
+                                                 int resolution) {
+        return queryByAppAndResourceBetween(app, resource, startTime, endTime);
+    }
+
+    /**
+     * Get metrics of several resources of {@code appName} between a period of time at once, as
+     * {@link #queryByAppAndResourceBetween(String, String, long, long, int)} does for a single one.
+     *
+     * @param app        application name for Sentinel
+     * @param resources  resource names
+     * @param startTime  start timestamp
+     * @param endTime    end timestamp
+     * @param resolution wanted resolution in seconds
+     * @return metrics by resource name, the resources with no metrics are absent
+     */
+    default Map<String, List<T>> queryByAppAndResourcesBetween(String app, Collection<String> resources,
+                                                               long startTime, long endTime, int resolution) {
+        Map<String, List<T>> results = new HashMap<>();
+        for (String resource : resources) {
+            List<T> metrics = queryByAppAndResourceBetween(app, resource, startTime, endTime, resolution);
+            if (metrics != null && !metrics.isEmpty()) {
+                results.put(resource, metrics);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Get metrics of several resources of {@code appName} between a period of time at once, as
+     * {@link #queryByAppAndResourcesBetween(String, Collection, long, long, int)} does, every resource
+     * as a series in time order with a single metric per timestamp.
+     *
+     * @param app        application name for Sentinel
+     * @param resources  resource names
+     * @param startTime  start timestamp
+     * @param endTime    end timestamp
+     * @param resolution wanted resolution in seconds
+     * @return series by resource name, the resources with no metrics are absent
+     */
+    Map<String, MetricSeries> querySeriesByAppAndResourcesBetween(String app, Collection<String> resources,
+                                                                 long startTime, long endTime, int resolution);
+
+    /**
+     * Pass the metrics of several resources of {@code appName} between a period of time to the handler
+     * as they are read, as {@link #querySeriesByAppAndResourcesBetween(String, Collection, long, long, int)}
+     * would return them. The resources are handled in the given order, those with no metrics too.
+     * <p>
+     * The default implementation reads all the series first.
+     *
+     * @param app        application name for Sentinel
+     * @param resources  resource names
+     * @param startTime  start timestamp
+     * @param endTime    end timestamp
+     * @param resolution wanted resolution in seconds
+     * @param handler    handler of the metrics
+     */
+    default void streamByAppAndResourcesBetween(String app, List<String> resources, long startTime, long endTime,
+                                                int resolution, MetricRowHandler handler) {
+        Map<String, MetricSeries> results = querySeriesByAppAndResourcesBetween(app, resources, startTime, endTime,
+                resolution);
+        for (String resource : resources) {
+            handler.startResource(resource);
+            MetricSeries series = results.getOrDefault(resource, MetricSeries.empty());
+            for (int i = 0; i < series.size(); i++) {
+                handler.row(series.getTimestamp(i), series.getPassQps(i), series.getSuccessQps(i),
+                        series.getBlockQps(i), series.getExceptionQps(i), series.getRt(i), series.getCount(i),
+                        series.getMaxPassQps(i));
+            }
+            handler.endResource(resource);
+        }
+    }
+
     /**
      * List resource name of provided application name.
      *
@@ -16,65 +16,457 @@
 package com.alibaba.csp.sentinel.dashboard.repository.metric;
 
 import com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntity;
+import com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricRollupEntity;
+import com.alibaba.csp.sentinel.dashboard.domain.vo.MetricSeries;
+import com.alibaba.csp.sentinel.dashboard.repository.metric.mapper.MetricRollupMapper;
 import com.alibaba.csp.sentinel.dashboard.repository.metric.mapper.MetricsMapper;
 import com.alibaba.csp.sentinel.util.StringUtil;
 import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import java.util.ArrayList;
-import java.util.Calendar;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 /**
- * Caches metrics data in a period of time in memory.
+ * Stores the metrics in MySQL: per-second rows in {@code metric_entity}, keyed by the id of their
+ * resource in the {@link ResourceDictionary}, written by multi-row inserts, and the buckets of the
+ * coarser tiers in {@code metric_rollup}. Recent seconds are served from the {@link MetricHotWindowCache}.
  *
  * @author Carpenter Lee
  * @author Eric Zhao
  */
 @Component
+@ConditionalOnProperty(name = "sentinel.dashboard.metric.store", havingValue = "mysql", matchIfMissing = true)
 public class MysqlMetricsRepository extends ServiceImpl<MetricsMapper, MetricEntity> implements MetricsRepository<MetricEntity> {
 
+    private static final int MAX_ROWS_PER_STATEMENT = 5000;
+
+    @Autowired
+    private ResourceDictionary resourceDictionary;
+
+    @Autowired
+    private MetricRollupMapper rollupMapper;
+
+    @Autowired
+    private MetricHotWindowCache hotWindowCache;
+
+    @Autowired
+    private ResourceIndex resourceIndex;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    /**
+     * Rows per multi-row insert, bounded so the statement stays below the 65535 placeholders
+     * of a server-side prepared statement.
+     */
+    @Value("${sentinel.dashboard.metric.insert.rows-per-statement:1000}")
+    private int rowsPerStatement;
+
+    /**
+     * Metrics are inserted by multi-row {@code INSERT ... VALUES} statements, the metrics of any apps
+     * together, and their generated ids are not read back.
+     * <p>
+     * The ids of new resources are created first, each committed on its own, so they stay valid
+     * whatever becomes of the inserts, and a resource created meanwhile by another node is read
+     * from a fresh snapshot. Only the inserts share a transaction.
+     */
     @Override
     public void saveAll(Collection<MetricEntity> metrics) {
-        if (metrics == null) {
+        if (metrics == null || metrics.isEmpty()) {
             return;
         }
+        for (MetricEntity entity : metrics) {
+            entity.setResourceCode(resourceDictionary.idOf(entity.getApp(), entity.getResource()));
+        }
         List<MetricEntity> collect = metrics.stream().sorted(Comparator.comparing(MetricEntity::getTimestamp)).collect(Collectors.toList());
-        this.saveBatch(collect);
+        int rows = Math.max(1, Math.min(rowsPerStatement, MAX_ROWS_PER_STATEMENT));
+        transactionTemplate.executeWithoutResult(status -> {
+            for (int i = 0; i < collect.size(); i += rows) {
+                this.baseMapper.insertBatch(collect.subList(i, Math.min(collect.size(), i + rows)));
+            }
+        });
+        // within the transaction of a caller, the metrics are saved once it commits
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    saved(collect);
+                }
+            });
+        } else {
+            saved(collect);
+        }
+    }
 
+    private void saved(List<MetricEntity> metrics) {
+        hotWindowCache.putAll(metrics);
+        resourceIndex.record(metrics);
+    }
+
+    @Override
+    public void saveAllIfAbsent(Collection<MetricEntity> metrics) {
+        if (metrics == null || metrics.isEmpty()) {
+            return;
+        }
+        Map<String, List<MetricEntity>> byApp = metrics.stream().collect(Collectors.groupingBy(MetricEntity::getApp));
+        List<MetricEntity> absent = new ArrayList<>(metrics.size());
+        for (Map.Entry<String, List<MetricEntity>> e : byApp.entrySet()) {
+            long start = Long.MAX_VALUE;
+            long end = Long.MIN_VALUE;
+            for (MetricEntity entity : e.getValue()) {
+                start = Math.min(start, entity.getTimestamp().getTime());
+                end = Math.max(end, entity.getTimestamp().getTime());
+            }
+            LambdaQueryWrapper<MetricEntity> wrapper = new LambdaQueryWrapper<>();
+            wrapper.select(MetricEntity::getResourceCode, MetricEntity::getTimestamp);
+            wrapper.eq(MetricEntity::getApp, e.getKey());
+            wrapper.ge(MetricEntity::getTimestamp, new Date(start));
+            wrapper.le(MetricEntity::getTimestamp, new Date(end));
+            Set<String> stored = new HashSet<>();
+            for (MetricEntity entity : this.baseMapper.selectList(wrapper)) {
+                stored.add(entity.getResourceCode() + "|" + entity.getTimestamp().getTime());
+            }
+            for (MetricEntity entity : e.getValue()) {
+                Integer code = resourceDictionary.findId(entity.getApp(), entity.getResource());
+                if (code == null || !stored.contains(code + "|" + entity.getTimestamp().getTime())) {
+                    absent.add(entity);
+                }
+            }
+        }
+        if (!absent.isEmpty()) {
+            saveAll(absent);
+        }
     }
 
     @Override
     public List<MetricEntity> queryByAppAndResourceBetween(String app, String resource,
                                                            long startTime, long endTime) {
-        List<MetricEntity> results = new ArrayList<>();
-        if (StringUtil.isBlank(app)) {
+        return queryByAppAndResourceBetween(app, resource, startTime, endTime, 1);
+    }
+
+    @Override
+    public List<MetricEntity> queryByAppAndResourceBetween(String app, String resource, long startTime,
+                                                           long endTime, int resolution) {
+        List<MetricEntity> results = queryByAppAndResourcesBetween(app, Collections.singletonList(resource),
+                startTime, endTime, resolution).get(resource);
+        return results == null ? new ArrayList<>() : results;
+    }
+
+    /**
+     * The resources are read by a single query on their ids. Per-second metrics that are recent are
+     * read from the {@link MetricHotWindowCache}, the older ones from the database. Buckets coarser than
+     * their tier are summed up by the database for the rollup tiers, and here for the per-second metrics.
+     */
+    @Override
+    public Map<String, List<MetricEntity>> queryByAppAndResourcesBetween(String app, Collection<String> resources,
+                                                                        long startTime, long endTime,
+                                                                        int resolution) {
+        Map<String, List<MetricEntity>> results = new HashMap<>();
+        if (StringUtil.isBlank(app) || resources == null || resources.isEmpty()) {
+            return results;
+        }
+        Map<Integer, String> names = new HashMap<>();
+        for (String resource : resources) {
+            Integer code = resourceDictionary.findId(app, resource);
+            if (code != null) {
+                names.put(code, resource);
+            }
+        }
+        if (names.isEmpty()) {
             return results;
         }
+        int step = RollupTier.alignStep(resolution);
+        RollupTier tier = RollupTier.coarsestFor(step);
+        if (tier != RollupTier.SECOND) {
+            selectRollups(app, tier, step, names, startTime, endTime, results);
+            return results;
+        }
+        selectSeconds(app, names, MetricDownsampler.bucketOf(startTime, step), endTime, results);
+        if (step > 1) {
+            for (Map.Entry<Integer, String> e : names.entrySet()) {
+                List<MetricEntity> seconds = results.get(e.getValue());
+                if (seconds == null) {
+                    continue;
+                }
+                MetricDownsampler sampler = new MetricDownsampler(app, e.getKey(), step);
+                for (MetricEntity entity : seconds) {
+                    sampler.add(entity);
+                }
+                results.put(e.getValue(), sampler.toMetricEntities(e.getValue()));
+            }
+        }
+        return results;
+    }
+
+    private void selectSeconds(String app, Map<Integer, String> names, long startTime, long endTime,
+                               Map<String, List<MetricEntity>> results) {
+        long cachedSince = hotWindowCache.coveredSince(app, System.currentTimeMillis());
+        if (endTime < cachedSince) {
+            if (hotWindowCache.isEnabled()) {
+                hotWindowCache.recordMiss();
+            }
+            selectBetween(app, names, startTime, endTime, results);
+            return;
+        }
+        hotWindowCache.recordHit(startTime < cachedSince);
+        if (startTime < cachedSince) {
+            selectBetween(app, names, startTime, cachedSince - 1, results);
+        }
+        // after the older seconds from the database, so the metrics stay in time order
+        for (String resource : names.values()) {
+            List<MetricEntity> cached = hotWindowCache.query(app, resource, Math.max(startTime, cachedSince), endTime);
+            if (!cached.isEmpty()) {
+                results.computeIfAbsent(resource, k -> new ArrayList<>()).addAll(cached);
+            }
+        }
+    }
+
+    /**
+     * @param names resource name by id
+     */
+    private void selectBetween(String app, Map<Integer, String> names, long startTime, long endTime,
+                               Map<String, List<MetricEntity>> results) {
         LambdaQueryWrapper<MetricEntity> wrapper = new LambdaQueryWrapper<>();
         wrapper.eq(MetricEntity::getApp, app);
-        wrapper.eq(MetricEntity::getResource, resource);
+        wrapper.in(MetricEntity::getResourceCode, names.keySet());
         wrapper.ge(MetricEntity::getTimestamp, new Date(startTime));
         wrapper.le(MetricEntity::getTimestamp, new Date(endTime));
-        return this.baseMapper.selectList(wrapper);
+        // the order of idx_app_resource_timestamp, which ends with the primary key, no sort needed.
+        // Of a second saved twice the later row wins, see MetricSeries.Builder
+        wrapper.orderByAsc(MetricEntity::getResourceCode, MetricEntity::getTimestamp, MetricEntity::getId);
+        for (MetricEntity entity : this.baseMapper.selectList(wrapper)) {
+            String name = names.get(entity.getResourceCode());
+            entity.setResource(name);
+            results.computeIfAbsent(name, k -> new ArrayList<>()).add(entity);
+        }
     }
 
+    /**
+     * @param step bucket size of the metrics returned, a multiple of the step of the tier
+     */
+    private void selectRollups(String app, RollupTier tier, int step, Map<Integer, String> names, long startTime,
+                               long endTime, Map<String, List<MetricEntity>> results) {
+        Date start = new Date(MetricDownsampler.bucketOf(startTime, step));
+        List<MetricRollupEntity> buckets;
+        if (step == tier.getStep()) {
+            LambdaQueryWrapper<MetricRollupEntity> wrapper = new LambdaQueryWrapper<>();
+            wrapper.eq(MetricRollupEntity::getApp, app);
+            wrapper.eq(MetricRollupEntity::getStep, tier.getStep());
+            wrapper.in(MetricRollupEntity::getResourceCode, names.keySet());
+            wrapper.ge(MetricRollupEntity::getTimestamp, start);
+            wrapper.le(MetricRollupEntity::getTimestamp, new Date(endTime));
+            wrapper.orderByAsc(MetricRollupEntity::getResourceCode, MetricRollupEntity::getTimestamp);
+            buckets = rollupMapper.selectList(wrapper);
+        } else {
+            buckets = rollupMapper.selectBuckets(app, tier.getStep(), step, names.keySet(), start, new Date(endTime));
+        }
+        for (MetricRollupEntity rollup : buckets) {
+            String name = names.get(rollup.getResourceCode());
+            results.computeIfAbsent(name, k -> new ArrayList<>()).add(rollup.toMetricEntity(name));
+        }
+    }
+
+    /**
+     * The metrics of every resource are read in time order, from the database and then the cache, so
+     * the series are built without sorting. Per-second metrics go through
+     * {@link #streamByAppAndResourcesBetween}, without a {@link MetricEntity} kept per row; the whole
+     * result is read before returning, so the connection is not held by the caller.
+     */
     @Override
-    public List<String> listResourcesOfApp(String app) {
-        List<String> results = new ArrayList<>();
-        if (StringUtil.isBlank(app)) {
+    public Map<String, MetricSeries> querySeriesByAppAndResourcesBetween(String app, Collection<String> resources,
+                                                                        long startTime, long endTime,
+                                                                        int resolution) {
+        Map<String, MetricSeries> results = new HashMap<>();
+        if (StringUtil.isBlank(app) || resources == null || resources.isEmpty()) {
+            return results;
+        }
+        if (RollupTier.alignStep(resolution) > 1) {
+            queryByAppAndResourcesBetween(app, resources, startTime, endTime, resolution)
+                    .forEach((resource, metrics) -> results.put(resource, MetricSeries.of(metrics)));
             return results;
         }
-        Calendar instance = Calendar.getInstance();
-        instance.add(Calendar.HOUR, -1);
+        streamByAppAndResourcesBetween(app, new ArrayList<>(resources), startTime, endTime, resolution,
+                new MetricRowHandler() {
+                    private MetricSeries.Builder builder;
+
+                    @Override
+                    public void startResource(String resource) {
+                        builder = new MetricSeries.Builder(64);
+                    }
+
+                    @Override
+                    public void row(long timestamp, long passQps, long successQps, long blockQps,
+                                    long exceptionQps, double rt, int count, long maxPassQps) {
+                        builder.add(timestamp, passQps, successQps, blockQps, exceptionQps, rt, count, maxPassQps);
+                    }
+
+                    @Override
+                    public void endResource(String resource) {
+                        MetricSeries series = builder.build();
+                        if (series.size() > 0) {
+                            results.put(resource, series);
+                        }
+                    }
+                });
+        return results;
+    }
+
+    /**
+     * Per-second metrics are streamed from the database, then from the {@link MetricHotWindowCache}
+     * for every resource, so only the row being handled is in memory. Coarser steps are read at once,
+     * their bucket count is bounded by the max query interval of their tier.
+     */
+    @Override
+    public void streamByAppAndResourcesBetween(String app, List<String> resources, long startTime, long endTime,
+                                               int resolution, MetricRowHandler handler) {
+        if (StringUtil.isBlank(app) || RollupTier.alignStep(resolution) > 1) {
+            MetricsRepository.super.streamByAppAndResourcesBetween(app, resources, startTime, endTime, resolution,
+                    handler);
+            return;
+        }
+        List<Integer> codes = new ArrayList<>(resources.size());
+        for (String resource : resources) {
+            Integer code = resourceDictionary.findId(app, resource);
+            if (code != null) {
+                codes.add(code);
+            }
+        }
+        long cachedSince = hotWindowCache.coveredSince(app, System.currentTimeMillis());
+        ResourceCursor cursor = new ResourceCursor(app, resources, Math.max(startTime, cachedSince), endTime, handler);
+        if (!codes.isEmpty() && startTime < cachedSince) {
+            if (endTime < cachedSince) {
+                if (hotWindowCache.isEnabled()) {
+                    hotWindowCache.recordMiss();
+                }
+            } else {
+                hotWindowCache.recordHit(true);
+            }
+            this.baseMapper.streamBetween(app, codes, new Date(startTime), new Date(Math.min(endTime, cachedSince - 1)),
+                    context -> cursor.row(context.getResultObject()));
+        } else if (!codes.isEmpty()) {
+            hotWindowCache.recordHit(false);
+        }
+        cursor.finish();
+    }
+
+    /**
+     * Walks the resources in order along the rows streamed, each resource closed by its cached seconds.
+     * A row is held until the next one, so of a second saved twice the later row is passed on, as
+     * {@link MetricSeries.Builder} keeps it.
+     */
+    private final class ResourceCursor {
+        final String app;
+        final List<String> resources;
+        final long cacheStart;
+        final long cacheEnd;
+        final MetricRowHandler handler;
+        int current = -1;
+        int currentCode;
+        boolean matched;
+        MetricEntity pending;
+
+        ResourceCursor(String app, List<String> resources, long cacheStart, long cacheEnd, MetricRowHandler handler) {
+            this.app = app;
+            this.resources = resources;
+            this.cacheStart = cacheStart;
+            this.cacheEnd = cacheEnd;
+            this.handler = handler;
+        }
+
+        void row(MetricEntity entity) {
+            if (current < 0 || entity.getResourceCode() != currentCode) {
+                currentCode = entity.getResourceCode();
+                String name = resourceDictionary.nameOf(currentCode);
+                matched = false;
+                while (!matched && current < resources.size() - 1) {
+                    next();
+                    matched = resources.get(current).equals(name);
+                }
+            }
+            if (matched) {
+                emit(entity);
+            }
+        }
 
-        return this.baseMapper.selectResource(app, instance.getTime());
+        void finish() {
+            while (current < resources.size() - 1) {
+                next();
+            }
+            if (current >= 0) {
+                close();
+            }
+        }
+
+        private void next() {
+            if (current >= 0) {
+                close();
+            }
+            current++;
+            handler.startResource(resources.get(current));
+        }
+
+        private void close() {
+            String resource = resources.get(current);
+            if (cacheStart <= cacheEnd) {
+                for (MetricEntity entity : hotWindowCache.query(app, resource, cacheStart, cacheEnd)) {
+                    emit(entity);
+                }
+            }
+            if (pending != null) {
+                pass(pending);
+                pending = null;
+            }
+            handler.endResource(resource);
+        }
 
+        private void emit(MetricEntity entity) {
+            if (pending != null) {
+                long timestamp = entity.getTimestamp().getTime();
+                long pendingTimestamp = pending.getTimestamp().getTime();
+                if (timestamp < pendingTimestamp) {
+                    return;
+                }
+                if (timestamp > pendingTimestamp) {
+                    pass(pending);
+                }
+            }
+            // a single metric per second, the later one
+            pending = entity;
+        }
+
+        private void pass(MetricEntity entity) {
+            long timestamp = entity.getTimestamp().getTime();
+            long pass = entity.getPassQps() == null ? 0 : entity.getPassQps();
+            long success = entity.getSuccessQps() == null ? 0 : entity.getSuccessQps();
+            handler.row(timestamp, pass, success, entity.getBlockQps() == null ? 0 : entity.getBlockQps(),
+                    entity.getExceptionQps() == null ? 0 : entity.getExceptionQps(),
+                    success == 0 ? 0 : entity.getRt() / success, entity.getCount(), pass);
+        }
+    }
+
+    @Override
+    public List<String> listResourcesOfApp(String app) {
+        if (StringUtil.isBlank(app)) {
+            return new ArrayList<>();
+        }
+        return resourceIndex.resourcesOf(app, System.currentTimeMillis() - ResourceIndex.WINDOW_MS);
     }
 }
@@ -0,0 +1,154 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.repository.metric;
+
+import com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricResourceEntity;
+import com.alibaba.csp.sentinel.dashboard.repository.metric.mapper.MetricResourceMapper;
+import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.stereotype.Component;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Dictionary of the resource names of every app, persisted in {@code metric_resource}. A resource
+ * is stored and looked up in {@code metric_entity} by its integer id ({@code resource_code}), so
+ * rows and indexes no longer hold the name, and the queries compare ids instead of strings.
+ * <p>
+ * The entries of an app are loaded at once on first use and cached for good, entries created by
+ * other dashboard nodes are looked up on a miss. Ids are unique across apps and never reused.
+ * {@code metric_resource.resource} is a binary column, so names differing only in case or accents
+ * have ids of their own, and the name cached is always the name looked up.
+ *
+ * @author agent
+ */
+@Component
+@ConditionalOnProperty(name = "sentinel.dashboard.metric.store", havingValue = "mysql", matchIfMissing = true)
+public class ResourceDictionary {
+
+    @Autowired
+    private MetricResourceMapper resourceMapper;
+
+    /**
+     * app -> resource -> id
+     */
+    private final ConcurrentMap<String, ConcurrentMap<String, Integer>> ids = new ConcurrentHashMap<>();
+    /**
+     * id -> canonical resource name
+     */
+    private final ConcurrentMap<Integer, String> names = new ConcurrentHashMap<>();
+
+    /**
+     * @return id of the resource, created if the resource is new
+     */
+    public int idOf(String app, String resource) {
+        Integer id = findId(app, resource);
+        if (id != null) {
+            return id;
+        }
+        MetricResourceEntity entity = new MetricResourceEntity();
+        entity.setApp(app);
+        entity.setResource(resource);
+        entity.setGmtCreate(new Date());
+        try {
+            resourceMapper.insert(entity);
+        } catch (DuplicateKeyException e) {
+            // created by another node meanwhile
+            entity = selectOne(app, resource);
+            if (entity == null) {
+                throw e;
+            }
+        }
+        return cache(entity);
+    }
+
+    /**
+     * @return id of the resource, {@code null} if the resource has never been stored
+     */
+    public Integer findId(String app, String resource) {
+        Integer id = resourcesOf(app).get(resource);
+        if (id != null) {
+            return id;
+        }
+        MetricResourceEntity entity = selectOne(app, resource);
+        return entity == null ? null : cache(entity);
+    }
+
+    /**
+     * @return name of the resource, {@code null} if the id is unknown
+     */
+    public String nameOf(int id) {
+        String name = names.get(id);
+        if (name != null) {
+            return name;
+        }
+        MetricResourceEntity entity = resourceMapper.selectById(id);
+        if (entity == null) {
+            return null;
+        }
+        cache(entity);
+        return names.get(id);
+    }
+
+    /**
+     * @return resource -> id of all resources of the app known so far
+     */
+    public Map<String, Integer> resourcesOf(String app) {
+        ConcurrentMap<String, Integer> resources = ids.get(app);
+        if (resources != null) {
+            return resources;
+        }
+        synchronized (this) {
+            resources = ids.get(app);
+            if (resources != null) {
+                return resources;
+            }
+            resources = new ConcurrentHashMap<>();
+            LambdaQueryWrapper<MetricResourceEntity> wrapper = new LambdaQueryWrapper<>();
+            wrapper.eq(MetricResourceEntity::getApp, app);
+            List<MetricResourceEntity> entities = resourceMapper.selectList(wrapper);
+            for (MetricResourceEntity entity : entities) {
+                String name = names.computeIfAbsent(entity.getId(), k -> entity.getResource());
+                resources.put(name, entity.getId());
+            }
+            ids.put(app, resources);
+            return resources;
+        }
+    }
+
+    private MetricResourceEntity selectOne(String app, String resource) {
+        LambdaQueryWrapper<MetricResourceEntity> wrapper = new LambdaQueryWrapper<>();
+        wrapper.eq(MetricResourceEntity::getApp, app);
+        wrapper.eq(MetricResourceEntity::getResource, resource);
+        return resourceMapper.selectOne(wrapper);
+    }
+
+    private int cache(MetricResourceEntity entity) {
+        String name = names.computeIfAbsent(entity.getId(), k -> entity.getResource());
+        ConcurrentMap<String, Integer> resources = ids.get(entity.getApp());
+        if (resources != null) {
+            resources.putIfAbsent(name, entity.getId());
+        }
+        return entity.getId();
+    }
+}
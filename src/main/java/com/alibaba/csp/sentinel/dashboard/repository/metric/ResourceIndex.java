@@ -0,0 +1,308 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.repository.metric;
+
+import com.alibaba.csp.sentinel.concurrent.NamedThreadFactory;
+import com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntity;
+import com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricResourceEntity;
+import com.alibaba.csp.sentinel.dashboard.metric.MetricFetchStats;
+import com.alibaba.csp.sentinel.dashboard.repository.metric.mapper.MetricResourceMapper;
+import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+/**
+ * Index of the resources of every app with metrics in the last hour, so listing the resources of
+ * an app takes the count of its resources instead of a scan of its rows of the last hour.
+ * <p>
+ * Every resource keeps the time its metrics were last saved and its totals of the last hour, in
+ * one-minute buckets, updated as metrics are saved by this node. The entries updated are written
+ * to {@code metric_resource} every few seconds, and the entries written by other nodes are read
+ * back from it, so every node lists the resources of all apps.
+ *
+ * @author agent
+ */
+@Component
+@ConditionalOnProperty(name = "sentinel.dashboard.metric.store", havingValue = "mysql", matchIfMissing = true)
+public class ResourceIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(ResourceIndex.class);
+
+    static final long WINDOW_MS = 1000 * 60 * 60;
+    private static final int BUCKETS = 60;
+    private static final long BUCKET_MS = WINDOW_MS / BUCKETS;
+    private static final long SYNC_INTERVAL_SECONDS = 15;
+    private static final int ROWS_PER_STATEMENT = 500;
+    /**
+     * An entry saved by this node lately is not overwritten by the one read back.
+     */
+    private static final long LOCAL_MS = 1000 * 60;
+
+    @Autowired
+    private MetricResourceMapper resourceMapper;
+
+    @Autowired
+    private MetricFetchStats fetchStats;
+
+    /**
+     * app -> resource id -> stats
+     */
+    private final ConcurrentMap<String, ConcurrentMap<Integer, ResourceStats>> apps = new ConcurrentHashMap<>();
+    private ScheduledExecutorService syncService;
+
+    @PostConstruct
+    public void start() {
+        fetchStats.register("index.resources", () -> apps.values().stream().mapToInt(ConcurrentMap::size).sum());
+        syncService = Executors.newSingleThreadScheduledExecutor(
+                new NamedThreadFactory("sentinel-dashboard-resource-index", true));
+        syncService.scheduleWithFixedDelay(() -> {
+            try {
+                sync(System.currentTimeMillis());
+            } catch (Exception e) {
+                logger.warn("Sync resource index error", e);
+            }
+        }, 0, SYNC_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (syncService != null) {
+            syncService.shutdown();
+            flush();
+        }
+    }
+
+    /**
+     * Add the metrics just saved, their resource code set.
+     */
+    public void record(Collection<MetricEntity> metrics) {
+        long now = System.currentTimeMillis();
+        for (MetricEntity entity : metrics) {
+            ResourceStats stats = apps.computeIfAbsent(entity.getApp(), k -> new ConcurrentHashMap<>())
+                    .computeIfAbsent(entity.getResourceCode(), k -> new ResourceStats(entity.getResourceCode(),
+                            entity.getResource()));
+            stats.add(entity, now);
+        }
+    }
+
+    /**
+     * @return the resources of the app with metrics since the timestamp
+     */
+    public List<ResourceStats> statsOf(String app, long since) {
+        List<ResourceStats> results = new ArrayList<>();
+        ConcurrentMap<Integer, ResourceStats> resources = apps.get(app);
+        if (resources == null) {
+            return results;
+        }
+        for (ResourceStats stats : resources.values()) {
+            if (stats.lastSeen >= since) {
+                results.add(stats);
+            }
+        }
+        return results;
+    }
+
+    public List<String> resourcesOf(String app, long since) {
+        List<String> results = new ArrayList<>();
+        for (ResourceStats stats : statsOf(app, since)) {
+            results.add(stats.name);
+        }
+        return results;
+    }
+
+    private void sync(long now) {
+        flush();
+        LambdaQueryWrapper<MetricResourceEntity> wrapper = new LambdaQueryWrapper<>();
+        wrapper.ge(MetricResourceEntity::getGmtLastSeen, new Date(now - WINDOW_MS));
+        for (MetricResourceEntity entity : resourceMapper.selectList(wrapper)) {
+            ResourceStats stats = apps.computeIfAbsent(entity.getApp(), k -> new ConcurrentHashMap<>())
+                    .computeIfAbsent(entity.getId(), k -> new ResourceStats(entity.getId(), entity.getResource()));
+            stats.load(entity, now);
+        }
+        // forget the resources idle for the whole window
+        for (ConcurrentMap<Integer, ResourceStats> resources : apps.values()) {
+            resources.values().removeIf(stats -> stats.lastSeen < now - WINDOW_MS);
+        }
+    }
+
+    /**
+     * Write the entries updated since their last write, a few hundred per statement. An entry stays
+     * dirty until its statement succeeds, so a failed write is retried on the next sync.
+     */
+    void flush() {
+        long now = System.currentTimeMillis();
+        Date gmtCreate = new Date(now);
+        List<ResourceStats> written = new ArrayList<>();
+        List<MetricResourceEntity> rows = new ArrayList<>();
+        for (Map.Entry<String, ConcurrentMap<Integer, ResourceStats>> e : apps.entrySet()) {
+            for (ResourceStats stats : e.getValue().values()) {
+                MetricResourceEntity entity = stats.toEntity(e.getKey(), now);
+                if (entity != null) {
+                    entity.setGmtCreate(gmtCreate);
+                    written.add(stats);
+                    rows.add(entity);
+                }
+            }
+        }
+        for (int i = 0; i < rows.size(); i += ROWS_PER_STATEMENT) {
+            int end = Math.min(rows.size(), i + ROWS_PER_STATEMENT);
+            resourceMapper.upsertStatsBatch(rows.subList(i, end));
+            for (ResourceStats stats : written.subList(i, end)) {
+                stats.written();
+            }
+        }
+    }
+
+    /**
+     * Last-seen time and totals of the last hour of a resource.
+     */
+    public static final class ResourceStats {
+        private final int code;
+        private final String name;
+        private volatile long lastSeen;
+        /**
+         * count of the metrics added, of which the first {@code writtenUpdates} are in the table
+         */
+        private long updates;
+        private long writtenUpdates;
+        private long writingUpdates;
+        private volatile long localWrite;
+        /**
+         * pass, success, block and exception of every minute of the window, indexed by minute
+         */
+        private final long[][] buckets = new long[BUCKETS][4];
+        private final long[] bucketMinutes = new long[BUCKETS];
+        /**
+         * totals read back from the table, for the entries saved by other nodes
+         */
+        private volatile long[] loaded;
+
+        ResourceStats(int code, String name) {
+            this.code = code;
+            this.name = name;
+        }
+
+        synchronized void add(MetricEntity entity, long now) {
+            long ts = entity.getTimestamp().getTime();
+            if (ts > lastSeen) {
+                lastSeen = ts;
+            }
+            long minute = ts / BUCKET_MS;
+            int i = (int) (minute % BUCKETS);
+            if (bucketMinutes[i] != minute) {
+                if (bucketMinutes[i] > minute) {
+                    // older than the window
+                    return;
+                }
+                bucketMinutes[i] = minute;
+                buckets[i] = new long[4];
+            }
+            buckets[i][0] += valueOf(entity.getPassQps());
+            buckets[i][1] += valueOf(entity.getSuccessQps());
+            buckets[i][2] += valueOf(entity.getBlockQps());
+            buckets[i][3] += valueOf(entity.getExceptionQps());
+            localWrite = now;
+            loaded = null;
+            updates++;
+        }
+
+        synchronized void load(MetricResourceEntity entity, long now) {
+            if (now - localWrite < LOCAL_MS || entity.getGmtLastSeen() == null) {
+                return;
+            }
+            lastSeen = Math.max(lastSeen, entity.getGmtLastSeen().getTime());
+            loaded = new long[] {valueOf(entity.getPassQps()), valueOf(entity.getSuccessQps()),
+                    valueOf(entity.getBlockQps()), valueOf(entity.getExceptionQps())};
+        }
+
+        /**
+         * @return the entry to write, {@code null} if written since the last metric added
+         */
+        synchronized MetricResourceEntity toEntity(String app, long now) {
+            if (updates == writtenUpdates) {
+                return null;
+            }
+            writingUpdates = updates;
+            MetricResourceEntity entity = new MetricResourceEntity();
+            entity.setId(code);
+            entity.setApp(app);
+            entity.setResource(name);
+            entity.setGmtLastSeen(new Date(lastSeen));
+            long[] totals = totals(now);
+            entity.setPassQps(totals[0]);
+            entity.setSuccessQps(totals[1]);
+            entity.setBlockQps(totals[2]);
+            entity.setExceptionQps(totals[3]);
+            return entity;
+        }
+
+        /**
+         * The entry of the last {@link #toEntity(String, long)} is in the table.
+         */
+        synchronized void written() {
+            writtenUpdates = writingUpdates;
+        }
+
+        /**
+         * @return pass, success, block and exception of the last hour
+         */
+        public synchronized long[] totals(long now) {
+            if (loaded != null) {
+                return loaded.clone();
+            }
+            long[] totals = new long[4];
+            long oldest = (now - WINDOW_MS) / BUCKET_MS;
+            for (int i = 0; i < BUCKETS; i++) {
+                if (bucketMinutes[i] > oldest) {
+                    for (int j = 0; j < 4; j++) {
+                        totals[j] += buckets[i][j];
+                    }
+                }
+            }
+            return totals;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getLastSeen() {
+            return lastSeen;
+        }
+
+        private static long valueOf(Long value) {
+            return value == null ? 0 : value;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.repository.metric;
+
+/**
+ * Resolutions metrics are stored at. {@link #SECOND} is the per-second metrics as written by the
+ * fetcher, every coarser tier is rolled up from the tier below it.
+ *
+ * @author agent
+ */
+public enum RollupTier {
+
+    SECOND(1, 1000L * 60 * 60),
+    TEN_SECONDS(10, 1000L * 60 * 60 * 6),
+    MINUTE(60, 1000L * 60 * 60 * 24 * 7),
+    HOUR(3600, 1000L * 60 * 60 * 24 * 90);
+
+    private final int step;
+    private final long maxQueryIntervalMs;
+
+    RollupTier(int step, long maxQueryIntervalMs) {
+        this.step = step;
+        this.maxQueryIntervalMs = maxQueryIntervalMs;
+    }
+
+    /**
+     * @return bucket size in seconds
+     */
+    public int getStep() {
+        return step;
+    }
+
+    /**
+     * @return longest time range a query may read at this resolution
+     */
+    public long getMaxQueryIntervalMs() {
+        return maxQueryIntervalMs;
+    }
+
+    /**
+     * @return the tier this one is rolled up from, {@code null} for {@link #SECOND}
+     */
+    public RollupTier getSource() {
+        return ordinal() == 0 ? null : values()[ordinal() - 1];
+    }
+
+    /**
+     * @return the coarsest tier still at least as fine as the resolution
+     */
+    public static RollupTier coarsestFor(int resolutionSeconds) {
+        RollupTier tier = SECOND;
+        for (RollupTier t : values()) {
+            if (t.step <= resolutionSeconds) {
+                tier = t;
+            }
+        }
+        return tier;
+    }
+
+    /**
+     * @return the step rounded up to a multiple of the step of {@link #coarsestFor(int)}, so every
+     * bucket of the step is made of whole buckets of that tier
+     */
+    public static int alignStep(int step) {
+        if (step <= 1) {
+            return 1;
+        }
+        int tierStep = coarsestFor(step).step;
+        return (step + tierStep - 1) / tierStep * tierStep;
+    }
+
+    /**
+     * @return the finest tier that may serve a query over the time range, {@code null} if none
+     */
+    public static RollupTier finestFor(long intervalMs) {
+        for (RollupTier t : values()) {
+            if (intervalMs <= t.maxQueryIntervalMs) {
+                return t;
+            }
+        }
+        return null;
+    }
+}
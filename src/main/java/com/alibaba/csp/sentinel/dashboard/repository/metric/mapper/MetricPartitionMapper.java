@@ -0,0 +1,21 @@
+package com.alibaba.csp.sentinel.dashboard.repository.metric.mapper;
+
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
+
+public interface MetricPartitionMapper {
+
+    /**
+     * @return names of the partitions of the table in the current schema, empty if not partitioned
+     */
+    List<String> selectPartitions(@Param("table") String table);
+
+    /**
+     * Split the catch-all partition into the definitions, the last one taking its place.
+     */
+    int reorganizePartition(@Param("table") String table, @Param("partition") String partition,
+                            @Param("definitions") List<String> definitions);
+
+    int dropPartitions(@Param("table") String table, @Param("partitions") List<String> partitions);
+}
@@ -0,0 +1,15 @@
+package com.alibaba.csp.sentinel.dashboard.repository.metric.mapper;
+
+import com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricResourceEntity;
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
+
+public interface MetricResourceMapper extends BaseMapper<MetricResourceEntity> {
+    /**
+     * Write the last-seen time and totals of the entries with a single multi-row statement, by id.
+     */
+    int upsertStatsBatch(@Param("list") List<MetricResourceEntity> list);
+}
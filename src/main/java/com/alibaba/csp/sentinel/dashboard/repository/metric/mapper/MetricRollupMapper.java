@@ -0,0 +1,41 @@
+package com.alibaba.csp.sentinel.dashboard.repository.metric.mapper;
+
+import com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricRollupEntity;
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+
+import org.apache.ibatis.annotations.Param;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+public interface MetricRollupMapper extends BaseMapper<MetricRollupEntity> {
+
+    /**
+     * Sum the per-second metrics of {@code [start, end)} of all apps into buckets of {@code step} seconds,
+     * the range is read through {@code idx_timestamp}.
+     */
+    List<MetricRollupEntity> rollupSeconds(@Param("step") int step, @Param("start") Date start,
+                                           @Param("end") Date end);
+
+    /**
+     * Sum the buckets of {@code sourceStep} seconds of {@code [start, end)} into buckets of {@code step} seconds.
+     */
+    List<MetricRollupEntity> rollupTier(@Param("sourceStep") int sourceStep, @Param("step") int step,
+                                        @Param("start") Date start, @Param("end") Date end);
+
+    /**
+     * Insert the buckets, or replace the sums of the buckets already stored.
+     */
+    int upsertBatch(@Param("list") List<MetricRollupEntity> list);
+
+    /**
+     * Sum the buckets of {@code sourceStep} seconds of the resources in {@code [start, end]} into buckets
+     * of {@code step} seconds.
+     */
+    List<MetricRollupEntity> selectBuckets(@Param("app") String app, @Param("sourceStep") int sourceStep,
+                                           @Param("step") int step, @Param("codes") Collection<Integer> codes,
+                                           @Param("start") Date start, @Param("end") Date end);
+
+    Date selectLatest(@Param("step") int step);
+}
@@ -4,10 +4,21 @@ import com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntity;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
 
 import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.session.ResultHandler;
 
 import java.util.Date;
 import java.util.List;
 
 public interface MetricsMapper extends BaseMapper<MetricEntity> {
-    List<String> selectResource(@Param("app") String app, @Param("latelyTime") Date latelyTime);
+    /**
+     * Insert the metrics with a single multi-row statement.
+     */
+    int insertBatch(@Param("list") List<MetricEntity> list);
+
+    /**
+     * Pass the metrics of the resources in {@code [start, end]} to the handler as they are read, the
+     * resources in the order of the codes, every resource in time order, then by id.
+     */
+    void streamBetween(@Param("app") String app, @Param("codes") List<Integer> codes, @Param("start") Date start,
+                       @Param("end") Date end, ResultHandler<MetricEntity> handler);
 }
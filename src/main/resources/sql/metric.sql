@@ -0,0 +1,106 @@
+-- Storage of the aggregated metrics, see MysqlMetricsRepository.
+
+CREATE TABLE IF NOT EXISTS `metric_resource` (
+  `id`            INT          NOT NULL AUTO_INCREMENT,
+  `gmt_create`    DATETIME     NOT NULL,
+  `app`           VARCHAR(256) NOT NULL,
+  `resource`      VARCHAR(512) COLLATE utf8mb4_bin NOT NULL COMMENT 'case and accent sensitive',
+  `gmt_last_seen` DATETIME     NULL COMMENT 'timestamp of the latest metric saved',
+  `pass_qps`      BIGINT       NOT NULL DEFAULT 0 COMMENT 'totals of the last hour as of gmt_last_seen',
+  `success_qps`   BIGINT       NOT NULL DEFAULT 0,
+  `block_qps`     BIGINT       NOT NULL DEFAULT 0,
+  `exception_qps` BIGINT       NOT NULL DEFAULT 0,
+  PRIMARY KEY (`id`),
+  UNIQUE KEY `uk_app_resource` (`app`, `resource`),
+  KEY `idx_last_seen` (`gmt_last_seen`)
+) ENGINE = InnoDB DEFAULT CHARSET = utf8mb4;
+
+CREATE TABLE IF NOT EXISTS `metric_entity` (
+  `id`            BIGINT       NOT NULL AUTO_INCREMENT,
+  `gmt_create`    DATETIME     NOT NULL,
+  `gmt_modified`  DATETIME     NOT NULL,
+  `app`           VARCHAR(256) NOT NULL,
+  `timestamp`     DATETIME     NOT NULL,
+  `resource_code` INT          NOT NULL COMMENT 'metric_resource.id',
+  `pass_qps`      BIGINT       NOT NULL DEFAULT 0,
+  `success_qps`   BIGINT       NOT NULL DEFAULT 0,
+  `block_qps`     BIGINT       NOT NULL DEFAULT 0,
+  `exception_qps` BIGINT       NOT NULL DEFAULT 0,
+  `rt`            DOUBLE       NOT NULL DEFAULT 0,
+  `count`         INT          NOT NULL DEFAULT 0,
+  PRIMARY KEY (`id`, `timestamp`),
+  KEY `idx_app_resource_timestamp` (`app`, `resource_code`, `timestamp`),
+  KEY `idx_app_timestamp` (`app`, `timestamp`),
+  KEY `idx_timestamp` (`timestamp`)
+) ENGINE = InnoDB DEFAULT CHARSET = utf8mb4
+-- day partitions (p20261018, ...) are split off pmax and dropped by MetricPartitionManager
+PARTITION BY RANGE COLUMNS (`timestamp`) (
+  PARTITION pmax VALUES LESS THAN (MAXVALUE)
+);
+
+CREATE TABLE IF NOT EXISTS `metric_rollup` (
+  `id`            BIGINT       NOT NULL AUTO_INCREMENT,
+  `gmt_create`    DATETIME     NOT NULL,
+  `gmt_modified`  DATETIME     NOT NULL,
+  `app`           VARCHAR(256) NOT NULL,
+  `step`          INT          NOT NULL COMMENT 'bucket size in seconds: 10, 60 or 3600',
+  `timestamp`     DATETIME     NOT NULL COMMENT 'bucket start',
+  `resource_code` INT          NOT NULL COMMENT 'metric_resource.id',
+  `pass_qps`      BIGINT       NOT NULL DEFAULT 0,
+  `success_qps`   BIGINT       NOT NULL DEFAULT 0,
+  `block_qps`     BIGINT       NOT NULL DEFAULT 0,
+  `exception_qps` BIGINT       NOT NULL DEFAULT 0,
+  `rt`            DOUBLE       NOT NULL DEFAULT 0,
+  `count`         INT          NOT NULL DEFAULT 0,
+  `max_pass_qps`  BIGINT       NULL COMMENT 'highest pass qps of a second of the bucket',
+  PRIMARY KEY (`id`, `step`, `timestamp`),
+  UNIQUE KEY `uk_app_step_resource_timestamp` (`app`, `step`, `resource_code`, `timestamp`),
+  KEY `idx_step_timestamp` (`step`, `timestamp`)
+) ENGINE = InnoDB DEFAULT CHARSET = utf8mb4
+-- every step has its own day partitions (p10_20261018, ...) split off its catch-all partition
+PARTITION BY RANGE COLUMNS (`step`, `timestamp`) (
+  PARTITION p10_max VALUES LESS THAN (10, MAXVALUE),
+  PARTITION p60_max VALUES LESS THAN (60, MAXVALUE),
+  PARTITION p3600_max VALUES LESS THAN (3600, MAXVALUE)
+);
+
+-- Migration of a metric_entity table keyed by the resource name (resource_code used to be its hash):
+--
+-- INSERT IGNORE INTO metric_resource (gmt_create, app, resource)
+--   SELECT DISTINCT NOW(), app, BINARY resource FROM metric_entity;
+-- UPDATE metric_entity e JOIN metric_resource r ON e.app = r.app AND e.resource = r.resource
+--   SET e.resource_code = r.id;
+-- ALTER TABLE metric_entity DROP COLUMN resource,
+--   ADD KEY idx_app_resource_timestamp (app, resource_code, `timestamp`);
+
+-- Partitioning of existing tables (the rows are copied once, into the catch-all partitions, which
+-- MetricPartitionManager then splits into day partitions):
+--
+-- ALTER TABLE metric_entity DROP PRIMARY KEY, ADD PRIMARY KEY (id, `timestamp`),
+--   PARTITION BY RANGE COLUMNS (`timestamp`) (PARTITION pmax VALUES LESS THAN (MAXVALUE));
+-- ALTER TABLE metric_rollup DROP PRIMARY KEY, ADD PRIMARY KEY (id, step, `timestamp`),
+--   PARTITION BY RANGE COLUMNS (step, `timestamp`) (
+--     PARTITION p10_max VALUES LESS THAN (10, MAXVALUE),
+--     PARTITION p60_max VALUES LESS THAN (60, MAXVALUE),
+--     PARTITION p3600_max VALUES LESS THAN (3600, MAXVALUE));
+
+-- Resource index columns of a metric_resource table created before them:
+--
+-- ALTER TABLE metric_resource ADD COLUMN gmt_last_seen DATETIME NULL,
+--   ADD COLUMN pass_qps BIGINT NOT NULL DEFAULT 0, ADD COLUMN success_qps BIGINT NOT NULL DEFAULT 0,
+--   ADD COLUMN block_qps BIGINT NOT NULL DEFAULT 0, ADD COLUMN exception_qps BIGINT NOT NULL DEFAULT 0,
+--   ADD KEY idx_last_seen (gmt_last_seen);
+
+-- Peak column of a metric_rollup table created before it (the buckets rolled up before have no peak):
+--
+-- ALTER TABLE metric_rollup ADD COLUMN max_pass_qps BIGINT NULL;
+
+-- Timestamp index of a metric_entity table created before it, read by the 10s rollup:
+--
+-- ALTER TABLE metric_entity ADD KEY idx_timestamp (`timestamp`);
+
+-- Binary resource names of a metric_resource table created before them. With the default collation
+-- /Foo and /foo shared one row and id, and ResourceDictionary missed its cache on every lookup of
+-- the spelling not stored; the resources merged that way keep the id of the stored spelling:
+--
+-- ALTER TABLE metric_resource MODIFY COLUMN resource VARCHAR(512) COLLATE utf8mb4_bin NOT NULL COMMENT 'case and accent sensitive';
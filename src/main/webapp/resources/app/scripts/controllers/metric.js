@@ -23,6 +23,10 @@ app.controller('MetricCtl', ['$scope', '$stateParams', 'MetricService', '$interv
     $scope.app = $stateParams.app;
     // 数据自动刷新频率
     var DATA_REFRESH_INTERVAL = 1000 * 10;
+    // 实时推送时, 仅按此频率刷新资源排序
+    var LIVE_REFRESH_INTERVAL = 1000 * 60 * 5;
+    // 图表展示的时间范围
+    var METRIC_WINDOW = 1000 * 60 * 5;
 
     $scope.servicePageConfig = {
       pageSize: 6,
@@ -46,18 +50,78 @@ app.controller('MetricCtl', ['$scope', '$stateParams', 'MetricService', '$interv
     }
 
     var intervalId;
+    var liveSource;
     reInitIdentityDatas();
     function reInitIdentityDatas() {
-      $interval.cancel(intervalId);
       queryIdentityDatas();
+      restartRefresh(DATA_REFRESH_INTERVAL);
+    };
+    function restartRefresh(refreshInterval) {
+      $interval.cancel(intervalId);
       intervalId = $interval(function () {
         queryIdentityDatas();
-      }, DATA_REFRESH_INTERVAL);
-    };
+      }, refreshInterval);
+    }
 
     $scope.$on('$destroy', function () {
       $interval.cancel(intervalId);
+      closeLive();
     });
+
+    // 订阅当前页资源的实时指标, 连接断开时退回到定时刷新
+    function subscribeLive(identityNames) {
+      closeLive();
+      if (!window.EventSource || identityNames.length < 1) {
+        return;
+      }
+      var source = MetricService.subscribeLive($scope.app, identityNames);
+      source.onopen = function () {
+        restartRefresh(LIVE_REFRESH_INTERVAL);
+      };
+      source.onerror = function () {
+        if (source.readyState === EventSource.CLOSED && source === liveSource) {
+          liveSource = undefined;
+          restartRefresh(DATA_REFRESH_INTERVAL);
+        }
+      };
+      source.addEventListener('metric', function (event) {
+        var metricsObj = JSON.parse(event.data);
+        $scope.$apply(function () {
+          appendLiveDatas(metricsObj);
+        });
+      });
+      liveSource = source;
+    }
+    function closeLive() {
+      if (liveSource) {
+        liveSource.close();
+        liveSource = undefined;
+      }
+    }
+    function appendLiveDatas(metricsObj) {
+      $.each($scope.metrics, function (idx, metric) {
+        var liveDatas = metricsObj[metric.resource];
+        if (!liveDatas || !metric.rawData) {
+          return;
+        }
+        var rawData = metric.rawData;
+        var lastTime = rawData.length > 0 ? rawData[rawData.length - 1].timestamp : 0;
+        $.each(liveDatas, function (i, item) {
+          if (item.timestamp > lastTime) {
+            rawData.push(item);
+            lastTime = item.timestamp;
+          }
+        });
+        while (rawData.length > 0 && rawData[0].timestamp < lastTime - METRIC_WINDOW) {
+          rawData.shift();
+        }
+        metric.data = fillZeros(rawData);
+        metric.shortData = lastOfArray(rawData, 6);
+        if ($scope.charts[idx]) {
+          $scope.charts[idx].changeData(metric.data);
+        }
+      });
+    }
     $scope.initAllChart = function () {
       //revoke useless charts positively
       while($scope.charts.length > 0) {
@@ -206,6 +270,7 @@ app.controller('MetricCtl', ['$scope', '$stateParams', 'MetricService', '$interv
             var identityDatas = metricsObj[identityName];
             var metrics = {};
             metrics.resource = identityName;
+            metrics.rawData = identityDatas || [];
             // metrics.data = identityDatas;
             metrics.data = fillZeros(identityDatas);
             metrics.shortData = lastOfArray(identityDatas, 6);
@@ -213,7 +278,9 @@ app.controller('MetricCtl', ['$scope', '$stateParams', 'MetricService', '$interv
           });
           // push an empty element in the last, for ng-init reasons.
           $scope.metrics.push([]);
+          subscribeLive(identityNames);
         } else {
+          closeLive();
           $scope.emptyServices = true;
           console.log(data.msg);
         }
@@ -33,4 +33,13 @@ app.service('MetricService', ['$http', function ($http) {
       method: 'GET'
     });
   };
+
+  // 订阅应用(及其部分资源)的实时指标, 返回 EventSource
+  this.subscribeLive = function (app, resources) {
+    var url = '/metric/live?app=' + encodeURIComponent(app);
+    angular.forEach(resources, function (resource) {
+      url += '&resource=' + encodeURIComponent(resource);
+    });
+    return new EventSource(url);
+  };
 }]);
@@ -611,6 +611,15 @@ angular.module("sentinelDashboardApp",
                                                                                      params: l,
                                                                                      method: "GET"
                                                                                  })
+                                                                    }, this.subscribeLive =
+                                                                    function (e, t) {
+                                                                        var r = "/metric/live?app="
+                                                                                + encodeURIComponent(e);
+                                                                        return angular.forEach(t,
+                                                                            function (e) {
+                                                                                r += "&resource="
+                                                                                     + encodeURIComponent(e)
+                                                                            }), new EventSource(r)
                                                                     }
                                                             }]), angular.module(
     "sentinelDashboardApp").service("ParamFlowService", ["$http", function (a) {
@@ -100,4 +100,19 @@ public class DashboardConfigTest {
         System.setProperty("t", "555");
         assertEquals(666, DashboardConfig.getConfigInt("t", 0, 1));
     }
+
+    @Test
+    public void testGetConfigBool() {
+        DashboardConfig.clearCache();
+        assertEquals(true, DashboardConfig.getConfigBool("b", true));
+
+        System.setProperty("b", "false");
+        DashboardConfig.clearCache();
+        assertEquals(false, DashboardConfig.getConfigBool("b", true));
+
+        // enable cache
+        System.setProperty("b", "true");
+        assertEquals(false, DashboardConfig.getConfigBool("b", true));
+        System.clearProperty("b");
+    }
 }
@@ -0,0 +1,86 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.controller;
+
+import com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntity;
+import com.alibaba.csp.sentinel.dashboard.domain.Result;
+import com.alibaba.csp.sentinel.dashboard.metric.TopResourceTracker;
+import com.alibaba.csp.sentinel.dashboard.repository.metric.MetricsRepository;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class MetricControllerTest {
+
+    private static final long NOW = 1_700_000_000_000L;
+
+    /**
+     * resources of the tracker by rank, whatever the filter
+     */
+    private List<String> ranked;
+
+    private MetricController controller;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        MetricsRepository<MetricEntity> metricStore = mock(MetricsRepository.class);
+        when(metricStore.listResourcesOfApp("app")).thenReturn(Arrays.asList("/a", "/b", "/c"));
+        TopResourceTracker tracker = new TopResourceTracker() {
+            @Override
+            public List<String> top(String app, Rank rank, boolean desc, Predicate<String> filter, int limit) {
+                return ranked;
+            }
+        };
+        controller = new MetricController();
+        ReflectionTestUtils.setField(controller, "metricStore", metricStore);
+        ReflectionTestUtils.setField(controller, "topResourceTracker", tracker);
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<String> page(Integer pageIndex, String searchKey) {
+        Result<?> result = controller.queryTopResourceMetric("app", pageIndex, 2, true, NOW - 60_000, NOW,
+                searchKey, null, null, null, null);
+        assertTrue(result.isSuccess());
+        Map<String, Object> data = (Map<String, Object>) result.getData();
+        return new ArrayList<>(((Map<String, ?>) data.get("metric")).keySet());
+    }
+
+    @Test
+    public void testPagesOnlyHoldTheListedResources() {
+        // no longer listed, still ranked by another node
+        ranked = Arrays.asList("/gone", "/b");
+        assertEquals(Arrays.asList("/b", "/a"), page(1, null));
+        assertEquals(Arrays.asList("/c"), page(2, null));
+    }
+
+    @Test
+    public void testPagesOnlyHoldTheSearchedResources() {
+        ranked = Arrays.asList("/b", "/a");
+        assertEquals(Arrays.asList("/a"), page(1, "a"));
+        assertTrue(page(2, "a").isEmpty());
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.controller;
+
+import com.alibaba.csp.sentinel.dashboard.domain.Result;
+import com.alibaba.csp.sentinel.dashboard.metric.MetricPushAggregator;
+
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class MetricPushControllerTest {
+
+    private final AtomicInteger received = new AtomicInteger();
+
+    private MetricPushController controller() {
+        MetricPushAggregator aggregator = new MetricPushAggregator() {
+            @Override
+            public boolean isPush(String app) {
+                return !"pulled".equals(app);
+            }
+
+            @Override
+            public int receive(String app, String machine, byte[] body, String contentEncoding, Charset charset,
+                               Long endTime) {
+                received.incrementAndGet();
+                return 0;
+            }
+        };
+        MetricPushController controller = new MetricPushController();
+        ReflectionTestUtils.setField(controller, "pushAggregator", aggregator);
+        return controller;
+    }
+
+    private static MockHttpServletRequest requestOf(int contentLength) {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/registry/metric");
+        request.setContent(new byte[contentLength]);
+        return request;
+    }
+
+    @Test
+    public void testRejectAppsInPullMode() {
+        Result<Integer> result = controller().receiveMetric(requestOf(0), "pulled", "10.0.0.1", 8719, null);
+        assertFalse(result.isSuccess());
+        assertEquals("metrics of pulled are pulled, push not accepted", result.getMsg());
+        assertEquals(0, received.get());
+    }
+
+    @Test
+    public void testRejectInvalidMachinesAndBodies() {
+        MetricPushController controller = controller();
+        assertFalse(controller.receiveMetric(requestOf(0), "", "10.0.0.1", 8719, null).isSuccess());
+        assertFalse(controller.receiveMetric(requestOf(0), "app", "not-an-ip", 8719, null).isSuccess());
+        assertFalse(controller.receiveMetric(requestOf(0), "app", "10.0.0.1", null, null).isSuccess());
+        assertEquals("body too large",
+                controller.receiveMetric(requestOf(1024 * 1024 * 8 + 1), "app", "::1", 8719, null).getMsg());
+        assertEquals(0, received.get());
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.datasource.entity;
+
+import java.util.Date;
+
+/**
+ * Metrics of one second for the tests: every pass succeeds, no exception, a count of 1.
+ *
+ * @author agent
+ */
+public final class MetricEntityFixture {
+
+    public static final String APP = "app";
+
+    /**
+     * @return a metric of {@link #APP} with no block and an rt of {@code pass * 10}
+     */
+    public static MetricEntity metric(String resource, long timestamp, long pass) {
+        return metric(APP, resource, timestamp, pass, 0);
+    }
+
+    /**
+     * @return a metric with an rt of {@code pass * 10}
+     */
+    public static MetricEntity metric(String app, String resource, long timestamp, long pass, long block) {
+        return metric(app, resource, timestamp, pass, block, pass * 10.0);
+    }
+
+    public static MetricEntity metric(String app, String resource, long timestamp, long pass, long block,
+                                      double rt) {
+        MetricEntity entity = new MetricEntity();
+        entity.setApp(app);
+        entity.setResource(resource);
+        entity.setTimestamp(new Date(timestamp));
+        entity.setPassQps(pass);
+        entity.setSuccessQps(pass);
+        entity.setBlockQps(block);
+        entity.setExceptionQps(0L);
+        entity.setRt(rt);
+        entity.setCount(1);
+        return entity;
+    }
+
+    /**
+     * @return the metric with the dictionary code of its resource
+     */
+    public static MetricEntity coded(int resourceCode, MetricEntity entity) {
+        entity.setResourceCode(resourceCode);
+        return entity;
+    }
+
+    private MetricEntityFixture() {
+    }
+}
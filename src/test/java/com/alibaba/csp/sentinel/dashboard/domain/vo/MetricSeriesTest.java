@@ -0,0 +1,68 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.domain.vo;
+
+import com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntity;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+import static com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntityFixture.APP;
+import static com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntityFixture.metric;
+
+public class MetricSeriesTest {
+
+    @Test
+    public void testOrderedAndOnePerTimestamp() {
+        MetricSeries series = MetricSeries.of(Arrays.asList(
+                metric(APP, "res", 3000, 3, 1, 30), metric(APP, "res", 1000, 1, 1, 10), metric(APP, "res", 2000, 2, 1, 20), metric(APP, "res", 1000, 4, 1, 80)));
+        assertEquals(3, series.size());
+        assertEquals(1000, series.getTimestamp(0));
+        // the last metric of a timestamp is kept
+        assertEquals(4, series.getPassQps(0));
+        assertEquals(20.0, series.getRt(0), 0);
+        assertEquals(2000, series.getTimestamp(1));
+        assertEquals(3000, series.getTimestamp(2));
+        assertEquals(3, series.getMaxPassQps(2));
+    }
+
+    @Test
+    public void testBuilderGrows() {
+        MetricSeries.Builder builder = new MetricSeries.Builder(1);
+        for (int i = 0; i < 100; i++) {
+            builder.add(i * 1000L, i, i, 0, 0, 1.5, 1, i);
+        }
+        builder.add(99_000L, 7, 7, 0, 0, 1.5, 1, 7);
+        MetricSeries series = builder.build();
+        assertEquals(100, series.size());
+        assertEquals(98, series.getPassQps(98));
+        assertEquals(7, series.getPassQps(99));
+    }
+
+    @Test
+    public void testJson() throws Exception {
+        MetricSeries series = MetricSeries.of(Arrays.asList(metric(APP, "res", 1000, 4, 1, 10), metric(APP, "res", 2000, 0, 1, 0)));
+        assertEquals("[{\"timestamp\":1000,\"passQps\":4,\"blockQps\":1,\"successQps\":4,\"exceptionQps\":0,"
+                        + "\"rt\":2.5,\"count\":1,\"maxPassQps\":4},"
+                        + "{\"timestamp\":2000,\"passQps\":0,\"blockQps\":1,\"successQps\":0,\"exceptionQps\":0,"
+                        + "\"rt\":0.0,\"count\":1,\"maxPassQps\":0}]",
+                new ObjectMapper().writeValueAsString(series));
+        assertEquals("[]", new ObjectMapper().writeValueAsString(MetricSeries.empty()));
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.metric;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntity;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AppFetchStateTest {
+
+    @Test
+    public void testLaggingMachineHoldsWatermark() {
+        AppFetchState state = new AppFetchState("app", 9_000);
+        assertEquals(9_000, state.cursorOf("a:1"));
+        assertEquals(9_000, state.cursorOf("b:1"));
+        state.advance("a:1", 15_000);
+        assertEquals(9_000, state.watermark());
+
+        List<MetricEntity> ready = state.flush(Arrays.asList(entity(10_000), entity(15_000)), state.watermark());
+        assertTrue(ready.isEmpty());
+        assertEquals(2, state.getPending().size());
+
+        state.advance("b:1", 12_000);
+        ready = state.flush(state.getPending(), state.watermark());
+        assertEquals(1, ready.size());
+        assertEquals(12_000, state.getFlushed());
+        assertEquals(1, state.getPending().size());
+    }
+
+    @Test
+    public void testForcedFlushLiftsCursors() {
+        AppFetchState state = new AppFetchState("app", 9_000);
+        state.cursorOf("a:1");
+        state.advance("b:1", 20_000);
+        state.flush(Arrays.asList(entity(10_000), entity(20_000)), 18_000);
+        assertEquals(18_000, state.cursorOf("a:1"));
+        assertEquals(20_000, state.cursorOf("b:1"));
+
+        state.retainMachines(new HashSet<>(Arrays.asList("b:1")));
+        assertEquals(20_000, state.watermark());
+    }
+
+    @Test
+    public void testRestoreFromHash() {
+        AppFetchState state = new AppFetchState("app", 9_000);
+        state.advance("a:1", 15_000);
+        state.flush(Arrays.asList(entity(10_000)), 12_000);
+        assertTrue(state.clearDirty());
+        assertFalse(state.clearDirty());
+
+        Map<String, String> hash = new HashMap<>(state.toHash());
+        AppFetchState restored = AppFetchState.fromHash("app", hash, 0);
+        assertEquals(12_000, restored.getFlushed());
+        // pending seconds are not persisted, so they are fetched again
+        assertEquals(12_000, restored.cursorOf("a:1"));
+        assertEquals(5_000, AppFetchState.fromHash("app", new HashMap<>(), 5_000).getFlushed());
+    }
+
+    @Test
+    public void testSingleRunningFetch() {
+        AppFetchState state = new AppFetchState("app", 0);
+        assertTrue(state.tryStart(1_000, 30_000));
+        assertFalse(state.tryStart(2_000, 30_000));
+        assertTrue(state.tryStart(40_000, 30_000));
+        state.finish();
+        assertTrue(state.tryStart(41_000, 30_000));
+    }
+
+    private MetricEntity entity(long timestamp) {
+        MetricEntity entity = new MetricEntity();
+        entity.setApp("app");
+        entity.setResource("/r");
+        entity.setTimestamp(new Date(timestamp));
+        return entity;
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.metric;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ConsistentHashRingTest {
+
+    @Test
+    public void testEvenSpread() {
+        ConsistentHashRing ring = new ConsistentHashRing(Arrays.asList("n1", "n2", "n3", "n4"), 160);
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 10_000; i++) {
+            counts.merge(ring.nodeOf("app-" + i), 1, Integer::sum);
+        }
+        assertEquals(4, counts.size());
+        for (int count : counts.values()) {
+            assertTrue("unbalanced: " + counts, count > 1_800 && count < 3_200);
+        }
+    }
+
+    @Test
+    public void testOnlyKeysOfLeavingNodeMove() {
+        ConsistentHashRing before = new ConsistentHashRing(Arrays.asList("n1", "n2", "n3"), 160);
+        ConsistentHashRing after = new ConsistentHashRing(Arrays.asList("n1", "n3"), 160);
+        for (int i = 0; i < 1_000; i++) {
+            String key = "app-" + i;
+            String owner = before.nodeOf(key);
+            if (!"n2".equals(owner)) {
+                assertEquals(owner, after.nodeOf(key));
+            } else {
+                assertNotEquals("n2", after.nodeOf(key));
+            }
+        }
+    }
+
+    @Test
+    public void testEmptyRing() {
+        ConsistentHashRing ring = new ConsistentHashRing(Collections.<String>emptyList(), 16);
+        assertNull(ring.nodeOf("app"));
+        assertTrue(ring.getNodes().isEmpty());
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.metric;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.Assert.*;
+
+public class FetchRoundCompletionTest {
+
+    private ScheduledExecutorService timer;
+    private final AtomicInteger timeouts = new AtomicInteger();
+    private final AtomicInteger flushes = new AtomicInteger();
+
+    @Before
+    public void setUp() {
+        timer = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        timer.shutdownNow();
+    }
+
+    @Test
+    public void testCompletedByTheLastResponse() {
+        FetchRoundCompletion completion = new FetchRoundCompletion(3, Runnable::run,
+                timeouts::incrementAndGet, flushes::incrementAndGet);
+        ScheduledFuture<?> deadline = timer.schedule(completion::expire, 1, TimeUnit.HOURS);
+        completion.setDeadline(deadline);
+
+        completion.countDown();
+        completion.countDown();
+        assertEquals(0, flushes.get());
+        assertTrue(completion.enter());
+        completion.exit();
+
+        completion.countDown();
+        assertEquals(1, flushes.get());
+        assertTrue(deadline.isCancelled());
+        assertTrue(completion.isClosed());
+        // completed exactly once
+        completion.expire();
+        assertEquals(1, flushes.get());
+        assertEquals(0, timeouts.get());
+    }
+
+    @Test
+    public void testCompletedByTheDeadline() throws Exception {
+        CountDownLatch flushed = new CountDownLatch(1);
+        FetchRoundCompletion completion = new FetchRoundCompletion(2, Runnable::run,
+                timeouts::incrementAndGet, () -> {
+                    flushes.incrementAndGet();
+                    flushed.countDown();
+                });
+        completion.countDown();
+        completion.setDeadline(timer.schedule(completion::expire, 50, TimeUnit.MILLISECONDS));
+
+        assertTrue(flushed.await(5, TimeUnit.SECONDS));
+        assertEquals(1, timeouts.get());
+        // the late response neither sees the round open nor flushes it again
+        assertFalse(completion.enter());
+        completion.exit();
+        completion.countDown();
+        assertEquals(1, flushes.get());
+    }
+
+    @Test
+    public void testDeadlineWaitsForTheResponseBeingHandled() throws Exception {
+        FetchRoundCompletion completion = new FetchRoundCompletion(2, Runnable::run,
+                timeouts::incrementAndGet, flushes::incrementAndGet);
+        assertTrue(completion.enter());
+        completion.setDeadline(timer.schedule(completion::expire, 0, TimeUnit.MILLISECONDS));
+        Thread.sleep(100);
+        assertEquals(0, flushes.get());
+        completion.exit();
+        completion.countDown();
+
+        long until = System.currentTimeMillis() + 5000;
+        while (flushes.get() == 0 && System.currentTimeMillis() < until) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, flushes.get());
+        assertEquals(1, timeouts.get());
+    }
+
+    @Test
+    public void testCallerRunsTheFlushOfAFullExecutor() throws Exception {
+        LongAdder callerRuns = new LongAdder();
+        ThreadPoolExecutor worker = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new SynchronousQueue<>(), FetchRoundCompletion.callerRuns(callerRuns));
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            // the only worker thread is busy and nothing can be queued
+            worker.execute(() -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            AtomicReference<Thread> flushThread = new AtomicReference<>();
+            FetchRoundCompletion completion = new FetchRoundCompletion(1, worker,
+                    timeouts::incrementAndGet, () -> flushThread.set(Thread.currentThread()));
+            completion.countDown();
+            assertSame(Thread.currentThread(), flushThread.get());
+            assertEquals(1, callerRuns.sum());
+        } finally {
+            release.countDown();
+            worker.shutdown();
+        }
+
+        // nothing is run once the worker is shut down
+        FetchRoundCompletion completion = new FetchRoundCompletion(1, worker,
+                timeouts::incrementAndGet, flushes::incrementAndGet);
+        completion.countDown();
+        assertEquals(0, flushes.get());
+        assertEquals(2, callerRuns.sum());
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.metric;
+
+import com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntity;
+import com.alibaba.csp.sentinel.dashboard.domain.vo.MetricSeries;
+import com.alibaba.csp.sentinel.dashboard.domain.vo.MetricTotalsVo;
+import com.alibaba.csp.sentinel.dashboard.redis.service.RedisService;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntityFixture.metric;
+
+public class FleetMetricAggregatorTest {
+
+    /**
+     * Hashes of the Redis shared by the nodes.
+     */
+    private final Map<String, Map<String, String>> hashes = new HashMap<>();
+    private final List<FleetMetricAggregator> aggregators = new ArrayList<>();
+    private FleetMetricAggregator aggregator;
+    private long base;
+
+    @Before
+    public void setUp() {
+        aggregator = newAggregator();
+        base = System.currentTimeMillis() / 60_000 * 60_000 - 60_000;
+    }
+
+    @After
+    public void tearDown() {
+        for (FleetMetricAggregator aggregator : aggregators) {
+            aggregator.stop();
+        }
+    }
+
+    private FleetMetricAggregator newAggregator() {
+        FleetMetricAggregator aggregator = new FleetMetricAggregator();
+        ReflectionTestUtils.setField(aggregator, "historyMinutes", 10);
+        ReflectionTestUtils.setField(aggregator, "fetchStats", new MetricFetchStats());
+        ReflectionTestUtils.setField(aggregator, "redisService", new RedisService() {
+            @Override
+            public List<Map<String, String>> getMultiCacheMapPipelined(List<String> keys) {
+                List<Map<String, String>> results = new ArrayList<>();
+                for (String key : keys) {
+                    results.add(hashes.getOrDefault(key, Collections.emptyMap()));
+                }
+                return results;
+            }
+
+            @Override
+            public void putMultiCacheMapPipelined(Map<String, Map<String, String>> values, long timeout,
+                                                  TimeUnit unit) {
+                for (Map.Entry<String, Map<String, String>> e : values.entrySet()) {
+                    hashes.computeIfAbsent(e.getKey(), k -> new HashMap<>()).putAll(e.getValue());
+                }
+            }
+        });
+        aggregator.start();
+        aggregators.add(aggregator);
+        return aggregator;
+    }
+
+    private MetricSeries series(FleetMetricAggregator aggregator, String app, long startTime, long endTime) {
+        return aggregator.series(Collections.singletonList(app), startTime, endTime).get(app);
+    }
+
+    @Test
+    public void testAppTotals() {
+        aggregator.record(Arrays.asList(metric("a", "r1", base, 10, 1), metric("a", "r2", base + 1000, 20, 2),
+                metric("b", "r1", base, 5, 30)));
+
+        List<MetricTotalsVo> totals = aggregator.appTotals(300, TopResourceTracker.Rank.PASS, 10);
+        assertEquals(2, totals.size());
+        assertEquals("a", totals.get(0).getApp());
+        assertEquals(30L, (long) totals.get(0).getPass());
+        assertEquals(3L, (long) totals.get(0).getBlock());
+        assertEquals(10.0, totals.get(0).getRt(), 0);
+        totals = aggregator.appTotals(300, TopResourceTracker.Rank.BLOCK, 1);
+        assertEquals(1, totals.size());
+        assertEquals("b", totals.get(0).getApp());
+        // the window ends now, the metrics are older than 10s
+        assertTrue(aggregator.appTotals(10, TopResourceTracker.Rank.PASS, 10).isEmpty());
+    }
+
+    @Test
+    public void testSeriesOfBuckets() {
+        aggregator.record(Arrays.asList(metric("a", "r1", base, 10, 0), metric("a", "r2", base, 20, 0),
+                metric("a", "r1", base + 1000, 40, 0), metric("a", "r1", base + 10_000, 50, 10)));
+        // the same second again, its total grows
+        aggregator.record(Collections.singletonList(metric("a", "r2", base + 1000, 5, 0)));
+
+        MetricSeries series = series(aggregator, "a", base, base + 59_000);
+        assertEquals(2, series.size());
+        assertEquals(base, series.getTimestamp(0));
+        // per-second average of the bucket, peak second of the app
+        assertEquals(7L, series.getPassQps(0));
+        assertEquals(45L, series.getMaxPassQps(0));
+        assertEquals(4, series.getCount(0));
+        assertEquals(base + 10_000, series.getTimestamp(1));
+        assertEquals(1L, series.getBlockQps(1));
+        assertEquals(1, series(aggregator, "a", base + 10_000, base + 59_000).size());
+        assertNull(series(aggregator, "b", base, base + 59_000));
+    }
+
+    @Test
+    public void testBucketsSharedWithTheOtherNodes() {
+        FleetMetricAggregator other = newAggregator();
+        aggregator.record(Arrays.asList(metric("a", "r1", base, 10, 1), metric("a", "r1", base + 10_000, 20, 0)));
+        other.record(Collections.singletonList(metric("b", "r1", base, 5, 30)));
+        assertEquals(1, other.appTotals(300, TopResourceTracker.Rank.PASS, 10).size());
+
+        aggregator.share(System.currentTimeMillis());
+        other.share(System.currentTimeMillis());
+        List<MetricTotalsVo> totals = other.appTotals(300, TopResourceTracker.Rank.PASS, 10);
+        assertEquals(Arrays.asList("a", "b"), Arrays.asList(totals.get(0).getApp(), totals.get(1).getApp()));
+        assertEquals(30L, (long) totals.get(0).getPass());
+        assertEquals(2, series(other, "a", base, base + 59_000).size());
+
+        // only the buckets changed are written again, the saving node reads its latest ones itself
+        hashes.clear();
+        aggregator.record(Collections.singletonList(metric("a", "r2", base + 10_000, 5, 0)));
+        aggregator.share(System.currentTimeMillis());
+        assertEquals(1, hashes.size());
+        assertEquals(35L, (long) aggregator.appTotals(300, TopResourceTracker.Rank.PASS, 10).get(0).getPass());
+        assertEquals(25L, (long) other.appTotals(300, TopResourceTracker.Rank.PASS, 10).get(0).getPass());
+    }
+}
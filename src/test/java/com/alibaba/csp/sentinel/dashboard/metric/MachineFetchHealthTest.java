@@ -0,0 +1,80 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.metric;
+
+import com.alibaba.csp.sentinel.dashboard.metric.MachineFetchHealth.Circuit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MachineFetchHealthTest {
+
+    @Test
+    public void testBackoffThenOpen() {
+        MachineFetchHealth health = new MachineFetchHealth("a:1");
+        assertTrue(health.tryAcquire(0));
+        assertEquals(Circuit.CLOSED, health.onFailure(0));
+        assertEquals(Circuit.CLOSED, health.getCircuit());
+        // backed off between half and the full backoff
+        assertFalse(health.tryAcquire(MachineFetchHealth.MIN_BACKOFF_MS / 2 - 1));
+        assertTrue(health.tryAcquire(MachineFetchHealth.MIN_BACKOFF_MS));
+
+        health.onFailure(1_000);
+        health.onFailure(2_000);
+        assertEquals(MachineFetchHealth.OPEN_THRESHOLD, health.getFailures());
+        assertEquals(Circuit.OPEN, health.getCircuit());
+        long retryAt = health.getRetryAt();
+        assertTrue(retryAt > 2_000 && retryAt <= 2_000 + 4 * MachineFetchHealth.MIN_BACKOFF_MS);
+        assertFalse(health.tryAcquire(retryAt - 1));
+    }
+
+    @Test
+    public void testHalfOpenProbe() {
+        MachineFetchHealth health = new MachineFetchHealth("a:1");
+        for (int i = 0; i < MachineFetchHealth.OPEN_THRESHOLD; i++) {
+            health.onFailure(0);
+        }
+        long retryAt = health.getRetryAt();
+        assertTrue(health.tryAcquire(retryAt));
+        assertEquals(Circuit.HALF_OPEN, health.getCircuit());
+        // a single probe at a time
+        assertFalse(health.tryAcquire(retryAt + 1));
+
+        assertEquals(Circuit.HALF_OPEN, health.onFailure(retryAt + 100));
+        assertEquals(Circuit.OPEN, health.getCircuit());
+        assertTrue(health.getRetryAt() - (retryAt + 100) >= 4 * MachineFetchHealth.MIN_BACKOFF_MS);
+
+        assertTrue(health.tryAcquire(health.getRetryAt()));
+        assertEquals(Circuit.HALF_OPEN, health.onSuccess(20));
+        assertEquals(Circuit.CLOSED, health.getCircuit());
+        assertEquals(0, health.getFailures());
+        assertEquals(20, health.getLatencyEwma(), 0.001);
+        assertTrue(health.tryAcquire(0));
+    }
+
+    @Test
+    public void testKeepAliveFallback() {
+        MachineFetchHealth health = new MachineFetchHealth("a:1");
+        assertTrue(health.useKeepAlive(0));
+        assertFalse(health.onKeepAliveFailure(0, 2, 1_000));
+        health.onKeepAliveSuccess();
+        assertFalse(health.onKeepAliveFailure(0, 2, 1_000));
+        assertTrue(health.onKeepAliveFailure(10, 2, 1_000));
+        assertFalse(health.useKeepAlive(500));
+        assertTrue(health.useKeepAlive(1_010));
+    }
+}
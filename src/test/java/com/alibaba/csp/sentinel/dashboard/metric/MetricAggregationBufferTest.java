@@ -0,0 +1,88 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.metric;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntity;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MetricAggregationBufferTest {
+
+    @Test
+    public void testAggregateBySecondAndResource() {
+        MetricAggregationBuffer buffer = new MetricAggregationBuffer("app", 10_000, 12_999);
+        assertTrue(buffer.add("/a", 10_100, 10, 1, 9, 0, 9 * 5, 1));
+        assertTrue(buffer.add("/a", 10_900, 20, 2, 19, 1, 19 * 10, 1));
+        assertTrue(buffer.add("/a", 12_000, 1, 0, 1, 0, 3, 1));
+        assertTrue(buffer.add("/b", 11_000, 5, 0, 5, 0, 5, 1));
+        assertFalse(buffer.add("/b", 13_000, 5, 0, 5, 0, 5, 1));
+        assertFalse(buffer.add("/b", 9_999, 5, 0, 5, 0, 5, 1));
+
+        List<MetricEntity> entities = buffer.toEntities();
+        assertEquals(3, entities.size());
+        assertEquals(2, buffer.getOutOfWindowCount());
+        MetricEntity first = find(entities, "/a", 10_000);
+        assertEquals(30L, (long) first.getPassQps());
+        assertEquals(3L, (long) first.getBlockQps());
+        assertEquals(28L, (long) first.getSuccessQps());
+        assertEquals(1L, (long) first.getExceptionQps());
+        assertEquals(9 * 5 + 19 * 10, first.getRt(), 0.0001);
+        assertEquals(2, first.getCount());
+        assertEquals("app", first.getApp());
+        assertNotNull(find(entities, "/a", 12_000));
+        assertNotNull(find(entities, "/b", 11_000));
+    }
+
+    @Test
+    public void testConcurrentAdd() throws Exception {
+        final MetricAggregationBuffer buffer = new MetricAggregationBuffer("app", 0, 5_999);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    buffer.add("/r" + (i % 4), (i % 6) * 1000, 1, 1, 1, 1, 2, 1);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long pass = 0;
+        long count = 0;
+        for (MetricEntity entity : buffer.toEntities()) {
+            pass += entity.getPassQps();
+            count += entity.getCount();
+        }
+        assertEquals(80_000, pass);
+        assertEquals(80_000, count);
+    }
+
+    private MetricEntity find(List<MetricEntity> entities, String resource, long timestamp) {
+        for (MetricEntity entity : entities) {
+            if (entity.getResource().equals(resource) && entity.getTimestamp().getTime() == timestamp) {
+                return entity;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.metric;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MetricContentDecoderTest {
+
+    private static final String BODY = body();
+
+    @Test
+    public void testGzip() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (OutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(BODY.getBytes(StandardCharsets.UTF_8));
+        }
+        assertParsed(MetricContentDecoder.decode(new ByteArrayInputStream(bytes.toByteArray()), "gzip"));
+    }
+
+    @Test
+    public void testDeflate() throws Exception {
+        for (boolean nowrap : new boolean[] {false, true}) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (OutputStream out = new DeflaterOutputStream(bytes, new Deflater(Deflater.DEFAULT_COMPRESSION, nowrap))) {
+                out.write(BODY.getBytes(StandardCharsets.UTF_8));
+            }
+            assertParsed(MetricContentDecoder.decode(new ByteArrayInputStream(bytes.toByteArray()), "Deflate"));
+        }
+    }
+
+    @Test
+    public void testIdentityAndUnsupported() throws Exception {
+        assertParsed(MetricContentDecoder.decode(new ByteArrayInputStream(BODY.getBytes(StandardCharsets.UTF_8)), null));
+        assertFalse(MetricContentDecoder.isCompressed("identity"));
+        assertTrue(MetricContentDecoder.isCompressed("gzip"));
+        try {
+            MetricContentDecoder.decode(new ByteArrayInputStream(new byte[0]), "br");
+            fail("br is not supported");
+        } catch (IOException expected) {
+        }
+    }
+
+    private void assertParsed(InputStream in) throws IOException {
+        List<String> resources = new ArrayList<>();
+        MetricLineParser parser = new MetricLineParser(new ResourceNameInterner(16), StandardCharsets.UTF_8);
+        try (InputStream decoded = in) {
+            parser.parse(decoded, line -> resources.add(line.getResource()));
+        }
+        assertEquals(200, resources.size());
+        assertEquals("/r199", resources.get(199));
+        assertEquals(BODY.length(), parser.getBytesRead());
+    }
+
+    private static String body() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            sb.append(1529998904000L).append("|/r").append(i).append("|10|1|9|0|2\n");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.metric;
+
+import com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntity;
+import com.alibaba.csp.sentinel.dashboard.domain.vo.MetricSeries;
+import com.alibaba.csp.sentinel.dashboard.repository.metric.MetricsRepository;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+import static com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntityFixture.metric;
+import static org.junit.Assert.*;
+
+public class MetricIngestionQueueTest {
+
+    private static final long T0 = 1_700_000_000_000L;
+
+    private File spillDir;
+    private File walDir;
+    private boolean walEnabled;
+    private GatedRepository repository;
+    private MetricFetchStats fetchStats;
+    private MetricIngestionQueue queue;
+
+    @Before
+    public void setUp() throws Exception {
+        spillDir = Files.createTempDirectory("metric-spill").toFile();
+        walDir = Files.createTempDirectory("metric-wal").toFile();
+        repository = new GatedRepository();
+        fetchStats = new MetricFetchStats();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        repository.open();
+        if (queue != null) {
+            queue.stop();
+        }
+        delete(spillDir);
+        delete(walDir);
+    }
+
+    private static void delete(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private void start(MetricIngestionQueue.Policy policy, int capacity, long blockTimeoutMs) throws Exception {
+        start(policy, capacity, blockTimeoutMs, 5000);
+    }
+
+    private void start(MetricIngestionQueue.Policy policy, int capacity, long blockTimeoutMs, int mergeMaxRows)
+            throws Exception {
+        TopResourceTracker tracker = new TopResourceTracker();
+        ReflectionTestUtils.setField(tracker, "windowSeconds", 60);
+        ReflectionTestUtils.setField(tracker, "fetchStats", fetchStats);
+        tracker.start();
+        FleetMetricAggregator aggregator = new FleetMetricAggregator();
+        ReflectionTestUtils.setField(aggregator, "historyMinutes", 10);
+        ReflectionTestUtils.setField(aggregator, "fetchStats", fetchStats);
+        aggregator.start();
+        // nothing is shared with other nodes
+        tracker.stop();
+        aggregator.stop();
+
+        queue = new MetricIngestionQueue();
+        ReflectionTestUtils.setField(queue, "capacity", capacity);
+        ReflectionTestUtils.setField(queue, "writers", 1);
+        ReflectionTestUtils.setField(queue, "policy", policy);
+        ReflectionTestUtils.setField(queue, "blockTimeoutMs", blockTimeoutMs);
+        ReflectionTestUtils.setField(queue, "mergeMaxRows", mergeMaxRows);
+        ReflectionTestUtils.setField(queue, "spillDir", spillDir.getPath());
+        ReflectionTestUtils.setField(queue, "spillMaxMb", 1L);
+        ReflectionTestUtils.setField(queue, "walEnabled", walEnabled);
+        ReflectionTestUtils.setField(queue, "walDir", walDir.getPath());
+        ReflectionTestUtils.setField(queue, "walSegmentMb", 1);
+        ReflectionTestUtils.setField(queue, "walMaxMb", 1L);
+        ReflectionTestUtils.setField(queue, "metricStore", repository);
+        ReflectionTestUtils.setField(queue, "fetchStats", fetchStats);
+        ReflectionTestUtils.setField(queue, "topResourceTracker", tracker);
+        ReflectionTestUtils.setField(queue, "fleetAggregator", aggregator);
+        ReflectionTestUtils.setField(queue, "liveBroadcaster", new MetricLiveBroadcaster());
+        queue.start();
+    }
+
+    /**
+     * Fill the queue: the only writer holds the first batch in the closed repository, the second
+     * batch takes the only slot.
+     */
+    private void fill(List<MetricEntity> first, List<MetricEntity> second) throws Exception {
+        assertTrue(queue.submit(first));
+        assertTrue(repository.entered.await(5, TimeUnit.SECONDS));
+        assertTrue(queue.submit(second));
+    }
+
+    private long gauge(String name) {
+        return fetchStats.snapshot().get(name).longValue();
+    }
+
+    private static List<MetricEntity> batch(String resource, int rows) {
+        List<MetricEntity> entities = new ArrayList<>();
+        for (int i = 0; i < rows; i++) {
+            entities.add(metric(resource, T0 + i * 1000L, 1));
+        }
+        return entities;
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long until = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < until) {
+            Thread.sleep(10);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    @Test
+    public void testBlockDropsAfterTheTimeout() throws Exception {
+        start(MetricIngestionQueue.Policy.BLOCK, 1, 50);
+        fill(batch("a", 1), batch("b", 2));
+        Thread.sleep(20);
+        assertEquals(1, gauge("ingest.queue.depth"));
+        assertEquals(1, gauge("ingest.queue.capacity"));
+        assertTrue(gauge("ingest.queue.lagMs") >= 20);
+
+        assertFalse(queue.submit(batch("c", 3)));
+        assertEquals(3, gauge("ingest.entities.dropped"));
+
+        repository.open();
+        await(() -> gauge("ingest.entities.written") == 3);
+        assertEquals(Arrays.asList("a", "b"), repository.resourcesSaved());
+        assertEquals(0, gauge("ingest.queue.depth"));
+    }
+
+    @Test
+    public void testBlockWaitsForRoom() throws Exception {
+        start(MetricIngestionQueue.Policy.BLOCK, 1, 5000);
+        fill(batch("a", 1), batch("b", 1));
+        AtomicBoolean accepted = new AtomicBoolean();
+        Thread producer = new Thread(() -> accepted.set(queue.submit(batch("c", 1))));
+        producer.start();
+        Thread.sleep(50);
+        assertTrue(producer.isAlive());
+
+        repository.open();
+        producer.join(5000);
+        assertTrue(accepted.get());
+        await(() -> gauge("ingest.entities.written") == 3);
+        assertEquals(0, gauge("ingest.entities.dropped"));
+        assertEquals(3, gauge("ingest.entities.queued"));
+    }
+
+    @Test
+    public void testDropOldestMakesRoom() throws Exception {
+        start(MetricIngestionQueue.Policy.DROP_OLDEST, 1, 0);
+        fill(batch("a", 1), batch("b", 2));
+        assertTrue(queue.submit(batch("c", 1)));
+        assertEquals(2, gauge("ingest.entities.dropped"));
+        assertEquals(1, gauge("ingest.queue.depth"));
+
+        repository.open();
+        await(() -> gauge("ingest.entities.written") == 2);
+        assertEquals(Arrays.asList("a", "c"), repository.resourcesSaved());
+    }
+
+    @Test
+    public void testDropOldestDefersTheBatchesOfTheWal() throws Exception {
+        walEnabled = true;
+        start(MetricIngestionQueue.Policy.DROP_OLDEST, 1, 0);
+        fill(batch("a", 1), batch("b", 2));
+        // once the log is full the next batch is not logged, and finds the queue full
+        MetricWriteAheadLog wal = (MetricWriteAheadLog) ReflectionTestUtils.getField(queue, "wal");
+        while (wal.append(batch("filler", 1000)) >= 0) {
+        }
+        while (wal.append(batch("filler", 1)) >= 0) {
+        }
+        assertTrue(queue.submit(batch("c", 1)));
+        assertEquals(0, gauge("ingest.entities.dropped"));
+        assertEquals(2, gauge("ingest.entities.deferred"));
+        assertEquals(1, gauge("ingest.queue.depth"));
+
+        repository.open();
+        // the checkpoint is no longer held back by the batch taken out of the queue
+        await(() -> gauge("ingest.wal.pendingBatches") == 0);
+        assertEquals(Arrays.asList("a", "c"), repository.resourcesSaved());
+        assertEquals(Collections.singletonList("b"), repository.resourcesSavedIfAbsent());
+    }
+
+    @Test
+    public void testSpillIsReplayedIfAbsent() throws Exception {
+        start(MetricIngestionQueue.Policy.SPILL, 1, 0);
+        fill(batch("a", 1), batch("b", 1));
+        assertTrue(queue.submit(batch("c", 2)));
+        assertEquals(2, gauge("ingest.entities.spilled"));
+        assertTrue(gauge("ingest.spill.bytes") > 0);
+        assertEquals(0, gauge("ingest.entities.dropped"));
+
+        repository.open();
+        await(() -> gauge("ingest.entities.replayed") == 2);
+        assertEquals(Arrays.asList("a", "b"), repository.resourcesSaved());
+        // a file replayed again after a crash must not duplicate its rows
+        assertEquals(Collections.singletonList("c"), repository.resourcesSavedIfAbsent());
+        assertEquals(0, gauge("ingest.spill.bytes"));
+    }
+
+    @Test
+    public void testFailedSaveIsSpilled() throws Exception {
+        start(MetricIngestionQueue.Policy.SPILL, 4, 0);
+        repository.failure = new IllegalStateException("database down");
+        repository.open();
+        assertTrue(queue.submit(batch("a", 2)));
+        await(() -> gauge("ingest.entities.failed") == 2);
+        repository.failure = null;
+
+        await(() -> gauge("ingest.entities.replayed") == 2);
+        assertEquals(2, gauge("ingest.entities.spilled"));
+        assertTrue(repository.resourcesSaved().isEmpty());
+        assertEquals(Collections.singletonList("a"), repository.resourcesSavedIfAbsent());
+    }
+
+    @Test
+    public void testQueuedBatchesAreMergedUpToTheMaxRows() throws Exception {
+        start(MetricIngestionQueue.Policy.BLOCK, 8, 0, 4);
+        fill(batch("a", 1), batch("b", 2));
+        assertTrue(queue.submit(batch("c", 2)));
+        assertTrue(queue.submit(batch("d", 3)));
+        assertTrue(queue.submit(batch("e", 1)));
+
+        repository.open();
+        await(() -> gauge("ingest.entities.written") == 9);
+        List<Integer> sizes = new ArrayList<>();
+        for (List<MetricEntity> saved : repository.saved) {
+            sizes.add(saved.size());
+        }
+        // a save stops taking batches once it holds the max rows
+        assertEquals(Arrays.asList(1, 4, 4), sizes);
+        assertEquals(Arrays.asList("a", "b", "c", "d", "e"), repository.resourcesSaved());
+    }
+
+    /**
+     * Holds every save until opened.
+     */
+    private static final class GatedRepository implements MetricsRepository<MetricEntity> {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch gate = new CountDownLatch(1);
+        final List<List<MetricEntity>> saved = new CopyOnWriteArrayList<>();
+        final List<List<MetricEntity>> savedIfAbsent = new CopyOnWriteArrayList<>();
+        volatile RuntimeException failure;
+
+        void open() {
+            gate.countDown();
+        }
+
+        List<String> resourcesSaved() {
+            return resourcesOf(saved);
+        }
+
+        List<String> resourcesSavedIfAbsent() {
+            return resourcesOf(savedIfAbsent);
+        }
+
+        private static List<String> resourcesOf(List<List<MetricEntity>> batches) {
+            List<String> resources = new ArrayList<>();
+            for (List<MetricEntity> batch : batches) {
+                for (MetricEntity entity : batch) {
+                    if (!resources.contains(entity.getResource())) {
+                        resources.add(entity.getResource());
+                    }
+                }
+            }
+            return resources;
+        }
+
+        private void enter() {
+            entered.countDown();
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void saveAll(Collection<MetricEntity> metrics) {
+            enter();
+            RuntimeException e = failure;
+            if (e != null) {
+                throw e;
+            }
+            saved.add(new ArrayList<>(metrics));
+        }
+
+        @Override
+        public void saveAllIfAbsent(Collection<MetricEntity> metrics) {
+            enter();
+            savedIfAbsent.add(new ArrayList<>(metrics));
+        }
+
+        @Override
+        public List<MetricEntity> queryByAppAndResourceBetween(String app, String resource, long startTime,
+                                                               long endTime) {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public Map<String, MetricSeries> querySeriesByAppAndResourcesBetween(String app, Collection<String> resources,
+                                                                            long startTime, long endTime,
+                                                                            int resolution) {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public List<String> listResourcesOfApp(String app) {
+            return Collections.emptyList();
+        }
+    }
+}
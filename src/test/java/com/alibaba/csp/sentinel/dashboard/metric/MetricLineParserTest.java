@@ -0,0 +1,84 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.metric;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MetricLineParserTest {
+
+    @Test
+    public void testParseThinLines() throws Exception {
+        String body = "1529998904000|/hello|10|2|9|1|5|0|3|1\n"
+                + "1529998904000|/world|1|0|1|0|20\r\n"
+                + "\n"
+                + "1529998905000|/hello|7|0|7|0|4|0|1|1";
+        ResourceNameInterner interner = new ResourceNameInterner(16);
+        MetricLineParser parser = new MetricLineParser(interner, StandardCharsets.UTF_8);
+        List<String> decoded = new ArrayList<>();
+        List<String> resources = new ArrayList<>();
+        int lines = parser.parse(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), line -> {
+            decoded.add(line.toString());
+            resources.add(line.getResource());
+        });
+
+        assertEquals(3, lines);
+        assertEquals(0, parser.getMalformedLines());
+        assertEquals("1529998904000|/hello|10|2|9|1|5|0|3|1", decoded.get(0));
+        assertEquals("1529998904000|/world|1|0|1|0|20|0|0|0", decoded.get(1));
+        assertEquals("1529998905000|/hello|7|0|7|0|4|0|1|1", decoded.get(2));
+        assertSame(resources.get(0), resources.get(2));
+        assertEquals(2, interner.size());
+    }
+
+    @Test
+    public void testSkipMalformedLines() throws Exception {
+        String body = "No metrics\n"
+                + "1529998904000|/hello|x|2|9|1|5\n"
+                + "1529998904000||1|2|9|1|5\n"
+                + "1529998904000|资源|1|2|9|1|5\n";
+        MetricLineParser parser = new MetricLineParser(new ResourceNameInterner(16), StandardCharsets.UTF_8);
+        List<String> resources = new ArrayList<>();
+        int lines = parser.parse(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)),
+                line -> resources.add(line.getResource()));
+
+        assertEquals(1, lines);
+        assertEquals(3, parser.getMalformedLines());
+        assertEquals("No metrics", parser.getFirstMalformedLine());
+        assertEquals("资源", resources.get(0));
+    }
+
+    @Test
+    public void testLongLineGrowsBuffer() throws Exception {
+        StringBuilder resource = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            resource.append('r');
+        }
+        String body = "1529998904000|" + resource + "|1|2|3|4|5\n";
+        MetricLineParser parser = new MetricLineParser(new ResourceNameInterner(1), StandardCharsets.UTF_8);
+        List<String> resources = new ArrayList<>();
+        parser.parse(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)),
+                line -> resources.add(line.getResource()));
+
+        assertEquals(resource.toString(), resources.get(0));
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.metric;
+
+import com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntity;
+
+import org.junit.After;
+import org.junit.Test;
+import org.redisson.api.RScoredSortedSet;
+import org.redisson.api.RTopic;
+import org.redisson.api.RedissonClient;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+import static com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntityFixture.metric;
+
+public class MetricLiveBroadcasterTest {
+
+    private static final long T0 = 1_700_000_000_000L;
+
+    /**
+     * sorted set -> member -> score, of the Redis shared by the nodes
+     */
+    private final Map<String, Map<String, Double>> sortedSets = new HashMap<>();
+    private final List<String> published = new ArrayList<>();
+    private final List<MetricLiveBroadcaster> broadcasters = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (MetricLiveBroadcaster broadcaster : broadcasters) {
+            broadcaster.stop();
+        }
+    }
+
+    private MetricLiveBroadcaster newBroadcaster() {
+        RedissonClient redissonClient = mock(RedissonClient.class);
+        when(redissonClient.getTopic(anyString())).thenAnswer(invocation -> topicOf(invocation.getArgument(0)));
+        when(redissonClient.getScoredSortedSet(anyString(), any()))
+                .thenAnswer(invocation -> sortedSetOf(invocation.getArgument(0)));
+        MetricLiveBroadcaster broadcaster = new MetricLiveBroadcaster();
+        ReflectionTestUtils.setField(broadcaster, "enabled", true);
+        ReflectionTestUtils.setField(broadcaster, "relayEnabled", true);
+        ReflectionTestUtils.setField(broadcaster, "timeoutMs", 60_000L);
+        ReflectionTestUtils.setField(broadcaster, "maxSubscribers", 10);
+        ReflectionTestUtils.setField(broadcaster, "redissonClient", redissonClient);
+        ReflectionTestUtils.setField(broadcaster, "fetchStats", new MetricFetchStats());
+        broadcaster.start();
+        broadcasters.add(broadcaster);
+        return broadcaster;
+    }
+
+    private RTopic topicOf(String name) {
+        RTopic topic = mock(RTopic.class);
+        when(topic.publish(any())).thenAnswer(invocation -> {
+            published.add(name);
+            return 1L;
+        });
+        when(topic.addListener(any(), any())).thenReturn(1);
+        return topic;
+    }
+
+    @SuppressWarnings("unchecked")
+    private RScoredSortedSet<String> sortedSetOf(String name) {
+        Map<String, Double> members = sortedSets.computeIfAbsent(name, k -> new HashMap<>());
+        RScoredSortedSet<String> set = mock(RScoredSortedSet.class);
+        when(set.add(anyDouble(), anyString())).thenAnswer(invocation -> {
+            members.put(invocation.getArgument(1), invocation.getArgument(0));
+            return true;
+        });
+        when(set.remove(any())).thenAnswer(invocation -> members.remove(invocation.<String>getArgument(0)) != null);
+        when(set.valueRange(anyDouble(), anyBoolean(), anyDouble(), anyBoolean())).thenAnswer(invocation -> {
+            double min = invocation.getArgument(0);
+            return members.entrySet().stream().filter(m -> m.getValue() >= min)
+                    .map(Map.Entry::getKey).collect(Collectors.toList());
+        });
+        when(set.expire(anyLong(), any())).thenReturn(true);
+        return set;
+    }
+
+    @Test
+    public void testSeriesOfResources() {
+        Map<String, String> series = MetricLiveBroadcaster.seriesOf(Arrays.asList(
+                metric("b", T0 + 1000, 2), metric("a", T0, 1), metric("b", T0, 3)));
+        assertEquals(Arrays.asList("b", "a"), Arrays.asList(series.keySet().toArray()));
+        assertTrue(series.get("b").startsWith("[{\"timestamp\":" + T0 + ","));
+        assertTrue(series.get("b").contains("\"timestamp\":" + (T0 + 1000)));
+        assertTrue(series.get("a").contains("\"passQps\":1"));
+    }
+
+    @Test
+    public void testEventOfWatchedResources() {
+        Map<String, String> series = MetricLiveBroadcaster.seriesOf(Arrays.asList(
+                metric("a", T0, 1), metric("b\"c", T0, 2)));
+        assertEquals("{\"a\":" + series.get("a") + ",\"b\\\"c\":" + series.get("b\"c") + "}",
+                MetricLiveBroadcaster.eventOf(series, null));
+        assertEquals("{\"a\":" + series.get("a") + "}",
+                MetricLiveBroadcaster.eventOf(series, new HashSet<>(Arrays.asList("a", "d"))));
+        assertNull(MetricLiveBroadcaster.eventOf(series, Collections.singleton("d")));
+    }
+
+    @Test
+    public void testRelayedOnlyWhileAnotherNodeIsSubscribed() {
+        MetricLiveBroadcaster saving = newBroadcaster();
+        MetricLiveBroadcaster watching = newBroadcaster();
+        long now = System.currentTimeMillis();
+        saving.broadcast(Collections.singletonList(metric("a", T0, 1)), now);
+        assertTrue(published.isEmpty());
+
+        assertNotNull(watching.subscribe("app", null));
+        // the nodes subscribed are read again after a while
+        saving.broadcast(Collections.singletonList(metric("a", T0, 1)), now);
+        assertTrue(published.isEmpty());
+        saving.broadcast(Collections.singletonList(metric("a", T0, 1)), now + 5000);
+        assertEquals(Collections.singletonList("sentinel:metric:live:app"), published);
+
+        // the subscribers of the node itself are not relayed to
+        watching.broadcast(Collections.singletonList(metric("a", T0, 1)), now + 5000);
+        assertEquals(1, published.size());
+
+        // the watching node stopped refreshing its entry
+        saving.broadcast(Collections.singletonList(metric("a", T0, 1)), now + 50_000);
+        assertEquals(1, published.size());
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.metric;
+
+import com.alibaba.csp.sentinel.Constants;
+import com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntity;
+import com.alibaba.csp.sentinel.dashboard.discovery.MachineDiscovery;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class MetricPushAggregatorTest {
+
+    private static final long MAX_DELAY_MS = 10_000;
+
+    private final List<MetricEntity> submitted = new ArrayList<>();
+    private MetricFetchStats fetchStats;
+    private MetricPushAggregator aggregator;
+    private long now;
+    private long t;
+
+    @Before
+    public void setUp() {
+        now = System.currentTimeMillis();
+        // inside the window of a new app, which starts at the max delay
+        t = now / 1000 * 1000 - 5000;
+        fetchStats = new MetricFetchStats();
+        aggregator = newAggregator(MetricPushAggregator.Mode.PUSH, Collections.singletonList(""),
+                Collections.singletonList("pulled"));
+    }
+
+    @After
+    public void tearDown() {
+        aggregator.stop();
+    }
+
+    private MetricPushAggregator newAggregator(MetricPushAggregator.Mode mode, List<String> pushApps,
+                                               List<String> pullApps) {
+        MetricPushAggregator aggregator = new MetricPushAggregator();
+        ReflectionTestUtils.setField(aggregator, "defaultMode", mode);
+        ReflectionTestUtils.setField(aggregator, "pushApps", pushApps);
+        ReflectionTestUtils.setField(aggregator, "pullApps", pullApps);
+        ReflectionTestUtils.setField(aggregator, "maxDelayMs", MAX_DELAY_MS);
+        ReflectionTestUtils.setField(aggregator, "ingestionQueue", new MetricIngestionQueue() {
+            @Override
+            public boolean submit(List<MetricEntity> entities) {
+                submitted.addAll(entities);
+                return true;
+            }
+        });
+        ReflectionTestUtils.setField(aggregator, "machineDiscovery", mock(MachineDiscovery.class));
+        ReflectionTestUtils.setField(aggregator, "fetchStats", fetchStats);
+        aggregator.start();
+        // the tests flush at the time they choose
+        ((ScheduledExecutorService) ReflectionTestUtils.getField(aggregator, "flushService")).shutdownNow();
+        return aggregator;
+    }
+
+    private static String line(long ts, String resource, long pass, long block) {
+        return ts + "|" + resource + "|" + pass + "|" + block + "|" + pass + "|0|" + pass * 10 + "|0|1|0\n";
+    }
+
+    private int push(String machine, Long endTime, String... lines) throws Exception {
+        byte[] body = String.join("", lines).getBytes(StandardCharsets.UTF_8);
+        return aggregator.receive("app", machine, body, null, StandardCharsets.UTF_8, endTime);
+    }
+
+    private MetricEntity find(String resource, long ts) {
+        MetricEntity found = null;
+        for (MetricEntity entity : submitted) {
+            if (entity.getResource().equals(resource) && entity.getTimestamp().getTime() == ts) {
+                assertNull("one row per resource and second", found);
+                found = entity;
+            }
+        }
+        return found;
+    }
+
+    @Test
+    public void testDecodeCompressedBatch() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write((line(t, "/a", 10, 1) + "broken line\n" + line(t, Constants.TOTAL_IN_RESOURCE_NAME, 99, 0)
+                    + line(t + 1000, "/b", 3, 0)).getBytes(StandardCharsets.UTF_8));
+        }
+        assertEquals(3, aggregator.receive("app", "10.0.0.1:8719", out.toByteArray(), "gzip",
+                StandardCharsets.UTF_8, null));
+        assertEquals(1, fetchStats.snapshot().get("push.lines.malformed").longValue());
+        assertEquals(3, fetchStats.snapshot().get("push.lines").longValue());
+
+        aggregator.flushAll(now);
+        assertEquals(2, submitted.size());
+        MetricEntity a = find("/a", t);
+        assertEquals("app", a.getApp());
+        assertEquals(10L, (long) a.getPassQps());
+        assertEquals(1L, (long) a.getBlockQps());
+        // the rt of every success summed up
+        assertEquals(1000.0, a.getRt(), 0);
+        assertNotNull(a.getGmtCreate());
+        assertEquals(3L, (long) find("/b", t + 1000).getPassQps());
+    }
+
+    @Test
+    public void testWatermarkOfAllMachines() throws Exception {
+        push("m1:1", t + 1000, line(t, "/a", 1, 0), line(t + 1000, "/a", 2, 0));
+        push("m2:1", t, line(t, "/a", 10, 0));
+        aggregator.flushAll(now);
+        // m2 has not passed the second second yet
+        assertEquals(1, submitted.size());
+        assertEquals(11L, (long) find("/a", t).getPassQps());
+
+        push("m2:1", t + 1000, line(t + 1000, "/a", 20, 0));
+        aggregator.flushAll(now);
+        assertEquals(2, submitted.size());
+        assertEquals(22L, (long) find("/a", t + 1000).getPassQps());
+        assertEquals(3, fetchStats.snapshot().get("push.requests").longValue());
+    }
+
+    @Test
+    public void testMaxDelayFlushesAMachineLaggingBehind() throws Exception {
+        push("m1:1", t - 1000, line(t - 1000, "/a", 1, 0));
+        push("m2:1", t + 2000, line(t, "/a", 5, 0), line(t + 2000, "/a", 7, 0));
+        aggregator.flushAll(now);
+        assertEquals(1, submitted.size());
+        assertEquals(1L, (long) find("/a", t - 1000).getPassQps());
+
+        // m1 gives up its seconds older than the max delay
+        aggregator.flushAll(t + 2000 + MAX_DELAY_MS + 1000);
+        assertEquals(3, submitted.size());
+        assertEquals(5L, (long) find("/a", t).getPassQps());
+        assertEquals(7L, (long) find("/a", t + 2000).getPassQps());
+
+        // too late, the second has been written
+        push("m1:1", t, line(t, "/a", 100, 0));
+        aggregator.flushAll(t + 2000 + MAX_DELAY_MS + 2000);
+        assertEquals(3, submitted.size());
+        assertEquals(1, fetchStats.snapshot().get("push.lines.late").longValue());
+    }
+
+    @Test
+    public void testModeOfApps() {
+        assertTrue(aggregator.isPush("app"));
+        assertFalse(aggregator.isPush("pulled"));
+
+        MetricPushAggregator pulling = newAggregator(MetricPushAggregator.Mode.PULL,
+                Arrays.asList("pushed", " other "), Collections.singletonList(""));
+        try {
+            assertTrue(pulling.isPush("pushed"));
+            assertTrue(pulling.isPush("other"));
+            assertFalse(pulling.isPush("app"));
+        } finally {
+            pulling.stop();
+        }
+    }
+}
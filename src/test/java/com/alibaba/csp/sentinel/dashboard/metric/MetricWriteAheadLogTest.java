@@ -0,0 +1,110 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.metric;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntity;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntityFixture.metric;
+
+public class MetricWriteAheadLogTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("metric-wal").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testAppendReadAndRecover() throws Exception {
+        MetricWriteAheadLog wal = new MetricWriteAheadLog(dir, 512, 1 << 20);
+        List<Long> lsns = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            lsns.add(wal.append(Arrays.asList(metric("/r" + i, i * 1000L, 7), metric("/s" + i, i * 1000L, 7))));
+        }
+        // small segments, the log has been rolled
+        assertTrue(lsns.get(9) >= 512);
+        List<MetricEntity> batch = wal.read(lsns.get(3));
+        assertEquals(2, batch.size());
+        assertEquals("/r3", batch.get(0).getResource());
+        assertEquals(3000L, batch.get(0).getTimestamp().getTime());
+        assertEquals(7L, (long) batch.get(0).getPassQps());
+        assertEquals(70.0, batch.get(0).getRt(), 0.0001);
+
+        wal.checkpoint(lsns.get(6));
+        wal.close();
+
+        MetricWriteAheadLog reopened = new MetricWriteAheadLog(dir, 512, 1 << 20);
+        assertEquals(lsns.subList(6, 10), reopened.recover());
+        assertEquals(wal.getEnd(), reopened.getEnd());
+        assertEquals("/s9", reopened.read(lsns.get(9)).get(1).getResource());
+        long next = reopened.append(Collections.singletonList(metric("/t", 0, 7)));
+        assertEquals(wal.getEnd(), next);
+    }
+
+    @Test
+    public void testTornRecordIsOverwritten() throws Exception {
+        MetricWriteAheadLog wal = new MetricWriteAheadLog(dir, 4096, 1 << 20);
+        long first = wal.append(Collections.singletonList(metric("/a", 0, 7)));
+        long second = wal.append(Collections.singletonList(metric("/b", 0, 7)));
+        wal.close();
+        // corrupt the payload of the last record
+        try (RandomAccessFile raf = new RandomAccessFile(new File(dir, String.format("%020d", 0) + ".wal"), "rw")) {
+            raf.seek(second + 12);
+            raf.write(0xFF);
+        }
+        MetricWriteAheadLog reopened = new MetricWriteAheadLog(dir, 4096, 1 << 20);
+        assertEquals(Collections.singletonList(first), reopened.recover());
+        assertEquals(second, reopened.append(Collections.singletonList(metric("/c", 0, 7))));
+    }
+
+    @Test
+    public void testFull() throws Exception {
+        MetricWriteAheadLog wal = new MetricWriteAheadLog(dir, 256, 512);
+        int appended = 0;
+        while (wal.append(Collections.singletonList(metric("/r", 0, 7))) >= 0) {
+            appended++;
+        }
+        assertTrue(appended > 0);
+        wal.checkpoint(wal.getEnd());
+        assertTrue(wal.append(Collections.singletonList(metric("/r", 0, 7))) >= 0);
+    }
+
+}
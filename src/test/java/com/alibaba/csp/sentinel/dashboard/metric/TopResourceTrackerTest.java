@@ -0,0 +1,162 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.metric;
+
+import com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntity;
+import com.alibaba.csp.sentinel.dashboard.domain.vo.MetricTotalsVo;
+import com.alibaba.csp.sentinel.dashboard.redis.service.RedisService;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntityFixture.APP;
+import static com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntityFixture.metric;
+
+public class TopResourceTrackerTest {
+
+    private static final long T0 = 1_700_000_000_000L;
+
+    /**
+     * Hashes of the Redis shared by the nodes.
+     */
+    private final Map<String, Map<String, String>> hashes = new HashMap<>();
+    private TopResourceTracker tracker;
+
+    @Before
+    public void setUp() {
+        tracker = newTracker();
+    }
+
+    @After
+    public void tearDown() {
+        tracker.stop();
+    }
+
+    private TopResourceTracker newTracker() {
+        TopResourceTracker tracker = new TopResourceTracker();
+        ReflectionTestUtils.setField(tracker, "windowSeconds", 60);
+        ReflectionTestUtils.setField(tracker, "fetchStats", new MetricFetchStats());
+        ReflectionTestUtils.setField(tracker, "redisService", new RedisService() {
+            @Override
+            public List<Map<String, String>> getMultiCacheMapPipelined(List<String> keys) {
+                List<Map<String, String>> results = new ArrayList<>();
+                for (String key : keys) {
+                    results.add(hashes.getOrDefault(key, Collections.emptyMap()));
+                }
+                return results;
+            }
+
+            @Override
+            public void setMultiCacheMapPipelined(Map<String, Map<String, String>> values, long timeout,
+                                                  TimeUnit unit) {
+                hashes.putAll(values);
+            }
+        });
+        tracker.start();
+        return tracker;
+    }
+
+    @Test
+    public void testRankedByTotalsOverTheWindow() {
+        List<MetricEntity> metrics = new ArrayList<>();
+        metrics.add(metric(APP, "a", T0, 10, 0, 10));
+        metrics.add(metric(APP, "b", T0, 5, 7, 50));
+        metrics.add(metric(APP, "c", T0, 3, 1, 300));
+        metrics.add(metric(APP, "b", T0 + 1000, 10, 0, 100));
+        tracker.record(metrics);
+
+        assertEquals(Arrays.asList("b", "a", "c"), tracker.top("app", TopResourceTracker.Rank.PASS, true, null, 10));
+        assertEquals(Arrays.asList("c", "a", "b"), tracker.top("app", TopResourceTracker.Rank.PASS, false, null, 10));
+        assertEquals(Arrays.asList("b", "c"), tracker.top("app", TopResourceTracker.Rank.BLOCK, true, null, 2));
+        // average rt: c 100, b 10, a 1
+        assertEquals(Arrays.asList("c", "b", "a"), tracker.top("app", TopResourceTracker.Rank.RT, true, null, 10));
+        assertEquals(Collections.singletonList("a"),
+                tracker.top("app", TopResourceTracker.Rank.PASS, true, r -> !r.equals("b"), 1));
+        // ranked by no node
+        assertNull(tracker.top("other", TopResourceTracker.Rank.PASS, true, null, 10));
+    }
+
+    @Test
+    public void testBucketsLeaveTheWindow() {
+        tracker.record(Arrays.asList(metric(APP, "a", T0, 100, 0, 0), metric(APP, "b", T0, 50, 0, 0)));
+        tracker.record(Collections.singletonList(metric(APP, "b", T0 + 30_000, 40, 0, 0)));
+        assertEquals(Arrays.asList("a", "b"), tracker.top("app", TopResourceTracker.Rank.PASS, true, null, 10));
+
+        // the bucket of T0 leaves the 60s window, a has no traffic left
+        tracker.record(Collections.singletonList(metric(APP, "b", T0 + 70_000, 1, 0, 0)));
+        assertEquals(Collections.singletonList("b"), tracker.top("app", TopResourceTracker.Rank.PASS, true, null, 10));
+
+        // too late for the window
+        tracker.record(Collections.singletonList(metric(APP, "a", T0, 1000, 0, 0)));
+        assertEquals(Collections.singletonList("b"), tracker.top("app", TopResourceTracker.Rank.PASS, true, null, 10));
+    }
+
+    @Test
+    public void testTopAcrossApps() {
+        MetricEntity other = metric("other", "x", T0, 1, 5, 0);
+        other.setApp("other");
+        tracker.record(Arrays.asList(metric(APP, "a", T0, 10, 0, 10), metric(APP, "b", T0, 5, 7, 50),
+                metric(APP, "c", T0, 3, 1, 300), other));
+
+        List<MetricTotalsVo> top = tracker.topAcrossApps(Arrays.asList(APP, "other"), TopResourceTracker.Rank.BLOCK, 2);
+        assertEquals(2, top.size());
+        assertEquals("b", top.get(0).getResource());
+        assertEquals(7L, (long) top.get(0).getBlock());
+        assertEquals("other", top.get(1).getApp());
+        assertEquals("x", top.get(1).getResource());
+        // resources with no block are not ranked
+        assertEquals(3, tracker.topAcrossApps(Arrays.asList(APP, "other"), TopResourceTracker.Rank.BLOCK, 10).size());
+    }
+
+    @Test
+    public void testRankedByTheTotalsSharedByTheSavingNode() {
+        long now = System.currentTimeMillis();
+        tracker.record(Arrays.asList(metric(APP, "a", now, 10, 0, 10), metric(APP, "b", now, 5, 7, 50),
+                metric(APP, "c", now, 3, 1, 300)));
+        TopResourceTracker other = newTracker();
+        try {
+            assertNull(other.top("app", TopResourceTracker.Rank.PASS, true, null, 10));
+
+            tracker.share(now);
+            // read back once the ranking cached by the other node is outdated
+            other.share(now + 20_000);
+            assertEquals(Arrays.asList("a", "b", "c"), other.top("app", TopResourceTracker.Rank.PASS, true, null, 10));
+            assertEquals(Arrays.asList("b", "c"), other.top("app", TopResourceTracker.Rank.BLOCK, true, null, 2));
+            assertEquals(Arrays.asList("c", "b", "a"), other.top("app", TopResourceTracker.Rank.RT, true, null, 10));
+            assertEquals(Collections.singletonList("c"),
+                    other.top("app", TopResourceTracker.Rank.PASS, false, r -> !r.equals("b"), 1));
+        } finally {
+            other.stop();
+        }
+
+        // not saved here for the whole window
+        hashes.clear();
+        tracker.share(now + 61_000);
+        assertTrue(hashes.isEmpty());
+        assertNull(tracker.top("app", TopResourceTracker.Rank.PASS, true, null, 10));
+    }
+}
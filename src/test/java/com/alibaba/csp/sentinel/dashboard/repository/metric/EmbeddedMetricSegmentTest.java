@@ -0,0 +1,104 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.repository.metric;
+
+import com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntity;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntityFixture.APP;
+import static com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntityFixture.coded;
+import static com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntityFixture.metric;
+
+public class EmbeddedMetricSegmentTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("metric-segment").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static byte[] block(long base, int code) {
+        List<MetricEntity> rows = new ArrayList<>();
+        rows.add(coded(code, metric(APP, "r", base, 10, 1, 1)));
+        rows.add(coded(code, metric(APP, "r", base + 1000, 20, 1, 2)));
+        return MetricBlockCodec.encode(rows, base);
+    }
+
+    @Test
+    public void testAppendAndReopen() throws Exception {
+        File file = new File(dir, "0-1.seg");
+        EmbeddedMetricSegment segment = EmbeddedMetricSegment.create(file, 0, 4096);
+        assertTrue(segment.append(block(1000, 1), 1000, 2000, 2, new int[] {1}));
+        assertTrue(segment.append(block(5000, 2), 5000, 6000, 2, new int[] {2}));
+        assertFalse(segment.append(new byte[4096], 0, 0, 1, new int[0]));
+        segment.force();
+
+        EmbeddedMetricSegment reopened = EmbeddedMetricSegment.open(file);
+        assertEquals(2, reopened.getBlocks().size());
+        assertEquals(segment.getPosition(), reopened.getPosition());
+        EmbeddedMetricSegment.BlockRef second = reopened.getBlocks().get(1);
+        assertTrue(second.holds(2));
+        assertFalse(second.holds(1));
+        assertTrue(second.overlaps(5500, 9000));
+        assertFalse(second.overlaps(0, 4999));
+        MetricBlockCodec.Block decoded = MetricBlockCodec.decode(reopened.payloadOf(second), second.minTs, second.rows);
+        assertArrayEquals(new long[] {5000, 6000}, decoded.timestamps);
+        assertArrayEquals(new long[] {10, 20}, decoded.passQps);
+    }
+
+    @Test
+    public void testTornBlockIsOverwritten() throws Exception {
+        File file = new File(dir, "0-1.seg");
+        EmbeddedMetricSegment segment = EmbeddedMetricSegment.create(file, 0, 4096);
+        segment.append(block(1000, 1), 1000, 2000, 2, new int[] {1});
+        int end = segment.getPosition();
+        segment.append(block(5000, 2), 5000, 6000, 2, new int[] {2});
+        segment.force();
+        // corrupt the payload of the second block
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(end + EmbeddedMetricSegment.BLOCK_HEADER_BYTES);
+            raf.write(0x7F);
+        }
+
+        EmbeddedMetricSegment reopened = EmbeddedMetricSegment.open(file);
+        assertEquals(1, reopened.getBlocks().size());
+        assertEquals(end, reopened.getPosition());
+        assertTrue(reopened.append(block(9000, 3), 9000, 10000, 2, new int[] {3}));
+        assertEquals(2, EmbeddedMetricSegment.open(file).getBlocks().size());
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.repository.metric;
+
+import com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntity;
+import com.alibaba.csp.sentinel.dashboard.domain.vo.MetricSeries;
+import com.alibaba.csp.sentinel.dashboard.metric.MetricFetchStats;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntityFixture.metric;
+
+public class EmbeddedMetricsRepositoryTest {
+
+    private File dir;
+    private EmbeddedMetricsRepository repository;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("metric-store").toFile();
+        repository = new EmbeddedMetricsRepository();
+        ReflectionTestUtils.setField(repository, "dir", dir.getPath());
+        ReflectionTestUtils.setField(repository, "segmentMinutes", 60);
+        ReflectionTestUtils.setField(repository, "segmentMb", 1);
+        ReflectionTestUtils.setField(repository, "retentionHours", 72);
+        ReflectionTestUtils.setField(repository, "fetchStats", new MetricFetchStats());
+        repository.start();
+    }
+
+    @After
+    public void tearDown() {
+        repository.stop();
+        delete(dir);
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                delete(f);
+            }
+        }
+        file.delete();
+    }
+
+    @Test
+    public void testQueryResourcesAtOnce() {
+        long base = System.currentTimeMillis() / 60_000 * 60_000 - 60_000;
+        List<MetricEntity> metrics = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            metrics.add(metric("a", base + i * 1000, 1));
+            metrics.add(metric("b", base + i * 1000, 2));
+            metrics.add(metric("c", base + i * 1000, 3));
+        }
+        repository.saveAll(metrics);
+
+        Map<String, List<MetricEntity>> results = repository.queryByAppAndResourcesBetween("app",
+                Arrays.asList("a", "c", "unknown"), base, base + 9_000, 1);
+        assertEquals(2, results.size());
+        assertEquals(10, results.get("a").size());
+        assertEquals(10, results.get("c").size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals("c", results.get("c").get(i).getResource());
+            assertEquals(base + i * 1000, results.get("c").get(i).getTimestamp().getTime());
+            assertEquals(3L, (long) results.get("c").get(i).getPassQps());
+        }
+
+        results = repository.queryByAppAndResourcesBetween("app", Arrays.asList("a", "b"), base, base + 19_000, 10);
+        assertEquals(2, results.size());
+        assertEquals(2, results.get("b").size());
+        // the per-second average of the bucket
+        assertEquals(2L, (long) results.get("b").get(0).getPassQps());
+        List<MetricEntity> single = repository.queryByAppAndResourceBetween("app", "a", base, base + 19_000, 10);
+        assertEquals(2, single.size());
+        assertEquals(base + 10_000, single.get(1).getTimestamp().getTime());
+        // not a multiple of 10s, summed up in buckets of the step itself
+        results = repository.queryByAppAndResourcesBetween("app", Arrays.asList("c"), base, base + 19_000, 5);
+        assertEquals(4, results.get("c").size());
+        assertEquals(base + 5_000, results.get("c").get(1).getTimestamp().getTime());
+        assertEquals(3L, (long) results.get("c").get(1).getMaxPassQps());
+        Map<String, MetricSeries> series = repository.querySeriesByAppAndResourcesBetween("app",
+                Arrays.asList("b", "c"), base + 5_000, base + 19_000, 1);
+        assertEquals(15, series.get("b").size());
+        assertEquals(base + 5_000, series.get("b").getTimestamp(0));
+        assertEquals(10.0, series.get("b").getRt(0), 0);
+        assertEquals(15, series.get("c").size());
+        assertTrue(repository.queryByAppAndResourcesBetween("other", Arrays.asList("a"), base, base + 19_000, 1)
+                .isEmpty());
+    }
+
+    @Test
+    public void testStreamResourcesInOrder() {
+        long base = System.currentTimeMillis() / 60_000 * 60_000 - 60_000;
+        List<MetricEntity> metrics = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            metrics.add(metric("a", base + i * 1000, 1));
+            metrics.add(metric("b", base + i * 1000, 2));
+        }
+        repository.saveAll(metrics);
+
+        List<String> events = new ArrayList<>();
+        repository.streamByAppAndResourcesBetween("app", Arrays.asList("b", "unknown", "a"), base + 2_000,
+                base + 4_000, 1, new MetricRowHandler() {
+                    @Override
+                    public void startResource(String resource) {
+                        events.add("start " + resource);
+                    }
+
+                    @Override
+                    public void row(long timestamp, long passQps, long successQps, long blockQps,
+                                    long exceptionQps, double rt, int count, long maxPassQps) {
+                        events.add((timestamp - base) + ":" + passQps);
+                    }
+
+                    @Override
+                    public void endResource(String resource) {
+                        events.add("end " + resource);
+                    }
+                });
+        assertEquals(Arrays.asList("start b", "2000:2", "3000:2", "4000:2", "end b", "start unknown",
+                "end unknown", "start a", "2000:1", "3000:1", "4000:1", "end a"), events);
+    }
+}
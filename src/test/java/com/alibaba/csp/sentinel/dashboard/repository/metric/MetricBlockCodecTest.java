@@ -0,0 +1,65 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.repository.metric;
+
+import com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntity;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntityFixture.APP;
+import static com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntityFixture.coded;
+import static com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntityFixture.metric;
+
+public class MetricBlockCodecTest {
+
+    @Test
+    public void testRoundTrip() {
+        long base = 1700000000000L;
+        List<MetricEntity> rows = new ArrayList<>();
+        rows.add(coded(7, metric(APP, "r", base + 2000, 10, 1, 12.5)));
+        rows.add(coded(3, metric(APP, "r", base + 1000, 5, 1, 0)));
+        rows.add(coded(7, metric(APP, "r", base + 1000, 12, 1, 12.5)));
+        rows.add(coded(3, metric(APP, "r", base, 1000000, 1, 3.25)));
+        byte[] payload = MetricBlockCodec.encode(rows, base);
+
+        assertArrayEquals(new int[] {3, 7}, MetricBlockCodec.resourcesOf(ByteBuffer.wrap(payload)));
+        MetricBlockCodec.Block block = MetricBlockCodec.decode(ByteBuffer.wrap(payload), base, rows.size());
+        assertEquals(4, block.size());
+        assertArrayEquals(new int[] {3, 3, 7, 7}, block.resourceCodes);
+        assertArrayEquals(new long[] {base, base + 1000, base + 1000, base + 2000}, block.timestamps);
+        assertArrayEquals(new long[] {1000000, 5, 12, 10}, block.passQps);
+        assertArrayEquals(new long[] {1000000, 5, 12, 10}, block.successQps);
+        assertArrayEquals(new double[] {3.25, 0, 12.5, 12.5}, block.rt, 0);
+        assertArrayEquals(new int[] {1, 1, 1, 1}, block.count);
+    }
+
+    @Test
+    public void testSteadySeriesIsCompact() {
+        long base = 1700000000000L;
+        List<MetricEntity> rows = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            rows.add(coded(1, metric(APP, "r", base + i * 1000L, 100, 1, 5.0)));
+        }
+        byte[] payload = MetricBlockCodec.encode(rows, base);
+        // 2 bytes of timestamp delta and a byte per other column
+        assertTrue(payload.length < 1000 * 9);
+    }
+}
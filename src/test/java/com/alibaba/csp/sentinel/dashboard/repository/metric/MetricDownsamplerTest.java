@@ -0,0 +1,60 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.repository.metric;
+
+import com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntity;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MetricDownsamplerTest {
+
+    @Test
+    public void testBucketsOfTheStep() {
+        MetricDownsampler sampler = new MetricDownsampler("app", 1, 5);
+        // second 12..16: buckets 10 and 15
+        long[] passQps = {10, 30, 20, 40, 100};
+        for (int i = 0; i < passQps.length; i++) {
+            sampler.add((12 + i) * 1000L, passQps[i], passQps[i], 1, 0, passQps[i] * (i + 1) * 10.0, 1);
+        }
+        List<MetricEntity> buckets = sampler.toMetricEntities("res");
+        assertEquals(2, buckets.size());
+
+        MetricEntity first = buckets.get(0);
+        assertEquals(10_000L, first.getTimestamp().getTime());
+        assertEquals("res", first.getResource());
+        // per-second average over the step: (10 + 30 + 20) / 5
+        assertEquals(12L, (long) first.getPassQps());
+        assertEquals(30L, (long) first.getMaxPassQps());
+        assertEquals(3, first.getCount());
+        // success weighted: (10 * 10 + 30 * 20 + 20 * 30) / 60
+        assertEquals(1300.0 / 60, first.getRt() / first.getSuccessQps(), 1e-9);
+
+        MetricEntity second = buckets.get(1);
+        assertEquals(15_000L, second.getTimestamp().getTime());
+        assertEquals(28L, (long) second.getPassQps());
+        assertEquals(100L, (long) second.getMaxPassQps());
+    }
+
+    @Test
+    public void testBucketOf() {
+        assertEquals(60_000L, MetricDownsampler.bucketOf(119_999L, 60));
+        assertEquals(119_000L, MetricDownsampler.bucketOf(119_999L, 1));
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.repository.metric;
+
+import com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntity;
+import com.alibaba.csp.sentinel.dashboard.metric.MetricFetchStats;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntityFixture.metric;
+
+public class MetricHotWindowCacheTest {
+
+    private MetricFetchStats fetchStats;
+    private MetricHotWindowCache cache;
+
+    @Before
+    public void setUp() {
+        fetchStats = new MetricFetchStats();
+        cache = new MetricHotWindowCache();
+        ReflectionTestUtils.setField(cache, "enabled", true);
+        ReflectionTestUtils.setField(cache, "windowSeconds", 10);
+        ReflectionTestUtils.setField(cache, "fetchStats", fetchStats);
+        cache.start();
+    }
+
+    @Test
+    public void testCoveredFromTheSecondAfterTheFirstBatch() {
+        long now = System.currentTimeMillis() / 1000 * 1000;
+        assertEquals(Long.MAX_VALUE, cache.coveredSince("app", now));
+        List<MetricEntity> batch = new ArrayList<>();
+        batch.add(metric("a", now - 3000, 1));
+        batch.add(metric("a", now - 2000, 1));
+        cache.putAll(batch);
+        assertEquals(now - 1000, cache.coveredSince("app", now));
+
+        cache.putAll(Collections.singletonList(metric("a", now - 1000, 1)));
+        List<MetricEntity> cached = cache.query("app", "a", now - 5000, now);
+        assertEquals(3, cached.size());
+        assertTrue(cache.query("app", "b", now - 5000, now).isEmpty());
+        // the window only holds the last seconds
+        assertEquals((now / 1000 + 20 - 10 + 2) * 1000, cache.coveredSince("app", now + 1000 * 20));
+    }
+
+    @Test
+    public void testSlotKeepsTheLatestSecond() {
+        long now = System.currentTimeMillis() / 1000 * 1000;
+        cache.putAll(Collections.singletonList(metric("a", now, 1)));
+        cache.putAll(Collections.singletonList(metric("a", now - 10 * 1000, 1)));
+        assertEquals(1, cache.query("app", "a", now, now).size());
+        assertTrue(cache.query("app", "a", now - 10 * 1000, now - 10 * 1000).isEmpty());
+    }
+
+    @Test
+    public void testEvictsOldRingsAndStaleApps() {
+        long now = System.currentTimeMillis() / 1000 * 1000;
+        List<MetricEntity> batch = new ArrayList<>();
+        batch.add(metric("old", now - 11 * 1000, 1));
+        batch.add(metric("a", now, 1));
+        batch.add(metric("other", "b", now, 1, 0));
+        cache.putAll(batch);
+        cache.evict(now);
+        assertTrue(cache.query("app", "old", now - 11 * 1000, now).isEmpty());
+        assertEquals(1, cache.query("app", "a", now, now).size());
+        assertEquals(2L, fetchStats.snapshot().get("cache.resources").longValue());
+
+        // not written for longer than the stale time
+        cache.evict(System.currentTimeMillis() + 31 * 1000);
+        assertTrue(cache.query("app", "a", now, now).isEmpty());
+        assertTrue(cache.query("other", "b", now, now).isEmpty());
+        assertEquals(0L, fetchStats.snapshot().get("cache.resources").longValue());
+    }
+}
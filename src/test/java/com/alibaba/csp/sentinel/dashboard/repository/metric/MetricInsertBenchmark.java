@@ -0,0 +1,166 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.repository.metric;
+
+import com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntity;
+import com.alibaba.csp.sentinel.dashboard.repository.metric.mapper.MetricsMapper;
+import com.baomidou.mybatisplus.core.MybatisConfiguration;
+import com.baomidou.mybatisplus.core.MybatisSqlSessionFactoryBuilder;
+
+import org.apache.ibatis.builder.xml.XMLMapperBuilder;
+import org.apache.ibatis.datasource.unpooled.UnpooledDataSource;
+import org.apache.ibatis.io.Resources;
+import org.apache.ibatis.jdbc.ScriptRunner;
+import org.apache.ibatis.mapping.Environment;
+import org.apache.ibatis.session.ExecutorType;
+import org.apache.ibatis.session.SqlSession;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.apache.ibatis.transaction.jdbc.JdbcTransactionFactory;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntityFixture.coded;
+import static com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntityFixture.metric;
+
+/**
+ * Rows per second inserted into {@code metric_entity} through the {@link MetricsMapper}: one
+ * {@code insert} per row in a batch executor, as {@code saveBatch} sent them, and the multi-row
+ * {@link MetricsMapper#insertBatch} of {@link MysqlMetricsRepository#saveAll}. The tables are
+ * created from {@code sql/metric.sql}; skipped unless a database with an empty {@code metric_entity}
+ * is given, e.g. a throwaway container:
+ * <pre>{@code
+ * docker run -d -p 3306:3306 -e MYSQL_ROOT_PASSWORD=root -e MYSQL_DATABASE=sentinel mysql:8
+ * mvn test -Dtest=MetricInsertBenchmark \
+ *     "-Dbenchmark.mysql.url=jdbc:mysql://localhost:3306/sentinel?useSSL=false&allowPublicKeyRetrieval=true" \
+ *     -Dbenchmark.mysql.username=root -Dbenchmark.mysql.password=root
+ * }</pre>
+ *
+ * @author agent
+ */
+public class MetricInsertBenchmark {
+
+    private static final Logger logger = LoggerFactory.getLogger(MetricInsertBenchmark.class);
+
+    private static final int ROWS = 200000;
+    private static final int ROWS_PER_STATEMENT = 1000;
+
+    private SqlSessionFactory sessionFactory;
+
+    @Before
+    public void setUp() throws Exception {
+        String url = System.getProperty("benchmark.mysql.url");
+        Assume.assumeTrue("benchmark.mysql.url not set", url != null);
+        UnpooledDataSource dataSource = new UnpooledDataSource("com.mysql.cj.jdbc.Driver", url,
+                System.getProperty("benchmark.mysql.username"), System.getProperty("benchmark.mysql.password"));
+        try (Connection connection = dataSource.getConnection()) {
+            ScriptRunner runner = new ScriptRunner(connection);
+            runner.setLogWriter(null);
+            try (Reader script = Resources.getResourceAsReader("sql/metric.sql")) {
+                runner.runScript(script);
+            }
+            try (Statement statement = connection.createStatement();
+                 ResultSet rs = statement.executeQuery("select count(*) from metric_entity")) {
+                rs.next();
+                // the rows are removed afterwards, so never run against metrics worth keeping
+                Assume.assumeTrue("metric_entity is not empty", rs.getLong(1) == 0);
+            }
+        }
+
+        MybatisConfiguration configuration = new MybatisConfiguration(
+                new Environment("benchmark", new JdbcTransactionFactory(), dataSource));
+        String mapper = "mapper/MetricsMapper.xml";
+        try (InputStream in = Resources.getResourceAsStream(mapper)) {
+            new XMLMapperBuilder(in, configuration, mapper, configuration.getSqlFragments()).parse();
+        }
+        sessionFactory = new MybatisSqlSessionFactoryBuilder().build(configuration);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (sessionFactory == null) {
+            return;
+        }
+        try (SqlSession session = sessionFactory.openSession(true);
+             Statement statement = session.getConnection().createStatement()) {
+            statement.execute("truncate table metric_entity");
+        }
+    }
+
+    @Test
+    public void benchmark() {
+        // warm up the table and the connections
+        insertBatch(rows(ROWS / 10));
+        report("insert per row, batch executor", insertPerRow(rows(ROWS)));
+        report("insertBatch, " + ROWS_PER_STATEMENT + " rows per statement", insertBatch(rows(ROWS)));
+    }
+
+    private long insertPerRow(List<MetricEntity> rows) {
+        long start = System.nanoTime();
+        try (SqlSession session = sessionFactory.openSession(ExecutorType.BATCH)) {
+            MetricsMapper mapper = session.getMapper(MetricsMapper.class);
+            for (int i = 0; i < rows.size(); i++) {
+                mapper.insert(rows.get(i));
+                if ((i + 1) % ROWS_PER_STATEMENT == 0) {
+                    session.flushStatements();
+                }
+            }
+            session.commit();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private long insertBatch(List<MetricEntity> rows) {
+        long start = System.nanoTime();
+        try (SqlSession session = sessionFactory.openSession(ExecutorType.SIMPLE)) {
+            MetricsMapper mapper = session.getMapper(MetricsMapper.class);
+            for (int i = 0; i < rows.size(); i += ROWS_PER_STATEMENT) {
+                mapper.insertBatch(rows.subList(i, Math.min(rows.size(), i + ROWS_PER_STATEMENT)));
+            }
+            session.commit();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static List<MetricEntity> rows(int count) {
+        Date now = new Date();
+        List<MetricEntity> rows = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            MetricEntity entity = coded(i % 500, metric("app-" + i % 50, "/resource-" + i % 500,
+                    now.getTime() / 1000 * 1000 - i / 500 * 1000L, i % 100, i % 7));
+            entity.setGmtCreate(now);
+            entity.setGmtModified(now);
+            rows.add(entity);
+        }
+        return rows;
+    }
+
+    private static void report(String name, long nanos) {
+        logger.info("{}: {} rows in {} ms, {} rows/s", name, ROWS, nanos / 1000000, (long) (ROWS * 1e9 / nanos));
+    }
+}
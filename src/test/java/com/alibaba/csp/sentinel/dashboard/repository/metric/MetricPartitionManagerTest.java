@@ -0,0 +1,64 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.repository.metric;
+
+import org.junit.Test;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class MetricPartitionManagerTest {
+
+    private final LocalDate today = LocalDate.of(2026, 10, 18);
+
+    @Test
+    public void testDaysToAdd() {
+        assertEquals(Arrays.asList(today, today.plusDays(1), today.plusDays(2)),
+                MetricPartitionManager.daysToAdd(Collections.emptyList(), today, 2));
+        assertEquals(Collections.singletonList(today.plusDays(2)),
+                MetricPartitionManager.daysToAdd(Arrays.asList(today, today.plusDays(1)), today, 2));
+        assertTrue(MetricPartitionManager.daysToAdd(Collections.singletonList(today.plusDays(5)), today, 2).isEmpty());
+    }
+
+    @Test
+    public void testDaysToDrop() {
+        assertEquals(Arrays.asList(today.minusDays(4), today.minusDays(3)),
+                MetricPartitionManager.daysToDrop(Arrays.asList(today.minusDays(2), today.minusDays(3),
+                        today.minusDays(4), today), today, 2));
+        assertTrue(MetricPartitionManager.daysToDrop(Collections.singletonList(today.minusDays(1)), today, 0)
+                .isEmpty());
+    }
+
+    @Test
+    public void testPartitionSet() {
+        MetricPartitionManager.PartitionSet seconds = new MetricPartitionManager.PartitionSet("metric_entity", null, 2);
+        assertEquals("p20261018", seconds.nameOf(today));
+        assertEquals(today, seconds.dayOf("p20261018"));
+        assertNull(seconds.dayOf("pmax"));
+        assertEquals("partition p20261018 values less than ('2026-10-19 00:00:00')", seconds.definitionOf(today));
+
+        MetricPartitionManager.PartitionSet minute = new MetricPartitionManager.PartitionSet("metric_rollup",
+                RollupTier.MINUTE, 30);
+        assertEquals(today, minute.dayOf("p60_20261018"));
+        assertNull(minute.dayOf("p10_20261018"));
+        assertEquals("p60_max", minute.maxPartition());
+        assertEquals("partition p60_20261018 values less than (60, '2026-10-19 00:00:00')", minute.definitionOf(today));
+        assertEquals("partition p60_max values less than (60, maxvalue)", minute.maxDefinition());
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.repository.metric;
+
+import com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntity;
+import com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricRollupEntity;
+import com.alibaba.csp.sentinel.dashboard.repository.metric.mapper.MetricRollupMapper;
+import com.alibaba.csp.sentinel.dashboard.repository.metric.mapper.MetricsMapper;
+import com.baomidou.mybatisplus.core.MybatisConfiguration;
+import com.baomidou.mybatisplus.core.MybatisSqlSessionFactoryBuilder;
+
+import org.apache.ibatis.builder.xml.XMLMapperBuilder;
+import org.apache.ibatis.datasource.unpooled.UnpooledDataSource;
+import org.apache.ibatis.io.Resources;
+import org.apache.ibatis.jdbc.ScriptRunner;
+import org.apache.ibatis.mapping.Environment;
+import org.apache.ibatis.session.SqlSession;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.apache.ibatis.transaction.jdbc.JdbcTransactionFactory;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.stream.Collectors;
+
+import static com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntityFixture.coded;
+import static com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntityFixture.metric;
+import static org.junit.Assert.*;
+
+/**
+ * The bucket selects of {@link MetricRollupMapper} run against MySQL with {@code ONLY_FULL_GROUP_BY}.
+ * The tables are created from {@code sql/metric.sql}; skipped unless a database is given, e.g. a
+ * throwaway container:
+ * <pre>{@code
+ * docker run -d -p 3306:3306 -e MYSQL_ROOT_PASSWORD=root -e MYSQL_DATABASE=sentinel mysql:8
+ * mvn test -Dtest=MetricRollupMapperTest \
+ *     "-Dtest.mysql.url=jdbc:mysql://localhost:3306/sentinel?useSSL=false&allowPublicKeyRetrieval=true" \
+ *     -Dtest.mysql.username=root -Dtest.mysql.password=root
+ * }</pre>
+ * Only the rows of {@link #APP} are written and removed.
+ *
+ * @author agent
+ */
+public class MetricRollupMapperTest {
+
+    private static final String APP = "metric-rollup-mapper-test";
+    /**
+     * aligned to the hour, so it starts a bucket of every step
+     */
+    private static final long T0 = 1_699_999_200_000L;
+
+    private SqlSessionFactory sessionFactory;
+
+    @Before
+    public void setUp() throws Exception {
+        String url = System.getProperty("test.mysql.url");
+        Assume.assumeTrue("test.mysql.url not set", url != null);
+        Properties properties = new Properties();
+        properties.setProperty("user", System.getProperty("test.mysql.username", ""));
+        properties.setProperty("password", System.getProperty("test.mysql.password", ""));
+        properties.setProperty("sessionVariables", "sql_mode=ONLY_FULL_GROUP_BY");
+        UnpooledDataSource dataSource = new UnpooledDataSource("com.mysql.cj.jdbc.Driver", url, properties);
+        try (Connection connection = dataSource.getConnection()) {
+            ScriptRunner runner = new ScriptRunner(connection);
+            runner.setLogWriter(null);
+            try (Reader script = Resources.getResourceAsReader("sql/metric.sql")) {
+                runner.runScript(script);
+            }
+        }
+
+        MybatisConfiguration configuration = new MybatisConfiguration(
+                new Environment("test", new JdbcTransactionFactory(), dataSource));
+        for (String mapper : new String[] {"mapper/MetricsMapper.xml", "mapper/MetricRollupMapper.xml"}) {
+            try (InputStream in = Resources.getResourceAsStream(mapper)) {
+                new XMLMapperBuilder(in, configuration, mapper, configuration.getSqlFragments()).parse();
+            }
+        }
+        sessionFactory = new MybatisSqlSessionFactoryBuilder().build(configuration);
+        deleteRows();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (sessionFactory != null) {
+            deleteRows();
+        }
+    }
+
+    private void deleteRows() throws Exception {
+        try (SqlSession session = sessionFactory.openSession(true)) {
+            for (String table : new String[] {"metric_entity", "metric_rollup"}) {
+                try (PreparedStatement statement = session.getConnection()
+                        .prepareStatement("delete from " + table + " where app = ?")) {
+                    statement.setString(1, APP);
+                    statement.executeUpdate();
+                }
+            }
+        }
+    }
+
+    /**
+     * Save a second of {@code pass = i + 1} for every second {@code i} of {@code [0, seconds)}.
+     */
+    private void saveSeconds(int resourceCode, int seconds) {
+        Date now = new Date();
+        List<MetricEntity> rows = new ArrayList<>(seconds);
+        for (int i = 0; i < seconds; i++) {
+            MetricEntity entity = coded(resourceCode, metric(APP, "/r" + resourceCode, T0 + i * 1000L, i + 1, 0));
+            entity.setGmtCreate(now);
+            entity.setGmtModified(now);
+            rows.add(entity);
+        }
+        try (SqlSession session = sessionFactory.openSession(true)) {
+            session.getMapper(MetricsMapper.class).insertBatch(rows);
+        }
+    }
+
+    /**
+     * @return the buckets of {@link #APP} by resource code and time, other apps may share the database
+     */
+    private static List<MetricRollupEntity> ofApp(List<MetricRollupEntity> buckets) {
+        return buckets.stream().filter(bucket -> APP.equals(bucket.getApp()))
+                .sorted(Comparator.comparingInt(MetricRollupEntity::getResourceCode)
+                        .thenComparing(MetricRollupEntity::getTimestamp))
+                .collect(Collectors.toList());
+    }
+
+    private static void assertBucket(MetricRollupEntity bucket, int resourceCode, int step, long timestamp,
+                                     long pass, long maxPass, int count) {
+        assertEquals(resourceCode, bucket.getResourceCode());
+        assertEquals(step, bucket.getStep());
+        assertEquals(timestamp, bucket.getTimestamp().getTime());
+        assertEquals(pass, (long) bucket.getPassQps());
+        assertEquals(pass, (long) bucket.getSuccessQps());
+        assertEquals(pass * 10.0, bucket.getRt(), 0.0001);
+        assertEquals(maxPass, (long) bucket.getMaxPassQps());
+        assertEquals(count, bucket.getCount());
+    }
+
+    @Test
+    public void testRollupSeconds() {
+        saveSeconds(1, 20);
+        saveSeconds(2, 10);
+        List<MetricRollupEntity> buckets;
+        try (SqlSession session = sessionFactory.openSession(true)) {
+            buckets = ofApp(session.getMapper(MetricRollupMapper.class)
+                    .rollupSeconds(10, new Date(T0), new Date(T0 + 20 * 1000)));
+        }
+        assertEquals(3, buckets.size());
+        // 1 + ... + 10 and 11 + ... + 20
+        assertBucket(buckets.get(0), 1, 10, T0, 55, 10, 10);
+        assertBucket(buckets.get(1), 1, 10, T0 + 10 * 1000, 155, 20, 10);
+        assertBucket(buckets.get(2), 2, 10, T0, 55, 10, 10);
+    }
+
+    @Test
+    public void testRollupTier() {
+        saveSeconds(1, 60);
+        try (SqlSession session = sessionFactory.openSession(true)) {
+            MetricRollupMapper mapper = session.getMapper(MetricRollupMapper.class);
+            List<MetricRollupEntity> tens = ofApp(mapper.rollupSeconds(10, new Date(T0), new Date(T0 + 60 * 1000)));
+            assertEquals(6, tens.size());
+            Date now = new Date();
+            for (MetricRollupEntity bucket : tens) {
+                bucket.setGmtCreate(now);
+                bucket.setGmtModified(now);
+            }
+            mapper.upsertBatch(tens);
+
+            List<MetricRollupEntity> minutes = ofApp(mapper.rollupTier(10, 60, new Date(T0),
+                    new Date(T0 + 60 * 1000)));
+            assertEquals(1, minutes.size());
+            // 1 + ... + 60, the peak is the highest second of the six buckets
+            assertBucket(minutes.get(0), 1, 60, T0, 1830, 60, 60);
+        }
+    }
+
+    @Test
+    public void testSelectBuckets() {
+        saveSeconds(1, 60);
+        saveSeconds(2, 30);
+        saveSeconds(3, 30);
+        try (SqlSession session = sessionFactory.openSession(true)) {
+            MetricRollupMapper mapper = session.getMapper(MetricRollupMapper.class);
+            List<MetricRollupEntity> tens = ofApp(mapper.rollupSeconds(10, new Date(T0), new Date(T0 + 60 * 1000)));
+            Date now = new Date();
+            for (MetricRollupEntity bucket : tens) {
+                bucket.setGmtCreate(now);
+                bucket.setGmtModified(now);
+            }
+            mapper.upsertBatch(tens);
+
+            List<MetricRollupEntity> buckets = mapper.selectBuckets(APP, 10, 30, Arrays.asList(1, 2),
+                    new Date(T0), new Date(T0 + 50 * 1000));
+            assertEquals(3, buckets.size());
+            assertEquals(APP, buckets.get(0).getApp());
+            // 1 + ... + 30 and 31 + ... + 60, resource 3 is not asked for
+            assertBucket(buckets.get(0), 1, 30, T0, 465, 30, 30);
+            assertBucket(buckets.get(1), 1, 30, T0 + 30 * 1000, 1365, 60, 30);
+            assertBucket(buckets.get(2), 2, 30, T0, 465, 30, 30);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.repository.metric;
+
+import com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntity;
+import com.alibaba.csp.sentinel.dashboard.domain.vo.MetricSeries;
+import com.alibaba.csp.sentinel.dashboard.repository.metric.mapper.MetricsMapper;
+
+import org.apache.ibatis.executor.result.DefaultResultContext;
+import org.apache.ibatis.session.ResultHandler;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import static com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntityFixture.APP;
+import static com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntityFixture.coded;
+import static com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntityFixture.metric;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class MysqlMetricsRepositoryTest {
+
+    private static final long T0 = 1_700_000_000_000L;
+
+    private boolean inTransaction;
+    private final List<String> idsResolved = new ArrayList<>();
+    private final List<List<MetricEntity>> inserts = new ArrayList<>();
+    private final List<MetricEntity> stored = new ArrayList<>();
+    private final List<MetricEntity> streamed = new ArrayList<>();
+    private final List<MetricEntity> cached = new ArrayList<>();
+    private int failInsert = -1;
+
+    private MysqlMetricsRepository repository;
+
+    @Before
+    public void setUp() {
+        MetricsMapper mapper = mock(MetricsMapper.class);
+        when(mapper.insertBatch(anyList())).thenAnswer(invocation -> {
+            assertTrue("inserted within the transaction", inTransaction);
+            if (inserts.size() == failInsert) {
+                throw new IllegalStateException("insert failed");
+            }
+            List<MetricEntity> rows = invocation.getArgument(0);
+            inserts.add(new ArrayList<>(rows));
+            return rows.size();
+        });
+        when(mapper.selectList(any())).thenAnswer(invocation -> new ArrayList<>(stored));
+        doAnswer(invocation -> {
+            ResultHandler<MetricEntity> handler = invocation.getArgument(4);
+            DefaultResultContext<MetricEntity> context = new DefaultResultContext<>();
+            for (MetricEntity entity : streamed) {
+                context.nextResultObject(entity);
+                handler.handleResult(context);
+            }
+            return null;
+        }).when(mapper).streamBetween(any(), anyList(), any(), any(), any());
+        ResourceDictionary dictionary = new ResourceDictionary() {
+            @Override
+            public int idOf(String app, String resource) {
+                assertFalse("ids are committed on their own", inTransaction);
+                idsResolved.add(resource);
+                return codeOf(resource);
+            }
+
+            @Override
+            public Integer findId(String app, String resource) {
+                return codeOf(resource);
+            }
+
+            @Override
+            public String nameOf(int id) {
+                return String.valueOf((char) ('a' + id - 1));
+            }
+        };
+        MetricHotWindowCache hotWindowCache = new MetricHotWindowCache() {
+            @Override
+            public void putAll(Collection<MetricEntity> metrics) {
+                cached.addAll(metrics);
+            }
+        };
+        ResourceIndex resourceIndex = new ResourceIndex() {
+            @Override
+            public void record(Collection<MetricEntity> metrics) {
+            }
+        };
+        TransactionTemplate transactionTemplate = new TransactionTemplate() {
+            @Override
+            public void executeWithoutResult(Consumer<TransactionStatus> action) {
+                inTransaction = true;
+                try {
+                    action.accept(null);
+                } finally {
+                    inTransaction = false;
+                }
+            }
+        };
+
+        repository = new MysqlMetricsRepository();
+        ReflectionTestUtils.setField(repository, "baseMapper", mapper);
+        ReflectionTestUtils.setField(repository, "resourceDictionary", dictionary);
+        ReflectionTestUtils.setField(repository, "hotWindowCache", hotWindowCache);
+        ReflectionTestUtils.setField(repository, "resourceIndex", resourceIndex);
+        ReflectionTestUtils.setField(repository, "transactionTemplate", transactionTemplate);
+        ReflectionTestUtils.setField(repository, "rowsPerStatement", 2);
+    }
+
+    private static int codeOf(String resource) {
+        return resource.charAt(0) - 'a' + 1;
+    }
+
+    @Test
+    public void testIdsAreCreatedBeforeTheInserts() {
+        repository.saveAll(Arrays.asList(metric("a", T0 + 2000, 1), metric("b", T0, 1), metric("c", T0 + 1000, 1),
+                metric("a", T0 + 1000, 1), metric("b", T0 + 3000, 1)));
+
+        assertEquals(Arrays.asList("a", "b", "c", "a", "b"), idsResolved);
+        // in time order, two rows per statement
+        assertEquals(3, inserts.size());
+        assertEquals(2, inserts.get(0).size());
+        assertEquals(1, inserts.get(2).size());
+        assertEquals(T0, inserts.get(0).get(0).getTimestamp().getTime());
+        assertEquals(2, inserts.get(0).get(0).getResourceCode());
+        assertEquals(5, cached.size());
+    }
+
+    @Test
+    public void testFailedInsertIsNotCached() {
+        failInsert = 1;
+        try {
+            repository.saveAll(Arrays.asList(metric("a", T0, 1), metric("b", T0, 1), metric("c", T0, 1)));
+            fail("insert failure expected");
+        } catch (IllegalStateException e) {
+            assertEquals("insert failed", e.getMessage());
+        }
+        assertEquals(3, idsResolved.size());
+        assertFalse(inTransaction);
+        assertTrue(cached.isEmpty());
+    }
+
+    @Test
+    public void testSaveIfAbsentInsertsWithinTheTransaction() {
+        stored.add(coded(codeOf("a"), metric(APP, "a", T0, 1, 0)));
+        repository.saveAllIfAbsent(Arrays.asList(metric("a", T0, 1), metric("a", T0 + 1000, 1), metric("b", T0, 1)));
+
+        assertEquals(Arrays.asList("a", "b"), idsResolved);
+        assertEquals(1, inserts.size());
+        assertEquals("b", inserts.get(0).get(0).getResource());
+        assertEquals("a", inserts.get(0).get(1).getResource());
+        assertEquals(T0 + 1000, inserts.get(0).get(1).getTimestamp().getTime());
+    }
+
+    @Test
+    public void testSecondSavedTwiceKeepsTheLaterRow() {
+        // as streamed, by resource, time and id
+        streamed.add(coded(codeOf("a"), metric(APP, "a", T0, 1, 0)));
+        streamed.add(coded(codeOf("a"), metric(APP, "a", T0, 2, 0)));
+        streamed.add(coded(codeOf("a"), metric(APP, "a", T0 + 1000, 3, 0)));
+        streamed.add(coded(codeOf("b"), metric(APP, "b", T0, 4, 0)));
+        streamed.add(coded(codeOf("b"), metric(APP, "b", T0, 5, 0)));
+
+        Map<String, MetricSeries> series = repository.querySeriesByAppAndResourcesBetween(APP,
+                Arrays.asList("a", "b", "c"), T0, T0 + 2000, 1);
+
+        assertEquals(2, series.size());
+        MetricSeries a = series.get("a");
+        assertEquals(2, a.size());
+        assertEquals(T0, a.getTimestamp(0));
+        assertEquals(2, a.getPassQps(0));
+        assertEquals(3, a.getPassQps(1));
+        MetricSeries b = series.get("b");
+        assertEquals(1, b.size());
+        assertEquals(5, b.getPassQps(0));
+        // the same winner as a series built from the rows at once
+        assertEquals(2, MetricSeries.of(streamed.subList(0, 3)).getPassQps(0));
+    }
+}
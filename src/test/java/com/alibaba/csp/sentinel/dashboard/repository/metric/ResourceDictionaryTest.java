@@ -0,0 +1,154 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.repository.metric;
+
+import com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricResourceEntity;
+import com.alibaba.csp.sentinel.dashboard.repository.metric.mapper.MetricResourceMapper;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class ResourceDictionaryTest {
+
+    /**
+     * Rows of {@code metric_resource} of the app loaded on first use.
+     */
+    private final List<MetricResourceEntity> rows = new ArrayList<>();
+    /**
+     * Answers of the single row lookups, {@code null} once empty.
+     */
+    private final Deque<MetricResourceEntity> selectOneResults = new LinkedList<>();
+    private final Map<Integer, MetricResourceEntity> byId = new HashMap<>();
+    private RuntimeException insertFailure;
+    private int nextId = 100;
+
+    private MetricResourceMapper mapper;
+    private ResourceDictionary dictionary;
+
+    @Before
+    public void setUp() {
+        mapper = mock(MetricResourceMapper.class);
+        when(mapper.selectList(any())).thenAnswer(invocation -> new ArrayList<>(rows));
+        when(mapper.selectOne(any())).thenAnswer(invocation -> selectOneResults.poll());
+        when(mapper.selectById(any())).thenAnswer(invocation -> byId.get(invocation.getArgument(0)));
+        when(mapper.insert(any())).thenAnswer(invocation -> {
+            if (insertFailure != null) {
+                throw insertFailure;
+            }
+            invocation.<MetricResourceEntity>getArgument(0).setId(nextId++);
+            return 1;
+        });
+        dictionary = new ResourceDictionary();
+        ReflectionTestUtils.setField(dictionary, "resourceMapper", mapper);
+    }
+
+    private static MetricResourceEntity row(int id, String app, String resource) {
+        MetricResourceEntity entity = new MetricResourceEntity();
+        entity.setId(id);
+        entity.setApp(app);
+        entity.setResource(resource);
+        return entity;
+    }
+
+    @Test
+    public void testMissCreatesTheIdOnce() {
+        rows.add(row(1, "app", "/a"));
+        assertEquals(Integer.valueOf(1), dictionary.findId("app", "/a"));
+        verify(mapper, times(1)).selectList(any());
+        verify(mapper, never()).selectOne(any());
+
+        // not stored anywhere yet
+        assertNull(dictionary.findId("app", "/b"));
+        verify(mapper, times(1)).selectOne(any());
+        assertEquals(100, dictionary.idOf("app", "/b"));
+        verify(mapper, times(2)).selectOne(any());
+        verify(mapper, times(1)).insert(any());
+
+        assertEquals(100, dictionary.idOf("app", "/b"));
+        assertEquals("/b", dictionary.nameOf(100));
+        assertEquals(2, dictionary.resourcesOf("app").size());
+        verify(mapper, times(1)).insert(any());
+        verify(mapper, times(2)).selectOne(any());
+        verify(mapper, times(1)).selectList(any());
+        verify(mapper, never()).selectById(any());
+    }
+
+    @Test
+    public void testFindsIdsCreatedByAnotherNode() {
+        assertTrue(dictionary.resourcesOf("app").isEmpty());
+        selectOneResults.add(row(7, "app", "/c"));
+        assertEquals(Integer.valueOf(7), dictionary.findId("app", "/c"));
+        assertEquals(7, dictionary.idOf("app", "/c"));
+        assertEquals(Integer.valueOf(7), dictionary.resourcesOf("app").get("/c"));
+        verify(mapper, times(1)).selectOne(any());
+        verify(mapper, never()).insert(any());
+
+        byId.put(9, row(9, "other", "/x"));
+        assertEquals("/x", dictionary.nameOf(9));
+        assertEquals("/x", dictionary.nameOf(9));
+        verify(mapper, times(1)).selectById(any());
+        assertNull(dictionary.nameOf(10));
+        // the app of the id has not been loaded, only its name is cached
+        verify(mapper, times(1)).selectList(any());
+    }
+
+    @Test
+    public void testNamesDifferingInCaseHaveTheirOwnIds() {
+        assertEquals(100, dictionary.idOf("app", "/Foo"));
+        assertEquals(101, dictionary.idOf("app", "/foo"));
+        verify(mapper, times(2)).selectOne(any());
+
+        // both spellings are cached, neither goes back to the database
+        assertEquals(100, dictionary.idOf("app", "/Foo"));
+        assertEquals(101, dictionary.idOf("app", "/foo"));
+        assertEquals("/Foo", dictionary.nameOf(100));
+        assertEquals("/foo", dictionary.nameOf(101));
+        verify(mapper, times(2)).selectOne(any());
+        verify(mapper, times(2)).insert(any());
+    }
+
+    @Test
+    public void testDuplicateKeyTakesTheIdOfTheOtherNode() {
+        insertFailure = new DuplicateKeyException("uk_app_resource");
+        // missing on the lookup, inserted by another node before our insert
+        selectOneResults.add(null);
+        selectOneResults.add(row(5, "app", "/d"));
+        assertEquals(5, dictionary.idOf("app", "/d"));
+        assertEquals("/d", dictionary.nameOf(5));
+        assertEquals(Integer.valueOf(5), dictionary.findId("app", "/d"));
+
+        // the row is still invisible, the failure is not hidden
+        try {
+            dictionary.idOf("app", "/e");
+            fail("DuplicateKeyException expected");
+        } catch (DuplicateKeyException e) {
+            assertSame(insertFailure, e);
+        }
+        assertNull(dictionary.findId("app", "/e"));
+    }
+}
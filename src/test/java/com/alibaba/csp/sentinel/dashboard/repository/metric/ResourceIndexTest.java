@@ -0,0 +1,109 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.repository.metric;
+
+import com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntity;
+import com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricResourceEntity;
+import com.alibaba.csp.sentinel.dashboard.repository.metric.mapper.MetricResourceMapper;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+import static com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntityFixture.APP;
+import static com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntityFixture.coded;
+import static com.alibaba.csp.sentinel.dashboard.datasource.entity.MetricEntityFixture.metric;
+
+public class ResourceIndexTest {
+
+    @Test
+    public void testTotalsOfTheLastHour() {
+        long now = System.currentTimeMillis();
+        ResourceIndex.ResourceStats stats = new ResourceIndex.ResourceStats(1, "res");
+        stats.add(coded(1, metric(APP, "res", now - 1000, 10, 1)), now);
+        stats.add(coded(1, metric(APP, "res", now - 1000 * 60 * 30, 5, 0)), now);
+        // older than the window
+        stats.add(coded(1, metric(APP, "res", now - ResourceIndex.WINDOW_MS - 1000 * 60 * 2, 100, 100)), now);
+        assertEquals(now - 1000, stats.getLastSeen());
+        assertArrayEquals(new long[] {15, 15, 1, 0}, stats.totals(now));
+        // the minute of the first one leaves the window
+        assertArrayEquals(new long[] {10, 10, 1, 0}, stats.totals(now + 1000 * 60 * 31));
+    }
+
+    @Test
+    public void testLoadOnlyOverridesEntriesNotSavedLocally() {
+        long now = System.currentTimeMillis();
+        MetricResourceEntity entity = new MetricResourceEntity();
+        entity.setGmtLastSeen(new Date(now));
+        entity.setPassQps(7L);
+        entity.setBlockQps(2L);
+
+        ResourceIndex.ResourceStats remote = new ResourceIndex.ResourceStats(1, "res");
+        remote.load(entity, now);
+        assertEquals(now, remote.getLastSeen());
+        assertArrayEquals(new long[] {7, 0, 2, 0}, remote.totals(now));
+
+        ResourceIndex.ResourceStats local = new ResourceIndex.ResourceStats(1, "res");
+        local.add(coded(1, metric(APP, "res", now - 1000, 10, 1)), now);
+        local.load(entity, now);
+        assertArrayEquals(new long[] {10, 10, 1, 0}, local.totals(now));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testFlushWritesTheUpdatedEntriesAtOnceUntilWritten() {
+        MetricResourceMapper mapper = mock(MetricResourceMapper.class);
+        when(mapper.upsertStatsBatch(anyList())).thenThrow(new IllegalStateException("write failed")).thenReturn(2);
+        ResourceIndex index = new ResourceIndex();
+        ReflectionTestUtils.setField(index, "resourceMapper", mapper);
+        long now = System.currentTimeMillis();
+        index.record(Arrays.asList(coded(1, metric(APP, "a", now - 1000, 10, 1)),
+                coded(2, metric(APP, "b", now - 2000, 5, 0))));
+
+        try {
+            index.flush();
+            fail("write failure expected");
+        } catch (IllegalStateException e) {
+            assertEquals("write failed", e.getMessage());
+        }
+        // still to write
+        index.flush();
+        ArgumentCaptor<List<MetricResourceEntity>> rows = ArgumentCaptor.forClass((Class) List.class);
+        verify(mapper, times(2)).upsertStatsBatch(rows.capture());
+        assertEquals(2, rows.getValue().size());
+        MetricResourceEntity a = rows.getValue().get(0).getId() == 1 ? rows.getValue().get(0) : rows.getValue().get(1);
+        assertEquals(APP, a.getApp());
+        assertEquals("a", a.getResource());
+        assertEquals(now - 1000, a.getGmtLastSeen().getTime());
+        assertEquals(Long.valueOf(10), a.getPassQps());
+        assertEquals(Long.valueOf(1), a.getBlockQps());
+
+        // nothing new since
+        index.flush();
+        verify(mapper, times(2)).upsertStatsBatch(anyList());
+        index.record(Arrays.asList(coded(2, metric(APP, "b", now, 1, 0))));
+        index.flush();
+        verify(mapper, times(3)).upsertStatsBatch(rows.capture());
+        assertEquals(1, rows.getValue().size());
+        assertEquals(Integer.valueOf(2), rows.getValue().get(0).getId());
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 1999-2018 Alibaba Group Holding Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.csp.sentinel.dashboard.repository.metric;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RollupTierTest {
+
+    @Test
+    public void testCoarsestFor() {
+        assertEquals(RollupTier.SECOND, RollupTier.coarsestFor(0));
+        assertEquals(RollupTier.SECOND, RollupTier.coarsestFor(9));
+        assertEquals(RollupTier.TEN_SECONDS, RollupTier.coarsestFor(10));
+        assertEquals(RollupTier.TEN_SECONDS, RollupTier.coarsestFor(59));
+        assertEquals(RollupTier.MINUTE, RollupTier.coarsestFor(300));
+        assertEquals(RollupTier.HOUR, RollupTier.coarsestFor(86400));
+    }
+
+    @Test
+    public void testFinestFor() {
+        assertEquals(RollupTier.SECOND, RollupTier.finestFor(1000 * 60 * 60));
+        assertEquals(RollupTier.TEN_SECONDS, RollupTier.finestFor(1000 * 60 * 60 + 1));
+        assertEquals(RollupTier.MINUTE, RollupTier.finestFor(1000L * 60 * 60 * 24 * 2));
+        assertEquals(RollupTier.HOUR, RollupTier.finestFor(1000L * 60 * 60 * 24 * 30));
+        assertNull(RollupTier.finestFor(1000L * 60 * 60 * 24 * 365));
+    }
+
+    @Test
+    public void testAlignStep() {
+        assertEquals(1, RollupTier.alignStep(0));
+        assertEquals(7, RollupTier.alignStep(7));
+        assertEquals(10, RollupTier.alignStep(10));
+        assertEquals(50, RollupTier.alignStep(45));
+        assertEquals(180, RollupTier.alignStep(172));
+        assertEquals(7200, RollupTier.alignStep(3601));
+    }
+
+    @Test
+    public void testSource() {
+        assertNull(RollupTier.SECOND.getSource());
+        assertEquals(RollupTier.SECOND, RollupTier.TEN_SECONDS.getSource());
+        assertEquals(RollupTier.MINUTE, RollupTier.HOUR.getSource());
+    }
+}